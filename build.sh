@@ -35,6 +35,45 @@ $JAVA_HOME/bin/javac --release=8 \
   src/com/voiceoverlay/AudioRecorder.java \
   src/com/voiceoverlay/ChatGPTAPI.java \
   src/com/voiceoverlay/BootReceiver.java \
+  src/com/voiceoverlay/SegmentedTranscription.java \
+  src/com/voiceoverlay/HttpTransport.java \
+  src/com/voiceoverlay/ApiException.java \
+  src/com/voiceoverlay/AsyncResult.java \
+  src/com/voiceoverlay/TaskExecutor.java \
+  src/com/voiceoverlay/MultipartBody.java \
+  src/com/voiceoverlay/SseParser.java \
+  src/com/voiceoverlay/VoiceActivityDetector.java \
+  src/com/voiceoverlay/SilenceTrimmer.java \
+  src/com/voiceoverlay/ShortRingBuffer.java \
+  src/com/voiceoverlay/PcmConsumer.java \
+  src/com/voiceoverlay/PcmCaptureEngine.java \
+  src/com/voiceoverlay/AacEncoder.java \
+  src/com/voiceoverlay/PcmSegmenter.java \
+  src/com/voiceoverlay/PcmLevelMeter.java \
+  src/com/voiceoverlay/SpeechMonitor.java \
+  src/com/voiceoverlay/PreRollBuffer.java \
+  src/com/voiceoverlay/PcmResampler.java \
+  src/com/voiceoverlay/AudioDecoder.java \
+  src/com/voiceoverlay/UploadTranscoder.java \
+  src/com/voiceoverlay/OggOpusWriter.java \
+  src/com/voiceoverlay/OpusStreamEncoder.java \
+  src/com/voiceoverlay/TranscriptMerger.java \
+  src/com/voiceoverlay/ChunkedTranscription.java \
+  src/com/voiceoverlay/TranscriptionCache.java \
+  src/com/voiceoverlay/HistoryStore.java \
+  src/com/voiceoverlay/HistoryAdapter.java \
+  src/com/voiceoverlay/HistoryIndex.java \
+  src/com/voiceoverlay/AudioArchive.java \
+  src/com/voiceoverlay/ArchiveTranscoder.java \
+  src/com/voiceoverlay/ArchiveTranscodeJob.java \
+  src/com/voiceoverlay/JsonResponse.java \
+  src/com/voiceoverlay/TranscriptionQueue.java \
+  src/com/voiceoverlay/NetworkState.java \
+  src/com/voiceoverlay/RetryPolicy.java \
+  src/com/voiceoverlay/RateLimiter.java \
+  src/com/voiceoverlay/TranscriptionBackend.java \
+  src/com/voiceoverlay/OnDeviceTranscriber.java \
+  src/com/voiceoverlay/TranscriptionRouter.java \
   build/com/voiceoverlay/R.java
 
 # Step 4: Convert to DEX
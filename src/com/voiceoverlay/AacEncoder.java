@@ -0,0 +1,156 @@
+package com.voiceoverlay;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes captured PCM to AAC-LC in an .m4a file, the same container
+ * MediaRecorder produces, so uploads and history treat both engines alike.
+ * Presentation times come from the sample count, so paused stretches leave
+ * no gap in the file. Needs API 21.
+ */
+public class AacEncoder implements PcmConsumer {
+    private static final long TIMEOUT_US = 10000;
+
+    private final File file;
+    private final int bitRate;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private MediaCodec codec;
+    private MediaMuxer muxer;
+    private int track = -1;
+    private int sampleRate;
+    private int channels;
+    private long framesQueued = 0;
+
+    public AacEncoder(File file, int bitRate) {
+        this.file = file;
+        this.bitRate = bitRate;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        framesQueued = 0;
+
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16 * 1024);
+
+        codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+            muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException | RuntimeException e) {
+            codec.release();
+            codec = null;
+            throw e instanceof IOException ? (IOException) e : new IOException("Could not start AAC encoder", e);
+        }
+    }
+
+    @Override
+    public void onPcm(short[] pcm, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {
+                drain(false);
+                continue;
+            }
+            ByteBuffer in = codec.getInputBuffer(index);
+            in.clear();
+            in.order(ByteOrder.nativeOrder());
+            int count = Math.min(end - offset, in.remaining() / 2);
+            count -= count % channels;
+            for (int i = 0; i < count; i++) {
+                in.putShort(pcm[offset + i]);
+            }
+            codec.queueInputBuffer(index, 0, count * 2, framesQueued * 1000000L / sampleRate, 0);
+            framesQueued += count / channels;
+            offset += count;
+            drain(false);
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        if (codec == null) {
+            return;
+        }
+        try {
+            int index;
+            while ((index = codec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                drain(false);
+            }
+            codec.queueInputBuffer(index, 0, 0, framesQueued * 1000000L / sampleRate, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+        } finally {
+            release();
+        }
+    }
+
+    private void drain(boolean endOfStream) {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, endOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                track = muxer.addTrack(codec.getOutputFormat());
+                muxer.start();
+            } else if (index >= 0) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    info.size = 0;  // already part of the track format
+                }
+                if (info.size > 0 && track >= 0) {
+                    ByteBuffer out = codec.getOutputBuffer(index);
+                    out.position(info.offset);
+                    out.limit(info.offset + info.size);
+                    muxer.writeSampleData(track, out, info);
+                }
+                codec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Frees the codec and closes the file; safe to call more than once. */
+    public void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // Ignore
+            }
+            codec.release();
+            codec = null;
+        }
+        if (muxer != null) {
+            try {
+                if (track >= 0) {
+                    muxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                // Nothing was written
+            }
+            muxer.release();
+            muxer = null;
+            track = -1;
+        }
+    }
+}
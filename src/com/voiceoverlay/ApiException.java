@@ -0,0 +1,46 @@
+package com.voiceoverlay;
+
+import java.io.IOException;
+
+/**
+ * Failure reported by one of the API clients. The message is already
+ * user-facing; {@link #getStatusCode()} is the HTTP status when the server
+ * answered, or -1 for local and transport errors.
+ */
+public class ApiException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final long retryAfterMs;
+
+    public ApiException(String message) {
+        this(message, -1);
+    }
+
+    public ApiException(String message, int statusCode) {
+        this(message, statusCode, -1);
+    }
+
+    /** An HTTP error whose response said how long to wait before trying again. */
+    public ApiException(String message, int statusCode, long retryAfterMs) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /** A transport failure, reworded for the user; {@code cause} says what actually went wrong. */
+    public ApiException(String message, Throwable cause) {
+        super(message, cause);
+        this.statusCode = -1;
+        this.retryAfterMs = -1;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /** Wait the server asked for, in ms, or -1 when it did not say. */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
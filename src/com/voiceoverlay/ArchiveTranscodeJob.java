@@ -0,0 +1,79 @@
+package com.voiceoverlay;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs {@link ArchiveTranscoder} while the device is idle and charging, at
+ * most every {@link #PERIOD_MS}. When the system ends the job early the
+ * transcoder stops at its next slice and the job asks to be rescheduled.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ArchiveTranscodeJob extends JobService {
+    private static final String TAG = "VoiceOverlay";
+    private static final int JOB_ID = 1017;
+    private static final long PERIOD_MS = 12 * 60 * 60 * 1000L;
+
+    /**
+     * Registers the job, or cancels it when recompression is turned off.
+     * Leaves an existing registration alone so its period is not reset.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) {
+            return;
+        }
+        if (ArchiveTranscoder.get(context).getAgeDays() <= 0) {
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, ArchiveTranscodeJob.class))
+            .setRequiresDeviceIdle(true)
+            .setRequiresCharging(true)
+            .setPeriodic(PERIOD_MS)
+            .setPersisted(true)
+            .build();
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "ArchiveTranscodeJob: could not schedule");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final ArchiveTranscoder transcoder = ArchiveTranscoder.get(this);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean finished = transcoder.run();
+                Log.d(TAG, "ArchiveTranscodeJob: " + transcoder.describe());
+                if (finished) {
+                    jobFinished(params, false);
+                }
+            }
+        }, "VoiceOverlay-archive-transcode").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        ArchiveTranscoder.get(this).cancel();
+        return true;
+    }
+}
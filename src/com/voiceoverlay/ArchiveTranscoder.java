@@ -0,0 +1,322 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recompresses recordings in {@link AudioArchive} once they are older than
+ * {@link #KEY_AGE_DAYS}, to 16 kHz mono AAC at {@link #ARCHIVE_BIT_RATE}:
+ * plenty for reading back or re-transcribing speech, and about a tenth of
+ * the high quality preset. Runs from {@link ArchiveTranscodeJob} while the
+ * device is idle and charging.
+ *
+ * Work is throttled to {@link #DUTY_CYCLE} of one background thread. Each
+ * file is encoded into {@code archive_transcode/}, checked, then renamed
+ * over the original, so a kill at any point leaves either the old file or
+ * the new one. Finished and failed names are journaled with their size, and
+ * a later run picks up where the last one stopped.
+ */
+public class ArchiveTranscoder {
+    private static final String TAG = "VoiceOverlay";
+    private static final String PREFS_NAME = "VoiceOverlayPrefs";
+    static final String KEY_AGE_DAYS = "archive_compress_after_days";
+    static final int DEFAULT_AGE_DAYS = 7;
+    static final int ARCHIVE_BIT_RATE = 24000;
+    static final float DUTY_CYCLE = 0.5f;
+    private static final long SLICE_MS = 200;
+    private static final long PAUSE_BETWEEN_FILES_MS = 1000;
+    private static final long DURATION_TOLERANCE_US = 500000;
+    private static final String JOURNAL = "transcode.journal";
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    private static ArchiveTranscoder instance;
+
+    private final Context context;
+    private final File workDir;
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean cancelled = false;
+
+    public static synchronized ArchiveTranscoder get(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new ArchiveTranscoder(app, new File(app.getFilesDir(), "archive_transcode"));
+        }
+        return instance;
+    }
+
+    private ArchiveTranscoder(Context context, File workDir) {
+        this.context = context;
+        this.workDir = workDir;
+    }
+
+    /** Age in days after which recordings are recompressed; 0 when turned off. */
+    public int getAgeDays() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_AGE_DAYS, DEFAULT_AGE_DAYS);
+    }
+
+    /** Makes a running {@link #run()} stop at its next slice; the file in progress is dropped. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Recompresses every due recording until done or cancelled. Blocks
+     * for as long as that takes; returns true when nothing is left to do.
+     */
+    public synchronized boolean run() {
+        cancelled = false;
+        int ageDays = getAgeDays();
+        if (ageDays <= 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return true;
+        }
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            Log.w(TAG, "ArchiveTranscoder: cannot create " + workDir);
+            return true;
+        }
+        // Leftovers of a run that was killed mid-file
+        File[] stale = workDir.listFiles();
+        if (stale != null) {
+            for (File f : stale) {
+                if (!f.getName().equals(JOURNAL)) {
+                    f.delete();
+                }
+            }
+        }
+
+        Map<String, String> journal = readJournal();
+        File[] files = AudioArchive.get(context).getDirectory().listFiles();
+        if (files == null) {
+            return true;
+        }
+        long cutoff = System.currentTimeMillis() - ageDays * 24L * 60 * 60 * 1000;
+        Map<String, String> live = new HashMap<>();
+        int done = 0;
+        for (File f : files) {
+            if (!f.isFile()) {
+                continue;
+            }
+            String key = f.getName() + "\t" + f.length();
+            String status = journal.get(key);
+            if (status != null) {
+                live.put(key, status);
+                continue;
+            }
+            if (f.lastModified() > cutoff) {
+                continue;
+            }
+            if (cancelled) {
+                break;
+            }
+            long before = f.length();
+            boolean ok = transcode(f);
+            if (cancelled) {
+                break;  // interrupted, not failed; try it again next run
+            }
+            status = ok ? DONE : FAILED;
+            live.put(f.getName() + "\t" + f.length(), status);
+            appendJournal(f.getName() + "\t" + f.length(), status);
+            if (ok && f.length() < before) {
+                done++;
+                compressed.incrementAndGet();
+                bytesSaved.addAndGet(before - f.length());
+            }
+            SystemClock.sleep(PAUSE_BETWEEN_FILES_MS);
+        }
+        if (!cancelled) {
+            writeJournal(live);  // drops names that are gone from the archive
+        }
+        Log.d(TAG, "ArchiveTranscoder: recompressed " + done + " recordings" + (cancelled ? ", stopped" : ""));
+        return !cancelled;
+    }
+
+    /**
+     * Replaces {@code source} with a compact copy. Returns true when the
+     * file is compact afterwards, including when it already was.
+     */
+    private boolean transcode(File source) {
+        File output = new File(workDir, source.getName() + ".tmp");
+        AacEncoder encoder = null;
+        try {
+            MediaFormat format = AudioDecoder.readFormat(source);
+            if (format == null) {
+                return false;
+            }
+            if (!UploadTranscoder.needsTranscode(format, source.length(), ARCHIVE_BIT_RATE)) {
+                return true;
+            }
+            encoder = new AacEncoder(output, ARCHIVE_BIT_RATE);
+            AudioDecoder.decode(source, new Throttled(UploadTranscoder.downsampleTo(encoder)));
+            encoder = null;
+
+            if (!verify(format, source, output)) {
+                Log.w(TAG, "ArchiveTranscoder: output for " + source.getName() + " failed verification");
+                failures.incrementAndGet();
+                output.delete();
+                return false;
+            }
+            output.setLastModified(source.lastModified());  // keeps its place in the budget's eviction order
+            if (!source.exists() || !output.renameTo(source)) {
+                output.delete();  // deleted or evicted meanwhile
+                return false;
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            if (!cancelled) {
+                Log.w(TAG, "ArchiveTranscoder: could not recompress " + source.getName(), e);
+                failures.incrementAndGet();
+            }
+            if (encoder != null) {
+                encoder.release();
+            }
+            output.delete();
+            return false;
+        }
+    }
+
+    private static boolean verify(MediaFormat original, File source, File output) throws IOException {
+        if (output.length() == 0 || output.length() >= source.length()) {
+            return false;
+        }
+        MediaFormat format = AudioDecoder.readFormat(output);
+        if (format == null
+            || !MediaFormat.MIMETYPE_AUDIO_AAC.equals(format.getString(MediaFormat.KEY_MIME))
+            || format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != UploadTranscoder.TARGET_SAMPLE_RATE
+            || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != 1) {
+            return false;
+        }
+        if (original.containsKey(MediaFormat.KEY_DURATION)) {
+            if (!format.containsKey(MediaFormat.KEY_DURATION)) {
+                return false;
+            }
+            long expected = original.getLong(MediaFormat.KEY_DURATION);
+            long tolerance = Math.max(DURATION_TOLERANCE_US, expected / 50);
+            return Math.abs(format.getLong(MediaFormat.KEY_DURATION) - expected) <= tolerance;
+        }
+        return true;
+    }
+
+    // Sleeps between slices of work so the transcode holds to DUTY_CYCLE, and stops it when cancelled
+    private class Throttled implements PcmConsumer {
+        private final PcmConsumer next;
+        private long sliceStart;
+
+        Throttled(PcmConsumer next) {
+            this.next = next;
+        }
+
+        @Override
+        public void onStart(int sampleRate, int channels) throws IOException {
+            sliceStart = SystemClock.elapsedRealtime();
+            next.onStart(sampleRate, channels);
+        }
+
+        @Override
+        public void onPcm(short[] pcm, int offset, int length) throws IOException {
+            if (cancelled) {
+                throw new InterruptedIOException("Recompression cancelled");
+            }
+            next.onPcm(pcm, offset, length);
+            long busy = SystemClock.elapsedRealtime() - sliceStart;
+            if (busy >= SLICE_MS) {
+                SystemClock.sleep((long) (busy * (1 - DUTY_CYCLE) / DUTY_CYCLE));
+                sliceStart = SystemClock.elapsedRealtime();
+            }
+        }
+
+        @Override
+        public void onStop() throws IOException {
+            next.onStop();
+        }
+    }
+
+    private Map<String, String> readJournal() {
+        Map<String, String> journal = new HashMap<>();
+        File file = new File(workDir, JOURNAL);
+        if (!file.exists()) {
+            return journal;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab > 0 && line.indexOf('\t') < tab) {
+                        journal.put(line.substring(0, tab), line.substring(tab + 1));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "ArchiveTranscoder: could not read journal, starting over", e);
+        }
+        return journal;
+    }
+
+    private void appendJournal(String key, String status) {
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(new File(workDir, JOURNAL), true), "UTF-8");
+            try {
+                writer.write(key + "\t" + status + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "ArchiveTranscoder: could not update journal", e);
+        }
+    }
+
+    private void writeJournal(Map<String, String> entries) {
+        File journal = new File(workDir, JOURNAL);
+        File temp = new File(workDir, JOURNAL + ".new");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(journal)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "ArchiveTranscoder: could not rewrite journal", e);
+            temp.delete();
+        }
+    }
+
+    public long getCompressedCount() {
+        return compressed.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public String describe() {
+        return "compressed=" + compressed.get() + " savedBytes=" + bytesSaved.get() + " failures=" + failures.get();
+    }
+}
@@ -0,0 +1,207 @@
+package com.voiceoverlay;
+
+import android.os.Handler;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of work running on {@link TaskExecutor}. Stages chain with
+ * {@link #then} and {@link #thenAsync} so a "transcribe, then improve, then
+ * copy" flow reads top to bottom instead of as nested callbacks; a failure in
+ * any stage skips the rest and lands in the final callback's onError.
+ */
+public class AsyncResult<T> {
+    public interface Callback<T> {
+        void onSuccess(T value);
+        void onError(String error);
+    }
+
+    // Runs on a worker thread; may block
+    public interface Transform<T, R> {
+        R apply(T value) throws Exception;
+    }
+
+    // Starts the next asynchronous step; should return quickly
+    public interface AsyncTransform<T, R> {
+        AsyncResult<R> apply(T value) throws Exception;
+    }
+
+    private final int priority;
+    private final List<Runnable> listeners = new ArrayList<>();
+    private boolean done = false;
+    private T value;
+    private Exception error;
+
+    public AsyncResult(int priority) {
+        this.priority = priority;
+    }
+
+    public static <T> AsyncResult<T> success(T value) {
+        AsyncResult<T> result = new AsyncResult<>(TaskExecutor.PRIORITY_NORMAL);
+        result.complete(value);
+        return result;
+    }
+
+    public static <T> AsyncResult<T> failure(Exception error) {
+        AsyncResult<T> result = new AsyncResult<>(TaskExecutor.PRIORITY_NORMAL);
+        result.fail(error);
+        return result;
+    }
+
+    public void complete(T value) {
+        finish(value, null);
+    }
+
+    public void fail(Exception error) {
+        finish(null, error);
+    }
+
+    private void finish(T value, Exception error) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            this.done = true;
+            this.value = value;
+            this.error = error;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable r : toRun) {
+            r.run();
+        }
+    }
+
+    private void whenDone(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /** What the work failed with, once done; null on success or while still running. */
+    public synchronized Exception getError() {
+        return error;
+    }
+
+    /** Runs {@code transform} on the pool with this result's value. */
+    public <R> AsyncResult<R> then(final Transform<? super T, R> transform) {
+        final AsyncResult<R> next = new AsyncResult<>(priority);
+        whenDone(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    next.fail(error);
+                    return;
+                }
+                TaskExecutor.runAdmitted(priority, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            next.complete(transform.apply(value));
+                        } catch (Exception e) {
+                            next.fail(e);
+                        }
+                    }
+                });
+            }
+        });
+        return next;
+    }
+
+    /** Chains another asynchronous call, e.g. an API request on the transcript. */
+    public <R> AsyncResult<R> thenAsync(final AsyncTransform<? super T, R> transform) {
+        final AsyncResult<R> next = new AsyncResult<>(priority);
+        whenDone(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    next.fail(error);
+                    return;
+                }
+                try {
+                    transform.apply(value).forwardTo(next);
+                } catch (Exception e) {
+                    next.fail(e);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * The same outcome, except that a failure other than an
+     * {@link ApiException} becomes one whose message names the original
+     * error, for display to the user.
+     */
+    public AsyncResult<T> wrapErrors() {
+        final AsyncResult<T> next = new AsyncResult<>(priority);
+        whenDone(new Runnable() {
+            @Override
+            public void run() {
+                if (error == null) {
+                    next.complete(value);
+                } else if (error instanceof ApiException) {
+                    next.fail(error);
+                } else {
+                    next.fail(new ApiException("Error: " + error.getClass().getSimpleName() + " - "
+                        + error.getMessage(), error));
+                }
+            }
+        });
+        return next;
+    }
+
+    private void forwardTo(final AsyncResult<T> target) {
+        whenDone(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    target.fail(error);
+                } else {
+                    target.complete(value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delivers the outcome to {@code callback}, posted to {@code handler} when
+     * one is given or invoked on the completing thread otherwise.
+     */
+    public AsyncResult<T> deliver(final Handler handler, final Callback<? super T> callback) {
+        whenDone(new Runnable() {
+            @Override
+            public void run() {
+                Runnable delivery = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (error == null) {
+                            callback.onSuccess(value);
+                        } else {
+                            callback.onError(messageOf(error));
+                        }
+                    }
+                };
+                if (handler != null) {
+                    handler.post(delivery);
+                } else {
+                    delivery.run();
+                }
+            }
+        });
+        return this;
+    }
+
+    static String messageOf(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,251 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recordings kept with history entries, in {@code recording_history}.
+ *
+ * A recording is archived by hard-linking it into the folder, so the audio
+ * is not written a second time; a copy is made only when linking is not
+ * possible (before Lollipop, or while the recorder is still writing the
+ * source). The folder is held to the budget set in settings
+ * ({@link #KEY_BUDGET_MB}, 0 for no limit) by dropping the oldest
+ * recordings first; their history entries keep the text.
+ */
+public class AudioArchive {
+    private static final String TAG = "VoiceOverlay";
+    private static final String PREFS_NAME = "VoiceOverlayPrefs";
+    static final String KEY_BUDGET_MB = "history_audio_budget_mb";
+    static final int DEFAULT_BUDGET_MB = 500;
+
+    private static AudioArchive instance;
+
+    private final Context context;
+    private final File dir;
+    private final AtomicLong linked = new AtomicLong();
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong bytesNotCopied = new AtomicLong();
+    private final AtomicLong evictedFiles = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private boolean enforceScheduled = false;
+
+    public static final class Usage {
+        public final int files;
+        public final long bytes;
+        public final long budgetBytes;  // 0 when unlimited
+
+        Usage(int files, long bytes, long budgetBytes) {
+            this.files = files;
+            this.bytes = bytes;
+            this.budgetBytes = budgetBytes;
+        }
+    }
+
+    public static synchronized AudioArchive get(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new AudioArchive(app, new File(app.getFilesDir(), "recording_history"));
+        }
+        return instance;
+    }
+
+    private AudioArchive(Context context, File dir) {
+        this.context = context;
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Puts {@code source} into the archive as {@code name} and returns the
+     * archived file. Pass {@code stillWriting} when a recorder may still
+     * append to the source: the archive then gets a snapshot copy instead
+     * of a link that would keep growing.
+     */
+    public File archive(File source, String name, boolean stillWriting) throws IOException {
+        File target = new File(dir, name);
+        if (target.exists()) {
+            target.delete();
+        }
+        if (!stillWriting && link(source, target)) {
+            linked.incrementAndGet();
+            bytesNotCopied.addAndGet(target.length());
+        } else {
+            copy(source, target);
+            copied.incrementAndGet();
+        }
+        scheduleEnforceBudget();
+        return target;
+    }
+
+    private static boolean link(File source, File target) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+            return true;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "AudioArchive: could not link " + source.getName() + ", copying", e);
+            return false;
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                long size = in.size();
+                for (long position = 0; position < size; ) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public long getBudgetBytes() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_BUDGET_MB, DEFAULT_BUDGET_MB) * 1024L * 1024L;
+    }
+
+    /** Runs {@link #enforceBudget()} on a background worker unless one is already queued. */
+    public synchronized void scheduleEnforceBudget() {
+        if (enforceScheduled) {
+            return;
+        }
+        enforceScheduled = true;
+        TaskExecutor.submit(TaskExecutor.PRIORITY_LOW, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                enforceBudget();
+                return null;
+            }
+        }).deliver(null, new AsyncResult.Callback<Void>() {
+            @Override
+            public void onSuccess(Void ignored) {
+            }
+
+            @Override
+            public void onError(String error) {
+                synchronized (AudioArchive.this) {
+                    enforceScheduled = false;
+                }
+            }
+        });
+    }
+
+    /** Deletes the oldest recordings until the archive fits the budget. */
+    public void enforceBudget() {
+        synchronized (this) {
+            enforceScheduled = false;
+        }
+        long budget = getBudgetBytes();
+        if (budget <= 0) {
+            return;
+        }
+        File[] files = recordings();
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= budget) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();  // read once; it may change while sorting
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(modified[a], modified[b]);
+            }
+        });
+        int evicted = 0;
+        long freed = 0;
+        for (int i = 0; i < order.length && total > budget; i++) {
+            File oldest = files[order[i]];
+            long length = oldest.length();
+            if (oldest.delete()) {
+                total -= length;
+                freed += length;
+                evicted++;
+            }
+        }
+        evictedFiles.addAndGet(evicted);
+        evictedBytes.addAndGet(freed);
+        Log.d(TAG, "AudioArchive: evicted " + evicted + " recordings (" + freed / 1024 + " KB) to fit "
+            + budget / (1024 * 1024) + " MB");
+    }
+
+    /** Current size of the archive; reads the folder, so call it off the main thread. */
+    public Usage getUsage() {
+        File[] files = recordings();
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        return new Usage(files.length, total, getBudgetBytes());
+    }
+
+    public long getLinkedCount() {
+        return linked.get();
+    }
+
+    public long getCopiedCount() {
+        return copied.get();
+    }
+
+    public long getEvictedFiles() {
+        return evictedFiles.get();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    public String describe() {
+        Usage usage = getUsage();
+        return "files=" + usage.files + " bytes=" + usage.bytes + " budget=" + usage.budgetBytes
+            + " linked=" + linked.get() + " copied=" + copied.get() + " notCopiedBytes=" + bytesNotCopied.get()
+            + " evicted=" + evictedFiles.get() + " evictedBytes=" + evictedBytes.get();
+    }
+
+    private File[] recordings() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File f : files) {
+            if (f.isFile()) {
+                files[count++] = f;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+}
@@ -0,0 +1,149 @@
+package com.voiceoverlay;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes the audio track of a recording to 16-bit PCM and streams it into
+ * a {@link PcmConsumer} one codec buffer at a time, so even long files never
+ * sit in memory decoded. Needs API 21.
+ */
+public class AudioDecoder {
+    private static final long TIMEOUT_US = 10000;
+
+    static int findAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Format of the file's audio track, or null if it has none. */
+    public static MediaFormat readFormat(File file) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.getAbsolutePath());
+            int track = findAudioTrack(extractor);
+            return track >= 0 ? extractor.getTrackFormat(track) : null;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Decodes {@code file} into {@code consumer}. onStart receives the
+     * decoder's actual output rate and channel count, which can differ from
+     * the container's (e.g. HE-AAC).
+     */
+    public static void decode(File file, PcmConsumer consumer) throws IOException {
+        decode(file, 0, Long.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Decodes roughly {@code startUs} to {@code endUs}. Decoding begins at the
+     * sync frame at or before {@code startUs}; the returned time is where the
+     * first delivered sample actually lies.
+     */
+    public static long decode(File file, long startUs, long endUs, PcmConsumer consumer) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(file.getAbsolutePath());
+            int track = findAudioTrack(extractor);
+            if (track < 0) {
+                throw new IOException("No audio track in " + file.getName());
+            }
+            MediaFormat format = extractor.getTrackFormat(track);
+            extractor.selectTrack(track);
+            if (startUs > 0) {
+                extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+            long firstSampleUs = Math.max(0, extractor.getSampleTime());
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            pump(extractor, codec, format, endUs, consumer);
+            return firstSampleUs;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // never started
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    private static void pump(MediaExtractor extractor, MediaCodec codec, MediaFormat format, long endUs,
+                             PcmConsumer consumer) throws IOException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        boolean started = false;
+        short[] pcm = new short[0];
+
+        boolean inputDone = false;
+        boolean outputDone = false;
+        while (!outputDone) {
+            if (!inputDone) {
+                int inIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                if (inIndex >= 0) {
+                    ByteBuffer in = codec.getInputBuffer(inIndex);
+                    int size = extractor.readSampleData(in, 0);
+                    if (size < 0 || extractor.getSampleTime() > endUs) {
+                        codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(inIndex, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            int outIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED && !started) {
+                MediaFormat output = codec.getOutputFormat();
+                sampleRate = output.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channels = output.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            } else if (outIndex >= 0) {
+                if (!started) {
+                    consumer.onStart(sampleRate, channels);
+                    started = true;
+                }
+                if (info.size > 0) {
+                    ByteBuffer out = codec.getOutputBuffer(outIndex);
+                    out.position(info.offset);
+                    out.limit(info.offset + info.size);
+                    ShortBuffer samples = out.order(ByteOrder.nativeOrder()).asShortBuffer();
+                    int count = samples.remaining() - samples.remaining() % channels;
+                    if (pcm.length < count) {
+                        pcm = new short[count];
+                    }
+                    samples.get(pcm, 0, count);
+                    consumer.onPcm(pcm, 0, count);
+                }
+                codec.releaseOutputBuffer(outIndex, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    outputDone = true;
+                }
+            }
+        }
+        if (!started) {
+            consumer.onStart(sampleRate, channels);
+        }
+        consumer.onStop();
+    }
+}
@@ -3,23 +3,80 @@ package com.voiceoverlay;
 import android.media.MediaRecorder;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class AudioRecorder {
     private MediaRecorder mediaRecorder;
-    private File outputFile;
-    private boolean isRecording = false;
+    // Written on the audio and encoder threads as segments roll over or the
+    // engine stops, read on the UI thread
+    private volatile File outputFile;
+    private volatile boolean isRecording = false;
     private int sampleRate = 16000;
     private int channels = 1;  // 1 = mono, 2 = stereo
     private int bitRate = 128000;
+    private boolean opus = false;  // Compact preset: Opus in Ogg instead of AAC in MP4
 
+    // Segmented mode: the capture is cut into rolling files so each finished
+    // segment can be uploaded while later ones are still being recorded.
+    private int segmentSeconds = 0;  // 0 = single file
+    private SegmentCallback segmentCallback;
+    private File outputDir;
+    private File nextSegmentFile;
+    private volatile int segmentIndex = 0;  // one writer at a time; see outputFile
+    private long sessionId = 0;
+    private RecordingCallback recordingCallback;  // told if capture ends without stopRecording
+
+    // PCM engine: AudioRecord capture feeding an encoder plus live consumers
+    // (level meter, VAD) instead of MediaRecorder writing the file directly.
+    private boolean pcmCapture = false;
+    private PcmCaptureEngine pcmEngine;
+    private PcmSegmenter pcmSegmenter;
+    private final PcmLevelMeter levelMeter = new PcmLevelMeter();
+    private final SpeechMonitor speechMonitor = new SpeechMonitor();
+
+    // Armed: the PCM engine is already capturing into a pre-roll buffer and
+    // the next recording takes it over, starting with the buffered audio.
+    // Guarded by this: arm() starts the engine on the audio thread.
+    private PcmCaptureEngine armedEngine;
+    private PreRollBuffer preRoll;
+    private boolean arming = false;  // an armed engine is starting up
+
+    // Starting the microphone for pre-roll and stopping the PCM engine block
+    // on AudioRecord and the encoder; that runs here, one engine at a time,
+    // instead of on the caller's (usually the UI) thread.
+    private static final ExecutorService engineThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VoiceOverlay-audio");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // With the PCM engine, onRecordingStopped and onError for a stop arrive on its audio thread
     public interface RecordingCallback {
         void onRecordingStarted();
         void onRecordingStopped(File audioFile);
         void onError(String error);
     }
 
+    public interface SegmentCallback {
+        // Called on the recorder's event thread when a segment file is closed.
+        // The final segment is delivered through RecordingCallback.onRecordingStopped.
+        void onSegmentReady(File segmentFile, int index);
+    }
+
     public void setQuality(String quality) {
-        if (quality.equals("High")) {
+        opus = false;
+        if (quality.equals("Compact") && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
+            // Speech-tuned Opus: at most a quarter of the bytes of the Low AAC preset (24 vs 96 kbps)
+            sampleRate = 16000;
+            channels = 1;  // Mono
+            bitRate = 24000;
+            opus = true;
+        } else if (quality.equals("High")) {
             sampleRate = 44100;
             channels = 2;  // Stereo
             bitRate = 256000;
@@ -27,30 +84,158 @@ public class AudioRecorder {
             sampleRate = 22050;
             channels = 1;  // Mono
             bitRate = 192000;
-        } else {  // Low (default)
+        } else {  // Low (default, and Compact before Android 10)
             sampleRate = 16000;
             channels = 1;  // Mono
             bitRate = 128000;
         }
     }
 
+    /**
+     * Enables rolling segments of roughly {@code seconds} each. Segment
+     * boundaries are driven by MediaRecorder's max-file-size hand-off, which
+     * needs API 26; on older devices recording falls back to a single file.
+     * With MediaRecorder the cut is by size, so a segment can run longer
+     * than {@code seconds} when the encoder writes below its nominal rate.
+     */
+    public void setSegmentMode(int seconds, SegmentCallback callback) {
+        segmentSeconds = seconds;
+        segmentCallback = callback;
+    }
+
+    public boolean isSegmented() {
+        return segmentSeconds > 0 && segmentCallback != null
+            && (usesPcmEngine() || android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O);
+    }
+
+    /**
+     * Selects the AudioRecord-based engine, which exposes audio to
+     * {@link PcmConsumer}s while recording. It needs API 21 for its encoder;
+     * older devices stay on MediaRecorder.
+     */
+    public void setPcmCapture(boolean enabled) {
+        pcmCapture = enabled;
+    }
+
+    public synchronized boolean usesPcmEngine() {
+        return armedEngine != null || pcmEngine != null
+            || (pcmCapture && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP);
+    }
+
+    /**
+     * Starts listening into a pre-roll buffer of {@code seconds} (clamped to
+     * 1-2 s) so the next {@link #startRecording} begins with audio captured
+     * before it was called. Uses the PCM engine whatever {@link #setPcmCapture}
+     * says. The microphone is started on the audio thread, so this returns at
+     * once; {@link #isArmed} turns true when it is listening, and stays false
+     * if the microphone is unavailable. Returns false if the device does not
+     * support it or a recording is running.
+     */
+    public synchronized boolean arm(int seconds) {
+        if (armedEngine != null || arming) {
+            return true;
+        }
+        if (isRecording || android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        final PcmCaptureEngine engine = new PcmCaptureEngine(sampleRate, channels);
+        final PreRollBuffer buffer = new PreRollBuffer(seconds);
+        engine.addConsumer(buffer);
+        arming = true;
+        engineThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    engine.start();
+                } catch (IOException | RuntimeException e) {
+                    synchronized (AudioRecorder.this) {
+                        arming = false;
+                    }
+                    return;
+                }
+                synchronized (AudioRecorder.this) {
+                    if (arming) {
+                        arming = false;
+                        armedEngine = engine;
+                        preRoll = buffer;
+                        return;
+                    }
+                }
+                // Disarmed, or the recording started without us, while the microphone came up
+                try {
+                    engine.stop();
+                } catch (IOException e) {
+                    // Nothing was being recorded
+                }
+            }
+        });
+        return true;
+    }
+
+    public synchronized boolean isArmed() {
+        return armedEngine != null;
+    }
+
+    /** Stops listening and drops the buffered audio. */
+    public synchronized void disarm() {
+        arming = false;
+        if (armedEngine == null) {
+            return;
+        }
+        stopQuietly(armedEngine);
+        armedEngine = null;
+        preRoll = null;
+    }
+
+    // Live input level and speech state; only updated by the PCM engine
+    public PcmLevelMeter getLevelMeter() {
+        return levelMeter;
+    }
+
+    public SpeechMonitor getSpeechMonitor() {
+        return speechMonitor;
+    }
+
+    // Index of the segment currently being written (the last one once stopped)
+    public int getSegmentIndex() {
+        return segmentIndex;
+    }
+
     public void startRecording(File outputDir, RecordingCallback callback) {
         try {
+            this.outputDir = outputDir;
+            recordingCallback = callback;
+            sessionId = System.currentTimeMillis();
+            segmentIndex = 0;
+            nextSegmentFile = null;
+
             // Create output file - use .m4a format (better compatibility with Whisper)
-            outputFile = new File(outputDir, "voice_" + System.currentTimeMillis() + ".m4a");
+            outputFile = isSegmented() ? segmentFile(0) : new File(outputDir, "voice_" + sessionId + fileExtension());
 
-            // Initialize MediaRecorder
-            mediaRecorder = new MediaRecorder();
-            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            mediaRecorder.setAudioEncodingBitRate(bitRate);
-            mediaRecorder.setAudioSamplingRate(sampleRate);
-            mediaRecorder.setAudioChannels(channels);
-            mediaRecorder.setOutputFile(outputFile.getAbsolutePath());
+            boolean armed;
+            synchronized (this) {
+                armed = armedEngine != null;
+                arming = false;  // a pre-roll still starting up is too late for this recording
+            }
+            if (armed) {
+                startFromPreRoll();
+                isRecording = true;
+                if (callback != null) {
+                    callback.onRecordingStarted();
+                }
+                return;
+            }
 
-            mediaRecorder.prepare();
-            mediaRecorder.start();
+            if (usesPcmEngine()) {
+                startPcmEngine();
+                isRecording = true;
+                if (callback != null) {
+                    callback.onRecordingStarted();
+                }
+                return;
+            }
+
+            startMediaRecorder(outputFile);
 
             isRecording = true;
             if (callback != null) {
@@ -64,7 +249,193 @@ public class AudioRecorder {
         }
     }
 
+    private void startMediaRecorder(File file) throws IOException {
+        MediaRecorder recorder = new MediaRecorder();
+        try {
+            recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            if (opus) {
+                recorder.setOutputFormat(MediaRecorder.OutputFormat.OGG);
+                recorder.setAudioEncoder(MediaRecorder.AudioEncoder.OPUS);
+            } else {
+                recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+                recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+            }
+            recorder.setAudioEncodingBitRate(bitRate);
+            recorder.setAudioSamplingRate(sampleRate);
+            recorder.setAudioChannels(channels);
+            recorder.setOutputFile(file.getAbsolutePath());
+
+            if (isSegmented()) {
+                // The file grows at about the encoded bitrate, so a size cap is roughly a time cap
+                recorder.setMaxFileSize(encodedBytesPerSecond() * segmentSeconds);
+                recorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
+                    @Override
+                    public void onInfo(MediaRecorder mr, int what, int extra) {
+                        handleSegmentInfo(mr, what);
+                    }
+                });
+            }
+
+            recorder.prepare();
+            recorder.start();
+        } catch (IOException | RuntimeException e) {
+            recorder.release();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+        mediaRecorder = recorder;
+    }
+
+    // What the encoder really writes: AAC-LC carries at most 6 bits per sample per
+    // channel (96 kbps at 16 kHz mono), whatever bitrate was asked for. Encoders may
+    // still run below this, so segments come out at least segmentSeconds long.
+    private long encodedBytesPerSecond() {
+        long bitsPerSecond = opus ? bitRate : Math.min(bitRate, 6L * sampleRate * channels);
+        return bitsPerSecond / 8;
+    }
+
+    private void startPcmEngine() throws IOException {
+        PcmCaptureEngine engine = new PcmCaptureEngine(sampleRate, channels);
+        for (PcmConsumer consumer : createPcmConsumers()) {
+            engine.addConsumer(consumer);
+        }
+        engine.start();
+        pcmEngine = engine;
+    }
+
+    // Hands the armed engine's pre-roll and live audio to freshly started recording consumers
+    private synchronized void startFromPreRoll() throws IOException {
+        PcmConsumer[] consumers = createPcmConsumers();
+        int started = 0;
+        try {
+            for (PcmConsumer consumer : consumers) {
+                consumer.onStart(sampleRate, channels);
+                started++;
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = 0; i < started; i++) {
+                try {
+                    consumers[i].onStop();
+                } catch (IOException ignored) {
+                    // Ignore
+                }
+            }
+            pcmSegmenter = null;
+            disarm();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+        preRoll.attach(consumers);
+        pcmEngine = armedEngine;
+        armedEngine = null;
+        preRoll = null;
+    }
+
+    private PcmConsumer[] createPcmConsumers() {
+        PcmConsumer output;
+        if (isSegmented()) {
+            pcmSegmenter = new PcmSegmenter(outputDir, "voice_" + sessionId, bitRate, segmentSeconds,
+                new SegmentCallback() {
+                    @Override
+                    public void onSegmentReady(File segmentFile, int index) {
+                        segmentIndex = index + 1;
+                        outputFile = pcmSegmenter.segmentFile(segmentIndex);
+                        segmentCallback.onSegmentReady(segmentFile, index);
+                    }
+                });
+            output = pcmSegmenter;
+        } else {
+            output = new AacEncoder(outputFile, bitRate);
+        }
+        return new PcmConsumer[]{output, levelMeter, speechMonitor};
+    }
+
+    private File segmentFile(int index) {
+        return new File(outputDir, "voice_" + sessionId + "_seg" + index + fileExtension());
+    }
+
+    // The PCM engine always encodes AAC
+    private String fileExtension() {
+        return opus && !usesPcmEngine() ? ".ogg" : ".m4a";
+    }
+
+    /** MIME type to declare when uploading a recording, based on its extension. */
+    public static String contentTypeFor(File audioFile) {
+        String name = audioFile.getName().toLowerCase(java.util.Locale.US);
+        if (name.endsWith(".m4a") || name.endsWith(".mp4")) {
+            return "audio/mp4";
+        } else if (name.endsWith(".ogg") || name.endsWith(".opus")) {
+            return "audio/ogg";
+        } else if (name.endsWith(".webm")) {
+            return "audio/webm";
+        } else if (name.endsWith(".wav")) {
+            return "audio/wav";
+        }
+        return "audio/mpeg";
+    }
+
+    private void handleSegmentInfo(MediaRecorder mr, int what) {
+        if (mr != mediaRecorder || android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.O) {
+            return;
+        }
+        if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+            try {
+                nextSegmentFile = segmentFile(segmentIndex + 1);
+                mr.setNextOutputFile(nextSegmentFile);
+            } catch (IOException e) {
+                // The recorder will stop at the cap instead; MAX_FILESIZE_REACHED restarts it
+                nextSegmentFile = null;
+            }
+        } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+            restartAtCap(mr);
+        } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+            if (nextSegmentFile == null) {
+                return;
+            }
+            File finished = outputFile;
+            int finishedIndex = segmentIndex;
+            outputFile = nextSegmentFile;
+            nextSegmentFile = null;
+            segmentIndex++;
+            if (segmentCallback != null) {
+                segmentCallback.onSegmentReady(finished, finishedIndex);
+            }
+        }
+    }
+
+    // The recorder stopped itself at the size cap without a next file to roll into.
+    // Carry on in a fresh recorder; the gap is the few ms it takes to start one.
+    private void restartAtCap(MediaRecorder mr) {
+        mediaRecorder = null;
+        try {
+            mr.stop();
+        } catch (RuntimeException e) {
+            // Already stopped by the cap
+        }
+        mr.release();
+        File finished = outputFile;
+        int finishedIndex = segmentIndex;
+        discardPendingSegment();
+        try {
+            File next = segmentFile(segmentIndex + 1);
+            startMediaRecorder(next);
+            outputFile = next;
+            segmentIndex++;
+            if (segmentCallback != null) {
+                segmentCallback.onSegmentReady(finished, finishedIndex);
+            }
+        } catch (IOException e) {
+            // Cannot go on; end the session with what was captured, as if stopped
+            isRecording = false;
+            if (recordingCallback != null) {
+                recordingCallback.onRecordingStopped(finished);
+            }
+        }
+    }
+
     public void stopRecording(RecordingCallback callback) {
+        if (isRecording && pcmEngine != null) {
+            stopPcmEngine(callback);
+            return;
+        }
         if (!isRecording || mediaRecorder == null) {
             if (callback != null) {
                 callback.onError("Not currently recording");
@@ -77,6 +448,7 @@ public class AudioRecorder {
             mediaRecorder.release();
             mediaRecorder = null;
             isRecording = false;
+            discardPendingSegment();
 
             if (callback != null) {
                 callback.onRecordingStopped(outputFile);
@@ -89,7 +461,50 @@ public class AudioRecorder {
         }
     }
 
+    private void stopPcmEngine(final RecordingCallback callback) {
+        final PcmCaptureEngine engine = pcmEngine;
+        final PcmSegmenter segmenter = pcmSegmenter;
+        pcmEngine = null;
+        pcmSegmenter = null;
+        isRecording = false;
+        engineThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    engine.stop();
+                    if (segmenter != null) {
+                        outputFile = segmenter.getCurrentFile();
+                        segmentIndex = segmenter.getIndex();
+                    }
+                    if (callback != null) {
+                        callback.onRecordingStopped(outputFile);
+                    }
+                } catch (IOException e) {
+                    if (callback != null) {
+                        callback.onError("Failed to stop recording: " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    private static void stopQuietly(final PcmCaptureEngine engine) {
+        engineThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    engine.stop();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        });
+    }
+
     public void pauseRecording() {
+        if (isRecording && pcmEngine != null) {
+            pcmEngine.pause();
+        }
         if (isRecording && mediaRecorder != null) {
             try {
                 if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
@@ -102,6 +517,9 @@ public class AudioRecorder {
     }
 
     public void resumeRecording() {
+        if (isRecording && pcmEngine != null) {
+            pcmEngine.resume();
+        }
         if (isRecording && mediaRecorder != null) {
             try {
                 if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
@@ -122,6 +540,12 @@ public class AudioRecorder {
     }
 
     public void release() {
+        disarm();
+        if (pcmEngine != null) {
+            stopQuietly(pcmEngine);
+            pcmEngine = null;
+            pcmSegmenter = null;
+        }
         if (mediaRecorder != null) {
             try {
                 if (isRecording) {
@@ -134,5 +558,14 @@ public class AudioRecorder {
             mediaRecorder = null;
         }
         isRecording = false;
+        discardPendingSegment();
+    }
+
+    // A segment that was queued with setNextOutputFile but never started
+    private void discardPendingSegment() {
+        if (nextSegmentFile != null) {
+            nextSegmentFile.delete();
+            nextSegmentFile = null;
+        }
     }
 }
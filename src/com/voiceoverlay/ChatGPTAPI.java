@@ -1,131 +1,222 @@
 package com.voiceoverlay;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.Network;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.Callable;
 
 public class ChatGPTAPI {
+    private static final String CHAT_URL = "https://api.openai.com/v1/chat/completions";
+
     public interface ChatGPTCallback {
         void onSuccess(String response);
         void onError(String error);
     }
 
+    public interface DeltaListener {
+        // Called on a worker thread for each chunk of generated text, in order
+        void onDelta(String delta);
+    }
+
+    // onSuccess still receives the complete text once the stream ends
+    public interface ChatGPTStreamCallback extends ChatGPTCallback, DeltaListener {
+    }
+
+    /** Opens a connection to the chat endpoint ahead of a request. */
+    public static void prewarm(Context context) {
+        HttpTransport.prewarm(context, CHAT_URL);
+    }
+
     public static void improveText(final Context context, final String apiKey, final String text, final ChatGPTCallback callback) {
-        String prompt = "Please improve this text by fixing any grammar issues and making it more professional. Return only the improved text without any additional words or explanations:\n\n" + text;
-        callAPI(context, apiKey, prompt, callback);
+        callAPI(context, apiKey, improvePrompt(text), callback);
+    }
+
+    public static void improveTextStreaming(Context context, String apiKey, String text, ChatGPTStreamCallback callback) {
+        deliver(callAPIAsync(context, apiKey, improvePrompt(text), callback), callback);
+    }
+
+    private static String improvePrompt(String text) {
+        return "Please improve this text by fixing any grammar issues and making it more professional. Return only the improved text without any additional words or explanations:\n\n" + text;
     }
 
-    public static void applyVoiceEdit(final Context context, final String apiKey, final String originalText, final String editInstructions, final ChatGPTCallback callback) {
-        String prompt = "Original text:\n" + originalText + "\n\nEdit instructions:\n" + editInstructions + "\n\nPlease edit the original text according to these edit instructions. Return only the edited text without any explanations.";
-        callAPI(context, apiKey, prompt, callback);
+    private static String voiceEditPrompt(String originalText, String editInstructions) {
+        return "Original text:\n" + originalText + "\n\nEdit instructions:\n" + editInstructions + "\n\nPlease edit the original text according to these edit instructions. Return only the edited text without any explanations.";
+    }
+
+    /** Streams the edited text to {@code deltas} as it is generated. */
+    public static AsyncResult<String> applyVoiceEditAsync(Context context, String apiKey, String originalText, String editInstructions, DeltaListener deltas) {
+        return callAPIAsync(context, apiKey, voiceEditPrompt(originalText, editInstructions), deltas);
     }
 
     private static void callAPI(final Context context, final String apiKey, final String prompt, final ChatGPTCallback callback) {
-        new Thread(new Runnable() {
+        deliver(callAPIAsync(context, apiKey, prompt, null), callback);
+    }
+
+    private static void deliver(AsyncResult<String> result, final ChatGPTCallback callback) {
+        result.deliver(null, new AsyncResult.Callback<String>() {
             @Override
-            public void run() {
-                HttpURLConnection conn = null;
-                try {
-                    URL url = new URL("https://api.openai.com/v1/chat/completions");
-
-                    // Use active network binding for DNS resolution
-                    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-                    Network activeNetwork = null;
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                        activeNetwork = cm.getActiveNetwork();
-                    }
+            public void onSuccess(String response) {
+                if (callback != null) {
+                    callback.onSuccess(response);
+                }
+            }
 
-                    if (activeNetwork != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                        conn = (HttpURLConnection) activeNetwork.openConnection(url);
-                    } else {
-                        conn = (HttpURLConnection) url.openConnection();
-                    }
+            @Override
+            public void onError(String error) {
+                if (callback != null) {
+                    callback.onError(error);
+                }
+            }
+        });
+    }
 
-                    conn.setRequestMethod("POST");
-                    conn.setRequestProperty("Content-Type", "application/json");
-                    conn.setRequestProperty("Authorization", "Bearer " + apiKey);
-                    conn.setDoOutput(true);
-                    conn.setConnectTimeout(30000);
-                    conn.setReadTimeout(60000);
-
-                    // Create JSON request body
-                    JSONObject jsonBody = new JSONObject();
-                    jsonBody.put("model", "gpt-4o-mini");
-
-                    JSONArray messages = new JSONArray();
-                    JSONObject message = new JSONObject();
-                    message.put("role", "user");
-                    message.put("content", prompt);
-                    messages.put(message);
-
-                    jsonBody.put("messages", messages);
-                    jsonBody.put("temperature", 0.3);
-
-                    // Write request body
-                    OutputStream os = conn.getOutputStream();
-                    os.write(jsonBody.toString().getBytes("UTF-8"));
-                    os.flush();
-                    os.close();
-
-                    // Check response code
-                    int responseCode = conn.getResponseCode();
-                    if (responseCode == HttpURLConnection.HTTP_OK) {
-                        // Read response
-                        BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            response.append(line);
-                        }
-                        br.close();
-
-                        // Parse JSON response
-                        JSONObject jsonResponse = new JSONObject(response.toString());
-                        JSONArray choices = jsonResponse.getJSONArray("choices");
-                        if (choices.length() > 0) {
-                            JSONObject choice = choices.getJSONObject(0);
-                            JSONObject messageObj = choice.getJSONObject("message");
-                            String content = messageObj.getString("content");
-
-                            if (callback != null) {
-                                callback.onSuccess(content.trim());
-                            }
-                        } else {
-                            if (callback != null) {
-                                callback.onError("No response from API");
-                            }
-                        }
-                    } else {
-                        // Read error response
-                        BufferedReader br = new BufferedReader(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
-                        StringBuilder error = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            error.append(line);
-                        }
-                        br.close();
-
-                        if (callback != null) {
-                            callback.onError("API error (" + responseCode + "): " + error.toString());
-                        }
-                    }
-                } catch (Exception e) {
-                    if (callback != null) {
-                        callback.onError("Error: " + e.getMessage());
+    private static AsyncResult<String> callAPIAsync(final Context context, final String apiKey, final String prompt, final DeltaListener deltas) {
+        return TaskExecutor.submitAsync(TaskExecutor.PRIORITY_NORMAL, new Callable<AsyncResult<String>>() {
+            @Override
+            public AsyncResult<String> call() throws Exception {
+                return complete(context, apiKey, prompt, deltas);
+            }
+        }).wrapErrors();
+    }
+
+    // Request retried through RetryPolicy; each try runs on a TaskExecutor worker. Streams when deltas is non-null.
+    private static AsyncResult<String> complete(final Context context, final String apiKey, String prompt, final DeltaListener deltas) throws Exception {
+        // Create JSON request body
+        JSONObject jsonBody = new JSONObject();
+        jsonBody.put("model", "gpt-4o-mini");
+
+        JSONArray messages = new JSONArray();
+        JSONObject message = new JSONObject();
+        message.put("role", "user");
+        message.put("content", prompt);
+        messages.put(message);
+
+        jsonBody.put("messages", messages);
+        jsonBody.put("temperature", 0.3);
+        if (deltas != null) {
+            jsonBody.put("stream", true);
+        }
+
+        final byte[] requestBody = jsonBody.toString().getBytes("UTF-8");
+        final double tokenCost = RateLimiter.estimateTokens(prompt.length());
+        // Paced by the endpoint's rate limit rather than sending into a 429
+        final RateLimiter limiter = RateLimiter.forEndpoint(CHAT_URL);
+        return RetryPolicy.forEndpoint(CHAT_URL).execute(context, TaskExecutor.PRIORITY_NORMAL, limiter, tokenCost,
+            new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return send(context, apiKey, requestBody, tokenCost, deltas, limiter);
+                }
+            });
+    }
+
+    // One try; releases the rate limit reservation RetryPolicy made for it
+    private static String send(Context context, String apiKey, byte[] requestBody, double tokenCost,
+                               DeltaListener deltas, RateLimiter limiter) throws Exception {
+        HttpURLConnection conn = null;
+        int responseCode = -1;
+        try {
+            // Pooled connection bound to the active network
+            conn = HttpTransport.open(context, new URL(CHAT_URL));
+
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setRequestProperty("Authorization", "Bearer " + apiKey);
+            conn.setDoOutput(true);
+            conn.setConnectTimeout(30000);
+            conn.setReadTimeout(60000);
+
+            // Write request body
+            OutputStream os = conn.getOutputStream();
+            os.write(requestBody);
+            os.flush();
+            os.close();
+
+            // Check response code
+            responseCode = conn.getResponseCode();
+        } finally {
+            limiter.release(responseCode != -1 ? conn : null, tokenCost);
+        }
+        if (deltas != null && responseCode == HttpURLConnection.HTTP_OK) {
+            return readStream(conn, deltas);
+        }
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+            // Parse JSON response
+            String content = HttpTransport.readJson(conn).getContent();
+            if (content != null) {
+                return content.trim();
+            } else {
+                throw new ApiException("No response from API");
+            }
+        } else {
+            String responseBody = HttpTransport.readBody(conn);
+            throw new ApiException("API error (" + responseCode + "): " + responseBody, responseCode,
+                RetryPolicy.retryAfterMs(conn));
+        }
+    }
+
+    // Reads chat.completion.chunk events and forwards each content delta as it arrives
+    private static String readStream(HttpURLConnection conn, final DeltaListener deltas) throws Exception {
+        final StringBuilder content = new StringBuilder();
+        InputStream in = conn.getInputStream();
+        try {
+            readEvents(in, content, deltas);
+        } catch (IOException e) {
+            if (content.length() > 0 && !(e instanceof ApiException)) {
+                // Part of the reply is already on screen; a retry would repeat it
+                throw new ApiException("Connection lost mid-reply: " + e.getMessage(), e);
+            }
+            throw e;
+        } finally {
+            in.close();
+        }
+
+        if (content.length() == 0) {
+            throw new ApiException("No response from API");
+        }
+        return content.toString().trim();
+    }
+
+    private static void readEvents(InputStream in, final StringBuilder content, final DeltaListener deltas) throws Exception {
+        SseParser.parse(in, new SseParser.Listener() {
+            @Override
+            public boolean onEvent(String data) throws Exception {
+                if (data.equals("[DONE]")) {
+                    return false;
+                }
+                JsonResponse chunk = JsonResponse.read(new StringReader(data));
+                if (chunk.getError() != null) {
+                    throw new ApiException("API error: " + chunk.getError());
+                }
+                String piece = chunk.getContent();
+                if (piece != null && !piece.isEmpty()) {
+                    // Leading whitespace is trimmed from the final text as well
+                    if (content.length() == 0) {
+                        piece = trimLeading(piece);
                     }
-                } finally {
-                    if (conn != null) {
-                        conn.disconnect();
+                    content.append(piece);
+                    if (!piece.isEmpty()) {
+                        deltas.onDelta(piece);
                     }
                 }
+                return true;
             }
-        }).start();
+        });
+        // Consume the rest so the connection can go back to the pool
+        SseParser.drain(in);
+    }
+
+    private static String trimLeading(String s) {
+        int i = 0;
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return s.substring(i);
     }
 }
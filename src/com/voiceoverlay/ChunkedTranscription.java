@@ -0,0 +1,274 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Transcribes one long recording as several shorter, slightly overlapping
+ * chunks uploaded in parallel, so turnaround depends on the chunk length and
+ * the number of uploads in flight rather than on the recording length, and
+ * no single request approaches the API's upload limit.
+ *
+ * Chunk boundaries are placed in the pause closest to every
+ * {@link #TARGET_CHUNK_MS}; only a short window around each boundary is
+ * decoded to find it. Each chunk is cut out of the original without
+ * re-encoding right before its upload, so at most {@link #MAX_PARALLEL}
+ * chunk files exist at a time. Results are merged in order with
+ * {@link TranscriptMerger}. Short recordings go up as a single request.
+ */
+public class ChunkedTranscription {
+    private static final String TAG = "VoiceOverlay";
+    static final long MIN_CHUNKED_MS = 2 * 60 * 1000;   // shorter recordings are sent whole
+    static final long TARGET_CHUNK_MS = 60 * 1000;
+    static final long SEARCH_MS = 8 * 1000;             // look this far either side of the target
+    static final long OVERLAP_MS = 1500;
+    static final long MIN_PAUSE_MS = 250;
+    static final int MAX_PARALLEL = 3;
+
+    private final Context context;
+    private final SegmentedTranscription.Listener listener;
+    private File source;
+    private long durationUs;
+    private List<String> results;
+    private long[] cutsUs;          // cutsUs[i] = start of chunk i without overlap; cutsUs[n] = end
+    private int nextChunk = 0;
+    private int completedChunks = 0;
+    private int failedChunks = 0;
+    private String lastError;
+    private boolean cancelled = false;
+
+    public ChunkedTranscription(Context context, SegmentedTranscription.Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+    }
+
+    /** Starts transcribing {@code audioFile}; the file is left for the caller to delete. */
+    public void start(final File audioFile) {
+        source = audioFile;
+        TaskExecutor.submit(TaskExecutor.PRIORITY_NORMAL, new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return countChunks(audioFile);
+            }
+        }).deliver(null, new AsyncResult.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer chunks) {
+                begin(chunks);
+            }
+
+            @Override
+            public void onError(String error) {
+                // Could not read the file; let the backend decide what to make of it
+                Log.w(TAG, "ChunkedTranscription: planning failed: " + error);
+                begin(1);
+            }
+        });
+    }
+
+    // Drops results still in flight; chunk files are still cleaned up
+    public synchronized void cancel() {
+        cancelled = true;
+    }
+
+    private int countChunks(File audioFile) throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return 1;
+        }
+        MediaFormat format = AudioDecoder.readFormat(audioFile);
+        if (format == null || !MediaFormat.MIMETYPE_AUDIO_AAC.equals(format.getString(MediaFormat.KEY_MIME))
+            || !format.containsKey(MediaFormat.KEY_DURATION)) {
+            return 1;
+        }
+        durationUs = format.getLong(MediaFormat.KEY_DURATION);
+        if (durationUs < MIN_CHUNKED_MS * 1000) {
+            return 1;
+        }
+        return (int) ((durationUs + TARGET_CHUNK_MS * 1000 - 1) / (TARGET_CHUNK_MS * 1000));
+    }
+
+    private void begin(int chunks) {
+        synchronized (this) {
+            results = new ArrayList<>(Collections.<String>nCopies(chunks, null));
+            cutsUs = new long[chunks + 1];
+            for (int i = 1; i < chunks; i++) {
+                cutsUs[i] = -1;  // found when first needed
+            }
+            cutsUs[chunks] = chunks > 1 ? durationUs : Long.MAX_VALUE;
+        }
+        if (chunks > 1) {
+            Log.d(TAG, "ChunkedTranscription: " + chunks + " chunks, " + MAX_PARALLEL + " in parallel");
+        }
+        for (int i = 0; i < Math.min(MAX_PARALLEL, chunks); i++) {
+            launchNext();
+        }
+    }
+
+    private void launchNext() {
+        final int index;
+        final int total;
+        synchronized (this) {
+            if (cancelled || nextChunk >= results.size()) {
+                return;
+            }
+            index = nextChunk++;
+            total = results.size();
+        }
+
+        if (total == 1) {
+            SegmentedTranscription.transcribeAsync(context, source).deliver(null, chunkCallback(index, null));
+            return;
+        }
+
+        final File[] chunkFile = {null};
+        TaskExecutor.submit(TaskExecutor.PRIORITY_NORMAL, new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                long startUs = Math.max(0, cutAt(index) - OVERLAP_MS * 1000);
+                long endUs = cutAt(index + 1);
+                String name = source.getName();
+                int dot = name.lastIndexOf('.');
+                chunkFile[0] = new File(source.getParentFile(),
+                    (dot > 0 ? name.substring(0, dot) : name) + "_chunk" + index + ".m4a");
+                List<long[]> range = new ArrayList<>();
+                range.add(new long[]{startUs, endUs});
+                SilenceTrimmer.remux(source, chunkFile[0], range);
+                return chunkFile[0];
+            }
+        }).thenAsync(new AsyncResult.AsyncTransform<File, String>() {
+            @Override
+            public AsyncResult<String> apply(File chunk) {
+                Log.d(TAG, "ChunkedTranscription: uploading chunk " + index + " (" + chunk.length() + " bytes)");
+                return SegmentedTranscription.transcribeAsync(context, chunk);
+            }
+        }).deliver(null, chunkCallback(index, chunkFile));
+    }
+
+    private AsyncResult.Callback<String> chunkCallback(final int index, final File[] chunkFile) {
+        return new AsyncResult.Callback<String>() {
+            @Override
+            public void onSuccess(String transcription) {
+                deleteChunk(chunkFile);
+                onChunkDone(index, transcription.trim(), null);
+            }
+
+            @Override
+            public void onError(String error) {
+                deleteChunk(chunkFile);
+                onChunkDone(index, null, error);
+            }
+        };
+    }
+
+    private static void deleteChunk(File[] chunkFile) {
+        if (chunkFile != null && chunkFile[0] != null) {
+            chunkFile[0].delete();
+        }
+    }
+
+    // Boundary i, searched for on first use by whichever chunk needs it
+    private long cutAt(int i) {
+        synchronized (this) {
+            if (cutsUs[i] >= 0) {
+                return cutsUs[i];
+            }
+        }
+        long targetUs = i * TARGET_CHUNK_MS * 1000;
+        long cut;
+        try {
+            cut = findCut(targetUs);
+        } catch (Exception e) {
+            // Cut blind; the overlap still covers a word split at the boundary
+            Log.w(TAG, "ChunkedTranscription: no pause found near " + targetUs / 1000000 + "s", e);
+            cut = targetUs;
+        }
+        synchronized (this) {
+            if (cutsUs[i] < 0) {
+                cutsUs[i] = cut;
+            }
+            return cutsUs[i];
+        }
+    }
+
+    private long findCut(long targetUs) throws Exception {
+        SpeechMonitor monitor = new SpeechMonitor();
+        long windowStartUs = AudioDecoder.decode(source, targetUs - SEARCH_MS * 1000, targetUs + SEARCH_MS * 1000, monitor);
+        VoiceActivityDetector vad = monitor.getDetector();
+        int sampleRate = vad.getSampleRate();
+        long targetSample = (targetUs - windowStartUs) * sampleRate / 1000000L;
+        long cutSample = chooseCut(vad.getSpeechRegions(), vad.getProcessedSamples(), targetSample,
+            MIN_PAUSE_MS * sampleRate / 1000);
+        return windowStartUs + cutSample * 1000000L / sampleRate;
+    }
+
+    /**
+     * Picks where to cut within a decoded window: the middle of the pause of
+     * at least {@code minPause} samples closest to {@code target}, or the
+     * target itself when the window is all speech.
+     */
+    static long chooseCut(List<long[]> speech, long windowSamples, long target, long minPause) {
+        long best = target;
+        long bestDistance = Long.MAX_VALUE;
+        long pauseStart = 0;
+        for (int i = 0; i <= speech.size(); i++) {
+            long pauseEnd = i < speech.size() ? speech.get(i)[0] : windowSamples;
+            if (pauseEnd - pauseStart >= minPause) {
+                long middle = (pauseStart + pauseEnd) / 2;
+                long distance = target < pauseStart ? pauseStart - target
+                    : target > pauseEnd ? target - pauseEnd : 0;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = middle;
+                }
+            }
+            if (i < speech.size()) {
+                pauseStart = speech.get(i)[1];
+            }
+        }
+        return best;
+    }
+
+    private void onChunkDone(int index, String text, String error) {
+        boolean finished;
+        String merged = null;
+        int done;
+        int total;
+        int failed;
+        String failure;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            results.set(index, text);
+            completedChunks++;
+            if (error != null) {
+                failedChunks++;
+                lastError = error;
+                Log.e(TAG, "ChunkedTranscription: chunk " + index + " failed: " + error);
+            }
+            done = completedChunks;
+            total = results.size();
+            failed = failedChunks;
+            failure = lastError;
+            finished = completedChunks == total;
+            if (finished) {
+                merged = TranscriptMerger.merge(results);
+            }
+        }
+
+        if (!finished) {
+            listener.onProgress(done, total);
+            launchNext();
+        } else if (merged.isEmpty()) {
+            listener.onError(failure != null ? failure : "No transcription found");
+        } else {
+            listener.onComplete(merged, failed);
+        }
+    }
+}
@@ -2,16 +2,12 @@ package com.voiceoverlay;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.Network;
-import org.json.JSONObject;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
 
 public class FirebaseWhisperAPI {
     // Firebase Cloud Function URL - will be configured after deployment
@@ -21,136 +17,163 @@ public class FirebaseWhisperAPI {
     private static final String KEY_TRANSCRIPTION_PROMPT = "transcription_prompt";
     private static final String KEY_WHISPER_MODEL = "whisper_model";
 
-    public interface TranscriptionCallback {
-        void onSuccess(String transcription);
-        void onError(String error);
+    /** The Firebase function, which holds the OpenAI key on the server side. */
+    public static final TranscriptionBackend BACKEND = new TranscriptionBackend() {
+        @Override
+        public String getName() {
+            return "firebase";
+        }
+
+        @Override
+        public boolean isAvailable(Context context) {
+            return !FIREBASE_FUNCTION_URL.contains("YOUR_PROJECT_ID");  // not deployed yet
+        }
+
+        @Override
+        public String getEndpoint(Context context) {
+            return FIREBASE_FUNCTION_URL;
+        }
+
+        @Override
+        public AsyncResult<String> transcribe(Context context, File audioFile, int priority) {
+            return FirebaseWhisperAPI.transcribe(context, audioFile, priority);
+        }
+
+        @Override
+        public void prewarm(Context context) {
+            HttpTransport.prewarm(context, FIREBASE_FUNCTION_URL);
+        }
+    };
+
+    public static void transcribeAudio(final Context context, final File audioFile, final TranscriptionBackend.Callback callback) {
+        transcribeAudioAsync(context, audioFile).deliver(null, new AsyncResult.Callback<String>() {
+            @Override
+            public void onSuccess(String transcription) {
+                if (callback != null) {
+                    callback.onSuccess(transcription);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                if (callback != null) {
+                    callback.onError(error);
+                }
+            }
+        });
+    }
+
+    /** Opens a connection to the function ahead of an upload. */
+    public static void prewarm(Context context) {
+        BACKEND.prewarm(context);
+    }
+
+    public static AsyncResult<String> transcribeAudioAsync(Context context, File audioFile) {
+        return transcribe(context, audioFile, TaskExecutor.PRIORITY_HIGH).wrapErrors();
     }
 
-    public static void transcribeAudio(final Context context, final File audioFile, final TranscriptionCallback callback) {
-        new Thread(new Runnable() {
+    static AsyncResult<String> transcribe(final Context context, final File audioFile, final int priority) {
+        return TaskExecutor.submitAsync(priority, new Callable<AsyncResult<String>>() {
             @Override
-            public void run() {
-                HttpURLConnection conn = null;
+            public AsyncResult<String> call() throws Exception {
+                // Get transcription settings
+                SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+                final String transcriptionPrompt = prefs.getString(KEY_TRANSCRIPTION_PROMPT, "");
+                final String whisperModel = prefs.getString(KEY_WHISPER_MODEL, "whisper-1");
+
+                // Same audio, model and prompt as an earlier run: no upload needed
+                final TranscriptionCache cache = TranscriptionCache.get(context);
+                final String backend = "firebase " + FIREBASE_FUNCTION_URL;
+                String cached = cache.lookup(audioFile, backend, whisperModel, transcriptionPrompt);
+                if (cached != null) {
+                    return AsyncResult.success(cached);
+                }
+
+                // Upload a 16 kHz mono rendition; the recording itself is kept as is
+                final UploadTranscoder.Upload upload = UploadTranscoder.prepare(audioFile);
+                final MessageDigest digest = TranscriptionCache.newDigest();
+                AsyncResult<String> sent;
                 try {
-                    // Get transcription settings
-                    SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-                    String transcriptionPrompt = prefs.getString(KEY_TRANSCRIPTION_PROMPT, "");
-                    String whisperModel = prefs.getString(KEY_WHISPER_MODEL, "whisper-1");
-
-                    URL url = new URL(FIREBASE_FUNCTION_URL);
-
-                    // Use active network binding for DNS resolution
-                    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-                    Network activeNetwork = null;
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                        activeNetwork = cm.getActiveNetwork();
+                    sent = upload(context, upload, whisperModel, transcriptionPrompt, digest, priority);
+                } catch (Exception e) {
+                    upload.release();
+                    throw e;
+                }
+                return sent.then(new AsyncResult.Transform<String, String>() {
+                    @Override
+                    public String apply(String text) throws Exception {
+                        cache.store(audioFile, digest.digest(), backend, whisperModel, transcriptionPrompt, text);
+                        return text;
                     }
-
-                    if (activeNetwork != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                        conn = (HttpURLConnection) activeNetwork.openConnection(url);
-                    } else {
-                        conn = (HttpURLConnection) url.openConnection();
+                }).deliver(null, new AsyncResult.Callback<String>() {
+                    @Override
+                    public void onSuccess(String text) {
+                        upload.release();
                     }
 
-                    // Create multipart form data
-                    String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
-                    String CRLF = "\r\n";
-
-                    conn.setRequestMethod("POST");
-                    conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-                    conn.setDoOutput(true);
-                    conn.setConnectTimeout(30000);
-                    conn.setReadTimeout(120000);
-
-                    DataOutputStream request = new DataOutputStream(conn.getOutputStream());
-
-                    // Add model parameter
-                    request.writeBytes("--" + boundary + CRLF);
-                    request.writeBytes("Content-Disposition: form-data; name=\"model\"" + CRLF);
-                    request.writeBytes(CRLF);
-                    request.writeBytes(whisperModel + CRLF);
-
-                    // Add prompt parameter if provided
-                    if (!transcriptionPrompt.isEmpty()) {
-                        request.writeBytes("--" + boundary + CRLF);
-                        request.writeBytes("Content-Disposition: form-data; name=\"prompt\"" + CRLF);
-                        request.writeBytes(CRLF);
-                        request.writeBytes(transcriptionPrompt + CRLF);
+                    @Override
+                    public void onError(String error) {
+                        upload.release();
                     }
+                });
+            }
+        });
+    }
 
-                    // Add audio file
-                    request.writeBytes("--" + boundary + CRLF);
-                    request.writeBytes("Content-Disposition: form-data; name=\"file\"; filename=\"" + audioFile.getName() + "\"" + CRLF);
-                    request.writeBytes("Content-Type: audio/m4a" + CRLF);
-                    request.writeBytes(CRLF);
-
-                    FileInputStream fileInputStream = new FileInputStream(audioFile);
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                        request.write(buffer, 0, bytesRead);
-                    }
-                    fileInputStream.close();
-
-                    request.writeBytes(CRLF);
-                    request.writeBytes("--" + boundary + "--" + CRLF);
-                    request.flush();
-                    request.close();
-
-                    // Check response code
-                    int responseCode = conn.getResponseCode();
-                    if (responseCode == HttpURLConnection.HTTP_OK) {
-                        // Read response
-                        BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            response.append(line);
-                        }
-                        br.close();
-
-                        // Parse JSON response from Firebase
-                        JSONObject jsonResponse = new JSONObject(response.toString());
-
-                        if (jsonResponse.has("error")) {
-                            String error = jsonResponse.getString("error");
-                            if (callback != null) {
-                                callback.onError("Firebase error: " + error);
-                            }
-                        } else if (jsonResponse.has("text")) {
-                            String transcription = jsonResponse.getString("text");
-                            if (callback != null) {
-                                callback.onSuccess(transcription);
-                            }
-                        } else {
-                            if (callback != null) {
-                                callback.onError("Invalid response from Firebase");
-                            }
-                        }
-                    } else {
-                        // Read error response
-                        BufferedReader br = new BufferedReader(new InputStreamReader(conn.getErrorStream(), "UTF-8"));
-                        StringBuilder error = new StringBuilder();
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            error.append(line);
-                        }
-                        br.close();
-
-                        if (callback != null) {
-                            callback.onError("Firebase API error (" + responseCode + "): " + error.toString());
-                        }
-                    }
-                } catch (Exception e) {
-                    if (callback != null) {
-                        callback.onError("Error: " + e.getMessage());
-                    }
-                } finally {
-                    if (conn != null) {
-                        conn.disconnect();
-                    }
-                }
+    // Sends one recording, retrying through RetryPolicy; the file part is hashed into digest as it is written
+    private static AsyncResult<String> upload(final Context context, UploadTranscoder.Upload recording, String whisperModel,
+                                              String transcriptionPrompt, MessageDigest digest,
+                                              int priority) throws Exception {
+        // Create multipart form data
+        final MultipartBody body = new MultipartBody()
+            .addField("model", whisperModel);
+
+        // Add prompt parameter if provided
+        if (!transcriptionPrompt.isEmpty()) {
+            body.addField("prompt", transcriptionPrompt);
+        }
+
+        // Add audio file
+        body.addSource("file", recording, digest);
+
+        // Each try writes the file part again, converting it on the way if it has not been yet
+        return RetryPolicy.forEndpoint(FIREBASE_FUNCTION_URL).execute(context, priority, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return send(context, body);
+            }
+        });
+    }
+
+    private static String send(Context context, MultipartBody body) throws IOException {
+        URL url = new URL(FIREBASE_FUNCTION_URL);
+
+        // Pooled connection bound to the active network
+        HttpURLConnection conn = HttpTransport.open(context, url);
+
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setConnectTimeout(30000);
+        conn.setReadTimeout(120000);
+        body.writeTo(conn);
+
+        // Check response code
+        int responseCode = conn.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+            // Parse JSON response from Firebase
+            JsonResponse response = HttpTransport.readJson(conn);
+
+            if (response.getError() != null) {
+                throw new ApiException("Firebase error: " + response.getError());
+            } else if (response.getText() != null) {
+                return response.getText();
+            } else {
+                throw new ApiException("Invalid response from Firebase");
             }
-        }).start();
+        } else {
+            String responseBody = HttpTransport.readBody(conn);
+            throw new ApiException("Firebase API error (" + responseCode + "): " + responseBody, responseCode,
+                RetryPolicy.retryAfterMs(conn));
+        }
     }
 }
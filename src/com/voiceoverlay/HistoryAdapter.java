@@ -0,0 +1,398 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.drawable.GradientDrawable;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.Button;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Rows of the history window. Entries are read from {@link HistoryStore} a
+ * page at a time on a {@link TaskExecutor} worker; at most
+ * {@link #MAX_PAGES} pages are held, so memory stays flat however long the
+ * history is. Cards are recycled by the {@code ListView}, and a row whose
+ * page is still loading shows a placeholder until it arrives.
+ *
+ * Rows are newest first. A search replaces them with the ranked ids from
+ * {@link HistoryStore#search}, paged the same way, with matches highlighted.
+ */
+public class HistoryAdapter extends BaseAdapter {
+    private static final String TAG = "VoiceOverlay";
+    static final int PAGE_SIZE = 30;
+    static final int MAX_PAGES = 6;
+    static final long SEARCH_DELAY_MS = 150;
+
+    public interface Listener {
+        void onCopy(HistoryStore.Entry entry);
+        void onDelete(HistoryStore.Entry entry);
+        void onRetranscribe(HistoryStore.Entry entry);  // only offered for entries with audio
+    }
+
+    private final Context context;
+    private final HistoryStore store;
+    private final Handler mainHandler;
+    private final Listener listener;
+    private final Map<Integer, List<HistoryStore.Entry>> pages =
+        new LinkedHashMap<Integer, List<HistoryStore.Entry>>(MAX_PAGES + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<HistoryStore.Entry>> eldest) {
+                return size() > MAX_PAGES;
+            }
+        };
+    private final Set<Integer> loading = new HashSet<>();
+    private final Set<Integer> refilled = new HashSet<>();
+    private int storeSize;
+    private String query = "";
+    private long[] matches;       // ids matching the search, best first; null when not searching
+    private int generation = 0;   // bumped whenever rows change, so stale loads are dropped
+    private final Runnable pendingSearch = new Runnable() {
+        @Override
+        public void run() {
+            runSearch();
+        }
+    };
+
+    private static class CardHolder {
+        TextView timestamp;
+        TextView text;
+        Button copy;
+        Button redo;
+        Button delete;
+        HistoryStore.Entry entry;
+    }
+
+    /** {@code firstPage} comes from {@link #loadFirstPage}, which also opens the store. */
+    public HistoryAdapter(Context context, List<HistoryStore.Entry> firstPage, Handler mainHandler, Listener listener) {
+        this.context = context;
+        this.store = HistoryStore.get(context);
+        this.storeSize = store.size();
+        this.mainHandler = mainHandler;
+        this.listener = listener;
+        pages.put(0, firstPage);
+
+        // Have the search index ready by the time the user types
+        TaskExecutor.submit(TaskExecutor.PRIORITY_LOW, new Callable<HistoryIndex>() {
+            @Override
+            public HistoryIndex call() throws Exception {
+                return store.searchIndex();
+            }
+        });
+    }
+
+    /** Reads the newest page, so the window opens without touching disk on the main thread. */
+    public static AsyncResult<List<HistoryStore.Entry>> loadFirstPage(final Context context) {
+        return TaskExecutor.submit(TaskExecutor.PRIORITY_HIGH, new Callable<List<HistoryStore.Entry>>() {
+            @Override
+            public List<HistoryStore.Entry> call() throws Exception {
+                return HistoryStore.get(context).readNewestFirst(0, PAGE_SIZE);
+            }
+        });
+    }
+
+    /** Re-reads the rows after the store changed, keeping the current search. */
+    public void reload() {
+        storeSize = store.size();
+        mainHandler.removeCallbacks(pendingSearch);
+        runSearch();
+    }
+
+    /**
+     * Takes the row for {@code id} out without re-reading the rest: later
+     * loaded pages shift up by one, borrowing the first row of the next
+     * page, and a page with nothing to borrow is re-read when next shown.
+     */
+    public void removeRow(long id) {
+        int row = -1;
+        for (Map.Entry<Integer, List<HistoryStore.Entry>> page : pages.entrySet()) {
+            List<HistoryStore.Entry> entries = page.getValue();
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).id == id) {
+                    row = page.getKey() * PAGE_SIZE + i;
+                }
+            }
+        }
+        if (row < 0) {
+            reload();
+            return;
+        }
+
+        if (matches != null) {
+            long[] remaining = new long[matches.length - 1];
+            int n = 0;
+            for (long match : matches) {
+                if (match != id && n < remaining.length) {
+                    remaining[n++] = match;
+                }
+            }
+            matches = remaining;
+        }
+        storeSize--;  // also while searching: clearing the search shows the whole store again
+
+        // Loads in flight were read with the old row numbers
+        generation++;
+        loading.clear();
+        refilled.clear();
+
+        int page = row / PAGE_SIZE;
+        int offset = row % PAGE_SIZE;
+        List<HistoryStore.Entry> current = pages.get(page);
+        while (current != null) {
+            current.remove(offset);
+            List<HistoryStore.Entry> next = pages.get(page + 1);
+            if (next == null || next.isEmpty()) {
+                break;
+            }
+            current.add(next.get(0));
+            current = next;
+            page++;
+            offset = 0;
+        }
+        // Pages beyond a gap are now off by one
+        List<Integer> stale = new ArrayList<>();
+        for (Integer loaded : pages.keySet()) {
+            if (loaded > page) {
+                stale.add(loaded);
+            }
+        }
+        for (Integer loaded : stale) {
+            pages.remove(loaded);
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return matches != null ? matches.length : storeSize;
+    }
+
+    @Override
+    public HistoryStore.Entry getItem(int row) {
+        List<HistoryStore.Entry> page = pages.get(row / PAGE_SIZE);
+        if (page == null) {
+            requestPage(row / PAGE_SIZE);
+            return null;
+        }
+        int offset = row % PAGE_SIZE;
+        if (offset >= page.size()) {
+            // Short after a removal; fill it from the store, once
+            if (refilled.add(row / PAGE_SIZE)) {
+                pages.remove(row / PAGE_SIZE);
+                requestPage(row / PAGE_SIZE);
+            }
+            return null;
+        }
+        return page.get(offset);
+    }
+
+    @Override
+    public long getItemId(int row) {
+        return row;
+    }
+
+    @Override
+    public View getView(int row, View convertView, ViewGroup parent) {
+        View card = convertView != null ? convertView : newCard();
+        CardHolder holder = (CardHolder) card.getTag();
+        HistoryStore.Entry entry = getItem(row);
+        holder.entry = entry;
+        if (entry == null) {
+            holder.timestamp.setText("🕒 ...");
+            holder.text.setText("Loading...");
+            holder.copy.setEnabled(false);
+            holder.redo.setVisibility(View.GONE);
+            holder.delete.setEnabled(false);
+        } else {
+            holder.timestamp.setText("🕒 " + entry.timestamp);
+            holder.text.setText(matches != null ? HistoryIndex.highlight(entry.text, query) : entry.text);
+            holder.copy.setEnabled(true);
+            holder.redo.setVisibility(entry.audioPath.isEmpty() ? View.GONE : View.VISIBLE);
+            holder.delete.setEnabled(true);
+        }
+        return card;
+    }
+
+    /**
+     * Narrows the rows to entries matching {@code query} once typing pauses
+     * for {@link #SEARCH_DELAY_MS}; an empty query shows everything again
+     * right away. Matching runs on a worker against {@link HistoryIndex}.
+     */
+    public void setQuery(String query) {
+        this.query = query;
+        mainHandler.removeCallbacks(pendingSearch);
+        if (query.trim().isEmpty()) {
+            runSearch();
+        } else {
+            mainHandler.postDelayed(pendingSearch, SEARCH_DELAY_MS);
+        }
+    }
+
+    private void runSearch() {
+        final String needle = query.trim();
+        if (needle.isEmpty()) {
+            invalidate();
+            matches = null;
+            storeSize = store.size();
+            notifyDataSetChanged();
+            return;
+        }
+        // Current rows stay up until the results replace them
+        generation++;
+        loading.clear();
+        final int searchGeneration = generation;
+        TaskExecutor.submit(TaskExecutor.PRIORITY_HIGH, new Callable<long[]>() {
+            @Override
+            public long[] call() throws Exception {
+                return store.search(needle);
+            }
+        }).deliver(mainHandler, new AsyncResult.Callback<long[]>() {
+            @Override
+            public void onSuccess(long[] ids) {
+                if (searchGeneration == generation) {
+                    invalidate();  // pages loaded meanwhile were for the previous rows
+                    matches = ids;
+                    notifyDataSetChanged();
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "HistoryAdapter: search failed: " + error);
+            }
+        });
+    }
+
+    private int invalidate() {
+        generation++;
+        pages.clear();
+        loading.clear();
+        refilled.clear();
+        return generation;
+    }
+
+    private void requestPage(final int page) {
+        if (!loading.add(page)) {
+            return;
+        }
+        final int loadGeneration = generation;
+        final long[] ids = matches;
+        final int size = storeSize;
+        TaskExecutor.submit(TaskExecutor.PRIORITY_HIGH, new Callable<List<HistoryStore.Entry>>() {
+            @Override
+            public List<HistoryStore.Entry> call() throws Exception {
+                if (ids != null) {
+                    return store.readIds(ids, page * PAGE_SIZE, PAGE_SIZE);
+                }
+                // Entries saved since storeSize was read are above row 0
+                return store.readNewestFirst(page * PAGE_SIZE + Math.max(0, store.size() - size), PAGE_SIZE);
+            }
+        }).deliver(mainHandler, new AsyncResult.Callback<List<HistoryStore.Entry>>() {
+            @Override
+            public void onSuccess(List<HistoryStore.Entry> entries) {
+                if (loadGeneration != generation) {
+                    return;
+                }
+                loading.remove(page);
+                pages.put(page, entries);
+                notifyDataSetChanged();
+            }
+
+            @Override
+            public void onError(String error) {
+                // Dropped; the row asks again the next time it is bound
+                Log.e(TAG, "HistoryAdapter: loading page " + page + " failed: " + error);
+                if (loadGeneration == generation) {
+                    loading.remove(page);
+                }
+            }
+        });
+    }
+
+    private View newCard() {
+        final CardHolder holder = new CardHolder();
+
+        LinearLayout card = new LinearLayout(context);
+        card.setOrientation(LinearLayout.VERTICAL);
+        card.setPadding(18, 18, 18, 18);
+
+        GradientDrawable cardBg = new GradientDrawable();
+        cardBg.setCornerRadius(16);
+        cardBg.setColor(Color.parseColor("#2c2c2e"));
+        cardBg.setStroke(1, Color.parseColor("#38383a"));
+        card.setBackground(cardBg);
+        card.setLayoutParams(new AbsListView.LayoutParams(
+            AbsListView.LayoutParams.MATCH_PARENT,
+            AbsListView.LayoutParams.WRAP_CONTENT
+        ));
+
+        // Timestamp
+        holder.timestamp = new TextView(context);
+        holder.timestamp.setTextColor(Color.parseColor("#999999"));
+        holder.timestamp.setTextSize(12);
+        holder.timestamp.setPadding(0, 0, 0, 10);
+        card.addView(holder.timestamp);
+
+        // Text content
+        holder.text = new TextView(context);
+        holder.text.setTextColor(Color.parseColor("#e0e0e0"));
+        holder.text.setTextSize(14);
+        holder.text.setPadding(0, 0, 0, 15);
+        card.addView(holder.text);
+
+        // Buttons row
+        LinearLayout buttonRow = new LinearLayout(context);
+        buttonRow.setOrientation(LinearLayout.HORIZONTAL);
+        buttonRow.setGravity(Gravity.CENTER);
+
+        holder.copy = OverlayService.createButton(context, "📋 Copy", "#2196F3");
+        holder.copy.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (holder.entry != null) {
+                    listener.onCopy(holder.entry);
+                }
+            }
+        });
+        buttonRow.addView(holder.copy);
+
+        holder.redo = OverlayService.createButton(context, "🔄 Redo", "#FF9800");
+        holder.redo.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (holder.entry != null) {
+                    listener.onRetranscribe(holder.entry);
+                }
+            }
+        });
+        buttonRow.addView(holder.redo);
+
+        holder.delete = OverlayService.createButton(context, "🗑 Delete", "#f44336");
+        holder.delete.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (holder.entry != null) {
+                    listener.onDelete(holder.entry);
+                }
+            }
+        });
+        buttonRow.addView(holder.delete);
+
+        card.addView(buttonRow);
+        card.setTag(holder);
+        return card;
+    }
+}
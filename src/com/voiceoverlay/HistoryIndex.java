@@ -0,0 +1,301 @@
+package com.voiceoverlay;
+
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over history text, held by {@link HistoryStore} and
+ * updated with every append and removal.
+ *
+ * Text is split into words of letters and digits, lowercased. Each word is
+ * posted under itself and under each of its trigrams; postings are sorted
+ * entry ids. A query word of three or more characters matches entries with
+ * a word containing it: the trigram postings narrow the candidates, which
+ * are then checked against the entry's words, since trigrams spread over
+ * several words ("xabc bcdy" for "abcd") prove nothing. A shorter one
+ * matches words starting with it, and an entry must match every query word. Results rank whole-word
+ * matches above partial ones, then newest first.
+ */
+public class HistoryIndex {
+    private static final int HIGHLIGHT_COLOR = 0x66FFC107;
+
+    private final Map<Long, IdList> trigrams = new HashMap<>();
+    private final TreeMap<String, IdList> words = new TreeMap<>();
+    private final Map<Long, String[]> entryWords = new HashMap<>();  // distinct, for verifying trigram hits
+
+    // Sorted, growable list of entry ids; appends are in id order
+    private static final class IdList {
+        long[] ids = new long[4];
+        int size;
+
+        void add(long id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;  // word repeated within the same entry
+            }
+            if (size > 0 && ids[size - 1] > id) {
+                int at = Arrays.binarySearch(ids, 0, size, id);
+                if (at >= 0) {
+                    return;
+                }
+                insert(-at - 1, id);
+                return;
+            }
+            insert(size, id);
+        }
+
+        private void insert(int at, long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+
+        void remove(long id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) {
+                System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+                size--;
+            }
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+
+    public synchronized void add(long id, String text) {
+        Set<String> distinct = new LinkedHashSet<>(tokens(text));
+        entryWords.put(id, distinct.toArray(new String[0]));
+        for (String word : distinct) {
+            posting(words, word).add(id);
+            for (int i = 0; i + 3 <= word.length(); i++) {
+                long key = trigram(word, i);
+                IdList list = trigrams.get(key);
+                if (list == null) {
+                    list = new IdList();
+                    trigrams.put(key, list);
+                }
+                list.add(id);
+            }
+        }
+    }
+
+    public synchronized void remove(long id, String text) {
+        entryWords.remove(id);
+        for (String word : tokens(text)) {
+            IdList list = words.get(word);
+            if (list != null) {
+                list.remove(id);
+                if (list.size == 0) {
+                    words.remove(word);
+                }
+            }
+            for (int i = 0; i + 3 <= word.length(); i++) {
+                long key = trigram(word, i);
+                list = trigrams.get(key);
+                if (list != null) {
+                    list.remove(id);
+                    if (list.size == 0) {
+                        trigrams.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        trigrams.clear();
+        words.clear();
+        entryWords.clear();
+    }
+
+    /** Ids of entries matching every word of {@code query}, best first. */
+    public synchronized long[] search(String query) {
+        List<String> tokens = tokens(query);
+        if (tokens.isEmpty()) {
+            return new long[0];
+        }
+        long[] candidates = null;
+        for (String token : tokens) {
+            long[] matches = token.length() >= 3 ? withTrigrams(token) : withPrefix(token);
+            candidates = candidates == null ? matches : intersect(candidates, matches);
+            if (candidates.length == 0) {
+                return candidates;
+            }
+        }
+
+        final int[] scores = new int[candidates.length];
+        Integer[] order = new Integer[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            order[i] = i;
+            for (String token : tokens) {
+                IdList exact = words.get(token);
+                scores[i] += exact != null && exact.contains(candidates[i]) ? 2 : 1;
+            }
+        }
+        final long[] ids = candidates;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (scores[a] != scores[b]) {
+                    return scores[b] - scores[a];
+                }
+                return Long.compare(ids[b], ids[a]);
+            }
+        });
+        long[] ranked = new long[ids.length];
+        for (int i = 0; i < ranked.length; i++) {
+            ranked[i] = ids[order[i]];
+        }
+        return ranked;
+    }
+
+    /** {@code text} with every occurrence of each query word highlighted. */
+    public static CharSequence highlight(String text, String query) {
+        List<String> tokens = tokens(query);
+        if (tokens.isEmpty()) {
+            return text;
+        }
+        String lower = text.toLowerCase();
+        if (lower.length() != text.length()) {
+            return text;  // offsets would not line up
+        }
+        SpannableString spannable = null;
+        for (String token : tokens) {
+            for (int at = lower.indexOf(token); at >= 0; at = lower.indexOf(token, at + token.length())) {
+                if (spannable == null) {
+                    spannable = new SpannableString(text);
+                }
+                spannable.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR), at, at + token.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        return spannable != null ? spannable : text;
+    }
+
+    private long[] withTrigrams(String token) {
+        List<IdList> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= token.length(); i++) {
+            IdList list = trigrams.get(trigram(token, i));
+            if (list == null) {
+                return new long[0];
+            }
+            lists.add(list);
+        }
+        // Walk the rarest trigram, probe the others
+        IdList rarest = lists.get(0);
+        for (IdList list : lists) {
+            if (list.size < rarest.size) {
+                rarest = list;
+            }
+        }
+        long[] out = new long[rarest.size];
+        int n = 0;
+        for (int i = 0; i < rarest.size; i++) {
+            long id = rarest.ids[i];
+            boolean all = true;
+            for (IdList list : lists) {
+                if (list != rarest && !list.contains(id)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all && hasWordContaining(id, token)) {
+                out[n++] = id;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private boolean hasWordContaining(long id, String token) {
+        String[] entry = entryWords.get(id);
+        if (entry == null) {
+            return false;
+        }
+        for (String word : entry) {
+            if (word.contains(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long[] withPrefix(String prefix) {
+        int total = 0;
+        for (IdList list : words.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            total += list.size;
+        }
+        long[] all = new long[total];
+        int n = 0;
+        for (IdList list : words.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            System.arraycopy(list.ids, 0, all, n, list.size);
+            n += list.size;
+        }
+        Arrays.sort(all);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || all[unique - 1] != all[i]) {
+                all[unique++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, unique);
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] out = new long[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static IdList posting(Map<String, IdList> map, String key) {
+        IdList list = map.get(key);
+        if (list == null) {
+            list = new IdList();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        String lower = text.toLowerCase();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static long trigram(String s, int at) {
+        return ((long) s.charAt(at) << 32) | ((long) s.charAt(at + 1) << 16) | s.charAt(at + 2);
+    }
+}
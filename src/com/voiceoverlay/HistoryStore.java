@@ -0,0 +1,850 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Transcription history, kept out of SharedPreferences so that saving an
+ * entry does not rewrite everything saved before it.
+ *
+ * Entries live in an append-only log ({@code history.log}): each record is
+ * a length prefix, a type byte, the entry's id and three length-prefixed
+ * UTF-8 strings. A second file ({@code history.idx}) holds one fixed 16-byte
+ * slot per entry, {@code id, offset}, in log order. Appending writes one
+ * record and one slot; reading an entry is one seek into each file; ids only
+ * ever grow, so lookup by id is a binary search over the index.
+ *
+ * Deleting appends a tombstone record naming the id and sets
+ * {@link #DEAD} in the entry's slot, so it costs the same as an append.
+ * Positions passed to and returned by this class count live entries only.
+ * Once a quarter of the slots are dead, {@link #compact()} rewrites both
+ * files on a background worker with only the live entries, and deletes
+ * archived audio that no live entry refers to any more.
+ *
+ * A record the process died in the middle of writing is dropped when the
+ * store is opened, and records that made it to the log without reaching the
+ * index are applied again. The first open moves the legacy
+ * {@code |||}-separated history string out of the preferences.
+ */
+public class HistoryStore {
+    private static final String TAG = "VoiceOverlay";
+    private static final String PREFS_NAME = "VoiceOverlayPrefs";
+    private static final String KEY_LEGACY_HISTORY = "transcription_history";
+    private static final String LEGACY_SEPARATOR = "\n###ENTRY###\n";
+    private static final String LEGACY_FIELD = "|||";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SLOT_BYTES = 16;
+    private static final long DEAD = Long.MIN_VALUE;  // flag bit in a slot's offset
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+    private static final int INDEX_BATCH = 500;
+    // Audio younger than this may belong to an entry that is about to be appended
+    private static final long ORPHAN_GRACE_MS = 60 * 1000;
+
+    private static HistoryStore instance;
+
+    public static final class Entry {
+        public final long id;
+        public final String timestamp;
+        public final String text;
+        public final String audioPath;
+
+        Entry(long id, String timestamp, String text, String audioPath) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.text = text;
+            this.audioPath = audioPath;
+        }
+    }
+
+    private final File logFile;
+    private final File indexFile;
+    private final File audioDir;
+    private long nextId = 1;
+    private int slotCount = 0;
+    private int[] deadSlots = new int[0];  // sorted
+    private int deadCount = 0;
+    private boolean compactionScheduled = false;
+    private boolean compacting = false;
+    private int truncations = 0;       // bumped by truncate(); a compaction spanning one is abandoned
+    private boolean legacyPending = false;  // migration failed; its audio is not ours to sweep
+    private HistoryIndex searchIndex;  // built on first use
+    private int removals = 0;          // bumped when positions shift
+
+    public static synchronized HistoryStore get(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            File dir = new File(app.getFilesDir(), "history");
+            dir.mkdirs();
+            instance = new HistoryStore(dir, new File(app.getFilesDir(), "recording_history"));
+            instance.migrateLegacy(app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    /** {@code audioDir} is swept for orphaned recordings on compaction; may be null. */
+    HistoryStore(File dir, File audioDir) {
+        logFile = new File(dir, "history.log");
+        indexFile = new File(dir, "history.idx");
+        this.audioDir = audioDir;
+        try {
+            recover();
+        } catch (IOException e) {
+            Log.e(TAG, "HistoryStore: Could not open history", e);
+        }
+    }
+
+    /** Appends one entry and returns its id. */
+    public synchronized long append(String timestamp, String text, String audioPath) throws IOException {
+        long id = nextId;
+        long offset = appendRecord(encode(id, timestamp, text, audioPath));
+        writeSlot(slotCount, id, offset);
+        slotCount++;
+        nextId = id + 1;
+        if (searchIndex != null) {
+            searchIndex.add(id, text);
+        }
+        return id;
+    }
+
+    /** Number of live entries. */
+    public synchronized int size() {
+        return slotCount - deadCount;
+    }
+
+    synchronized int getDeletedCount() {
+        return deadCount;
+    }
+
+    /** Entry at {@code position} in save order (0 is the oldest). */
+    public synchronized Entry read(int position) throws IOException {
+        List<Entry> one = readNewestFirst(size() - 1 - position, 1);
+        return one.isEmpty() ? null : one.get(0);
+    }
+
+    /**
+     * Up to {@code count} entries, newest first, skipping the {@code skip}
+     * newest. Reads only the slots and records it returns.
+     */
+    public synchronized List<Entry> readNewestFirst(int skip, int count) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        int first = size() - 1 - skip;
+        if (first < 0 || count <= 0) {
+            return entries;
+        }
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        RandomAccessFile log = new RandomAccessFile(logFile, "r");
+        try {
+            for (int slot = slotOf(first); slot >= 0 && entries.size() < count; slot--) {
+                if (!isDead(slot)) {
+                    entries.add(readSlot(index, log, slot));
+                }
+            }
+        } finally {
+            index.close();
+            log.close();
+        }
+        return entries;
+    }
+
+    /** Entries at the given positions, in the order given. */
+    public synchronized List<Entry> readPositions(int[] positions, int from, int count) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        int end = Math.min(positions.length, from + count);
+        if (from >= end) {
+            return entries;
+        }
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        RandomAccessFile log = new RandomAccessFile(logFile, "r");
+        try {
+            for (int i = from; i < end; i++) {
+                entries.add(readSlot(index, log, slotOf(positions[i])));
+            }
+        } finally {
+            index.close();
+            log.close();
+        }
+        return entries;
+    }
+
+    /** Entries with the given ids, in the order given; ids no longer stored are skipped. */
+    public synchronized List<Entry> readIds(long[] ids, int from, int count) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        int end = Math.min(ids.length, from + count);
+        if (from >= end) {
+            return entries;
+        }
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        RandomAccessFile log = new RandomAccessFile(logFile, "r");
+        try {
+            for (int i = from; i < end; i++) {
+                int slot = findSlot(index, slotCount, ids[i]);
+                if (slot >= 0 && !isDead(slot)) {
+                    entries.add(readSlot(index, log, slot));
+                }
+            }
+        } finally {
+            index.close();
+            log.close();
+        }
+        return entries;
+    }
+
+    /** Ids of entries matching {@code query}, best first. See {@link HistoryIndex}. */
+    public synchronized long[] search(String query) throws IOException {
+        return searchIndex().search(query);
+    }
+
+    /**
+     * Builds the search index if this is its first use; later changes keep
+     * it current. The build reads in batches without holding the store, so
+     * paging is not held up behind it.
+     */
+    public HistoryIndex searchIndex() throws IOException {
+        int startRemovals;
+        synchronized (this) {
+            if (searchIndex != null) {
+                return searchIndex;
+            }
+            startRemovals = removals;
+        }
+        HistoryIndex built = new HistoryIndex();
+        long newest;
+        try {
+            newest = indexRange(built, 0, size());
+        } catch (IOException e) {
+            synchronized (this) {
+                if (removals == startRemovals) {
+                    throw e;
+                }
+            }
+            newest = 0;  // a removal truncated the index mid-build; rebuilt below
+        }
+        synchronized (this) {
+            if (searchIndex == null) {
+                if (removals != startRemovals) {
+                    // Positions shifted under the build; redo it while holding the store
+                    built = new HistoryIndex();
+                    indexRange(built, 0, size());
+                } else {
+                    // Entries appended during the build
+                    int position = size() - 1;
+                    for (Entry entry = position >= 0 ? read(position) : null; entry != null && entry.id > newest;
+                         entry = --position >= 0 ? read(position) : null) {
+                        built.add(entry.id, entry.text);
+                    }
+                }
+                searchIndex = built;
+            }
+            return searchIndex;
+        }
+    }
+
+    // Adds positions [from, to) to index and returns the highest id seen
+    private long indexRange(HistoryIndex index, int from, int to) throws IOException {
+        long newest = 0;
+        int[] batch = new int[INDEX_BATCH];
+        for (int start = from; start < to; start += INDEX_BATCH) {
+            int count = Math.min(INDEX_BATCH, to - start);
+            for (int i = 0; i < count; i++) {
+                batch[i] = start + i;
+            }
+            for (Entry entry : readPositions(batch, 0, count)) {
+                index.add(entry.id, entry.text);
+                newest = Math.max(newest, entry.id);
+            }
+        }
+        return newest;
+    }
+
+    /** Position of the entry with {@code id}, or -1. */
+    public synchronized int positionOf(long id) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        try {
+            int slot = findSlot(index, slotCount, id);
+            if (slot < 0 || isDead(slot)) {
+                return -1;
+            }
+            return slot - deadBefore(slot);
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Deletes the entry with {@code id} by writing a tombstone; the space
+     * is reclaimed by a later {@link #compact()}. Returns the deleted
+     * entry, or null if there was none. Other ids are unchanged.
+     */
+    public synchronized Entry remove(long id) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        RandomAccessFile log = new RandomAccessFile(logFile, "r");
+        Entry removed;
+        try {
+            int slot = findSlot(index, slotCount, id);
+            if (slot < 0 || isDead(slot)) {
+                return null;
+            }
+            removed = readSlot(index, log, slot);
+            // Log first: a tombstone without its slot flag is re-applied on open
+            appendRecord(encodeTombstone(id));
+            markDead(index, slot);
+        } finally {
+            index.close();
+            log.close();
+        }
+        removals++;
+        if (searchIndex != null) {
+            searchIndex.remove(id, removed.text);
+        }
+        if (deadCount * 4 >= slotCount) {
+            scheduleCompaction();
+        }
+        return removed;
+    }
+
+    public synchronized void clear() throws IOException {
+        truncate();
+        scheduleCompaction();  // sweeps the audio the entries referred to
+    }
+
+    private void truncate() throws IOException {
+        new FileOutputStream(logFile).close();
+        new FileOutputStream(indexFile).close();
+        if (nextId > 1) {
+            appendRecord(encodeTombstone(nextId - 1));  // keeps ids from being reused
+        }
+        slotCount = 0;
+        deadSlots = new int[0];
+        deadCount = 0;
+        removals++;
+        truncations++;
+        if (searchIndex != null) {
+            searchIndex.clear();
+        }
+    }
+
+    /** Runs {@link #compact()} on a background worker unless one is already queued. */
+    public synchronized void scheduleCompaction() {
+        if (compactionScheduled) {
+            return;
+        }
+        compactionScheduled = true;
+        TaskExecutor.submit(TaskExecutor.PRIORITY_LOW, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                compact();
+                return null;
+            }
+        }).deliver(null, new AsyncResult.Callback<Void>() {
+            @Override
+            public void onSuccess(Void ignored) {
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "HistoryStore: Compaction failed: " + error);
+                synchronized (HistoryStore.this) {
+                    compactionScheduled = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites the log and index with only the live entries, then deletes
+     * recordings in the audio folder that no live entry refers to. Live
+     * positions and ids are unchanged.
+     *
+     * The entries present at the start are copied without holding the
+     * store's lock, so {@link #append} and {@link #remove} carry on
+     * meanwhile; the lock is only taken to copy what was appended since,
+     * flag what was deleted since, and swap the files in.
+     */
+    public void compact() throws IOException {
+        int prefixSlots;
+        int[] deadAtStart;
+        int startTruncations;
+        synchronized (this) {
+            compactionScheduled = false;
+            if (compacting) {
+                return;
+            }
+            compacting = true;
+            prefixSlots = slotCount;
+            deadAtStart = Arrays.copyOf(deadSlots, deadCount);
+            startTruncations = truncations;
+        }
+        File newLog = new File(logFile.getPath() + ".tmp");
+        File newIndex = new File(indexFile.getPath() + ".tmp");
+        try {
+            compactFrom(prefixSlots, deadAtStart, startTruncations, newLog, newIndex);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            newLog.delete();  // left over only if the swap did not happen
+            newIndex.delete();
+        }
+    }
+
+    private void compactFrom(int prefixSlots, int[] deadAtStart, int startTruncations,
+                             File newLog, File newIndex) throws IOException {
+        Set<String> referenced = new HashSet<>();  // file names; paths may differ after a restore
+        List<String> deadAudio = new ArrayList<>();
+        long before = logFile.length();
+        int[] newSlot = new int[prefixSlots];  // -1 when dropped
+        int live = 0;
+        long offset = 0;
+        long newest = 0;
+
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        RandomAccessFile log = new RandomAccessFile(logFile, "r");
+        DataOutputStream logOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newLog)));
+        DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newIndex)));
+        try {
+            for (int slot = 0; slot < prefixSlots; slot++) {
+                index.seek((long) slot * SLOT_BYTES);
+                long id = index.readLong();
+                // remove() may be setting the flag right now; deadAtStart decides
+                long at = index.readLong() & ~DEAD;
+                byte[] record = readRaw(log, at);
+                Entry entry = decode(record);
+                if (Arrays.binarySearch(deadAtStart, slot) >= 0) {
+                    if (!entry.audioPath.isEmpty()) {
+                        deadAudio.add(entry.audioPath);
+                    }
+                    newSlot[slot] = -1;
+                    continue;
+                }
+                if (!entry.audioPath.isEmpty()) {
+                    referenced.add(new File(entry.audioPath).getName());
+                }
+                logOut.write(record);
+                indexOut.writeLong(id);
+                indexOut.writeLong(offset);
+                newSlot[slot] = live;
+                offset += record.length;
+                live++;
+                newest = id;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (truncations != startTruncations) {
+                    return;  // cleared underneath us; nothing left to compact
+                }
+            }
+            throw e;
+        } finally {
+            index.close();
+            log.close();
+            logOut.close();
+            indexOut.close();
+        }
+
+        int dropped;
+        boolean sweepOrphans;
+        synchronized (this) {
+            if (truncations != startTruncations) {
+                return;
+            }
+            index = new RandomAccessFile(indexFile, "r");
+            log = new RandomAccessFile(logFile, "r");
+            RandomAccessFile indexTmp = new RandomAccessFile(newIndex, "rw");
+            FileOutputStream logTmp = new FileOutputStream(newLog, true);
+            List<Integer> stillDead = new ArrayList<>();
+            try {
+                // Deleted while the copy ran: keep the record, flagged, for the next compaction
+                for (int i = 0; i < deadCount; i++) {
+                    int slot = deadSlots[i];
+                    if (slot < prefixSlots && newSlot[slot] >= 0) {
+                        indexTmp.seek((long) newSlot[slot] * SLOT_BYTES + 8);
+                        long raw = indexTmp.readLong();
+                        indexTmp.seek((long) newSlot[slot] * SLOT_BYTES + 8);
+                        indexTmp.writeLong(raw | DEAD);
+                        stillDead.add(newSlot[slot]);
+                    }
+                }
+                // Appended while the copy ran
+                indexTmp.seek((long) live * SLOT_BYTES);
+                for (int slot = prefixSlots; slot < slotCount; slot++) {
+                    index.seek((long) slot * SLOT_BYTES);
+                    long id = index.readLong();
+                    byte[] record = readRaw(log, index.readLong() & ~DEAD);
+                    Entry entry = decode(record);
+                    if (isDead(slot)) {
+                        if (!entry.audioPath.isEmpty()) {
+                            deadAudio.add(entry.audioPath);
+                        }
+                        continue;
+                    }
+                    if (!entry.audioPath.isEmpty()) {
+                        referenced.add(new File(entry.audioPath).getName());
+                    }
+                    logTmp.write(record);
+                    indexTmp.writeLong(id);
+                    indexTmp.writeLong(offset);
+                    offset += record.length;
+                    live++;
+                    newest = id;
+                }
+                if (newest < nextId - 1) {
+                    logTmp.write(encodeTombstone(nextId - 1));  // keeps ids from being reused
+                }
+            } finally {
+                index.close();
+                log.close();
+                indexTmp.close();
+                logTmp.close();
+            }
+            // Without an index, recover() rebuilds one from whichever log survived
+            indexFile.delete();
+            if (!newLog.renameTo(logFile) || !newIndex.renameTo(indexFile)) {
+                throw new IOException("Could not replace history files");
+            }
+            dropped = deadCount - stillDead.size();
+            slotCount = live;
+            deadSlots = new int[stillDead.size()];
+            for (int i = 0; i < deadSlots.length; i++) {
+                deadSlots[i] = stillDead.get(i);  // ascending: newSlot keeps slot order
+            }
+            deadCount = deadSlots.length;
+            sweepOrphans = audioDir != null && !legacyPending;
+        }
+
+        int deletedAudio = 0;
+        for (String path : deadAudio) {
+            File recording = new File(path);
+            if (!referenced.contains(recording.getName()) && recording.delete()) {
+                deletedAudio++;
+            }
+        }
+        File[] recordings = sweepOrphans ? audioDir.listFiles() : null;
+        if (recordings != null) {
+            long cutoff = System.currentTimeMillis() - ORPHAN_GRACE_MS;
+            for (File recording : recordings) {
+                if (recording.isFile() && recording.lastModified() < cutoff
+                    && !referenced.contains(recording.getName()) && recording.delete()) {
+                    deletedAudio++;
+                }
+            }
+        }
+        Log.d(TAG, "HistoryStore: Compacted history: dropped " + dropped + " entries, "
+            + (before - logFile.length()) + " bytes, " + deletedAudio + " recordings");
+    }
+
+    // Slot of the live entry at position, skipping dead slots
+    private int slotOf(int position) {
+        int slot = position;
+        for (int i = 0; i < deadCount && deadSlots[i] <= slot; i++) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private int deadBefore(int slot) {
+        int at = Arrays.binarySearch(deadSlots, 0, deadCount, slot);
+        return at >= 0 ? at : -at - 1;
+    }
+
+    private boolean isDead(int slot) {
+        return Arrays.binarySearch(deadSlots, 0, deadCount, slot) >= 0;
+    }
+
+    private void markDead(RandomAccessFile index, int slot) throws IOException {
+        index.seek((long) slot * SLOT_BYTES + 8);
+        long raw = index.readLong();
+        index.seek((long) slot * SLOT_BYTES + 8);
+        index.writeLong(raw | DEAD);
+        addDeadSlot(slot);
+    }
+
+    private void addDeadSlot(int slot) {
+        int at = Arrays.binarySearch(deadSlots, 0, deadCount, slot);
+        if (at >= 0) {
+            return;
+        }
+        at = -at - 1;
+        if (deadCount == deadSlots.length) {
+            deadSlots = Arrays.copyOf(deadSlots, Math.max(8, deadCount * 2));
+        }
+        System.arraycopy(deadSlots, at, deadSlots, at + 1, deadCount - at);
+        deadSlots[at] = slot;
+        deadCount++;
+    }
+
+    // Binary search over the first slots of the index, dead ones included
+    private static int findSlot(RandomAccessFile index, int slots, long id) throws IOException {
+        int low = 0;
+        int high = slots - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            index.seek((long) mid * SLOT_BYTES);
+            long midId = index.readLong();
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private long appendRecord(byte[] record) throws IOException {
+        long offset = logFile.length();
+        FileOutputStream log = new FileOutputStream(logFile, true);
+        try {
+            log.write(record);
+        } finally {
+            log.close();
+        }
+        return offset;
+    }
+
+    private static byte[] encode(long id, String timestamp, String text, String audioPath) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + text.length() * 2);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);  // length, patched below
+            out.writeByte(TYPE_ENTRY);
+            out.writeLong(id);
+            writeString(out, timestamp);
+            writeString(out, text);
+            writeString(out, audioPath != null ? audioPath : "");
+            byte[] record = bytes.toByteArray();
+            ByteBuffer.wrap(record).putInt(record.length - 4);
+            return record;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);  // in-memory stream
+        }
+    }
+
+    private static byte[] encodeTombstone(long id) {
+        return ByteBuffer.allocate(4 + 1 + 8).putInt(1 + 8).put(TYPE_TOMBSTONE).putLong(id).array();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Entry readSlot(RandomAccessFile index, RandomAccessFile log, int slot) throws IOException {
+        index.seek((long) slot * SLOT_BYTES + 8);
+        return decode(readRaw(log, index.readLong() & ~DEAD));
+    }
+
+    // Whole record, length prefix included, in one read; RandomAccessFile's readInt() goes to disk byte by byte
+    private static byte[] readRaw(RandomAccessFile log, long offset) throws IOException {
+        byte[] header = new byte[4];
+        log.seek(offset);
+        log.readFully(header);
+        byte[] record = new byte[4 + ByteBuffer.wrap(header).getInt()];
+        System.arraycopy(header, 0, record, 0, 4);
+        log.readFully(record, 4, record.length - 4);
+        return record;
+    }
+
+    private static Entry decode(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.position(4 + 1);  // length, type
+        long id = buffer.getLong();
+        String timestamp = readString(buffer);
+        String text = readString(buffer);
+        String audioPath = readString(buffer);
+        return new Entry(id, timestamp, text, audioPath);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private void writeSlot(int slot, long id, long offset) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        try {
+            index.seek((long) slot * SLOT_BYTES);
+            index.writeLong(id);
+            index.writeLong(offset);
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Brings the index back in line with the log after a crash: drops slots
+     * that point past the end of the log, applies complete records written
+     * after the last slot's record (all of them if the index is missing),
+     * and truncates a torn record at the end. Then loads the dead slots.
+     */
+    private void recover() throws IOException {
+        if (!logFile.exists()) {
+            new FileOutputStream(logFile).close();
+            new FileOutputStream(indexFile).close();
+            return;
+        }
+        if (!indexFile.exists()) {
+            new FileOutputStream(indexFile).close();
+        }
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        RandomAccessFile log = new RandomAccessFile(logFile, "rw");
+        try {
+            long logLength = log.length();
+            int slots = (int) (index.length() / SLOT_BYTES);
+            long end = 0;
+            long lastSlotId = 0;
+            while (slots > 0) {
+                index.seek((long) (slots - 1) * SLOT_BYTES);
+                long id = index.readLong();
+                long offset = index.readLong() & ~DEAD;
+                if (offset + 4 <= logLength) {
+                    log.seek(offset);
+                    long recordEnd = offset + 4 + log.readInt();
+                    if (recordEnd <= logLength) {
+                        end = recordEnd;
+                        lastSlotId = id;
+                        break;
+                    }
+                }
+                slots--;
+            }
+            index.setLength((long) slots * SLOT_BYTES);
+            nextId = lastSlotId + 1;
+
+            List<Long> tombstones = new ArrayList<>();
+            while (end + 4 <= logLength) {
+                log.seek(end);
+                long recordEnd = end + 4 + log.readInt();
+                if (recordEnd > logLength) {
+                    break;
+                }
+                byte type = log.readByte();
+                long id = log.readLong();
+                if (type == TYPE_ENTRY && id > lastSlotId) {
+                    index.seek((long) slots * SLOT_BYTES);
+                    index.writeLong(id);
+                    index.writeLong(end);
+                    slots++;
+                    lastSlotId = id;
+                } else if (type == TYPE_TOMBSTONE) {
+                    tombstones.add(id);
+                }
+                nextId = Math.max(nextId, id + 1);
+                end = recordEnd;
+            }
+            if (end < logLength) {
+                Log.w(TAG, "HistoryStore: Dropping " + (logLength - end) + " bytes of incomplete history record");
+                log.setLength(end);
+            }
+            slotCount = slots;
+
+            loadDeadSlots();
+            for (long id : tombstones) {
+                int slot = findSlot(index, slotCount, id);
+                if (slot >= 0) {
+                    markDead(index, slot);
+                }
+            }
+        } finally {
+            index.close();
+            log.close();
+        }
+    }
+
+    private void loadDeadSlots() throws IOException {
+        deadSlots = new int[0];
+        deadCount = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024));
+        try {
+            for (int slot = 0; slot < slotCount; slot++) {
+                in.readLong();
+                if ((in.readLong() & DEAD) != 0) {
+                    addDeadSlot(slot);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Moves the legacy preference string into the store, oldest entry first,
+     * then removes it from the preferences. Entries are cut out one at a time
+     * from the end of the string rather than split into an array up front.
+     */
+    private synchronized void migrateLegacy(SharedPreferences prefs) {
+        String legacy = prefs.getString(KEY_LEGACY_HISTORY, null);
+        if (legacy == null) {
+            return;
+        }
+        if (size() == 0 && !legacy.isEmpty()) {
+            int migrated = 0;
+            try {
+                int end = legacy.length();
+                while (end > 0) {
+                    if (legacy.startsWith(LEGACY_SEPARATOR, end - LEGACY_SEPARATOR.length())) {
+                        end -= LEGACY_SEPARATOR.length();
+                    }
+                    int start = legacy.lastIndexOf(LEGACY_SEPARATOR, end - 1);
+                    start = start < 0 ? 0 : start + LEGACY_SEPARATOR.length();
+                    if (migrateLegacyEntry(legacy.substring(start, end).trim())) {
+                        migrated++;
+                    }
+                    end = start;
+                }
+            } catch (IOException e) {
+                // Keep the legacy string so the next start can try again
+                Log.e(TAG, "HistoryStore: History migration failed after " + migrated + " entries", e);
+                try {
+                    truncate();  // no compaction: it would sweep the audio still listed in the legacy string
+                } catch (IOException ignored) {
+                }
+                legacyPending = true;
+                return;
+            }
+            Log.d(TAG, "HistoryStore: Migrated " + migrated + " history entries");
+        }
+        prefs.edit().remove(KEY_LEGACY_HISTORY).commit();
+    }
+
+    private boolean migrateLegacyEntry(String entry) throws IOException {
+        if (entry.isEmpty()) {
+            return false;
+        }
+        int first = entry.indexOf(LEGACY_FIELD);
+        if (first < 0) {
+            return false;
+        }
+        String timestamp = entry.substring(0, first);
+        String rest = entry.substring(first + LEGACY_FIELD.length());
+        // The audio path never contains the separator, the text might
+        int last = rest.lastIndexOf(LEGACY_FIELD);
+        String text = last >= 0 ? rest.substring(0, last) : rest;
+        String audioPath = last >= 0 ? rest.substring(last + LEGACY_FIELD.length()) : "";
+        append(timestamp, text, audioPath);
+        return true;
+    }
+}
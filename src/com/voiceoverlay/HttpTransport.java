@@ -0,0 +1,450 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.net.Network;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Shared HTTP transport for WhisperAPI, FirebaseWhisperAPI and ChatGPTAPI.
+ *
+ * HttpURLConnection already pools keep-alive connections, but only when the
+ * caller never calls disconnect(), drains every body, and keeps handing it the
+ * same Network and SSLSocketFactory instances (both are part of the pool key;
+ * each Network object even owns a private pool). This class owns those shared
+ * instances so back-to-back calls to the same host reuse a warm socket, and
+ * resumes TLS sessions when a fresh socket is unavoidable.
+ */
+public class HttpTransport {
+    private static final String TAG = "VoiceOverlay";
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+    private static final int TLS_SESSION_CACHE_SIZE = 32;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+    private static final long PREWARM_FRESH_MS = 30 * 1000;
+    private static final int PREWARM_TIMEOUT_MS = 10000;
+    private static final int ROUTE_TIMEOUT_MS = 10000;
+
+    private static final Map<String, HostStats> hostStats = new HashMap<>();
+    private static final Set<String> prewarming = new HashSet<>();  // guarded by hostStats
+    private static SSLSocketFactory sslSocketFactory;
+    // Per host, so a connection pooled under an address keeps the same factory and verifier
+    private static final Map<String, HostTls> hostTls = new HashMap<>();  // guarded by HttpTransport.class
+
+    static {
+        // Read once by the platform when a connection pool is created
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_MS));
+    }
+
+    /** Per-host counters; a request that did not open a socket rode a pooled one. */
+    public static class HostStats {
+        public final String host;
+        public int requests;
+        public int newConnections;
+        public int fullHandshakes;
+        public int resumedHandshakes;
+        public int prewarms;
+        public long lastUsedAt;
+
+        HostStats(String host) {
+            this.host = host;
+        }
+
+        public int reusedConnections() {
+            return Math.max(0, requests - newConnections);
+        }
+
+        // True if a pooled connection to this host is probably still alive
+        public boolean isWarm() {
+            return lastUsedAt > 0 && System.currentTimeMillis() - lastUsedAt < KEEP_ALIVE_MS;
+        }
+
+        HostStats copy() {
+            HostStats c = new HostStats(host);
+            c.requests = requests;
+            c.newConnections = newConnections;
+            c.fullHandshakes = fullHandshakes;
+            c.resumedHandshakes = resumedHandshakes;
+            c.prewarms = prewarms;
+            c.lastUsedAt = lastUsedAt;
+            return c;
+        }
+
+        @Override
+        public String toString() {
+            return host + ": requests=" + requests + " reused=" + reusedConnections()
+                + " new=" + newConnections + " tls(full=" + fullHandshakes
+                + " resumed=" + resumedHandshakes + ") prewarms=" + prewarms + (isWarm() ? " warm" : "");
+        }
+    }
+
+    /**
+     * Opens a connection to {@code url} through the shared pool, bound to the
+     * active network when there is one. The host's address comes from
+     * {@link NetworkState#pickAddress}; the request goes to that address
+     * with the real name in the Host header, TLS SNI and certificate check.
+     * If no address can be picked the connection looks the host up itself.
+     * Callers must finish with {@link #readBody} (or close the stream
+     * themselves) and must not call disconnect(), or the socket is thrown
+     * away instead of being reused.
+     */
+    public static HttpURLConnection open(Context context, URL url) throws IOException {
+        Network network = context != null ? activeNetwork(context) : null;
+        URL target = context != null ? route(NetworkState.get(context), url) : url;
+        HttpURLConnection conn;
+        if (network != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+            conn = (HttpURLConnection) network.openConnection(target);
+        } else {
+            conn = (HttpURLConnection) target.openConnection();
+        }
+
+        if (target != url) {
+            conn.setRequestProperty("Host", url.getPort() != -1 ? url.getHost() + ":" + url.getPort() : url.getHost());
+        }
+        if (conn instanceof HttpsURLConnection) {
+            HttpsURLConnection https = (HttpsURLConnection) conn;
+            if (target != url) {
+                HostTls tls = hostTls(url.getHost());
+                https.setSSLSocketFactory(tls);
+                https.setHostnameVerifier(tls);
+            } else {
+                https.setSSLSocketFactory(sslSocketFactory());
+            }
+        }
+
+        synchronized (hostStats) {
+            HostStats stats = statsFor(url.getHost());
+            stats.requests++;
+            stats.lastUsedAt = System.currentTimeMillis();
+        }
+        return conn;
+    }
+
+    /**
+     * Connects to {@code url}'s host in the background (DNS, TCP and TLS)
+     * with a bodiless HEAD request, so the socket is in the pool when the
+     * real request to that host follows. Call it as soon as a request
+     * becomes likely, e.g. when recording starts. Does nothing while a
+     * warm-up for the host is under way or the host was used within
+     * {@link #PREWARM_FRESH_MS}; failures only cost the attempt.
+     */
+    public static void prewarm(final Context context, String url) {
+        final URL target;
+        try {
+            target = new URL(url);
+        } catch (MalformedURLException e) {
+            return;
+        }
+        final String host = target.getHost();
+        synchronized (hostStats) {
+            HostStats stats = statsFor(host);
+            if (System.currentTimeMillis() - stats.lastUsedAt < PREWARM_FRESH_MS || !prewarming.add(host)) {
+                return;
+            }
+        }
+        TaskExecutor.submit(TaskExecutor.PRIORITY_NORMAL, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                long start = System.currentTimeMillis();
+                try {
+                    HttpURLConnection conn = open(context, target);
+                    conn.setRequestMethod("HEAD");
+                    conn.setConnectTimeout(PREWARM_TIMEOUT_MS);
+                    conn.setReadTimeout(PREWARM_TIMEOUT_MS);
+                    int code = conn.getResponseCode();
+                    readBody(conn);  // empty for HEAD, but releases the socket to the pool
+                    Log.d(TAG, "HttpTransport: prewarmed " + host + " in " + (System.currentTimeMillis() - start)
+                        + " ms (HTTP " + code + ")");
+                } catch (IOException e) {
+                    Log.d(TAG, "HttpTransport: prewarm of " + host + " failed: " + e.getMessage());
+                } finally {
+                    synchronized (hostStats) {
+                        prewarming.remove(host);
+                        statsFor(host).prewarms++;
+                    }
+                }
+                return null;
+            }
+        }).deliver(null, new AsyncResult.Callback<Void>() {
+            @Override
+            public void onSuccess(Void ignored) {
+            }
+
+            @Override
+            public void onError(String error) {
+                // Pool saturated; the request will simply connect on its own
+                synchronized (hostStats) {
+                    prewarming.remove(host);
+                }
+            }
+        });
+    }
+
+    // url with its host replaced by the address picked for it, or url itself
+    private static URL route(NetworkState state, URL url) {
+        String host = url.getHost();
+        if (host.isEmpty() || isAddressLiteral(host)) {
+            return url;
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        try {
+            return addressed(url, state.pickAddress(host, port, ROUTE_TIMEOUT_MS));
+        } catch (IOException e) {
+            // Let the connection resolve and fail on its own, with its usual error
+            Log.d(TAG, "HttpTransport: no address picked for " + host + ": " + e.getMessage());
+            return url;
+        }
+    }
+
+    /** {@code url} with its host replaced by {@code address}; IPv6 addresses are bracketed. */
+    static URL addressed(URL url, InetAddress address) throws MalformedURLException {
+        return new URL(url.getProtocol(), address.getHostAddress(), url.getPort(), url.getFile());
+    }
+
+    static boolean isAddressLiteral(String host) {
+        return host.startsWith("[") || host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    /**
+     * Returns the active network as tracked by {@link NetworkState}: the same
+     * instance while it stays the default, since each Network object carries
+     * its own connection pool.
+     */
+    public static Network activeNetwork(Context context) {
+        return NetworkState.get(context).getActiveNetwork();
+    }
+
+    /**
+     * Reads the response body (or error body for non-2xx codes) to the end as
+     * UTF-8 and closes it, which hands the socket back to the pool.
+     */
+    public static String readBody(HttpURLConnection conn) throws IOException {
+        int code = conn.getResponseCode();
+        InputStream in = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses a successful JSON response as it arrives, then reads the stream
+     * to its end and closes it so the socket goes back to the pool. Error
+     * responses are small and free-form; read those with {@link #readBody}.
+     */
+    public static JsonResponse readJson(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        try {
+            JsonResponse response = JsonResponse.read(in);
+            SseParser.drain(in);
+            return response;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static HostStats getStats(String host) {
+        synchronized (hostStats) {
+            return statsFor(host).copy();
+        }
+    }
+
+    private static HostStats statsFor(String host) {
+        HostStats stats = hostStats.get(host);
+        if (stats == null) {
+            stats = new HostStats(host);
+            hostStats.put(host, stats);
+        }
+        return stats;
+    }
+
+    private static synchronized HostTls hostTls(String host) throws IOException {
+        HostTls tls = hostTls.get(host);
+        if (tls == null) {
+            tls = new HostTls(sslSocketFactory(), host);
+            hostTls.put(host, tls);
+        }
+        return tls;
+    }
+
+    private static synchronized SSLSocketFactory sslSocketFactory() throws IOException {
+        if (sslSocketFactory == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                sslSocketFactory = new CountingSocketFactory(context);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("TLS unavailable: " + e.getMessage(), e);
+            }
+        }
+        return sslSocketFactory;
+    }
+
+    /**
+     * Delegating factory that keeps one client session cache for every socket
+     * it creates and records, per host, whether each handshake was a full one
+     * or a resumption. Only sockets created here are counted as new
+     * connections, so requests served from the pool show up as reuse.
+     */
+    private static class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        CountingSocketFactory(SSLContext context) {
+            SSLSessionContext sessions = context.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+            }
+            delegate = context.getSocketFactory();
+        }
+
+        private Socket track(Socket socket, final String host) {
+            synchronized (hostStats) {
+                statsFor(host).newConnections++;
+            }
+            if (socket instanceof SSLSocket) {
+                final long createdAt = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        boolean resumed = event.getSession().getCreationTime() < createdAt;
+                        synchronized (hostStats) {
+                            HostStats stats = statsFor(host);
+                            if (resumed) {
+                                stats.resumedHandshakes++;
+                            } else {
+                                stats.fullHandshakes++;
+                            }
+                        }
+                        Log.d(TAG, "HttpTransport: TLS " + (resumed ? "resumed" : "full") + " handshake with " + host);
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return track(delegate.createSocket(s, host, port, autoClose), host);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(delegate.createSocket(host, port), host);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return track(delegate.createSocket(host, port, localHost, localPort), host);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return track(delegate.createSocket(host, port), host.getHostName());
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return track(delegate.createSocket(address, port, localAddress, localPort), address.getHostName());
+        }
+    }
+
+    /**
+     * TLS for a request sent to an address instead of a name: the handshake
+     * uses the real host name for SNI and session resumption, and the
+     * certificate is checked against that name rather than the address.
+     */
+    private static class HostTls extends SSLSocketFactory implements HostnameVerifier {
+        private final SSLSocketFactory delegate;
+        private final String host;
+
+        HostTls(SSLSocketFactory delegate, String host) {
+            this.delegate = delegate;
+            this.host = host;
+        }
+
+        @Override
+        public boolean verify(String address, SSLSession session) {
+            return HttpsURLConnection.getDefaultHostnameVerifier().verify(host, session);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String address, int port, boolean autoClose) throws IOException {
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String address, int port) throws IOException {
+            return delegate.createSocket(address, port);
+        }
+
+        @Override
+        public Socket createSocket(String address, int port, InetAddress localHost, int localPort) throws IOException {
+            return delegate.createSocket(address, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port) throws IOException {
+            return delegate.createSocket(address, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.voiceoverlay;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of an OpenAI-style JSON reply the app uses, read in one pass
+ * straight off the response stream. Only the wanted values become strings;
+ * everything else is skipped as it streams past, so the body is never held
+ * whole. Strings are fully unescaped, unlike the old substring search.
+ *
+ * Recognized: top-level {@code text} and {@code segments} (transcriptions),
+ * {@code choices[0].message.content} or {@code choices[0].delta.content}
+ * (chat replies and streamed chunks), and {@code error} as a string or as
+ * an object with a {@code message}.
+ */
+public class JsonResponse {
+    public static final class Segment {
+        public final double start;
+        public final double end;
+        public final String text;
+
+        Segment(double start, double end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+    }
+
+    private String text;
+    private String content;
+    private String error;
+    private List<Segment> segments = Collections.emptyList();
+
+    /** Parses a UTF-8 body from {@code in}; leaves the stream open and unread past the value. */
+    public static JsonResponse read(InputStream in) throws IOException {
+        return read(new InputStreamReader(in, "UTF-8"));
+    }
+
+    public static JsonResponse read(Reader in) throws IOException {
+        JsonResponse response = new JsonResponse();
+        JsonReader reader = new JsonReader(in);
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IOException("Expected a JSON object, got " + reader.peek());
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("text")) {
+                response.text = optString(reader);
+            } else if (name.equals("segments") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                response.segments = readSegments(reader);
+            } else if (name.equals("choices") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                response.content = readFirstChoice(reader);
+            } else if (name.equals("error")) {
+                response.error = readError(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+    /** Transcript text, or null when absent. */
+    public String getText() {
+        return text;
+    }
+
+    /** Content of the first chat choice (message or streamed delta), or null. */
+    public String getContent() {
+        return content;
+    }
+
+    /** Error message from the body, or null. */
+    public String getError() {
+        return error;
+    }
+
+    /** Timed segments of a verbose transcription; empty unless the backend sent them. */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    private static List<Segment> readSegments(JsonReader reader) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            double start = 0;
+            double end = 0;
+            String text = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("start") && reader.peek() == JsonToken.NUMBER) {
+                    start = reader.nextDouble();
+                } else if (name.equals("end") && reader.peek() == JsonToken.NUMBER) {
+                    end = reader.nextDouble();
+                } else if (name.equals("text")) {
+                    text = optString(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (text != null) {
+                segments.add(new Segment(start, end, text));
+            }
+        }
+        reader.endArray();
+        return segments;
+    }
+
+    private static String readFirstChoice(JsonReader reader) throws IOException {
+        String content = null;
+        reader.beginArray();
+        if (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ((name.equals("message") || name.equals("delta")) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        content = readMember(reader, "content");
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+        return content;
+    }
+
+    private static String readError(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            return readMember(reader, "message");
+        }
+        return optString(reader);
+    }
+
+    // String member `wanted` of the object at the cursor; consumes the object
+    private static String readMember(JsonReader reader, String wanted) throws IOException {
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(wanted)) {
+                value = optString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    // The string at the cursor, or null (skipping it) if it is anything else
+    private static String optString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.STRING) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+}
@@ -10,6 +10,7 @@ import android.graphics.drawable.GradientDrawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.provider.Settings;
 import android.view.Gravity;
 import android.view.View;
@@ -23,6 +24,8 @@ import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
+import java.util.Locale;
+import java.util.concurrent.Callable;
 
 public class MainActivity extends Activity {
     private static final String PREFS_NAME = "VoiceOverlayPrefs";
@@ -32,17 +35,46 @@ public class MainActivity extends Activity {
     private static final String KEY_TRANSCRIPTION_PROMPT = "transcription_prompt";
     private static final String KEY_AUDIO_QUALITY = "audio_quality";
     private static final String KEY_WHISPER_MODEL = "whisper_model";
-    private static final String KEY_TRANSCRIPTION_MODE = "transcription_mode"; // "api" or "firebase"
+    private static final String KEY_TRANSCRIPTION_MODE = "transcription_mode";
+    private static final String KEY_SEGMENTED_RECORDING = "segmented_recording";
+    private static final String KEY_TRIM_SILENCE = "trim_silence";
+    private static final String KEY_PCM_CAPTURE = "pcm_capture";
+    private static final String KEY_PRE_ROLL = "pre_roll";
+    private static final String KEY_CHUNKED_TRANSCRIPTION = "chunked_transcription";
+    private static final String[] AUDIO_BUDGET_LABELS = {"100 MB", "250 MB", "500 MB", "1 GB", "Unlimited"};
+    private static final int[] AUDIO_BUDGET_MB = {100, 250, 500, 1024, 0};
+    private static final String[] COMPRESS_AGE_LABELS = {"After 1 day", "After 7 days", "After 30 days", "Never"};
+    private static final int[] COMPRESS_AGE_DAYS = {1, 7, 30, 0};
+    private static final String[] QUEUE_CAP_LABELS = {"25 MB", "50 MB", "100 MB", "250 MB"};
+    private static final int[] QUEUE_CAP_MB = {25, 50, 100, 250};
+    private static final String[] MODE_LABELS = {"Direct API (Use your own key)", "Firebase Backend (Secure & Subscription-ready)",
+        "Self-hosted Server (OpenAI-compatible)", "On-device (Android 13+, works offline)", "Automatic (Fastest available)"};
+    private static final String[] MODE_KEYS = {WhisperAPI.OPENAI.getName(), FirebaseWhisperAPI.BACKEND.getName(),
+        WhisperAPI.SELF_HOSTED.getName(), OnDeviceTranscriber.BACKEND.getName(), TranscriptionRouter.MODE_AUTO};
+    private static final String[] QUEUE_SPILL_LABELS = {"Drop oldest recordings", "Keep oldest, skip new ones"};
+    private static final String[] QUEUE_SPILL_KEYS = {TranscriptionQueue.SPILL_DROP_OLDEST, TranscriptionQueue.SPILL_REJECT_NEW};
     private static final int REQUEST_OVERLAY_PERMISSION = 1234;
     private static final int REQUEST_MICROPHONE_PERMISSION = 1235;
 
     private EditText urlInput;
     private EditText keyInput;
     private EditText transcriptionPromptInput;
+    private EditText selfHostedUrlInput;
+    private EditText selfHostedKeyInput;
     private Switch autoStartSwitch;
+    private Switch segmentedSwitch;
+    private Switch trimSilenceSwitch;
+    private Switch pcmCaptureSwitch;
+    private Switch preRollSwitch;
+    private Switch chunkedSwitch;
     private Spinner qualitySpinner;
     private Spinner modelSpinner;
     private Spinner modeSpinner;
+    private Spinner audioBudgetSpinner;
+    private Spinner compressAgeSpinner;
+    private Spinner queueCapSpinner;
+    private Spinner queueSpillSpinner;
+    private TextView archiveUsageText;
     private boolean isServiceRunning = false;
 
     @Override
@@ -119,9 +151,17 @@ public class MainActivity extends Activity {
         modeLabel.setPadding(0, 0, 0, 8);
         transcriptionCard.addView(modeLabel);
 
-        modeSpinner = createSpinner(new String[]{"Direct API (Use your own key)", "Firebase Backend (Secure & Subscription-ready)"});
+        modeSpinner = createSpinner(MODE_LABELS);
         transcriptionCard.addView(modeSpinner);
 
+        // Self-hosted server, used by the self-hosted and automatic modes
+        selfHostedUrlInput = createInput("Self-hosted Server URL", "http://192.168.1.10:8000/v1/audio/transcriptions");
+        transcriptionCard.addView(selfHostedUrlInput);
+
+        selfHostedKeyInput = createInput("Self-hosted API Key", "API key (optional)");
+        selfHostedKeyInput.setInputType(android.text.InputType.TYPE_CLASS_TEXT | android.text.InputType.TYPE_TEXT_VARIATION_PASSWORD);
+        transcriptionCard.addView(selfHostedKeyInput);
+
         // Whisper Model Selection
         TextView modelLabel = new TextView(this);
         modelLabel.setText("Whisper Model");
@@ -141,7 +181,8 @@ public class MainActivity extends Activity {
         qualityLabel.setPadding(0, 15, 0, 8);
         transcriptionCard.addView(qualityLabel);
 
-        qualitySpinner = createSpinner(new String[]{"Low (16kHz Mono - Fastest)", "Medium (22kHz Mono - Balanced)", "High (44kHz Stereo - Best)"});
+        qualitySpinner = createSpinner(new String[]{"Low (16kHz Mono - Fastest)", "Medium (22kHz Mono - Balanced)", "High (44kHz Stereo - Best)",
+            "Compact (Opus 24kbps - Smallest upload, Android 10+)"});
         transcriptionCard.addView(qualitySpinner);
 
         // Transcription Prompt
@@ -156,6 +197,75 @@ public class MainActivity extends Activity {
             "Punctuate and then grammatically correct and improve the given recorded audio");
         transcriptionCard.addView(transcriptionPromptInput);
 
+        // Segmented recording: upload parts of long dictations while still recording
+        segmentedSwitch = new Switch(this);
+        transcriptionCard.addView(createToggleRow("Transcribe while recording", segmentedSwitch));
+
+        // Silence trimming: cut dead air from quick recordings before upload
+        trimSilenceSwitch = new Switch(this);
+        transcriptionCard.addView(createToggleRow("Trim silence (quick record)", trimSilenceSwitch));
+
+        // Raw PCM capture engine (AudioRecord) instead of MediaRecorder
+        pcmCaptureSwitch = new Switch(this);
+        transcriptionCard.addView(createToggleRow("Raw PCM capture (experimental)", pcmCaptureSwitch));
+
+        // Pre-roll: listen once the button is held so hold-to-record keeps the first words
+        preRollSwitch = new Switch(this);
+        transcriptionCard.addView(createToggleRow("Pre-roll for hold-to-record", preRollSwitch));
+
+        // Chunked transcription: split long recordings at pauses and upload in parallel
+        chunkedSwitch = new Switch(this);
+        transcriptionCard.addView(createToggleRow("Split long recordings", chunkedSwitch));
+
+        // Storage budget for recordings kept with history; oldest go first
+        TextView budgetLabel = new TextView(this);
+        budgetLabel.setText("Archived Audio Limit");
+        budgetLabel.setTextSize(14);
+        budgetLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        budgetLabel.setPadding(0, 15, 0, 8);
+        transcriptionCard.addView(budgetLabel);
+
+        audioBudgetSpinner = createSpinner(AUDIO_BUDGET_LABELS);
+        transcriptionCard.addView(audioBudgetSpinner);
+
+        // Older recordings are recompressed to speech quality while the phone is idle
+        TextView compressLabel = new TextView(this);
+        compressLabel.setText("Compress Archived Audio");
+        compressLabel.setTextSize(14);
+        compressLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        compressLabel.setPadding(0, 15, 0, 8);
+        transcriptionCard.addView(compressLabel);
+
+        compressAgeSpinner = createSpinner(COMPRESS_AGE_LABELS);
+        transcriptionCard.addView(compressAgeSpinner);
+
+        archiveUsageText = new TextView(this);
+        archiveUsageText.setTextSize(12);
+        archiveUsageText.setTextColor(Color.parseColor("#8E8E93"));
+        archiveUsageText.setPadding(0, 8, 0, 8);
+        transcriptionCard.addView(archiveUsageText);
+
+        // Space for recordings waiting on a connection, and what gives when it runs out
+        TextView queueCapLabel = new TextView(this);
+        queueCapLabel.setText("Offline Queue Limit");
+        queueCapLabel.setTextSize(14);
+        queueCapLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        queueCapLabel.setPadding(0, 15, 0, 8);
+        transcriptionCard.addView(queueCapLabel);
+
+        queueCapSpinner = createSpinner(QUEUE_CAP_LABELS);
+        transcriptionCard.addView(queueCapSpinner);
+
+        TextView queueSpillLabel = new TextView(this);
+        queueSpillLabel.setText("When the Offline Queue Is Full");
+        queueSpillLabel.setTextSize(14);
+        queueSpillLabel.setTextColor(Color.parseColor("#CCCCCC"));
+        queueSpillLabel.setPadding(0, 15, 0, 8);
+        transcriptionCard.addView(queueSpillLabel);
+
+        queueSpillSpinner = createSpinner(QUEUE_SPILL_LABELS);
+        transcriptionCard.addView(queueSpillSpinner);
+
         // Save Transcription Settings button
         Button saveTranscriptionButton = createButton("Save Transcription Settings", "#2196F3");
         saveTranscriptionButton.setOnClickListener(new View.OnClickListener() {
@@ -362,6 +472,32 @@ public class MainActivity extends Activity {
         return input;
     }
 
+    private LinearLayout createToggleRow(String label, Switch toggle) {
+        LinearLayout row = new LinearLayout(this);
+        row.setOrientation(LinearLayout.HORIZONTAL);
+        row.setGravity(Gravity.CENTER_VERTICAL);
+        LinearLayout.LayoutParams rowParams = new LinearLayout.LayoutParams(
+            LinearLayout.LayoutParams.MATCH_PARENT,
+            LinearLayout.LayoutParams.WRAP_CONTENT
+        );
+        rowParams.setMargins(0, 0, 0, 15);
+        row.setLayoutParams(rowParams);
+
+        TextView labelView = new TextView(this);
+        labelView.setText(label);
+        labelView.setTextSize(14);
+        labelView.setTextColor(Color.parseColor("#CCCCCC"));
+        labelView.setLayoutParams(new LinearLayout.LayoutParams(
+            0,
+            LinearLayout.LayoutParams.WRAP_CONTENT,
+            1.0f
+        ));
+        row.addView(labelView);
+        row.addView(toggle);
+
+        return row;
+    }
+
     private Spinner createSpinner(String[] items) {
         Spinner spinner = new Spinner(this);
         ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, items);
@@ -436,17 +572,31 @@ public class MainActivity extends Activity {
         String model = prefs.getString(KEY_WHISPER_MODEL, "whisper-1");
         String mode = prefs.getString(KEY_TRANSCRIPTION_MODE, "api");
         boolean autoStart = prefs.getBoolean(KEY_AUTO_START, true);
+        boolean segmented = prefs.getBoolean(KEY_SEGMENTED_RECORDING, true);
+        boolean trimSilence = prefs.getBoolean(KEY_TRIM_SILENCE, true);
+        boolean pcmCapture = prefs.getBoolean(KEY_PCM_CAPTURE, false);
+        boolean preRoll = prefs.getBoolean(KEY_PRE_ROLL, false);
+        boolean chunked = prefs.getBoolean(KEY_CHUNKED_TRANSCRIPTION, true);
 
         urlInput.setText(url);
         keyInput.setText(key);
         transcriptionPromptInput.setText(prompt);
+        selfHostedUrlInput.setText(prefs.getString(WhisperAPI.KEY_SELF_HOSTED_URL, ""));
+        selfHostedKeyInput.setText(prefs.getString(WhisperAPI.KEY_SELF_HOSTED_KEY, ""));
         autoStartSwitch.setChecked(autoStart);
+        segmentedSwitch.setChecked(segmented);
+        trimSilenceSwitch.setChecked(trimSilence);
+        pcmCaptureSwitch.setChecked(pcmCapture);
+        preRollSwitch.setChecked(preRoll);
+        chunkedSwitch.setChecked(chunked);
 
         // Set quality spinner
         if (quality.equals("Medium")) {
             qualitySpinner.setSelection(1);
         } else if (quality.equals("High")) {
             qualitySpinner.setSelection(2);
+        } else if (quality.equals("Compact")) {
+            qualitySpinner.setSelection(3);
         } else {
             qualitySpinner.setSelection(0);
         }
@@ -461,11 +611,66 @@ public class MainActivity extends Activity {
         }
 
         // Set mode spinner
-        if (mode.equals("firebase")) {
-            modeSpinner.setSelection(1);
-        } else {
-            modeSpinner.setSelection(0);
+        modeSpinner.setSelection(0);
+        for (int i = 0; i < MODE_KEYS.length; i++) {
+            if (MODE_KEYS[i].equals(mode)) {
+                modeSpinner.setSelection(i);
+            }
         }
+
+        // Set audio budget spinner
+        int budgetMb = prefs.getInt(AudioArchive.KEY_BUDGET_MB, AudioArchive.DEFAULT_BUDGET_MB);
+        for (int i = 0; i < AUDIO_BUDGET_MB.length; i++) {
+            if (AUDIO_BUDGET_MB[i] == budgetMb) {
+                audioBudgetSpinner.setSelection(i);
+            }
+        }
+
+        // Set compression age spinner
+        int ageDays = prefs.getInt(ArchiveTranscoder.KEY_AGE_DAYS, ArchiveTranscoder.DEFAULT_AGE_DAYS);
+        for (int i = 0; i < COMPRESS_AGE_DAYS.length; i++) {
+            if (COMPRESS_AGE_DAYS[i] == ageDays) {
+                compressAgeSpinner.setSelection(i);
+            }
+        }
+
+        // Set offline queue spinners
+        int queueCapMb = prefs.getInt(TranscriptionQueue.KEY_CAP_MB, TranscriptionQueue.DEFAULT_CAP_MB);
+        for (int i = 0; i < QUEUE_CAP_MB.length; i++) {
+            if (QUEUE_CAP_MB[i] == queueCapMb) {
+                queueCapSpinner.setSelection(i);
+            }
+        }
+        String spill = prefs.getString(TranscriptionQueue.KEY_SPILL, TranscriptionQueue.SPILL_DROP_OLDEST);
+        for (int i = 0; i < QUEUE_SPILL_KEYS.length; i++) {
+            if (QUEUE_SPILL_KEYS[i].equals(spill)) {
+                queueSpillSpinner.setSelection(i);
+            }
+        }
+        refreshArchiveUsage();
+    }
+
+    // Reads the archive folder on a worker and shows its size under the budget spinner
+    private void refreshArchiveUsage() {
+        final AudioArchive archive = AudioArchive.get(this);
+        TaskExecutor.submit(TaskExecutor.PRIORITY_LOW, new Callable<AudioArchive.Usage>() {
+            @Override
+            public AudioArchive.Usage call() {
+                return archive.getUsage();
+            }
+        }).deliver(new Handler(getMainLooper()), new AsyncResult.Callback<AudioArchive.Usage>() {
+            @Override
+            public void onSuccess(AudioArchive.Usage usage) {
+                String used = String.format(Locale.US, "%.1f MB", usage.bytes / (1024.0 * 1024.0));
+                String limit = usage.budgetBytes > 0 ? " of " + usage.budgetBytes / (1024 * 1024) + " MB" : "";
+                archiveUsageText.setText("Using " + used + limit + " for " + usage.files + " recordings");
+            }
+
+            @Override
+            public void onError(String error) {
+                archiveUsageText.setText("");
+            }
+        });
     }
 
     private void saveSettings() {
@@ -490,7 +695,6 @@ public class MainActivity extends Activity {
         String prompt = transcriptionPromptInput.getText().toString().trim();
         String quality = qualitySpinner.getSelectedItem().toString();
         String model = modelSpinner.getSelectedItem().toString();
-        String modeSelection = modeSpinner.getSelectedItem().toString();
 
         // Parse quality
         String qualityKey = "Low";
@@ -498,18 +702,32 @@ public class MainActivity extends Activity {
             qualityKey = "Medium";
         } else if (quality.startsWith("High")) {
             qualityKey = "High";
+        } else if (quality.startsWith("Compact")) {
+            qualityKey = "Compact";
         }
 
-        // Parse mode
-        String modeKey = modeSelection.startsWith("Direct") ? "api" : "firebase";
-
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         SharedPreferences.Editor editor = prefs.edit();
         editor.putString(KEY_TRANSCRIPTION_PROMPT, prompt);
         editor.putString(KEY_AUDIO_QUALITY, qualityKey);
         editor.putString(KEY_WHISPER_MODEL, model);
-        editor.putString(KEY_TRANSCRIPTION_MODE, modeKey);
-        editor.apply();
+        editor.putString(KEY_TRANSCRIPTION_MODE, MODE_KEYS[modeSpinner.getSelectedItemPosition()]);
+        editor.putString(WhisperAPI.KEY_SELF_HOSTED_URL, selfHostedUrlInput.getText().toString().trim());
+        editor.putString(WhisperAPI.KEY_SELF_HOSTED_KEY, selfHostedKeyInput.getText().toString().trim());
+        editor.putBoolean(KEY_SEGMENTED_RECORDING, segmentedSwitch.isChecked());
+        editor.putBoolean(KEY_TRIM_SILENCE, trimSilenceSwitch.isChecked());
+        editor.putBoolean(KEY_PCM_CAPTURE, pcmCaptureSwitch.isChecked());
+        editor.putBoolean(KEY_PRE_ROLL, preRollSwitch.isChecked());
+        editor.putBoolean(KEY_CHUNKED_TRANSCRIPTION, chunkedSwitch.isChecked());
+        editor.putInt(AudioArchive.KEY_BUDGET_MB, AUDIO_BUDGET_MB[audioBudgetSpinner.getSelectedItemPosition()]);
+        editor.putInt(ArchiveTranscoder.KEY_AGE_DAYS, COMPRESS_AGE_DAYS[compressAgeSpinner.getSelectedItemPosition()]);
+        editor.putInt(TranscriptionQueue.KEY_CAP_MB, QUEUE_CAP_MB[queueCapSpinner.getSelectedItemPosition()]);
+        editor.putString(TranscriptionQueue.KEY_SPILL, QUEUE_SPILL_KEYS[queueSpillSpinner.getSelectedItemPosition()]);
+        editor.commit();  // the evictor and the job below read the new values
+
+        AudioArchive.get(this).scheduleEnforceBudget();
+        ArchiveTranscodeJob.schedule(this);
+        refreshArchiveUsage();
 
         Toast.makeText(this, "Transcription settings saved!", Toast.LENGTH_SHORT).show();
     }
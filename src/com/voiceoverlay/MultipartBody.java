@@ -0,0 +1,211 @@
+package com.voiceoverlay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * multipart/form-data request body, usually with an exact length known up
+ * front.
+ *
+ * Text parts are encoded to UTF-8 once when added; file parts are streamed
+ * through a reusable per-thread buffer when written. Because the length is
+ * known, the connection runs in fixed-length streaming mode and sends bytes
+ * as they are written instead of buffering the whole upload in heap first.
+ * A {@link Source} part is produced while it is sent, e.g. by an encoder;
+ * until its length is known the body goes out chunked. The body can be
+ * written more than once, e.g. for a retry.
+ */
+public class MultipartBody {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CRLF = "\r\n";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Upload work only runs on the few TaskExecutor workers, so one buffer each.
+    // The connection's stream only takes byte arrays; a direct buffer would be copied anyway.
+    private static final ThreadLocal<byte[]> transferBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /** A file part whose bytes, and even name, are only settled when the body is written. */
+    public interface Source {
+        String getFileName();
+
+        String getContentType();
+
+        /** Bytes {@link #writeTo} will produce, or -1 if that is not known before writing. */
+        long getLength();
+
+        // Must not close out
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static class Part {
+        final String name;
+        final byte[] head;  // null for a Source, whose head is built when written
+        final File file;
+        final Source source;
+        final MessageDigest digest;
+        final byte[] tail;
+
+        Part(String name, byte[] head, File file, Source source, MessageDigest digest, byte[] tail) {
+            this.name = name;
+            this.head = head;
+            this.file = file;
+            this.source = source;
+            this.digest = digest;
+            this.tail = tail;
+        }
+    }
+
+    private final String boundary;
+    private final List<Part> parts = new ArrayList<>();
+
+    public MultipartBody() {
+        boundary = "----VoiceOverlayBoundary" + System.currentTimeMillis();
+    }
+
+    public MultipartBody addField(String name, String value) {
+        String head = "--" + boundary + CRLF
+            + "Content-Disposition: form-data; name=\"" + escape(name) + "\"" + CRLF
+            + CRLF
+            + value + CRLF;
+        parts.add(new Part(name, head.getBytes(UTF_8), null, null, null, new byte[0]));
+        return this;
+    }
+
+    public MultipartBody addFile(String name, File file, String contentType) {
+        return addFile(name, file, contentType, null);
+    }
+
+    /**
+     * Like {@link #addFile(String, File, String)}, also feeding the file's
+     * bytes to {@code digest} as they are sent, so a fingerprint of the upload
+     * costs no extra read. The digest is reset each time the body is written.
+     */
+    public MultipartBody addFile(String name, File file, String contentType, MessageDigest digest) {
+        parts.add(new Part(name, fileHead(name, file.getName(), contentType), file, null, digest, CRLF.getBytes(UTF_8)));
+        return this;
+    }
+
+    /** Adds a part that {@code source} writes when the body is; {@code digest} as for a file. */
+    public MultipartBody addSource(String name, Source source, MessageDigest digest) {
+        parts.add(new Part(name, null, null, source, digest, CRLF.getBytes(UTF_8)));
+        return this;
+    }
+
+    private byte[] fileHead(String name, String fileName, String contentType) {
+        String head = "--" + boundary + CRLF
+            + "Content-Disposition: form-data; name=\"" + escape(name) + "\"; filename=\"" + escape(fileName) + "\"" + CRLF
+            + "Content-Type: " + contentType + CRLF
+            + CRLF;
+        return head.getBytes(UTF_8);
+    }
+
+    private byte[] headOf(Part part) {
+        return part.source != null
+            ? fileHead(part.name, part.source.getFileName(), part.source.getContentType()) : part.head;
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /** Exact length of the next write, or -1 while a {@link Source} part's is unknown. */
+    public long getContentLength() {
+        long length = closing().length;
+        for (Part part : parts) {
+            long content = part.source != null ? part.source.getLength() : part.file != null ? part.file.length() : 0;
+            if (content < 0) {
+                return -1;
+            }
+            length += headOf(part).length + content + part.tail.length;
+        }
+        return length;
+    }
+
+    /**
+     * Sets the content type and fixed length on {@code conn}, then streams the
+     * body and closes the request stream.
+     */
+    public void writeTo(HttpURLConnection conn) throws IOException {
+        long length = getContentLength();
+        conn.setRequestProperty("Content-Type", getContentType());
+        if (length < 0) {
+            conn.setChunkedStreamingMode(BUFFER_SIZE);
+        } else if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
+            conn.setFixedLengthStreamingMode(length);
+        } else if (length <= Integer.MAX_VALUE) {
+            conn.setFixedLengthStreamingMode((int) length);
+        } else {
+            conn.setChunkedStreamingMode(BUFFER_SIZE);
+        }
+
+        OutputStream out = conn.getOutputStream();
+        try {
+            writeTo(out);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        for (Part part : parts) {
+            out.write(headOf(part));
+            if (part.file != null) {
+                copyFile(part.file, part.digest, out);
+            } else if (part.source != null) {
+                if (part.digest != null) {
+                    part.digest.reset();
+                }
+                part.source.writeTo(part.digest != null ? new DigestOutputStream(out, part.digest) : out);
+            }
+            out.write(part.tail);
+        }
+        out.write(closing());
+    }
+
+    /** Streams {@code file} to {@code out} through the calling thread's transfer buffer. */
+    static void copyFile(File file, OutputStream out) throws IOException {
+        copyFile(file, null, out);
+    }
+
+    private static void copyFile(File file, MessageDigest digest, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = transferBuffer.get();
+            if (digest != null) {
+                digest.reset();
+            }
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (digest != null) {
+                    digest.update(buffer, 0, n);
+                }
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] closing() {
+        return ("--" + boundary + "--" + CRLF).getBytes(UTF_8);
+    }
+
+    // Header parameters are quoted strings; keep them from breaking the quoting
+    private static String escape(String value) {
+        return value.replace("\"", "%22").replace("\r", "").replace("\n", "");
+    }
+}
@@ -0,0 +1,432 @@
+package com.voiceoverlay;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The active network and the addresses of the hosts the app talks to.
+ *
+ * The default network is followed through a ConnectivityManager callback
+ * (API 24+), so asking for it costs nothing and the same Network instance,
+ * and with it the same connection pool, is returned until it changes. Older
+ * releases poll as before. Host lookups are cached for {@link #DNS_TTL_MS}
+ * and dropped when the network changes; the lookup itself goes through a
+ * {@link Resolver}, which tests replace.
+ *
+ * {@link #connect} races the resolved addresses Happy Eyeballs style
+ * (RFC 8305): families interleaved, a new attempt every
+ * {@link #ATTEMPT_DELAY_MS} or as soon as one fails, first connection wins,
+ * so a broken IPv6 path costs a quarter second rather than a timeout.
+ * Attempts run on a few dedicated threads, not one new thread each. The
+ * winning address is remembered per host until it stops resolving, fails,
+ * or the network changes.
+ *
+ * API requests use {@link #pickAddress}: {@link HttpTransport} sends them
+ * to the remembered address, so neither the lookup nor a dead address
+ * family is paid for per request, and the pooled connection stays keyed to
+ * one address.
+ */
+public class NetworkState {
+    private static final String TAG = "VoiceOverlay";
+    static final long DNS_TTL_MS = 60 * 1000;
+    static final long ATTEMPT_DELAY_MS = 250;
+    private static final int MAX_CACHED_HOSTS = 32;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final int ATTEMPT_THREADS = 2 * MAX_ATTEMPTS;  // two races at once
+
+    // Attempts block for up to their timeout, so they get their own threads rather than TaskExecutor's
+    private static final ThreadPoolExecutor attempts = new ThreadPoolExecutor(ATTEMPT_THREADS, ATTEMPT_THREADS,
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VoiceOverlay-connect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    static {
+        attempts.allowCoreThreadTimeOut(true);
+    }
+
+    public interface Resolver {
+        // network is null before Lollipop or when there is no active network
+        InetAddress[] resolve(Network network, String host) throws UnknownHostException;
+    }
+
+    public interface Listener {
+        // Runs on a ConnectivityManager thread; network is null when connectivity is lost
+        void onNetworkChanged(Network network);
+    }
+
+    private static final Resolver SYSTEM_RESOLVER = new Resolver() {
+        @Override
+        public InetAddress[] resolve(Network network, String host) throws UnknownHostException {
+            if (network != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return network.getAllByName(host);
+            }
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    private static final class Lookup {
+        final InetAddress[] addresses;
+        final long expiresAt;
+
+        Lookup(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static NetworkState instance;
+
+    private final ConnectivityManager cm;
+    private final Resolver resolver;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Lookup> lookups = new LinkedHashMap<String, Lookup>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Lookup> eldest) {
+            return size() > MAX_CACHED_HOSTS;
+        }
+    };
+    private final Map<String, InetAddress> winners = new LinkedHashMap<String, InetAddress>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, InetAddress> eldest) {
+            return size() > MAX_CACHED_HOSTS;
+        }
+    };
+    private boolean tracking = false;  // true once the callback owns network/connected
+    private Network network;
+    private boolean connected = true;
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong networkChanges = new AtomicLong();
+
+    public static synchronized NetworkState get(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new NetworkState((ConnectivityManager) app.getSystemService(Context.CONNECTIVITY_SERVICE),
+                SYSTEM_RESOLVER);
+            instance.startTracking();
+        }
+        return instance;
+    }
+
+    NetworkState(ConnectivityManager cm, Resolver resolver) {
+        this.cm = cm;
+        this.resolver = resolver;
+    }
+
+    private void startTracking() {
+        if (cm == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                registerDefaultCallback();
+            } else {
+                registerInternetCallback();
+            }
+        } catch (RuntimeException e) {
+            // Too many callbacks registered by the process, or no permission; keep polling
+            Log.w(TAG, "NetworkState: cannot follow network changes", e);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void registerDefaultCallback() {
+        cm.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network available) {
+                onNetworkChanged(available, true);
+            }
+
+            @Override
+            public void onLost(Network lost) {
+                synchronized (NetworkState.this) {
+                    if (!lost.equals(network)) {
+                        return;
+                    }
+                }
+                onNetworkChanged(null, false);
+            }
+        });
+        synchronized (this) {
+            tracking = true;
+            network = cm.getActiveNetwork();
+            connected = network != null;
+        }
+    }
+
+    // Before N the default network is not reported directly; callbacks only say when to look again
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void registerInternetCallback() {
+        NetworkRequest request = new NetworkRequest.Builder()
+            .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+            .build();
+        cm.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network available) {
+                onNetworkChanged(pollNetwork(), pollConnected());
+            }
+
+            @Override
+            public void onLost(Network lost) {
+                onNetworkChanged(pollNetwork(), pollConnected());
+            }
+        });
+    }
+
+    /** Records a change of default network and tells listeners; package-private for tests. */
+    void onNetworkChanged(Network changed, boolean isConnected) {
+        synchronized (this) {
+            boolean same = changed == null ? network == null : changed.equals(network);
+            if (!same) {
+                lookups.clear();  // addresses may differ, e.g. IPv6-only cellular
+                winners.clear();
+                networkChanges.incrementAndGet();
+            }
+            network = changed;
+            connected = isConnected;
+        }
+        for (Listener listener : listeners) {
+            listener.onNetworkChanged(changed);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The default network, or null before Marshmallow or when there is
+     * none. The same instance is returned while it stays the default.
+     */
+    public synchronized Network getActiveNetwork() {
+        if (!tracking) {
+            network = pollNetwork();
+        }
+        return network;
+    }
+
+    public synchronized boolean isConnected() {
+        return tracking ? connected : pollConnected();
+    }
+
+    // Reuses the previous instance when equal: ConnectivityManager hands out a new one per call
+    private Network pollNetwork() {
+        if (cm == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+        Network active = cm.getActiveNetwork();
+        synchronized (this) {
+            return active != null && active.equals(network) ? network : active;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean pollConnected() {
+        if (cm == null) {
+            return true;
+        }
+        android.net.NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    /** Addresses of {@code host} on the active network, from the cache while fresh. */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        Network current;
+        synchronized (this) {
+            Lookup cached = lookups.get(host);
+            if (cached != null && System.currentTimeMillis() < cached.expiresAt) {
+                cacheHits.incrementAndGet();
+                return cached.addresses;
+            }
+            current = getActiveNetwork();
+        }
+        cacheMisses.incrementAndGet();
+        InetAddress[] addresses = resolver.resolve(current, host);
+        synchronized (this) {
+            if (current == network || (current != null && current.equals(network))) {
+                lookups.put(host, new Lookup(addresses, System.currentTimeMillis() + DNS_TTL_MS));
+            }
+        }
+        return addresses;
+    }
+
+    /** Forgets {@code host}'s addresses, e.g. after connecting to all of them failed. */
+    public synchronized void invalidate(String host) {
+        lookups.remove(host);
+        winners.remove(host);
+    }
+
+    /**
+     * The address to send requests for {@code host} to: the last one that
+     * won a {@link #connect} race while it still resolves, else the only
+     * address, else the winner of a fresh race (whose socket is closed).
+     */
+    public InetAddress pickAddress(String host, int port, int timeoutMs) throws IOException {
+        InetAddress[] addresses = resolve(host);
+        synchronized (this) {
+            InetAddress winner = winners.get(host);
+            for (InetAddress address : addresses) {
+                if (address.equals(winner)) {
+                    return winner;
+                }
+            }
+        }
+        if (addresses.length == 1) {
+            return addresses[0];
+        }
+        Socket socket = connect(host, port, timeoutMs);
+        try {
+            return socket.getInetAddress();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Opens a TCP connection to {@code host}, racing its addresses as
+     * described above. Throws the last failure if every address fails, or
+     * SocketTimeoutException once {@code timeoutMs} has passed.
+     */
+    public Socket connect(String host, int port, int timeoutMs) throws IOException {
+        List<InetAddress> order = interleave(resolve(host));
+        final Network via = getActiveNetwork();
+        final int count = Math.min(order.size(), MAX_ATTEMPTS);
+        final LinkedBlockingQueue<Object> outcomes = new LinkedBlockingQueue<>();
+        final boolean[] settled = {false};
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int started = 0;
+        int failed = 0;
+        IOException lastFailure = null;
+        try {
+            while (true) {
+                if (started < count) {
+                    startAttempt(via, new InetSocketAddress(order.get(started++), port), deadline, outcomes, settled);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Connecting to " + host + " timed out");
+                }
+                Object outcome = outcomes.poll(started < count ? Math.min(ATTEMPT_DELAY_MS, remaining) : remaining,
+                    TimeUnit.MILLISECONDS);
+                if (outcome instanceof Socket) {
+                    Socket socket = (Socket) outcome;
+                    synchronized (this) {
+                        winners.put(host, socket.getInetAddress());
+                    }
+                    return socket;
+                }
+                if (outcome instanceof IOException) {
+                    lastFailure = (IOException) outcome;
+                    if (++failed == count) {
+                        invalidate(host);
+                        throw lastFailure;
+                    }
+                }
+                // null: the attempt is slow, so the loop starts the next one alongside it
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketTimeoutException("Interrupted while connecting to " + host);
+        } finally {
+            synchronized (settled) {
+                settled[0] = true;
+            }
+        }
+    }
+
+    private static void startAttempt(final Network via, final InetSocketAddress address, final long deadline,
+                                     final LinkedBlockingQueue<Object> outcomes, final boolean[] settled) {
+        attempts.execute(new Runnable() {
+            @Override
+            public void run() {
+                Socket socket = null;
+                try {
+                    if (deadline <= System.currentTimeMillis()) {
+                        throw new SocketTimeoutException("Gave up on " + address + " before trying it");
+                    }
+                    socket = via != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                        ? via.getSocketFactory().createSocket() : new Socket();
+                    socket.connect(address, (int) Math.max(1, deadline - System.currentTimeMillis()));
+                    synchronized (settled) {
+                        if (!settled[0]) {
+                            settled[0] = true;
+                            outcomes.add(socket);
+                            return;
+                        }
+                    }
+                    socket.close();  // another address won
+                } catch (IOException e) {
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                            // Ignore
+                        }
+                    }
+                    outcomes.add(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Orders addresses for racing: the resolver's first family first, then
+     * alternating families, keeping the resolver's order within each.
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        }
+        List<InetAddress> order = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                order.add(first.get(i));
+            }
+            if (i < second.size()) {
+                order.add(second.get(i));
+            }
+        }
+        return order;
+    }
+
+    public synchronized String describe() {
+        return "network=" + network + " connected=" + isConnected() + " tracking=" + tracking
+            + " dns(hits=" + cacheHits.get() + " misses=" + cacheMisses.get() + " hosts=" + lookups.size() + ")"
+            + " changes=" + networkChanges.get();
+    }
+}
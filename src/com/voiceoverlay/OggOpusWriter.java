@@ -0,0 +1,181 @@
+package com.voiceoverlay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Wraps Opus packets in an Ogg stream (RFC 7845) as they arrive. Unlike an
+ * MP4, nothing is patched up afterwards, so the output can go straight onto
+ * a socket. Packets are gathered into pages of about a second each to keep
+ * the per-page header small next to speech-rate packets.
+ */
+public class OggOpusWriter {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    static final int DEFAULT_PRE_SKIP = 312;  // libopus lookahead at 48 kHz
+    private static final int MAX_SEGMENTS = 255;
+    private static final long PAGE_SAMPLES = 48000;  // flush about once a second
+    private static final int FLAG_FIRST = 0x02;
+    private static final int FLAG_LAST = 0x04;
+    private static final int[] CRC_TABLE = crcTable();
+
+    private final OutputStream out;
+    private final int serial;
+    private final int inputSampleRate;
+    private final int channels;
+    private int preSkip = DEFAULT_PRE_SKIP;
+    private int pageSequence = 0;
+    private boolean headersWritten = false;
+    private long granule;  // 48 kHz samples decoded through the last packet added, pre-skip included
+    private long pageStartGranule;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream lacing = new ByteArrayOutputStream();
+
+    public OggOpusWriter(OutputStream out, int inputSampleRate, int channels) {
+        this.out = out;
+        this.serial = (int) System.nanoTime();
+        this.inputSampleRate = inputSampleRate;
+        this.channels = channels;
+    }
+
+    /** Samples at 48 kHz the decoder drops from the start; only before the first packet. */
+    public void setPreSkip(int preSkip) {
+        this.preSkip = preSkip;
+    }
+
+    /** Appends one Opus packet, writing out a page when enough have gathered. */
+    public void writePacket(byte[] packet, int offset, int length) throws IOException {
+        writeHeaders();
+        int segments = length / 255 + 1;
+        if (lacing.size() + segments > MAX_SEGMENTS) {
+            flushPage(0, granule);
+        }
+        for (int i = 0; i < length / 255; i++) {
+            lacing.write(255);
+        }
+        lacing.write(length % 255);
+        body.write(packet, offset, length);
+        granule += packetSamples(packet, offset, length);
+        if (granule - pageStartGranule >= PAGE_SAMPLES) {
+            flushPage(0, granule);
+        }
+    }
+
+    /**
+     * Writes the last page. {@code inputFrames} is how much audio went into
+     * the encoder, so the stream ends there rather than at the end of the
+     * last padded packet.
+     */
+    public void finish(long inputFrames) throws IOException {
+        writeHeaders();
+        long end = Math.min(granule, preSkip + inputFrames * 48000 / inputSampleRate);
+        flushPage(FLAG_LAST, end);
+        out.flush();
+    }
+
+    private void writeHeaders() throws IOException {
+        if (headersWritten) {
+            return;
+        }
+        headersWritten = true;
+        byte[] head = new byte[19];
+        System.arraycopy("OpusHead".getBytes(US_ASCII), 0, head, 0, 8);
+        head[8] = 1;  // version
+        head[9] = (byte) channels;
+        putLe(head, 10, preSkip, 2);
+        putLe(head, 12, inputSampleRate, 4);
+        // output gain 0, channel mapping family 0
+        writePage(FLAG_FIRST, 0, head, new byte[] {19});
+
+        byte[] vendor = "VoiceOverlay".getBytes(US_ASCII);
+        byte[] tags = new byte[8 + 4 + vendor.length + 4];
+        System.arraycopy("OpusTags".getBytes(US_ASCII), 0, tags, 0, 8);
+        putLe(tags, 8, vendor.length, 4);
+        System.arraycopy(vendor, 0, tags, 12, vendor.length);
+        // no user comments
+        writePage(0, 0, tags, new byte[] {(byte) tags.length});
+    }
+
+    private void flushPage(int flags, long endGranule) throws IOException {
+        if (lacing.size() == 0 && flags == 0) {
+            return;
+        }
+        writePage(flags, endGranule, body.toByteArray(), lacing.toByteArray());
+        body.reset();
+        lacing.reset();
+        pageStartGranule = granule;
+    }
+
+    private void writePage(int flags, long granulePosition, byte[] data, byte[] segments) throws IOException {
+        byte[] page = new byte[27 + segments.length + data.length];
+        System.arraycopy("OggS".getBytes(US_ASCII), 0, page, 0, 4);
+        page[4] = 0;  // version
+        page[5] = (byte) flags;
+        putLe(page, 6, granulePosition, 8);
+        putLe(page, 14, serial, 4);
+        putLe(page, 18, pageSequence++, 4);
+        page[26] = (byte) segments.length;
+        System.arraycopy(segments, 0, page, 27, segments.length);
+        System.arraycopy(data, 0, page, 27 + segments.length, data.length);
+        putLe(page, 22, crc(page, 0, page.length), 4);  // computed with the field zeroed
+        out.write(page);
+    }
+
+    /** Duration of an Opus packet in 48 kHz samples, from its TOC byte (RFC 6716 3.1). */
+    static int packetSamples(byte[] packet, int offset, int length) {
+        if (length < 1) {
+            return 0;
+        }
+        int toc = packet[offset] & 0xFF;
+        int config = toc >> 3;
+        int frameSamples;
+        if (config < 12) {
+            frameSamples = new int[] {480, 960, 1920, 2880}[config & 3];  // SILK: 10, 20, 40, 60 ms
+        } else if (config < 16) {
+            frameSamples = (config & 1) == 0 ? 480 : 960;  // hybrid: 10, 20 ms
+        } else {
+            frameSamples = 120 << (config & 3);  // CELT: 2.5, 5, 10, 20 ms
+        }
+        int frames;
+        switch (toc & 3) {
+            case 0:
+                frames = 1;
+                break;
+            case 1:
+            case 2:
+                frames = 2;
+                break;
+            default:
+                frames = length > 1 ? packet[offset + 1] & 0x3F : 0;
+        }
+        return frames * frameSamples;
+    }
+
+    // Ogg's CRC-32: polynomial 0x04c11db7, not reflected, zero initial value and no final xor
+    static int crc(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int[] crcTable() {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int r = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                r = (r & 0x80000000) != 0 ? (r << 1) ^ 0x04c11db7 : r << 1;
+            }
+            table[i] = r;
+        }
+        return table;
+    }
+
+    private static void putLe(byte[] buffer, int offset, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            buffer[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+}
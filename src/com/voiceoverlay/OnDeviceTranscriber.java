@@ -0,0 +1,273 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transcribes with the platform speech recognizer, offline where the
+ * device has the language pack. The recording is decoded to 16 kHz mono
+ * PCM and fed to the recognizer as its audio source instead of the
+ * microphone, which needs Android 13; a segmented session keeps it going
+ * through pauses until the file ends.
+ *
+ * The extras are spelled out rather than taken from RecognizerIntent so
+ * the class builds against older SDKs.
+ */
+public class OnDeviceTranscriber {
+    private static final String TAG = "VoiceOverlay";
+    private static final int MIN_SDK = 33;  // Build.VERSION_CODES.TIRAMISU
+    private static final String EXTRA_AUDIO_SOURCE = "android.speech.extra.AUDIO_SOURCE";
+    private static final String EXTRA_AUDIO_SOURCE_CHANNEL_COUNT = "android.speech.extra.AUDIO_SOURCE_CHANNEL_COUNT";
+    private static final String EXTRA_AUDIO_SOURCE_ENCODING = "android.speech.extra.AUDIO_SOURCE_ENCODING";
+    private static final String EXTRA_AUDIO_SOURCE_SAMPLING_RATE = "android.speech.extra.AUDIO_SOURCE_SAMPLING_RATE";
+    private static final String EXTRA_SEGMENTED_SESSION = "android.speech.extra.SEGMENTED_SESSION";
+    private static final String EXTRA_PREFER_OFFLINE = "android.speech.extra.PREFER_OFFLINE";
+    private static final long MIN_TIMEOUT_MS = 30 * 1000;
+    private static final Object sessionLock = new Object();  // the recognizer runs one session at a time
+
+    public static final TranscriptionBackend BACKEND = new TranscriptionBackend() {
+        @Override
+        public String getName() {
+            return "on_device";
+        }
+
+        @Override
+        public boolean isAvailable(Context context) {
+            return Build.VERSION.SDK_INT >= MIN_SDK && SpeechRecognizer.isRecognitionAvailable(context);
+        }
+
+        @Override
+        public String getEndpoint(Context context) {
+            return null;
+        }
+
+        @Override
+        public AsyncResult<String> transcribe(final Context context, final File audioFile, int priority) {
+            return TaskExecutor.submit(priority, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return OnDeviceTranscriber.transcribe(context, audioFile);
+                }
+            });
+        }
+
+        @Override
+        public void prewarm(Context context) {
+            // Nothing to connect to
+        }
+    };
+
+    // Blocking; runs on a TaskExecutor worker
+    static String transcribe(Context context, File audioFile) throws Exception {
+        if (!BACKEND.isAvailable(context)) {
+            throw new ApiException("On-device transcription needs Android 13 and a speech recognizer");
+        }
+        File pcm = new File(context.getCacheDir(), "ondevice_" + System.nanoTime() + ".pcm");
+        try {
+            PcmFileWriter writer = new PcmFileWriter(pcm);
+            try {
+                AudioDecoder.decode(audioFile, UploadTranscoder.downsampleTo(writer));
+            } finally {
+                writer.onStop();
+            }
+            synchronized (sessionLock) {
+                return recognize(context.getApplicationContext(), pcm);
+            }
+        } finally {
+            pcm.delete();
+        }
+    }
+
+    private static String recognize(final Context context, File pcm) throws Exception {
+        final ParcelFileDescriptor source = ParcelFileDescriptor.open(pcm, ParcelFileDescriptor.MODE_READ_ONLY);
+        final Session session = new Session();
+        final SpeechRecognizer[] recognizer = new SpeechRecognizer[1];
+        final Handler main = new Handler(Looper.getMainLooper());
+        // Twice real time is far slower than any recognizer runs
+        long audioMs = pcm.length() * 1000 / (UploadTranscoder.TARGET_SAMPLE_RATE * 2);
+        long timeoutMs = Math.max(MIN_TIMEOUT_MS, audioMs * 2);
+        try {
+            main.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        recognizer[0] = SpeechRecognizer.createSpeechRecognizer(context);
+                        recognizer[0].setRecognitionListener(session);
+                        recognizer[0].startListening(recognizeIntent(source));
+                    } catch (RuntimeException e) {
+                        session.fail("Could not start the speech recognizer: " + e.getMessage());
+                    }
+                }
+            });
+            if (!session.done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new ApiException("On-device transcription timed out");
+            }
+        } finally {
+            main.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (recognizer[0] != null) {
+                        recognizer[0].destroy();
+                    }
+                }
+            });
+            source.close();
+        }
+        if (session.error != null) {
+            throw new ApiException(session.error);
+        }
+        String text = session.text.toString().trim();
+        if (text.isEmpty()) {
+            throw new ApiException("No transcription found");
+        }
+        return text;
+    }
+
+    private static Intent recognizeIntent(ParcelFileDescriptor source) {
+        Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+        intent.putExtra(EXTRA_PREFER_OFFLINE, true);
+        intent.putExtra(EXTRA_AUDIO_SOURCE, source);
+        intent.putExtra(EXTRA_AUDIO_SOURCE_CHANNEL_COUNT, 1);
+        intent.putExtra(EXTRA_AUDIO_SOURCE_ENCODING, AudioFormat.ENCODING_PCM_16BIT);
+        intent.putExtra(EXTRA_AUDIO_SOURCE_SAMPLING_RATE, UploadTranscoder.TARGET_SAMPLE_RATE);
+        intent.putExtra(EXTRA_SEGMENTED_SESSION, EXTRA_AUDIO_SOURCE);  // run until the audio runs out
+        return intent;
+    }
+
+    // Collects segment results on the main thread until the session ends
+    private static class Session implements RecognitionListener {
+        final CountDownLatch done = new CountDownLatch(1);
+        final StringBuilder text = new StringBuilder();
+        volatile String error;
+
+        void fail(String message) {
+            error = message;
+            done.countDown();
+        }
+
+        private void append(Bundle results) {
+            ArrayList<String> matches = results != null
+                ? results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION) : null;
+            if (matches != null && !matches.isEmpty() && !matches.get(0).trim().isEmpty()) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(matches.get(0).trim());
+            }
+        }
+
+        // Android 13 callbacks; not in older SDK stubs, so no @Override
+        public void onSegmentResults(Bundle segmentResults) {
+            append(segmentResults);
+        }
+
+        public void onEndOfSegmentedSession() {
+            done.countDown();
+        }
+
+        @Override
+        public void onResults(Bundle results) {
+            append(results);
+            done.countDown();
+        }
+
+        @Override
+        public void onError(int code) {
+            if (code == SpeechRecognizer.ERROR_NO_MATCH && text.length() > 0) {
+                done.countDown();  // trailing silence after real speech
+                return;
+            }
+            Log.w(TAG, "OnDeviceTranscriber: recognizer error " + code);
+            fail(code == SpeechRecognizer.ERROR_NO_MATCH ? "No speech recognized"
+                : "On-device recognizer failed (error " + code + ")");
+        }
+
+        @Override
+        public void onReadyForSpeech(Bundle params) {
+        }
+
+        @Override
+        public void onBeginningOfSpeech() {
+        }
+
+        @Override
+        public void onRmsChanged(float rmsdB) {
+        }
+
+        @Override
+        public void onBufferReceived(byte[] buffer) {
+        }
+
+        @Override
+        public void onEndOfSpeech() {
+        }
+
+        @Override
+        public void onPartialResults(Bundle partialResults) {
+        }
+
+        @Override
+        public void onEvent(int eventType, Bundle params) {
+        }
+    }
+
+    // Writes 16-bit little-endian PCM, the raw format the recognizer reads
+    private static class PcmFileWriter implements PcmConsumer {
+        private final File file;
+        private FileOutputStream out;
+        private FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+
+        PcmFileWriter(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void onStart(int sampleRate, int channels) throws IOException {
+            out = new FileOutputStream(file);
+            channel = out.getChannel();
+        }
+
+        @Override
+        public void onPcm(short[] pcm, int offset, int length) throws IOException {
+            if (buffer.capacity() < length * 2) {
+                buffer = ByteBuffer.allocate(length * 2).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            buffer.clear();
+            buffer.asShortBuffer().put(pcm, offset, length);
+            buffer.limit(length * 2);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        // Also called after a failed decode; closing twice is harmless
+        @Override
+        public void onStop() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+}
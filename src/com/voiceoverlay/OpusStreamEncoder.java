@@ -0,0 +1,159 @@
+package com.voiceoverlay;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes PCM to speech-rate Opus and writes it as an Ogg stream to any
+ * {@link OutputStream}, a page at a time, so an upload can go out while the
+ * recording is still being decoded. Needs API 29, the first with a platform
+ * Opus encoder.
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+public class OpusStreamEncoder implements PcmConsumer {
+    private static final long TIMEOUT_US = 10000;
+
+    private final OutputStream out;
+    private final int bitRate;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private MediaCodec codec;
+    private OggOpusWriter ogg;
+    private byte[] packet = new byte[0];
+    private int sampleRate;
+    private int channels;
+    private long framesQueued = 0;
+
+    public OpusStreamEncoder(OutputStream out, int bitRate) {
+        this.out = out;
+        this.bitRate = bitRate;
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        framesQueued = 0;
+        ogg = new OggOpusWriter(out, sampleRate, channels);
+
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16 * 1024);
+
+        codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS);
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+        } catch (RuntimeException e) {
+            codec.release();
+            codec = null;
+            throw new IOException("Could not start Opus encoder", e);
+        }
+    }
+
+    @Override
+    public void onPcm(short[] pcm, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {
+                drain(false);
+                continue;
+            }
+            ByteBuffer in = codec.getInputBuffer(index);
+            in.clear();
+            in.order(ByteOrder.nativeOrder());
+            int count = Math.min(end - offset, in.remaining() / 2);
+            count -= count % channels;
+            for (int i = 0; i < count; i++) {
+                in.putShort(pcm[offset + i]);
+            }
+            codec.queueInputBuffer(index, 0, count * 2, framesQueued * 1000000L / sampleRate, 0);
+            framesQueued += count / channels;
+            offset += count;
+            drain(false);
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        if (codec == null) {
+            return;
+        }
+        try {
+            int index;
+            while ((index = codec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                drain(false);
+            }
+            codec.queueInputBuffer(index, 0, 0, framesQueued * 1000000L / sampleRate, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+            ogg.finish(framesQueued);
+        } finally {
+            release();
+        }
+    }
+
+    private void drain(boolean endOfStream) throws IOException {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, endOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (index >= 0) {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    int preSkip = preSkipOf(buffer);
+                    if (preSkip >= 0) {
+                        ogg.setPreSkip(preSkip);
+                    }
+                } else if (info.size > 0) {
+                    if (packet.length < info.size) {
+                        packet = new byte[info.size];
+                    }
+                    buffer.get(packet, 0, info.size);
+                    ogg.writePacket(packet, 0, info.size);
+                }
+                codec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // The encoder's config buffer embeds an OpusHead, possibly behind framework markers
+    static int preSkipOf(ByteBuffer config) {
+        byte[] magic = {'O', 'p', 'u', 's', 'H', 'e', 'a', 'd'};
+        for (int i = config.position(); i + 12 <= config.limit(); i++) {
+            boolean match = true;
+            for (int j = 0; j < magic.length && match; j++) {
+                match = config.get(i + j) == magic[j];
+            }
+            if (match) {
+                return (config.get(i + 10) & 0xFF) | (config.get(i + 11) & 0xFF) << 8;
+            }
+        }
+        return -1;
+    }
+
+    /** Frees the codec; safe to call more than once. Does not close the stream. */
+    public void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                // Ignore
+            }
+            codec.release();
+            codec = null;
+        }
+    }
+}
@@ -12,6 +12,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.graphics.PixelFormat;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.GradientDrawable;
 import android.os.Build;
 import android.os.Handler;
@@ -26,27 +27,36 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.ProgressBar;
-import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 public class OverlayService extends Service {
     private static final String CHANNEL_ID = "VoiceOverlayChannel";
     private static final int NOTIFICATION_ID = 1;
     private static final String PREFS_NAME = "VoiceOverlayPrefs";
-    private static final String KEY_HISTORY = "transcription_history";
     private static final String KEY_BUTTON_X = "button_position_x";
     private static final String KEY_BUTTON_Y = "button_position_y";
     private static final String KEY_AUDIO_QUALITY = "audio_quality";
-    private static final String KEY_TRANSCRIPTION_MODE = "transcription_mode";
+    private static final String KEY_SEGMENTED_RECORDING = "segmented_recording";
+    private static final String KEY_SEGMENT_SECONDS = "segment_seconds";
+    private static final String KEY_TRIM_SILENCE = "trim_silence";
+    private static final String KEY_PCM_CAPTURE = "pcm_capture";
+    private static final String KEY_PRE_ROLL = "pre_roll";
+    private static final String KEY_CHUNKED_TRANSCRIPTION = "chunked_transcription";
+    // Covers the 500 ms long-press delay with room to spare; 32 KB at 16 kHz mono
+    private static final int PRE_ROLL_SECONDS = 1;
+    private static final long ARM_DELAY_MS = 150;  // longer than a tap, well before the 500 ms long press
 
     private File currentAudioFile = null;
-    private File historyFolder = null;
 
     private WindowManager windowManager;
     private ImageView mainButton;
@@ -67,6 +77,8 @@ public class OverlayService extends Service {
     private WindowManager.LayoutParams mainButtonParams;
     private long recordingStartTime = 0;
     private Runnable timerRunnable;
+    private SegmentedTranscription segmentedTranscription;
+    private Runnable[] segmentedCompletion;
 
     @Override
     public void onCreate() {
@@ -81,18 +93,36 @@ public class OverlayService extends Service {
             startForeground(NOTIFICATION_ID, createNotification("Voice overlay is active"));
         }
 
-        audioRecorder = new AudioRecorder();
-
         // Load and apply audio quality settings
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String audioQuality = prefs.getString(KEY_AUDIO_QUALITY, "Low");
-        audioRecorder.setQuality(audioQuality);
+        audioRecorder = newAudioRecorder();
 
-        // Create history folder
-        historyFolder = new File(getFilesDir(), "recording_history");
-        if (!historyFolder.exists()) {
-            historyFolder.mkdirs();
-        }
+        // Reclaim space left by deletions in earlier sessions, and apply a lowered audio budget
+        final Context appContext = getApplicationContext();
+        TaskExecutor.submit(TaskExecutor.PRIORITY_LOW, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                HistoryStore store = HistoryStore.get(appContext);
+                if (store.getDeletedCount() > 0) {
+                    store.compact();
+                }
+                AudioArchive.get(appContext).enforceBudget();
+                return null;
+            }
+        });
+        ArchiveTranscodeJob.schedule(this);
+
+        // Recordings kept while offline are transcribed once a network is back
+        TranscriptionQueue.get(this).start(new TranscriptionQueue.Listener() {
+            @Override
+            public void onTranscribed(String text) {
+                showToast("✓ Offline recording transcribed, saved to history");
+            }
+
+            @Override
+            public void onFailed(String error) {
+                showToast("Offline recording could not be transcribed: " + error);
+            }
+        });
 
         mainHandler = new Handler(Looper.getMainLooper());
         windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
@@ -103,7 +133,7 @@ public class OverlayService extends Service {
             public void run() {
                 if (isRecording && !isPaused) {
                     long elapsedSeconds = (System.currentTimeMillis() - recordingStartTime) / 1000;
-                    statusText.setText("🔴 Recording... " + formatTime(elapsedSeconds));
+                    statusText.setText("🔴 Recording... " + formatTime(elapsedSeconds) + inputLevel());
                     mainHandler.postDelayed(this, 1000);
                 }
             }
@@ -113,6 +143,19 @@ public class OverlayService extends Service {
         createEditorPanel();
     }
 
+    // Level bar and speech hint; MediaRecorder does not expose its samples
+    private String inputLevel() {
+        if (!audioRecorder.usesPcmEngine()) {
+            return "";
+        }
+        float peak = audioRecorder.getLevelMeter().getPeak();
+        // -40 dBFS and below is empty, full scale is five bars
+        double db = peak > 0 ? 20 * Math.log10(peak) : -40;
+        int bars = (int) Math.round(5 * Math.max(0, Math.min(1, 1 + db / 40)));
+        return "  " + "▮▮▮▮▮".substring(0, bars) + "▯▯▯▯▯".substring(bars)
+            + (audioRecorder.getSpeechMonitor().isSpeech() ? " 🗣" : "");
+    }
+
     private String formatTime(long seconds) {
         long mins = seconds / 60;
         long secs = seconds % 60;
@@ -165,6 +208,17 @@ public class OverlayService extends Service {
                     }
                 }
             };
+            // Listen once the press is held still, so the long-press delay does not clip
+            // speech but taps and drags never turn the microphone on
+            private Runnable armRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    if (!moved && !isRecording && !isEditorOpen
+                        && getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(KEY_PRE_ROLL, false)) {
+                        audioRecorder.arm(PRE_ROLL_SECONDS);
+                    }
+                }
+            };
 
             @Override
             public boolean onTouch(View v, MotionEvent event) {
@@ -178,6 +232,7 @@ public class OverlayService extends Service {
                         pressStartTime = System.currentTimeMillis();
                         isLongPressRecording = false;
 
+                        longPressHandler.postDelayed(armRunnable, ARM_DELAY_MS);
                         // Start long press detection (500ms)
                         longPressHandler.postDelayed(longPressRunnable, 500);
                         return true;
@@ -193,6 +248,8 @@ public class OverlayService extends Service {
                             moved = true;
                             // Cancel long press if moved
                             longPressHandler.removeCallbacks(longPressRunnable);
+                            longPressHandler.removeCallbacks(armRunnable);
+                            audioRecorder.disarm();
                         }
                         return true;
 
@@ -208,6 +265,8 @@ public class OverlayService extends Service {
 
                         // Cancel long press detection
                         longPressHandler.removeCallbacks(longPressRunnable);
+                        longPressHandler.removeCallbacks(armRunnable);
+                        audioRecorder.disarm();
 
                         if (isLongPressRecording) {
                             // Stop quick recording and transcribe
@@ -221,6 +280,8 @@ public class OverlayService extends Service {
 
                     case MotionEvent.ACTION_CANCEL:
                         longPressHandler.removeCallbacks(longPressRunnable);
+                        longPressHandler.removeCallbacks(armRunnable);
+                        audioRecorder.disarm();
                         if (isLongPressRecording) {
                             cancelQuickRecording();
                             isLongPressRecording = false;
@@ -448,7 +509,11 @@ public class OverlayService extends Service {
     }
 
     private Button createButton(String text, String color) {
-        Button button = new Button(this);
+        return createButton(this, text, color);
+    }
+
+    static Button createButton(Context context, String text, String color) {
+        Button button = new Button(context);
         button.setText(text);
         button.setTextColor(Color.WHITE);
         button.setTextSize(14);
@@ -484,11 +549,25 @@ public class OverlayService extends Service {
         transcriptionText.requestFocus();
 
         // Auto-start recording when editor opens
+        prewarmConnections(true);
         if (!isRecording) {
             startRecording();
         }
     }
 
+    // Connects to the hosts the recording will be sent to while the user is still talking
+    private void prewarmConnections(boolean editor) {
+        if (!editor) {
+            WhisperAPI.prewarm(this);  // quick recordings always use the direct API
+            return;
+        }
+        TranscriptionRouter.get(this).prewarm();
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        if (!prefs.getString("whisper_api_key", "").isEmpty()) {
+            ChatGPTAPI.prewarm(this);  // for Improve and voice edits
+        }
+    }
+
     private void closeEditor() {
         // Save current text to history if not empty
         String currentText = transcriptionText.getText().toString().trim();
@@ -501,8 +580,9 @@ public class OverlayService extends Service {
         if (isRecording) {
             // Stop timer
             mainHandler.removeCallbacks(timerRunnable);
+            discardSegmentedTranscription();
             audioRecorder.release();
-            audioRecorder = new AudioRecorder();
+            audioRecorder = newAudioRecorder();
             isRecording = false;
             isPaused = false;
         }
@@ -624,7 +704,7 @@ public class OverlayService extends Service {
     }
 
     private void performImprovement() {
-        String currentText = transcriptionText.getText().toString().trim();
+        final String currentText = transcriptionText.getText().toString().trim();
 
         if (currentText.isEmpty()) {
             showToast("No text to improve");
@@ -644,7 +724,23 @@ public class OverlayService extends Service {
         statusText.setText("✨ Improving text...");
         processingIndicator.setVisibility(View.VISIBLE);
 
-        ChatGPTAPI.improveText(this, apiKey, currentText, new ChatGPTAPI.ChatGPTCallback() {
+        // Improved text replaces the original chunk by chunk as it streams in
+        final boolean[] streaming = {false};
+        ChatGPTAPI.improveTextStreaming(this, apiKey, currentText, new ChatGPTAPI.ChatGPTStreamCallback() {
+            @Override
+            public void onDelta(final String delta) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!streaming[0]) {
+                            streaming[0] = true;
+                            transcriptionText.setText("");
+                        }
+                        transcriptionText.append(delta);
+                    }
+                });
+            }
+
             @Override
             public void onSuccess(final String improvedText) {
                 mainHandler.post(new Runnable() {
@@ -665,6 +761,10 @@ public class OverlayService extends Service {
                     public void run() {
                         processingIndicator.setVisibility(View.GONE);
                         statusText.setText("❌ Improvement failed");
+                        if (streaming[0]) {
+                            // Don't leave a half-improved text behind
+                            transcriptionText.setText(currentText);
+                        }
                         showToast("Error: " + error);
                     }
                 });
@@ -779,11 +879,8 @@ public class OverlayService extends Service {
         final Button recordEditBtn = createButton("🔴 Record", "#f44336");
         final Button cancelEditBtn = createButton("Cancel", "#607D8B");
 
-        final AudioRecorder editRecorder = new AudioRecorder();
-
-        // Apply audio quality
-        String audioQuality = prefs.getString(KEY_AUDIO_QUALITY, "Low");
-        editRecorder.setQuality(audioQuality);
+        // Apply audio quality and capture engine
+        final AudioRecorder editRecorder = newAudioRecorder();
 
         final boolean[] isEditRecording = {false};
 
@@ -833,59 +930,72 @@ public class OverlayService extends Service {
                                     isEditRecording[0] = false;
                                     editStatus.setText("⏳ Transcribing edit instructions...");
 
-                                    // Transcribe the edit instructions
-                                    WhisperAPI.transcribeAudio(OverlayService.this, audioFile, new WhisperAPI.TranscriptionCallback() {
+                                    // Transcribe the edit instructions, then apply them with ChatGPT,
+                                    // streaming the edited text straight into the editor
+                                    final boolean[] transcribed = {false};
+                                    final boolean[] streaming = {false};
+                                    final ChatGPTAPI.DeltaListener deltas = new ChatGPTAPI.DeltaListener() {
                                         @Override
-                                        public void onSuccess(final String editInstructions) {
+                                        public void onDelta(final String delta) {
                                             mainHandler.post(new Runnable() {
                                                 @Override
                                                 public void run() {
-                                                    editStatus.setText("✨ Applying edits...");
-
-                                                    // Apply voice edit using ChatGPT
-                                                    ChatGPTAPI.applyVoiceEdit(OverlayService.this, apiKey, originalText, editInstructions, new ChatGPTAPI.ChatGPTCallback() {
-                                                        @Override
-                                                        public void onSuccess(final String editedText) {
-                                                            mainHandler.post(new Runnable() {
-                                                                @Override
-                                                                public void run() {
-                                                                    // Close voice edit dialog
-                                                                    windowManager.removeView(voiceEditView);
-
-                                                                    // Update main text
-                                                                    transcriptionText.setText(editedText);
-                                                                    statusText.setText("✅ Voice edit applied!");
-                                                                    showToast("Edits applied successfully!");
-                                                                }
-                                                            });
-                                                        }
-
-                                                        @Override
-                                                        public void onError(final String error) {
-                                                            mainHandler.post(new Runnable() {
-                                                                @Override
-                                                                public void run() {
-                                                                    editStatus.setText("❌ Edit failed");
-                                                                    showToast("Error: " + error);
-                                                                }
-                                                            });
-                                                        }
-                                                    });
+                                                    if (!streaming[0]) {
+                                                        streaming[0] = true;
+                                                        // Close voice edit dialog
+                                                        windowManager.removeView(voiceEditView);
+                                                        transcriptionText.setText("");
+                                                        statusText.setText("✨ Applying edits...");
+                                                    }
+                                                    transcriptionText.append(delta);
                                                 }
                                             });
                                         }
+                                    };
+                                    WhisperAPI.transcribeAudioAsync(OverlayService.this, audioFile)
+                                        .thenAsync(new AsyncResult.AsyncTransform<String, String>() {
+                                            @Override
+                                            public AsyncResult<String> apply(String editInstructions) {
+                                                transcribed[0] = true;
+                                                mainHandler.post(new Runnable() {
+                                                    @Override
+                                                    public void run() {
+                                                        editStatus.setText("✨ Applying edits...");
+                                                    }
+                                                });
+                                                return ChatGPTAPI.applyVoiceEditAsync(OverlayService.this, apiKey, originalText, editInstructions, deltas);
+                                            }
+                                        })
+                                        .deliver(mainHandler, new AsyncResult.Callback<String>() {
+                                            @Override
+                                            public void onSuccess(String editedText) {
+                                                // Close voice edit dialog
+                                                if (!streaming[0]) {
+                                                    windowManager.removeView(voiceEditView);
+                                                }
 
-                                        @Override
-                                        public void onError(final String error) {
-                                            mainHandler.post(new Runnable() {
-                                                @Override
-                                                public void run() {
+                                                // Update main text
+                                                transcriptionText.setText(editedText);
+                                                statusText.setText("✅ Voice edit applied!");
+                                                showToast("Edits applied successfully!");
+                                            }
+
+                                            @Override
+                                            public void onError(String error) {
+                                                if (streaming[0]) {
+                                                    // Dialog is already gone; restore the text it was editing
+                                                    transcriptionText.setText(originalText);
+                                                    statusText.setText("❌ Edit failed");
+                                                    showToast("Error: " + error);
+                                                } else if (transcribed[0]) {
+                                                    editStatus.setText("❌ Edit failed");
+                                                    showToast("Error: " + error);
+                                                } else {
                                                     editStatus.setText("❌ Transcription failed");
                                                     showToast("Transcription error: " + error);
                                                 }
-                                            });
-                                        }
-                                    });
+                                            }
+                                        });
                                 }
                             });
                         }
@@ -931,58 +1041,79 @@ public class OverlayService extends Service {
         windowManager.addView(voiceEditView, params);
     }
 
-    private void saveToHistory(String text) {
+    private void saveToHistory(final String text) {
         if (text.isEmpty()) return;
 
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String history = prefs.getString(KEY_HISTORY, "");
-
-        String timestamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.getDefault()).format(new Date());
-        String displayTimestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new Date());
-
-        // Save audio file to history if available
-        String audioFilePath = "";
-        if (currentAudioFile != null && currentAudioFile.exists()) {
-            try {
-                File historyAudioFile = new File(historyFolder, "recording_" + timestamp + ".m4a");
-                java.nio.file.Files.copy(currentAudioFile.toPath(), historyAudioFile.toPath(),
-                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-                audioFilePath = historyAudioFile.getAbsolutePath();
-            } catch (Exception e) {
-                android.util.Log.e("VoiceOverlay", "Failed to save audio file to history", e);
-            }
-        }
+        final String timestamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.getDefault()).format(new Date());
+        final String displayTimestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new Date());
+        final File audioFile = currentAudioFile;
+        final boolean stillWriting = isRecording;
 
-        String entry = displayTimestamp + "|||" + text + "|||" + audioFilePath + "\n###ENTRY###\n";
+        // Archiving and the store's first open (which may migrate the legacy
+        // history) are file I/O, so neither runs on the main thread
+        TaskExecutor.runAdmitted(TaskExecutor.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                // Save audio file to history if available
+                String audioFilePath = "";
+                if (audioFile != null && audioFile.exists()) {
+                    try {
+                        String name = audioFile.getName();
+                        String extension = name.lastIndexOf('.') >= 0 ? name.substring(name.lastIndexOf('.')) : ".m4a";
+                        // Linked rather than copied, unless the recorder is still writing it
+                        File historyAudioFile = AudioArchive.get(OverlayService.this).archive(audioFile,
+                            "recording_" + timestamp + extension, stillWriting);
+                        TranscriptionCache.get(OverlayService.this).recordCopy(audioFile, historyAudioFile);
+                        audioFilePath = historyAudioFile.getAbsolutePath();
+                        if (!stillWriting) {
+                            audioFile.delete();  // the archive holds it now
+                        }
+                    } catch (Exception e) {
+                        android.util.Log.e("VoiceOverlay", "Failed to save audio file to history", e);
+                    }
+                }
 
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString(KEY_HISTORY, entry + history);
-        editor.apply();
+                try {
+                    HistoryStore.get(OverlayService.this).append(displayTimestamp, text, audioFilePath);
+                } catch (Exception e) {
+                    android.util.Log.e("VoiceOverlay", "Failed to save history entry", e);
+                }
+            }
+        });
     }
 
     private void showHistory() {
-        final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        String history = prefs.getString(KEY_HISTORY, "");
+        HistoryAdapter.loadFirstPage(this).deliver(mainHandler, new AsyncResult.Callback<List<HistoryStore.Entry>>() {
+            @Override
+            public void onSuccess(List<HistoryStore.Entry> firstPage) {
+                if (firstPage.isEmpty()) {
+                    showToast("No history available");
+                } else {
+                    showHistoryWindow(firstPage);
+                }
+            }
 
-        if (history.isEmpty()) {
-            showToast("No history available");
-            return;
-        }
+            @Override
+            public void onError(String error) {
+                android.util.Log.e("VoiceOverlay", "Failed to read history: " + error);
+                showToast("Could not read history");
+            }
+        });
+    }
 
-        // Parse history entries
-        final String[] entries = history.split("\n###ENTRY###\n");
+    private void showHistoryWindow(List<HistoryStore.Entry> firstPage) {
+        final HistoryStore store = HistoryStore.get(this);
 
         // Create history dialog
-        final ScrollView historyView = new ScrollView(this);
-        final LinearLayout historyContainer = new LinearLayout(this);
-        historyContainer.setOrientation(LinearLayout.VERTICAL);
-        historyContainer.setPadding(25, 25, 25, 25);
+        final LinearLayout historyView = new LinearLayout(this);
+        historyView.setOrientation(LinearLayout.VERTICAL);
+        historyView.setPadding(25, 25, 25, 25);
 
         GradientDrawable bg = new GradientDrawable();
         bg.setCornerRadius(24);
         bg.setColor(Color.parseColor("#1c1c1e"));
-        historyContainer.setBackground(bg);
-        historyContainer.setElevation(16);
+        historyView.setBackground(bg);
+        historyView.setElevation(16);
 
         // Title
         TextView historyTitle = new TextView(this);
@@ -991,7 +1122,7 @@ public class OverlayService extends Service {
         historyTitle.setTextSize(20);
         historyTitle.setGravity(Gravity.CENTER);
         historyTitle.setPadding(0, 0, 0, 15);
-        historyContainer.addView(historyTitle);
+        historyView.addView(historyTitle);
 
         // Top buttons row: Clear All and Close
         LinearLayout historyTopRow = new LinearLayout(this);
@@ -1009,11 +1140,24 @@ public class OverlayService extends Service {
             @Override
             public void onClick(View v) {
                 // Clear all history
-                SharedPreferences.Editor editor = prefs.edit();
-                editor.putString(KEY_HISTORY, "");
-                editor.apply();
+                TaskExecutor.submit(TaskExecutor.PRIORITY_NORMAL, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        store.clear();
+                        return null;
+                    }
+                }).deliver(mainHandler, new AsyncResult.Callback<Void>() {
+                    @Override
+                    public void onSuccess(Void ignored) {
+                        showToast("All history cleared");
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        android.util.Log.e("VoiceOverlay", "Failed to clear history: " + error);
+                    }
+                });
                 windowManager.removeView(historyView);
-                showToast("All history cleared");
             }
         });
         historyTopRow.addView(clearAllBtn);
@@ -1027,7 +1171,7 @@ public class OverlayService extends Service {
         });
         historyTopRow.addView(closeHistoryBtn);
 
-        historyContainer.addView(historyTopRow);
+        historyView.addView(historyTopRow);
 
         // Search box
         final EditText searchBox = new EditText(this);
@@ -1050,107 +1194,79 @@ public class OverlayService extends Service {
         );
         searchParams.setMargins(0, 0, 0, 15);
         searchBox.setLayoutParams(searchParams);
-        historyContainer.addView(searchBox);
-
-        // Container for filtered entries
-        final LinearLayout entriesContainer = new LinearLayout(this);
-        entriesContainer.setOrientation(LinearLayout.VERTICAL);
-        historyContainer.addView(entriesContainer);
-
-        // Create a card for each entry
-        for (int i = 0; i < entries.length; i++) {
-            final String entry = entries[i].trim();
-            if (entry.isEmpty()) continue;
-
-            String[] parts = entry.split("\\|\\|\\|", 3);
-            if (parts.length < 2) continue;
-
-            final String timestamp = parts[0];
-            final String text = parts[1];
-            final String audioPath = parts.length > 2 ? parts[2] : "";
-            final int index = i;
-
-            // Entry container
-            LinearLayout entryCard = new LinearLayout(this);
-            entryCard.setOrientation(LinearLayout.VERTICAL);
-            entryCard.setPadding(18, 18, 18, 18);
-            entryCard.setElevation(4);
-
-            GradientDrawable cardBg = new GradientDrawable();
-            cardBg.setCornerRadius(16);
-            cardBg.setColor(Color.parseColor("#2c2c2e"));
-            cardBg.setStroke(1, Color.parseColor("#38383a"));
-            entryCard.setBackground(cardBg);
-
-            LinearLayout.LayoutParams cardParams = new LinearLayout.LayoutParams(
-                LinearLayout.LayoutParams.MATCH_PARENT,
-                LinearLayout.LayoutParams.WRAP_CONTENT
-            );
-            cardParams.setMargins(0, 0, 0, 12);
-            entryCard.setLayoutParams(cardParams);
-
-            // Timestamp
-            TextView timestampView = new TextView(this);
-            timestampView.setText("🕒 " + timestamp);
-            timestampView.setTextColor(Color.parseColor("#999999"));
-            timestampView.setTextSize(12);
-            timestampView.setPadding(0, 0, 0, 10);
-            entryCard.addView(timestampView);
-
-            // Text content
-            TextView textView = new TextView(this);
-            textView.setText(text);
-            textView.setTextColor(Color.parseColor("#e0e0e0"));
-            textView.setTextSize(14);
-            textView.setPadding(0, 0, 0, 15);
-            entryCard.addView(textView);
-
-            // Buttons row
-            LinearLayout buttonRow = new LinearLayout(this);
-            buttonRow.setOrientation(LinearLayout.HORIZONTAL);
-            buttonRow.setGravity(Gravity.CENTER);
-
-            Button copyEntryBtn = createButton("📋 Copy", "#2196F3");
-            copyEntryBtn.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    copyToClipboard(text);
-                    showToast("Copied to clipboard");
+        historyView.addView(searchBox);
+
+        // Entries: only the visible cards exist, pages are read in the background
+        final HistoryAdapter[] adapter = new HistoryAdapter[1];
+        adapter[0] = new HistoryAdapter(this, firstPage, mainHandler, new HistoryAdapter.Listener() {
+            @Override
+            public void onCopy(HistoryStore.Entry entry) {
+                copyToClipboard(entry.text);
+                showToast("Copied to clipboard");
+            }
+
+            @Override
+            public void onRetranscribe(HistoryStore.Entry entry) {
+                File audioFile = new File(entry.audioPath);
+                if (!audioFile.exists()) {
+                    showToast("Recording no longer available");
+                    return;
                 }
-            });
-            buttonRow.addView(copyEntryBtn);
+                // With unchanged settings the transcription cache answers without an upload
+                showToast("⏳ Transcribing again...");
+                TranscriptionRouter.get(OverlayService.this).transcribeAsync(audioFile)
+                    .deliver(mainHandler, new AsyncResult.Callback<String>() {
+                        @Override
+                        public void onSuccess(String text) {
+                            copyToClipboard(text);
+                            showToast("Transcribed again and copied");
+                        }
 
-            Button deleteEntryBtn = createButton("🗑 Delete", "#f44336");
-            deleteEntryBtn.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    // Delete this entry and audio file
-                    String currentHistory = prefs.getString(KEY_HISTORY, "");
-                    String entryToRemove = timestamp + "|||" + text + "|||" + audioPath + "\n###ENTRY###\n";
-                    String newHistory = currentHistory.replace(entryToRemove, "");
-
-                    // Delete audio file if exists
-                    if (!audioPath.isEmpty()) {
-                        File audioFile = new File(audioPath);
-                        if (audioFile.exists()) {
-                            audioFile.delete();
+                        @Override
+                        public void onError(String error) {
+                            showToast("Error: " + error);
                         }
-                    }
+                    });
+            }
 
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putString(KEY_HISTORY, newHistory);
-                    editor.apply();
+            @Override
+            public void onDelete(final HistoryStore.Entry entry) {
+                // Delete this entry and audio file
+                TaskExecutor.submit(TaskExecutor.PRIORITY_HIGH, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        HistoryStore.Entry removed = store.remove(entry.id);
 
-                    // Refresh history view
-                    windowManager.removeView(historyView);
-                    showHistory();
-                }
-            });
-            buttonRow.addView(deleteEntryBtn);
+                        // Delete audio file if exists
+                        if (removed != null && !removed.audioPath.isEmpty()) {
+                            File audioFile = new File(removed.audioPath);
+                            if (audioFile.exists()) {
+                                audioFile.delete();
+                            }
+                        }
+                        return null;
+                    }
+                }).deliver(mainHandler, new AsyncResult.Callback<Void>() {
+                    @Override
+                    public void onSuccess(Void ignored) {
+                        adapter[0].removeRow(entry.id);
+                    }
 
-            entryCard.addView(buttonRow);
-            entriesContainer.addView(entryCard);
-        }
+                    @Override
+                    public void onError(String error) {
+                        android.util.Log.e("VoiceOverlay", "Failed to delete history entry: " + error);
+                        showToast("Could not delete entry");
+                    }
+                });
+            }
+        });
+
+        ListView entriesList = new ListView(this);
+        entriesList.setDivider(new ColorDrawable(Color.TRANSPARENT));
+        entriesList.setDividerHeight(12);
+        entriesList.setAdapter(adapter[0]);
+        historyView.addView(entriesList, new LinearLayout.LayoutParams(
+            LinearLayout.LayoutParams.MATCH_PARENT, 0, 1f));
 
         // Add search functionality
         searchBox.addTextChangedListener(new android.text.TextWatcher() {
@@ -1159,38 +1275,13 @@ public class OverlayService extends Service {
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
-                String query = s.toString().toLowerCase().trim();
-
-                // Filter entries
-                for (int i = 0; i < entriesContainer.getChildCount(); i++) {
-                    View child = entriesContainer.getChildAt(i);
-                    if (child instanceof LinearLayout) {
-                        LinearLayout card = (LinearLayout) child;
-                        // Get the text view (it's the second child after timestamp)
-                        if (card.getChildCount() > 1) {
-                            View textViewChild = card.getChildAt(1);
-                            if (textViewChild instanceof TextView) {
-                                TextView textView = (TextView) textViewChild;
-                                String cardText = textView.getText().toString().toLowerCase();
-
-                                // Show/hide based on search
-                                if (query.isEmpty() || cardText.contains(query)) {
-                                    card.setVisibility(View.VISIBLE);
-                                } else {
-                                    card.setVisibility(View.GONE);
-                                }
-                            }
-                        }
-                    }
-                }
+                adapter[0].setQuery(s.toString());
             }
 
             @Override
             public void afterTextChanged(android.text.Editable s) {}
         });
 
-        historyView.addView(historyContainer);
-
         WindowManager.LayoutParams historyParams = new WindowManager.LayoutParams(
             1000,
             1500,
@@ -1203,8 +1294,18 @@ public class OverlayService extends Service {
         windowManager.addView(historyView, historyParams);
     }
 
+    private AudioRecorder newAudioRecorder() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        AudioRecorder recorder = new AudioRecorder();
+        recorder.setQuality(prefs.getString(KEY_AUDIO_QUALITY, "Low"));
+        recorder.setPcmCapture(prefs.getBoolean(KEY_PCM_CAPTURE, false));
+        return recorder;
+    }
+
     private void startRecording() {
         File cacheDir = getCacheDir();
+        configureSegmentation();
+        prewarmConnections(true);
         audioRecorder.startRecording(cacheDir, new AudioRecorder.RecordingCallback() {
             @Override
             public void onRecordingStarted() {
@@ -1225,8 +1326,24 @@ public class OverlayService extends Service {
                 });
             }
 
+            // Only when capture could not continue into the next segment
             @Override
-            public void onRecordingStopped(File audioFile) {}
+            public void onRecordingStopped(final File audioFile) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showToast("Recording stopped: could not start the next segment");
+                        mainHandler.removeCallbacks(timerRunnable);
+                        isRecording = false;
+                        isPaused = false;
+                        updateMainButton();
+                        updateButtonVisibility();
+                        statusText.setText("⏳ Transcribing...");
+                        processingIndicator.setVisibility(View.VISIBLE);
+                        finishRecordingThen(audioFile, null);
+                    }
+                });
+            }
 
             @Override
             public void onError(String error) {
@@ -1289,7 +1406,7 @@ public class OverlayService extends Service {
                         updateButtonVisibility();
                         statusText.setText("⏳ Transcribing...");
                         processingIndicator.setVisibility(View.VISIBLE);
-                        transcribeAudio(audioFile);
+                        finishRecordingThen(audioFile, null);
                     }
                 });
             }
@@ -1325,7 +1442,7 @@ public class OverlayService extends Service {
                         updateButtonVisibility();
                         statusText.setText("⏳ Transcribing...");
                         processingIndicator.setVisibility(View.VISIBLE);
-                        transcribeAudioThen(audioFile, onComplete);
+                        finishRecordingThen(audioFile, onComplete);
                     }
                 });
             }
@@ -1346,8 +1463,9 @@ public class OverlayService extends Service {
     private void cancelRecording() {
         // Stop timer
         mainHandler.removeCallbacks(timerRunnable);
+        discardSegmentedTranscription();
         audioRecorder.release();
-        audioRecorder = new AudioRecorder();
+        audioRecorder = newAudioRecorder();
         isRecording = false;
         isPaused = false;
         mainHandler.post(new Runnable() {
@@ -1363,6 +1481,9 @@ public class OverlayService extends Service {
 
     private void startQuickRecording() {
         File cacheDir = getCacheDir();
+        prewarmConnections(false);
+        // Quick recordings are short; a single file is uploaded on release
+        audioRecorder.setSegmentMode(0, null);
         audioRecorder.startRecording(cacheDir, new AudioRecorder.RecordingCallback() {
             @Override
             public void onRecordingStarted() {
@@ -1430,7 +1551,7 @@ public class OverlayService extends Service {
 
     private void cancelQuickRecording() {
         audioRecorder.release();
-        audioRecorder = new AudioRecorder();
+        audioRecorder = newAudioRecorder();
         isRecording = false;
         mainHandler.post(new Runnable() {
             @Override
@@ -1441,84 +1562,210 @@ public class OverlayService extends Service {
         });
     }
 
-    private void transcribeQuickRecording(final File audioFile) {
-        new Thread(new Runnable() {
+    private void configureSegmentation() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        discardSegmentedTranscription();
+
+        if (!prefs.getBoolean(KEY_SEGMENTED_RECORDING, true)) {
+            audioRecorder.setSegmentMode(0, null);
+            return;
+        }
+
+        final Runnable[] completion = {null};
+        final SegmentedTranscription[] self = {null};
+        final SegmentedTranscription session = new SegmentedTranscription(this, new SegmentedTranscription.Listener() {
             @Override
-            public void run() {
-                WhisperAPI.transcribeAudio(OverlayService.this, audioFile, new WhisperAPI.TranscriptionCallback() {
+            public void onProgress(final int completedSegments, final int knownSegments) {
+                mainHandler.post(new Runnable() {
                     @Override
-                    public void onSuccess(final String transcription) {
-                        mainHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                // Auto-copy to clipboard
-                                copyToClipboard(transcription);
-                                showToast("✓ Copied to clipboard!");
-                                audioFile.delete();
-                            }
-                        });
+                    public void run() {
+                        // While recording, the timer owns the status line
+                        if (!isRecording) {
+                            statusText.setText("⏳ Transcribing... " + completedSegments + "/" + knownSegments);
+                        }
                     }
+                });
+            }
 
+            @Override
+            public void onComplete(String transcription, int failedSegments) {
+                int queued = self[0].getQueuedSegments();
+                if (queued > 0) {
+                    showToast("📥 No connection: " + queued + " segment(s) saved, will transcribe when back online");
+                }
+                if (failedSegments > queued) {
+                    showToast((failedSegments - queued) + " segment(s) could not be transcribed");
+                }
+                // The segments were joined back into one file for history to keep
+                final File recording = self[0].getRecording();
+                mainHandler.post(new Runnable() {
                     @Override
-                    public void onError(final String error) {
-                        mainHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                showToast("Transcription failed: " + error);
-                                audioFile.delete();
-                            }
-                        });
+                    public void run() {
+                        if (!isRecording) {
+                            currentAudioFile = recording;
+                        } else if (recording != null) {
+                            recording.delete();  // a newer recording has taken over
+                        }
+                    }
+                });
+                handleTranscriptionSuccess(transcription, null, completion[0]);
+            }
+
+            @Override
+            public void onError(String error) {
+                if (self[0].getQueuedSegments() == 0) {
+                    handleTranscriptionError(error, null, null, completion[0]);
+                    return;
+                }
+                showToast("📥 No connection: recording saved, will transcribe when back online");
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        processingIndicator.setVisibility(View.GONE);
+                        statusText.setText("📥 Queued");
+                        if (completion[0] != null) {
+                            completion[0].run();
+                        }
                     }
                 });
             }
-        }).start();
+        });
+        audioRecorder.setSegmentMode(prefs.getInt(KEY_SEGMENT_SECONDS, 20), new AudioRecorder.SegmentCallback() {
+            @Override
+            public void onSegmentReady(File segmentFile, int index) {
+                session.submit(segmentFile, index);
+            }
+        });
+        self[0] = session;
+        segmentedTranscription = session;
+        segmentedCompletion = completion;
     }
 
-    private void transcribeAudio(final File audioFile) {
-        transcribeAudioThen(audioFile, null);
+    private void discardSegmentedTranscription() {
+        if (segmentedTranscription != null) {
+            segmentedTranscription.cancel();
+            segmentedTranscription = null;
+            segmentedCompletion = null;
+        }
     }
 
-    private void transcribeAudioThen(final File audioFile, final Runnable onComplete) {
-        new Thread(new Runnable() {
+    // Called with the file the recorder closed last; in segmented mode that is only the tail
+    private void finishRecordingThen(File audioFile, Runnable onComplete) {
+        if (segmentedTranscription != null && audioRecorder.isSegmented()) {
+            segmentedCompletion[0] = onComplete;
+            segmentedTranscription.finish(audioFile, audioRecorder.getSegmentIndex());
+            segmentedTranscription = null;
+            segmentedCompletion = null;
+        } else {
+            discardSegmentedTranscription();
+            transcribeAudioThen(audioFile, onComplete);
+        }
+    }
+
+    private void transcribeQuickRecording(final File audioFile) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        final boolean trimSilence = prefs.getBoolean(KEY_TRIM_SILENCE, true);
+        final File[] uploaded = {audioFile};
+        final String[] trimNote = {""};
+
+        // Trim dead air first so less audio is uploaded and billed
+        final AsyncResult<String> result = TaskExecutor.submit(TaskExecutor.PRIORITY_HIGH, new Callable<SilenceTrimmer.TrimResult>() {
             @Override
-            public void run() {
-                // Check transcription mode
-                SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-                String mode = prefs.getString(KEY_TRANSCRIPTION_MODE, "api");
-
-                // Create unified callback handler
-                final Object callback;
-                if (mode.equals("firebase")) {
-                    // Use Firebase backend
-                    callback = new FirebaseWhisperAPI.TranscriptionCallback() {
-                        @Override
-                        public void onSuccess(final String transcription) {
-                            handleTranscriptionSuccess(transcription, audioFile, onComplete);
-                        }
+            public SilenceTrimmer.TrimResult call() {
+                if (!trimSilence) {
+                    return SilenceTrimmer.TrimResult.unchanged(audioFile);
+                }
+                try {
+                    return SilenceTrimmer.trim(audioFile);
+                } catch (Exception e) {
+                    android.util.Log.w("VoiceOverlay", "Silence trimming failed, uploading original", e);
+                    return SilenceTrimmer.TrimResult.unchanged(audioFile);
+                }
+            }
+        }).thenAsync(new AsyncResult.AsyncTransform<SilenceTrimmer.TrimResult, String>() {
+            @Override
+            public AsyncResult<String> apply(SilenceTrimmer.TrimResult trimmed) {
+                if (trimmed.isTrimmed()) {
+                    trimNote[0] = String.format(Locale.getDefault(), "\n✂ %.1f s of silence cut, %d KB less to upload",
+                        trimmed.secondsRemoved, trimmed.bytesRemoved / 1024);
+                }
+                uploaded[0] = trimmed.file;
+                return WhisperAPI.transcribeAudioAsync(OverlayService.this, trimmed.file);
+            }
+        });
+        result.deliver(mainHandler, new AsyncResult.Callback<String>() {
+            @Override
+            public void onSuccess(String transcription) {
+                // Auto-copy to clipboard
+                copyToClipboard(transcription);
+                showToast("✓ Copied to clipboard!" + trimNote[0]);
+                deleteQuickRecording(audioFile, uploaded[0]);
+            }
 
-                        @Override
-                        public void onError(final String error) {
-                            handleTranscriptionError(error, audioFile, onComplete);
-                        }
-                    };
-                    FirebaseWhisperAPI.transcribeAudio(OverlayService.this, audioFile, (FirebaseWhisperAPI.TranscriptionCallback) callback);
-                } else {
-                    // Use Direct API
-                    callback = new WhisperAPI.TranscriptionCallback() {
-                        @Override
-                        public void onSuccess(final String transcription) {
-                            handleTranscriptionSuccess(transcription, audioFile, onComplete);
-                        }
+            @Override
+            public void onError(String error) {
+                if (uploaded[0] != audioFile) {
+                    audioFile.delete();
+                }
+                keepForRetryOrDelete(uploaded[0], result.getError(), error);
+            }
+        });
+    }
 
+    private void deleteQuickRecording(File original, File uploaded) {
+        original.delete();
+        if (uploaded != original) {
+            uploaded.delete();
+        }
+    }
+
+    private void transcribeAudioThen(final File audioFile, final Runnable onComplete) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+
+        // Long recordings are split at pauses and transcribed in parallel
+        if (prefs.getBoolean(KEY_CHUNKED_TRANSCRIPTION, true)) {
+            new ChunkedTranscription(this, new SegmentedTranscription.Listener() {
+                @Override
+                public void onProgress(final int completedChunks, final int totalChunks) {
+                    mainHandler.post(new Runnable() {
                         @Override
-                        public void onError(final String error) {
-                            handleTranscriptionError(error, audioFile, onComplete);
+                        public void run() {
+                            statusText.setText("⏳ Transcribing... " + completedChunks + "/" + totalChunks);
                         }
-                    };
-                    WhisperAPI.transcribeAudio(OverlayService.this, audioFile, (WhisperAPI.TranscriptionCallback) callback);
+                    });
                 }
+
+                @Override
+                public void onComplete(String transcription, int failedChunks) {
+                    if (failedChunks > 0) {
+                        showToast(failedChunks + " part(s) could not be transcribed");
+                    }
+                    handleTranscriptionSuccess(transcription, audioFile, onComplete);
+                }
+
+                @Override
+                public void onError(String error) {
+                    handleTranscriptionError(error, null, audioFile, onComplete);
+                }
+            }).start(audioFile);
+            return;
+        }
+
+        // The router picks the backend per the transcription mode setting
+        final AsyncResult<String> result = TranscriptionRouter.get(this).transcribeAsync(audioFile);
+
+        // Both handlers post to the main thread themselves
+        result.deliver(null, new AsyncResult.Callback<String>() {
+            @Override
+            public void onSuccess(String transcription) {
+                handleTranscriptionSuccess(transcription, audioFile, onComplete);
+            }
+
+            @Override
+            public void onError(String error) {
+                handleTranscriptionError(error, result.getError(), audioFile, onComplete);
             }
-        }).start();
+        });
     }
 
     private void handleTranscriptionSuccess(final String transcription, final File audioFile, final Runnable onComplete) {
@@ -1536,7 +1783,10 @@ public class OverlayService extends Service {
                 transcriptionText.setText(currentText + transcription);
 
                 showToast("Transcription complete");
-                audioFile.delete();
+                // The current recording stays until history has archived it
+                if (audioFile != null && !audioFile.equals(currentAudioFile)) {
+                    audioFile.delete();
+                }
 
                 // Execute callback if provided
                 if (onComplete != null) {
@@ -1546,14 +1796,18 @@ public class OverlayService extends Service {
         });
     }
 
-    private void handleTranscriptionError(final String error, final File audioFile, final Runnable onComplete) {
+    private void handleTranscriptionError(final String error, final Exception cause, final File audioFile,
+                                          final Runnable onComplete) {
         mainHandler.post(new Runnable() {
             @Override
             public void run() {
                 processingIndicator.setVisibility(View.GONE);
                 statusText.setText("❌ Error");
-                showToast("Transcription failed: " + error);
-                audioFile.delete();
+                if (audioFile != null) {
+                    keepForRetryOrDelete(audioFile, cause, error);
+                } else {
+                    showToast("Transcription failed: " + error);
+                }
 
                 // Execute callback even on error
                 if (onComplete != null) {
@@ -1563,6 +1817,34 @@ public class OverlayService extends Service {
         });
     }
 
+    /**
+     * Hands a recording whose upload failed for want of a network to
+     * {@link TranscriptionQueue}; any other failure deletes it as before.
+     * {@code cause} may be null when only the message is known, in which case
+     * being offline decides. The move and journal write happen on a worker.
+     */
+    private void keepForRetryOrDelete(final File audioFile, final Exception cause, final String error) {
+        TaskExecutor.runAdmitted(TaskExecutor.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                boolean kept = false;
+                if (TranscriptionQueue.isTransient(cause) || TranscriptionQueue.isOffline(OverlayService.this)) {
+                    try {
+                        kept = TranscriptionQueue.get(OverlayService.this).enqueue(audioFile);
+                    } catch (IOException e) {
+                        android.util.Log.e("VoiceOverlay", "Could not queue recording for later", e);
+                    }
+                }
+                if (kept) {
+                    showToast("📥 No connection: recording saved, will transcribe when back online");
+                } else {
+                    showToast("Transcription failed: " + error);
+                    audioFile.delete();
+                }
+            }
+        });
+    }
+
     private void resetState() {
         // Stop timer
         mainHandler.removeCallbacks(timerRunnable);
@@ -1603,6 +1885,7 @@ public class OverlayService extends Service {
         if (audioRecorder != null) {
             audioRecorder.release();
         }
+        TranscriptionQueue.get(this).stop();
     }
 
     @Override
@@ -0,0 +1,234 @@
+package com.voiceoverlay;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Raw PCM capture on AudioRecord, as an alternative to MediaRecorder's
+ * opaque file output.
+ *
+ * A capture thread reads the microphone into a preallocated array and copies
+ * it into a {@link ShortRingBuffer}; a consumer thread drains the ring and
+ * hands each block to the registered {@link PcmConsumer}s (encoder, level
+ * meter, VAD, segmenter...). The capture thread never allocates or blocks on
+ * consumers: if they fall behind far enough to fill the ring, the newest
+ * block is dropped and counted instead.
+ */
+public class PcmCaptureEngine {
+    private static final int RING_SECONDS = 2;
+    private static final int BLOCK_MS = 20;
+    private static final long IDLE_PARK_NANOS = 10000000L;  // 10 ms
+
+    private final int sampleRate;
+    private final int channels;
+    private final List<PcmConsumer> consumers = new ArrayList<>();
+    private final ShortRingBuffer ring;
+
+    private AudioRecord audioRecord;
+    private Thread captureThread;
+    private Thread consumerThread;
+    private volatile boolean capturing = false;
+    private volatile boolean captureDone = false;  // set by the capture thread after its last write
+    private volatile boolean paused = false;
+    private volatile long droppedSamples = 0;
+    private volatile Exception failure;
+
+    public PcmCaptureEngine(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.ring = new ShortRingBuffer(sampleRate * channels * RING_SECONDS);
+    }
+
+    // Must be called before start()
+    public void addConsumer(PcmConsumer consumer) {
+        consumers.add(consumer);
+    }
+
+    public void start() throws IOException {
+        int channelMask = channels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int minBuffer = AudioRecord.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBuffer <= 0) {
+            throw new IOException("Unsupported audio format: " + sampleRate + " Hz, " + channels + " channel(s)");
+        }
+        int blockSamples = sampleRate * channels * BLOCK_MS / 1000;
+        audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelMask,
+            AudioFormat.ENCODING_PCM_16BIT, Math.max(minBuffer, blockSamples * 2 * 4));
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            audioRecord.release();
+            audioRecord = null;
+            throw new IOException("Microphone is unavailable");
+        }
+
+        int started = 0;
+        try {
+            for (PcmConsumer consumer : consumers) {
+                consumer.onStart(sampleRate, channels);
+                started++;
+            }
+            audioRecord.startRecording();
+        } catch (IOException | RuntimeException e) {
+            for (int i = 0; i < started; i++) {
+                stopQuietly(consumers.get(i));
+            }
+            audioRecord.release();
+            audioRecord = null;
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+
+        capturing = true;
+        captureDone = false;
+        paused = false;
+        failure = null;
+        consumerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "VoiceOverlay-pcm-consumer");
+        captureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                captureLoop();
+            }
+        }, "VoiceOverlay-pcm-capture");
+        consumerThread.start();
+        captureThread.start();
+    }
+
+    private void captureLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        short[] block = new short[sampleRate * channels * BLOCK_MS / 1000];
+        Thread consumer = consumerThread;
+        while (capturing) {
+            int read = audioRecord.read(block, 0, block.length);
+            if (read < 0) {
+                failure = new IOException("Microphone read failed (" + read + ")");
+                break;
+            }
+            if (read == 0 || paused) {
+                continue;  // keep reading so the hardware buffer does not overrun
+            }
+            if (!ring.write(block, 0, read)) {
+                droppedSamples += read;
+            }
+            LockSupport.unpark(consumer);
+        }
+        capturing = false;
+        captureDone = true;
+        LockSupport.unpark(consumer);
+    }
+
+    private void drainLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        short[] block = new short[sampleRate * channels * BLOCK_MS / 1000];
+        boolean delivering = true;
+        while (true) {
+            // Read the flag before the ring, so nothing written before stop is missed
+            boolean stillCapturing = !captureDone;
+            int count = ring.read(block, 0, block.length);
+            if (count == 0) {
+                if (!stillCapturing) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            if (!delivering) {
+                continue;
+            }
+            try {
+                for (PcmConsumer consumer : consumers) {
+                    consumer.onPcm(block, 0, count);
+                }
+            } catch (Exception e) {
+                // Keep draining so capture can finish; stop() reports the error
+                failure = e;
+                delivering = false;
+            }
+        }
+        for (PcmConsumer consumer : consumers) {
+            try {
+                consumer.onStop();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+    }
+
+    public boolean isCapturing() {
+        return capturing;
+    }
+
+    // Samples lost because consumers fell more than the ring's length behind
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * Stops the microphone, waits for consumers to process everything that was
+     * captured and finish their output, and rethrows the first error seen.
+     * Consumers may take a while to drain, so call it off the UI thread.
+     */
+    public void stop() throws IOException {
+        capturing = false;
+        joinQuietly(captureThread);
+        captureThread = null;
+        // The capture thread is done reading, so the microphone is free for the next start
+        if (audioRecord != null) {
+            try {
+                audioRecord.stop();
+            } catch (IllegalStateException e) {
+                // Ignore
+            }
+            audioRecord.release();
+            audioRecord = null;
+        }
+        joinQuietly(consumerThread);
+        consumerThread = null;
+        Exception error = failure;
+        if (error != null) {
+            throw error instanceof IOException ? (IOException) error : new IOException(AsyncResult.messageOf(error), error);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void stopQuietly(PcmConsumer consumer) {
+        try {
+            consumer.onStop();
+        } catch (Exception e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.voiceoverlay;
+
+import java.io.IOException;
+
+/**
+ * Receives raw audio from {@link PcmCaptureEngine}. All three methods run on
+ * the engine's consumer thread, never on the capture thread, so a slow
+ * consumer delays the others but cannot make the microphone drop samples
+ * until the ring buffer fills.
+ */
+public interface PcmConsumer {
+    void onStart(int sampleRate, int channels) throws IOException;
+
+    // Interleaved 16-bit samples; length is a whole number of frames
+    void onPcm(short[] pcm, int offset, int length) throws IOException;
+
+    void onStop() throws IOException;
+}
@@ -0,0 +1,49 @@
+package com.voiceoverlay;
+
+/**
+ * Tracks the input level of the most recent audio block, for meters and
+ * "is anyone speaking" hints. Readable from any thread.
+ */
+public class PcmLevelMeter implements PcmConsumer {
+    private volatile float peak = 0f;
+    private volatile float rms = 0f;
+
+    @Override
+    public void onStart(int sampleRate, int channels) {
+        peak = 0f;
+        rms = 0f;
+    }
+
+    @Override
+    public void onPcm(short[] pcm, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        int max = 0;
+        double sumSquares = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int s = Math.abs(pcm[i]);
+            if (s > max) {
+                max = s;
+            }
+            sumSquares += (double) pcm[i] * pcm[i];
+        }
+        peak = max / 32768f;
+        rms = (float) (Math.sqrt(sumSquares / length) / 32768.0);
+    }
+
+    @Override
+    public void onStop() {
+        peak = 0f;
+        rms = 0f;
+    }
+
+    // 0..1 of full scale
+    public float getPeak() {
+        return peak;
+    }
+
+    public float getRms() {
+        return rms;
+    }
+}
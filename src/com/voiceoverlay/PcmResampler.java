@@ -0,0 +1,121 @@
+package com.voiceoverlay;
+
+/**
+ * Streaming downmix and sample-rate conversion for 16-bit PCM.
+ *
+ * Input blocks of interleaved audio are averaged to mono, low-passed below
+ * the new Nyquist frequency when downsampling (two cascaded Butterworth
+ * biquads), then linearly interpolated to the output rate. Filter state and
+ * the fractional read position carry over between blocks, so a file can be
+ * converted block by block with nothing but the current block in memory.
+ * Plain Java so it can run on JVM PCM fixtures.
+ */
+public class PcmResampler {
+    private final int inputRate;
+    private final int outputRate;
+    private final int channels;
+    private final double step;          // input frames per output frame
+    private final boolean filter;
+
+    private final double b0, b1, b2, a1, a2;
+    private final double[][] state = new double[2][4];  // per stage: x1, x2, y1, y2
+
+    private float[] mono = new float[0];
+    private float last = 0f;            // final filtered sample of the previous block
+    private double position = 0;        // next output frame, in input frames from the block start
+
+    public PcmResampler(int inputRate, int channels, int outputRate) {
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = Math.max(1, channels);
+        this.step = (double) inputRate / outputRate;
+        this.filter = outputRate < inputRate;
+
+        // RBJ low-pass, Q = 1/sqrt(2), cutoff a little under the output Nyquist
+        double w0 = 2 * Math.PI * (0.45 * outputRate) / inputRate;
+        double alpha = Math.sin(w0) / (2 * Math.sqrt(0.5));
+        double cos = Math.cos(w0);
+        double a0 = 1 + alpha;
+        b0 = (1 - cos) / 2 / a0;
+        b1 = (1 - cos) / a0;
+        b2 = b0;
+        a1 = -2 * cos / a0;
+        a2 = (1 - alpha) / a0;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    // Largest number of output samples one call can produce for this input length
+    public int maxOutput(int inputLength) {
+        return (int) Math.ceil((inputLength / channels + 1) / step) + 1;
+    }
+
+    /**
+     * Converts {@code length} interleaved samples and writes mono output to
+     * {@code out}, which must hold {@link #maxOutput} samples. Returns the
+     * number written.
+     */
+    public int process(short[] pcm, int offset, int length, short[] out) {
+        int frames = length / channels;
+        if (frames == 0) {
+            return 0;
+        }
+        if (mono.length < frames) {
+            mono = new float[frames];
+        }
+        for (int i = 0; i < frames; i++) {
+            int sum = 0;
+            int base = offset + i * channels;
+            for (int c = 0; c < channels; c++) {
+                sum += pcm[base + c];
+            }
+            float sample = (float) sum / channels;
+            if (filter) {
+                sample = (float) biquad(state[1], biquad(state[0], sample));
+            }
+            mono[i] = sample;
+        }
+
+        int count = 0;
+        if (inputRate == outputRate) {
+            for (int i = 0; i < frames; i++) {
+                out[count++] = clip(mono[i]);
+            }
+            return count;
+        }
+
+        // Index -1 is the last sample of the previous block
+        while (position < frames - 1) {
+            int index = (int) Math.floor(position);
+            double fraction = position - index;
+            float a = index < 0 ? last : mono[index];
+            float b = mono[index + 1];
+            out[count++] = clip(a + (b - a) * fraction);
+            position += step;
+        }
+        position -= frames;
+        last = mono[frames - 1];
+        return count;
+    }
+
+    private double biquad(double[] s, double x) {
+        double y = b0 * x + b1 * s[0] + b2 * s[1] - a1 * s[2] - a2 * s[3];
+        s[1] = s[0];
+        s[0] = x;
+        s[3] = s[2];
+        s[2] = y;
+        return y;
+    }
+
+    private static short clip(double value) {
+        long rounded = Math.round(value);
+        if (rounded > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (rounded < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) rounded;
+    }
+}
@@ -0,0 +1,90 @@
+package com.voiceoverlay;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Encodes captured audio into consecutive .m4a segments of a fixed length,
+ * handing each finished file to the {@link AudioRecorder.SegmentCallback}
+ * while capture continues. Cuts are sample-exact, so stitched transcripts
+ * cover the whole recording without gaps or overlap.
+ */
+public class PcmSegmenter implements PcmConsumer {
+    private final File outputDir;
+    private final String baseName;
+    private final int bitRate;
+    private final int segmentSeconds;
+    private final AudioRecorder.SegmentCallback callback;
+
+    private AacEncoder encoder;
+    private int index = 0;
+    private int channels;
+    private int sampleRate;
+    private long segmentFrames;
+    private long framesInSegment = 0;
+
+    public PcmSegmenter(File outputDir, String baseName, int bitRate, int segmentSeconds,
+                        AudioRecorder.SegmentCallback callback) {
+        this.outputDir = outputDir;
+        this.baseName = baseName;
+        this.bitRate = bitRate;
+        this.segmentSeconds = segmentSeconds;
+        this.callback = callback;
+    }
+
+    public File segmentFile(int index) {
+        return new File(outputDir, baseName + "_seg" + index + ".m4a");
+    }
+
+    // Segment currently being written; the last one once stopped
+    public int getIndex() {
+        return index;
+    }
+
+    public File getCurrentFile() {
+        return segmentFile(index);
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        segmentFrames = (long) sampleRate * segmentSeconds;
+        index = 0;
+        framesInSegment = 0;
+        encoder = new AacEncoder(segmentFile(0), bitRate);
+        encoder.onStart(sampleRate, channels);
+    }
+
+    @Override
+    public void onPcm(short[] pcm, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            long room = (segmentFrames - framesInSegment) * channels;
+            int count = (int) Math.min(end - offset, room);
+            encoder.onPcm(pcm, offset, count);
+            framesInSegment += count / channels;
+            offset += count;
+            if (framesInSegment >= segmentFrames) {
+                rollOver();
+            }
+        }
+    }
+
+    private void rollOver() throws IOException {
+        File finished = encoder.getFile();
+        int finishedIndex = index;
+        encoder.onStop();
+
+        index++;
+        framesInSegment = 0;
+        encoder = new AacEncoder(segmentFile(index), bitRate);
+        encoder.onStart(sampleRate, channels);
+        callback.onSegmentReady(finished, finishedIndex);
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        encoder.onStop();
+    }
+}
@@ -0,0 +1,127 @@
+package com.voiceoverlay;
+
+import java.io.IOException;
+
+/**
+ * Keeps the last second or two of audio while the overlay is armed, so a
+ * recording can begin with speech that started before it was requested.
+ *
+ * Until {@link #attach} is called, blocks are copied into a fixed circular
+ * array (sampleRate x channels x seconds shorts, allocated once when capture
+ * starts; 64 KB for two seconds of 16 kHz mono). On the first block after
+ * attaching, the history is replayed into the targets oldest-first and
+ * capture continues into them without a gap.
+ */
+public class PreRollBuffer implements PcmConsumer {
+    public static final int MIN_SECONDS = 1;
+    public static final int MAX_SECONDS = 2;
+
+    private final int seconds;
+    private short[] history = new short[0];
+    private int position = 0;
+    private boolean wrapped = false;
+
+    private volatile PcmConsumer[] targets;
+    private PcmConsumer[] active;  // consumer thread only
+
+    public PreRollBuffer(int seconds) {
+        this.seconds = Math.max(MIN_SECONDS, Math.min(MAX_SECONDS, seconds));
+    }
+
+    // Upper bound of the history, in bytes
+    public static long memoryBytes(int sampleRate, int channels, int seconds) {
+        return 2L * sampleRate * channels * Math.max(MIN_SECONDS, Math.min(MAX_SECONDS, seconds));
+    }
+
+    @Override
+    public void onStart(int sampleRate, int channels) {
+        history = new short[sampleRate * channels * seconds];
+        position = 0;
+        wrapped = false;
+        active = null;
+    }
+
+    /**
+     * Routes the buffered history and all further audio to {@code consumers}.
+     * They must already have been started with this capture's format.
+     */
+    public void attach(PcmConsumer[] consumers) {
+        targets = consumers;
+    }
+
+    public boolean isAttached() {
+        return targets != null;
+    }
+
+    @Override
+    public void onPcm(short[] pcm, int offset, int length) throws IOException {
+        if (active == null && targets != null) {
+            active = targets;
+            replayHistory();
+        }
+        if (active != null) {
+            for (PcmConsumer consumer : active) {
+                consumer.onPcm(pcm, offset, length);
+            }
+            return;
+        }
+
+        // Whole frames in, whole frames out: history length is a multiple of the channel count
+        if (length >= history.length) {
+            System.arraycopy(pcm, offset + length - history.length, history, 0, history.length);
+            position = 0;
+            wrapped = true;
+            return;
+        }
+        int first = Math.min(length, history.length - position);
+        System.arraycopy(pcm, offset, history, position, first);
+        System.arraycopy(pcm, offset + first, history, 0, length - first);
+        if (position + length >= history.length) {
+            wrapped = true;
+        }
+        position = (position + length) % history.length;
+    }
+
+    private void replayHistory() throws IOException {
+        if (wrapped) {
+            deliver(history, position, history.length - position);
+        }
+        deliver(history, 0, position);
+        position = 0;
+        wrapped = false;
+    }
+
+    private void deliver(short[] pcm, int offset, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        for (PcmConsumer consumer : active) {
+            consumer.onPcm(pcm, offset, length);
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        if (active == null && targets != null) {
+            // Stopped before another block arrived; still hand over what was heard
+            active = targets;
+            replayHistory();
+        }
+        if (active == null) {
+            return;
+        }
+        IOException error = null;
+        for (PcmConsumer consumer : active) {
+            try {
+                consumer.onStop();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
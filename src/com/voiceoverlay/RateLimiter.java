@@ -0,0 +1,220 @@
+package com.voiceoverlay;
+
+import android.util.Log;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side pacing for one API endpoint, learned from the server's
+ * {@code x-ratelimit-*} headers, so a burst of recordings or Improve calls
+ * waits its turn here instead of uploading only to be refused with a 429.
+ *
+ * Two token buckets, requests and tokens, are refilled at the rate implied
+ * by each response ({@code limit - remaining} over {@code reset}) and reset
+ * to the server's {@code remaining} count minus what is still in flight. A
+ * call reserves its cost up front and is told how long the deficit takes to
+ * refill; {@link RetryPolicy} schedules the send for then, so waiting calls
+ * go in arrival order without polling or holding a worker. Until the server
+ * has reported a limit nothing is paced. A wait past {@link #MAX_WAIT_MS} is
+ * not taken: the call fails as a 429 and {@link RetryPolicy} or the offline
+ * queue picks it up.
+ */
+public class RateLimiter {
+    private static final String TAG = "VoiceOverlay";
+    static final long MAX_WAIT_MS = 20 * 1000;
+
+    private static final Map<String, RateLimiter> limiters = new HashMap<>();
+
+    // One budget as reported by the server; the bucket may go negative while callers wait
+    static final class Bucket {
+        long limit = -1;        // unknown until the server says
+        double available;
+        double perMs;           // refill rate
+        long refilledAt;
+
+        boolean known() {
+            return limit > 0 && perMs > 0;
+        }
+
+        void refill(long now) {
+            if (known()) {
+                available = Math.min(limit, available + (now - refilledAt) * perMs);
+            }
+            refilledAt = now;
+        }
+
+        // Wait in ms until `cost` is available, or 0; does not take it
+        long waitFor(double cost) {
+            if (!known() || available >= cost) {
+                return 0;
+            }
+            return (long) Math.ceil((cost - available) / perMs);
+        }
+
+        void learn(String limitHeader, String remainingHeader, String resetHeader, double inFlight, long now) {
+            try {
+                if (limitHeader == null || remainingHeader == null) {
+                    return;
+                }
+                long newLimit = Long.parseLong(limitHeader.trim());
+                long remaining = Long.parseLong(remainingHeader.trim());
+                long resetMs = RetryPolicy.parseDuration(resetHeader);
+                if (newLimit <= 0) {
+                    return;
+                }
+                refill(now);
+                limit = newLimit;
+                if (resetMs > 0 && remaining < newLimit) {
+                    perMs = (double) (newLimit - remaining) / resetMs;
+                } else if (perMs <= 0) {
+                    perMs = newLimit / 60000.0;  // OpenAI budgets are per minute
+                }
+                available = remaining - inFlight;  // calls still in flight are not counted yet
+            } catch (NumberFormatException e) {
+                // Not a budget we understand; keep the last one
+            }
+        }
+    }
+
+    private final String endpoint;
+    private final Bucket requests = new Bucket();
+    private final Bucket tokens = new Bucket();
+    private int inFlight = 0;
+    private double tokensInFlight = 0;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong waitedMs = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();  // 429s that got past us anyway
+
+    /** The limiter for {@code url}; endpoints are told apart by host and path, as in {@link RetryPolicy}. */
+    public static RateLimiter forEndpoint(String url) {
+        String key = url;
+        try {
+            URL parsed = new URL(url);
+            key = parsed.getHost() + parsed.getPath();
+        } catch (MalformedURLException e) {
+            // The call itself will fail and report it
+        }
+        synchronized (limiters) {
+            RateLimiter limiter = limiters.get(key);
+            if (limiter == null) {
+                limiter = new RateLimiter(key);
+                limiters.put(key, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    RateLimiter(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Takes one request and {@code tokenCost} tokens (0 when the endpoint
+     * has no token budget) and returns how many ms to wait before sending,
+     * 0 when the budget allows it now. Every reservation must be matched by
+     * {@link #release}.
+     */
+    public long reserve(double tokenCost) throws ApiException {
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            requests.refill(now);
+            tokens.refill(now);
+            wait = Math.max(requests.waitFor(1), tokens.waitFor(tokenCost));
+            if (wait > MAX_WAIT_MS) {
+                refused.incrementAndGet();
+                throw new ApiException("Rate limit reached for " + endpoint + "; try again in "
+                    + ((wait + 999) / 1000) + " s", 429, wait);
+            }
+            // Reserve now so later callers queue behind this one
+            if (requests.known()) {
+                requests.available -= 1;
+            }
+            if (tokens.known()) {
+                tokens.available -= tokenCost;
+            }
+            inFlight++;
+            tokensInFlight += tokenCost;
+        }
+        acquired.incrementAndGet();
+        if (wait > 0) {
+            delayed.incrementAndGet();
+            waitedMs.addAndGet(wait);
+            Log.d(TAG, "RateLimiter: pacing " + endpoint + " by " + wait + " ms");
+        }
+        return wait;
+    }
+
+    /**
+     * Ends a call started with {@link #reserve}. {@code conn} is the
+     * answered connection, or null when no answer came; its headers
+     * replace the local estimate of the budget.
+     */
+    public synchronized void release(HttpURLConnection conn, double tokenCost) {
+        inFlight = Math.max(0, inFlight - 1);
+        tokensInFlight = Math.max(0, tokensInFlight - tokenCost);
+        if (conn == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        requests.learn(conn.getHeaderField("x-ratelimit-limit-requests"),
+            conn.getHeaderField("x-ratelimit-remaining-requests"),
+            conn.getHeaderField("x-ratelimit-reset-requests"), inFlight, now);
+        tokens.learn(conn.getHeaderField("x-ratelimit-limit-tokens"),
+            conn.getHeaderField("x-ratelimit-remaining-tokens"),
+            conn.getHeaderField("x-ratelimit-reset-tokens"), tokensInFlight, now);
+        try {
+            if (conn.getResponseCode() == 429) {
+                rateLimited.incrementAndGet();
+                long asked = RetryPolicy.retryAfterMs(conn);
+                if (asked > 0) {
+                    // Hold everyone back until the server's wait is over
+                    requests.refill(now);
+                    if (requests.known()) {
+                        requests.available = Math.min(requests.available, -asked * requests.perMs);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // No status; nothing more to learn
+        }
+    }
+
+    /** Rough token count of a chat request: the prompt plus a reply of similar length. */
+    public static double estimateTokens(int promptChars) {
+        return promptChars / 4.0 * 2;
+    }
+
+    public synchronized String describe() {
+        return endpoint + " requests=" + budget(requests) + " tokens=" + budget(tokens)
+            + " inFlight=" + inFlight + " acquired=" + acquired.get() + " delayed=" + delayed.get()
+            + " waitedMs=" + waitedMs.get() + " refused=" + refused.get() + " rateLimited=" + rateLimited.get();
+    }
+
+    private static String budget(Bucket bucket) {
+        if (!bucket.known()) {
+            return "?";
+        }
+        return (long) bucket.available + "/" + bucket.limit;
+    }
+
+    public static String describeAll() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (limiters) {
+            for (RateLimiter limiter : limiters.values()) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                sb.append(limiter.describe());
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,375 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Retries and a circuit breaker for one API endpoint, shared by every call
+ * to it.
+ *
+ * An attempt is retried when the request never got an answer (reset,
+ * timeout) or the server said it was busy or broken (408, 429, 5xx), up to
+ * {@link #MAX_ATTEMPTS} times. The wait doubles from {@link #BASE_DELAY_MS}
+ * with jitter, or is what the server asked for in {@code Retry-After},
+ * {@code retry-after-ms} or an exhausted {@code x-ratelimit-*} budget, and is
+ * scheduled on {@link TaskExecutor} rather than slept on a worker. A
+ * wait longer than {@link #MAX_SERVER_WAIT_MS} is not sat out: the error
+ * goes back to the caller, where the offline queue can take the recording.
+ * Transport errors are not retried while the device is offline either.
+ *
+ * After {@link #FAILURE_THRESHOLD} failed attempts in a row the breaker
+ * opens and calls fail at once with a 503-style error for
+ * {@link #OPEN_MS}; then one trial call is let through, which closes it
+ * again or reopens it. Refusals (other 4xx) and rate limiting say nothing
+ * about an outage and leave the breaker alone.
+ */
+public class RetryPolicy {
+    private static final String TAG = "VoiceOverlay";
+    static final int MAX_ATTEMPTS = 3;
+    static final long BASE_DELAY_MS = 500;
+    static final long MAX_DELAY_MS = 8000;
+    static final long MAX_SERVER_WAIT_MS = 10 * 1000;
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_MS = 30 * 1000;
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final Map<String, RetryPolicy> policies = new HashMap<>();
+    private static final Random jitter = new Random();
+
+    private static final AtomicLong attempts = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong recovered = new AtomicLong();  // succeeded after at least one retry
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+
+    private final String endpoint;
+    private final String host;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+    private boolean trialInFlight = false;
+    private int timesOpened = 0;
+
+    /** The policy for {@code url}; endpoints are told apart by host and path. */
+    public static RetryPolicy forEndpoint(String url) {
+        String key = url;
+        try {
+            URL parsed = new URL(url);
+            key = parsed.getHost() + parsed.getPath();
+        } catch (MalformedURLException e) {
+            // The call itself will fail and report it
+        }
+        synchronized (policies) {
+            RetryPolicy policy = policies.get(key);
+            if (policy == null) {
+                policy = new RetryPolicy(key);
+                policies.put(key, policy);
+            }
+            return policy;
+        }
+    }
+
+    RetryPolicy(String endpoint) {
+        this.endpoint = endpoint;
+        this.host = endpoint.indexOf('/') >= 0 ? endpoint.substring(0, endpoint.indexOf('/')) : endpoint;
+    }
+
+    /**
+     * Runs {@code attempt} until it succeeds, fails for good, or runs out of
+     * tries. Tries run on {@link TaskExecutor} at {@code priority} as
+     * continuations of the caller's admitted work; the waits between them
+     * are scheduled, so no worker sleeps. Each try must send the whole
+     * request again. The result fails with the last error.
+     */
+    public <T> AsyncResult<T> execute(Context context, int priority, Callable<T> attempt) {
+        return execute(context, priority, null, 0, attempt);
+    }
+
+    /**
+     * As above, with each try paced by {@code limiter}: it reserves
+     * {@code tokenCost} before the try and is only sent once the budget
+     * allows. {@code attempt} must {@link RateLimiter#release} what it was
+     * given, whatever happens.
+     */
+    public <T> AsyncResult<T> execute(final Context context, final int priority, final RateLimiter limiter,
+                                      final double tokenCost, final Callable<T> attempt) {
+        final AsyncResult<T> result = new AsyncResult<>(priority);
+        TaskExecutor.runAdmitted(priority, new Runnable() {
+            @Override
+            public void run() {
+                tryOnce(context, priority, limiter, tokenCost, attempt, 1, result);
+            }
+        });
+        return result;
+    }
+
+    // Try number n, on a worker: waits for the rate limit by rescheduling, then sends
+    private <T> void tryOnce(final Context context, final int priority, final RateLimiter limiter,
+                             final double tokenCost, final Callable<T> attempt, final int n,
+                             final AsyncResult<T> result) {
+        try {
+            admit();
+        } catch (ApiException e) {
+            result.fail(e);
+            return;
+        }
+        long wait = 0;
+        if (limiter != null) {
+            try {
+                wait = limiter.reserve(tokenCost);
+            } catch (ApiException e) {
+                onTryFailed(context, priority, limiter, tokenCost, attempt, n, result, e);
+                return;
+            }
+        }
+        TaskExecutor.runAdmittedAfter(priority, wait, new Runnable() {
+            @Override
+            public void run() {
+                send(context, priority, limiter, tokenCost, attempt, n, result);
+            }
+        });
+    }
+
+    private <T> void send(Context context, int priority, RateLimiter limiter, double tokenCost,
+                          Callable<T> attempt, int n, AsyncResult<T> result) {
+        T value;
+        Exception error = null;
+        attempts.incrementAndGet();
+        try {
+            value = attempt.call();
+        } catch (Exception e) {
+            value = null;
+            error = e;
+        }
+        if (error == null) {
+            onSuccess();
+            if (n > 1) {
+                recovered.incrementAndGet();
+            }
+            result.complete(value);
+            return;
+        }
+        onTryFailed(context, priority, limiter, tokenCost, attempt, n, result, error);
+    }
+
+    // Gives up with error or schedules try n + 1
+    private <T> void onTryFailed(final Context context, final int priority, final RateLimiter limiter,
+                                 final double tokenCost, final Callable<T> attempt, final int n,
+                                 final AsyncResult<T> result, Exception error) {
+        boolean offline = context != null && !NetworkState.get(context).isConnected();
+        if (context != null && !offline && isRetryable(error) && !(error instanceof ApiException)) {
+            // No answer from the address HttpTransport picked; the next try picks again
+            NetworkState.get(context).invalidate(host);
+        }
+        boolean retryable = isRetryable(error) && !(offline && !(error instanceof ApiException));
+        boolean open = onFailure(error, retryable && !offline && !isRateLimited(error));
+        long delay = retryable ? delayBefore(n + 1, error) : -1;
+        if (!retryable || open || n >= MAX_ATTEMPTS || delay > MAX_SERVER_WAIT_MS) {
+            failures.incrementAndGet();
+            result.fail(error);
+            return;
+        }
+        retries.incrementAndGet();
+        Log.w(TAG, "RetryPolicy: " + endpoint + " attempt " + n + " failed (" + error.getMessage()
+            + "), retrying in " + delay + " ms");
+        TaskExecutor.runAdmittedAfter(priority, delay, new Runnable() {
+            @Override
+            public void run() {
+                tryOnce(context, priority, limiter, tokenCost, attempt, n + 1, result);
+            }
+        });
+    }
+
+    /**
+     * Whether another try might succeed: no answer was received, or the
+     * server answered 408, 429 or 5xx. Other {@link ApiException}s carry
+     * the server's (or the app's) final word.
+     */
+    static boolean isRetryable(Exception error) {
+        if (error instanceof ApiException) {
+            int code = ((ApiException) error).getStatusCode();
+            return code == 408 || code == 429 || code >= 500;
+        }
+        if (error instanceof SocketTimeoutException) {
+            return true;
+        }
+        if (error instanceof InterruptedIOException      // cancelled
+            || error instanceof MalformedURLException
+            || error instanceof FileNotFoundException    // the recording is gone
+            || error instanceof SSLPeerUnverifiedException) {
+            return false;
+        }
+        return error instanceof IOException;
+    }
+
+    private static boolean isRateLimited(Exception error) {
+        return error instanceof ApiException && ((ApiException) error).getStatusCode() == 429;
+    }
+
+    // Wait before try number `next`: the server's word if it gave one, else jittered doubling
+    static long delayBefore(int next, Exception error) {
+        long backoff = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(next - 2, 16));
+        long delay;
+        synchronized (jitter) {
+            delay = backoff / 2 + (long) (jitter.nextDouble() * (backoff / 2));
+        }
+        if (error instanceof ApiException) {
+            long asked = ((ApiException) error).getRetryAfterMs();
+            if (asked >= 0) {
+                return asked + delay / 4;  // a little spread so callers do not all return at once
+            }
+        }
+        return delay;
+    }
+
+    private synchronized void admit() throws ApiException {
+        if (state == State.OPEN) {
+            long remaining = openedAt + OPEN_MS - System.currentTimeMillis();
+            if (remaining > 0) {
+                rejected.incrementAndGet();
+                throw new ApiException("Service unavailable (" + endpoint + " keeps failing); trying again in "
+                    + ((remaining + 999) / 1000) + " s", 503);
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                rejected.incrementAndGet();
+                throw new ApiException("Service unavailable (" + endpoint + " is being retried)", 503);
+            }
+            trialInFlight = true;
+        }
+    }
+
+    private synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            Log.d(TAG, "RetryPolicy: " + endpoint + " recovered, closing breaker");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+    }
+
+    // countsAsOutage: the endpoint itself looks broken, as opposed to a refusal or a local problem.
+    // Returns true when the breaker is open afterwards.
+    private synchronized boolean onFailure(Exception error, boolean countsAsOutage) {
+        boolean wasTrial = trialInFlight;
+        trialInFlight = false;
+        if (!countsAsOutage) {
+            if (wasTrial) {
+                state = State.CLOSED;  // it answered; let traffic decide
+                consecutiveFailures = 0;
+            }
+            return false;
+        }
+        consecutiveFailures++;
+        if (wasTrial || consecutiveFailures >= FAILURE_THRESHOLD) {
+            if (state != State.OPEN) {
+                timesOpened++;
+                Log.w(TAG, "RetryPolicy: opening breaker for " + endpoint + " after " + consecutiveFailures
+                    + " failures: " + error.getMessage());
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+        return state == State.OPEN;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openedAt + OPEN_MS) {
+            return State.HALF_OPEN;  // will let the next call through
+        }
+        return state;
+    }
+
+    /**
+     * How long the server asked the client to wait, in ms, or -1 when it did
+     * not say. Reads {@code retry-after-ms}, then {@code Retry-After} in
+     * seconds or as a date, then the reset time of whichever
+     * {@code x-ratelimit-*} budget is at zero.
+     */
+    public static long retryAfterMs(HttpURLConnection conn) {
+        String ms = conn.getHeaderField("retry-after-ms");
+        if (ms != null) {
+            try {
+                return Math.max(0, (long) Double.parseDouble(ms.trim()));
+            } catch (NumberFormatException e) {
+                // Fall through to the other headers
+            }
+        }
+        String after = conn.getHeaderField("Retry-After");
+        if (after != null) {
+            try {
+                return Math.max(0, Long.parseLong(after.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                long date = conn.getHeaderFieldDate("Retry-After", -1);
+                if (date > 0) {
+                    return Math.max(0, date - System.currentTimeMillis());
+                }
+            }
+        }
+        long wait = -1;
+        if ("0".equals(conn.getHeaderField("x-ratelimit-remaining-requests"))) {
+            wait = parseDuration(conn.getHeaderField("x-ratelimit-reset-requests"));
+        }
+        if ("0".equals(conn.getHeaderField("x-ratelimit-remaining-tokens"))) {
+            wait = Math.max(wait, parseDuration(conn.getHeaderField("x-ratelimit-reset-tokens")));
+        }
+        return wait;
+    }
+
+    /** Parses OpenAI reset times such as "20ms", "1.5s" or "6m0s" into ms; -1 when unreadable. */
+    static long parseDuration(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Matcher m = DURATION_PART.matcher(value.trim());
+        double total = 0;
+        int end = 0;
+        while (m.find()) {
+            if (m.start() != end) {
+                return -1;
+            }
+            double amount = Double.parseDouble(m.group(1));
+            String unit = m.group(2);
+            total += unit.equals("ms") ? amount
+                : unit.equals("s") ? amount * 1000
+                : unit.equals("m") ? amount * 60 * 1000
+                : amount * 60 * 60 * 1000;
+            end = m.end();
+        }
+        return end > 0 && end == value.trim().length() ? (long) Math.ceil(total) : -1;
+    }
+
+    public synchronized String describeEndpoint() {
+        return endpoint + " " + getState() + " failures=" + consecutiveFailures + " opened=" + timesOpened;
+    }
+
+    public static String describe() {
+        StringBuilder sb = new StringBuilder("attempts=" + attempts.get() + " retries=" + retries.get()
+            + " recovered=" + recovered.get() + " failed=" + failures.get() + " rejected=" + rejected.get());
+        synchronized (policies) {
+            for (RetryPolicy policy : policies.values()) {
+                sb.append("\n  ").append(policy.describeEndpoint());
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,321 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transcribes the segments of one segmented recording as they are produced
+ * and stitches the results back together in recording order. Segments are
+ * uploaded while later ones are still being captured, so after the user stops
+ * only the last segment's round trip is left on the critical path.
+ *
+ * The segment files are kept until the session ends and then joined back
+ * into one recording, {@link #getRecording}, so history can keep the audio
+ * of the whole take. A segment whose upload failed for want of a network
+ * goes to {@link TranscriptionQueue}, which transcribes it into history once
+ * the connection is back, rather than being thrown away.
+ */
+public class SegmentedTranscription {
+    private static final String TAG = "VoiceOverlay";
+
+    public interface Listener {
+        void onProgress(int completedSegments, int knownSegments);
+        void onComplete(String transcription, int failedSegments);
+        void onError(String error);
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final List<String> results = new ArrayList<>();
+    private final List<File> files = new ArrayList<>();
+    private final List<Exception> errors = new ArrayList<>();
+    private final List<Boolean> done = new ArrayList<>();
+    private int expectedSegments = -1;  // unknown until finish()
+    private int completedSegments = 0;
+    private int failedSegments = 0;
+    private String lastError;
+    private boolean cancelled = false;
+    private boolean delivered = false;
+    private volatile File recording;
+    private volatile int queuedSegments = 0;
+
+    public SegmentedTranscription(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+    }
+
+    public void submit(final File segmentFile, final int index) {
+        synchronized (this) {
+            if (cancelled) {
+                segmentFile.delete();
+                return;
+            }
+            while (results.size() <= index) {
+                results.add(null);
+                files.add(null);
+                errors.add(null);
+                done.add(false);
+            }
+            files.set(index, segmentFile);
+        }
+
+        Log.d(TAG, "SegmentedTranscription: uploading segment " + index + " (" + segmentFile.length() + " bytes)");
+        final AsyncResult<String> result = transcribeAsync(context, segmentFile);
+        result.deliver(null, new AsyncResult.Callback<String>() {
+            @Override
+            public void onSuccess(String transcription) {
+                onSegmentDone(index, transcription.trim(), null, null);
+            }
+
+            @Override
+            public void onError(String error) {
+                onSegmentDone(index, null, error, result.getError());
+            }
+        });
+    }
+
+    /**
+     * Submits the last segment and marks the session as closed. The listener
+     * fires once every segment up to {@code lastIndex} has come back.
+     */
+    public void finish(File lastSegment, int lastIndex) {
+        synchronized (this) {
+            expectedSegments = lastIndex + 1;
+        }
+        submit(lastSegment, lastIndex);
+    }
+
+    // Drops any results still in flight; their segment files are still cleaned up
+    public void cancel() {
+        List<File> finished = new ArrayList<>();
+        synchronized (this) {
+            cancelled = true;
+            for (int i = 0; i < files.size(); i++) {
+                if (done.get(i) && files.get(i) != null) {
+                    finished.add(files.get(i));
+                }
+            }
+        }
+        for (File file : finished) {
+            file.delete();
+        }
+    }
+
+    /**
+     * The whole recording, joined from its segments, once the listener has
+     * heard {@code onComplete}; null before that or if it could not be joined.
+     * The caller owns the file.
+     */
+    public File getRecording() {
+        return recording;
+    }
+
+    /** How many failed segments went to {@link TranscriptionQueue}, once the listener has fired. */
+    public int getQueuedSegments() {
+        return queuedSegments;
+    }
+
+    private void onSegmentDone(int index, String text, String error, Exception cause) {
+        String stitched = null;
+        int progressDone;
+        int progressKnown;
+        int failed;
+        String failure;
+        List<File> segments = null;
+        List<Exception> causes = null;
+        synchronized (this) {
+            if (cancelled || done.get(index)) {
+                if (cancelled) {
+                    files.get(index).delete();
+                }
+                return;
+            }
+            done.set(index, true);
+            results.set(index, text);
+            errors.set(index, cause);
+            completedSegments++;
+            if (error != null) {
+                failedSegments++;
+                lastError = error;
+                Log.e(TAG, "SegmentedTranscription: segment " + index + " failed: " + error);
+            }
+            failed = failedSegments;
+            failure = lastError;
+            progressDone = completedSegments;
+            progressKnown = expectedSegments > 0 ? expectedSegments : results.size();
+
+            if (expectedSegments < 0 || completedSegments < expectedSegments || delivered) {
+                stitched = null;
+            } else {
+                delivered = true;
+                StringBuilder sb = new StringBuilder();
+                for (String part : results) {
+                    if (part == null || part.isEmpty()) continue;
+                    if (sb.length() > 0) sb.append(' ');
+                    sb.append(part);
+                }
+                stitched = sb.toString();
+                segments = new ArrayList<>(files);
+                causes = new ArrayList<>(errors);
+            }
+        }
+
+        if (stitched == null) {
+            listener.onProgress(progressDone, progressKnown);
+            return;
+        }
+        final String transcript = stitched;
+        final int failedCount = failed;
+        final String lastFailure = failure;
+        final List<File> parts = segments;
+        final List<Exception> partErrors = causes;
+        // Joining reads and writes the whole recording, so it gets a worker of its own
+        TaskExecutor.runAdmitted(TaskExecutor.PRIORITY_HIGH, new Runnable() {
+            @Override
+            public void run() {
+                if (!transcript.isEmpty()) {
+                    recording = joinOrNull(parts);
+                }
+                queuedSegments = queueFailed(parts, partErrors);
+                deleteAll(parts);  // whatever was neither joined in place nor queued
+                if (transcript.isEmpty()) {
+                    listener.onError(lastFailure != null ? lastFailure : "No transcription found");
+                } else {
+                    listener.onComplete(transcript, failedCount);
+                }
+            }
+        });
+    }
+
+    // Same rule as a whole recording: kept when the failure was the network's
+    private int queueFailed(List<File> segments, List<Exception> causes) {
+        int queued = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Exception cause = causes.get(i);
+            if (cause == null) {
+                continue;
+            }
+            if (TranscriptionQueue.isTransient(cause) || TranscriptionQueue.isOffline(context)) {
+                try {
+                    if (TranscriptionQueue.get(context).enqueue(segments.get(i))) {
+                        queued++;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "SegmentedTranscription: could not queue segment " + i, e);
+                }
+            }
+        }
+        return queued;
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    // One recording from all segments; the caller deletes the segments
+    private static File joinOrNull(List<File> segments) {
+        File first = segments.get(0);
+        File output = new File(first.getParentFile(), first.getName().replaceFirst("_seg0(\\.[^.]*)?$", "$1"));
+        if (segments.size() == 1) {
+            return first.renameTo(output) ? output : first;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        try {
+            join(segments, output);
+            return output;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "SegmentedTranscription: could not join " + segments.size() + " segments", e);
+            output.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Copies the encoded frames of {@code segments}, in order, into one file
+     * of the same container, each segment's timestamps following on from the
+     * last. Needs API 21.
+     */
+    static void join(List<File> segments, File output) throws IOException {
+        // Ogg segments only come from MediaRecorder on API 29+, where the muxer writes Ogg too
+        int container = output.getName().endsWith(".ogg")
+            ? MediaMuxer.OutputFormat.MUXER_OUTPUT_OGG : MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
+        MediaMuxer muxer = null;
+        boolean started = false;
+        int outTrack = -1;
+        ByteBuffer buffer = null;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long offsetUs = 0;
+        long lastWrittenUs = -1;
+        try {
+            for (File segment : segments) {
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    extractor.setDataSource(segment.getAbsolutePath());
+                    int track = AudioDecoder.findAudioTrack(extractor);
+                    if (track < 0) {
+                        throw new IOException("No audio track in " + segment.getName());
+                    }
+                    MediaFormat format = extractor.getTrackFormat(track);
+                    extractor.selectTrack(track);
+                    if (muxer == null) {
+                        muxer = new MediaMuxer(output.getAbsolutePath(), container);
+                        outTrack = muxer.addTrack(format);
+                        muxer.start();
+                        started = true;
+                        int capacity = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                            ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 64 * 1024;
+                        buffer = ByteBuffer.allocateDirect(capacity);
+                    }
+
+                    long lastUs = -1;
+                    long frameUs = 0;
+                    int size;
+                    while ((size = extractor.readSampleData(buffer, 0)) >= 0) {
+                        long timeUs = extractor.getSampleTime();
+                        if (lastUs >= 0) {
+                            frameUs = timeUs - lastUs;
+                        }
+                        lastUs = timeUs;
+                        long outUs = Math.max(offsetUs + timeUs, lastWrittenUs + 1);
+                        int flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                            ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                        info.set(0, size, outUs, flags);
+                        muxer.writeSampleData(outTrack, buffer, info);
+                        lastWrittenUs = outUs;
+                        extractor.advance();
+                    }
+                    // The next segment starts one frame after this one's last
+                    offsetUs = lastWrittenUs + frameUs;
+                } finally {
+                    extractor.release();
+                }
+            }
+        } finally {
+            if (muxer != null) {
+                if (started) {
+                    muxer.stop();
+                }
+                muxer.release();
+            }
+        }
+    }
+
+    // Routes one file to a backend, same as OverlayService does for whole recordings
+    static AsyncResult<String> transcribeAsync(Context context, File audioFile) {
+        return TranscriptionRouter.get(context).transcribeAsync(audioFile);
+    }
+}
@@ -0,0 +1,61 @@
+package com.voiceoverlay;
+
+/**
+ * Single-producer / single-consumer ring buffer of 16-bit samples.
+ *
+ * The producer only advances {@code writePosition} and the consumer only
+ * advances {@code readPosition}; both are volatile, which publishes the
+ * copied samples to the other side without locks. Writes are all-or-nothing
+ * so interleaved frames never get split when the buffer is full. Neither
+ * side allocates.
+ */
+public class ShortRingBuffer {
+    private final short[] buffer;
+    private final int mask;
+    private volatile long writePosition = 0;
+    private volatile long readPosition = 0;
+
+    public ShortRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        buffer = new short[capacity];
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    // Samples waiting to be read
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /** Producer side. Returns false, writing nothing, if there is not room for all of it. */
+    public boolean write(short[] src, int offset, int length) {
+        long write = writePosition;
+        if (length > buffer.length - (write - readPosition)) {
+            return false;
+        }
+        int index = (int) (write & mask);
+        int first = Math.min(length, buffer.length - index);
+        System.arraycopy(src, offset, buffer, index, first);
+        System.arraycopy(src, offset + first, buffer, 0, length - first);
+        writePosition = write + length;
+        return true;
+    }
+
+    /** Consumer side. Copies up to {@code length} samples and returns how many. */
+    public int read(short[] dst, int offset, int length) {
+        long read = readPosition;
+        int count = (int) Math.min(length, writePosition - read);
+        if (count <= 0) {
+            return 0;
+        }
+        int index = (int) (read & mask);
+        int first = Math.min(count, buffer.length - index);
+        System.arraycopy(buffer, index, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, count - first);
+        readPosition = read + count;
+        return count;
+    }
+}
@@ -0,0 +1,195 @@
+package com.voiceoverlay;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts dead air out of a finished AAC recording before it is uploaded.
+ *
+ * The file is decoded once to feed {@link VoiceActivityDetector}; the encoded
+ * AAC frames that fall inside the kept ranges are then copied into a new MP4
+ * with their timestamps shifted to close the gaps, so nothing is re-encoded.
+ * When there is little to gain, or the file cannot be handled, the original is
+ * returned untouched.
+ */
+public class SilenceTrimmer {
+    static final long PADDING_MS = 200;        // kept before first / after last speech
+    static final long MAX_PAUSE_MS = 700;      // longer pauses are shortened to this
+    static final long MIN_SAVING_MS = 500;     // not worth a second file below this
+
+    public static class TrimResult {
+        public final File file;
+        public final long bytesRemoved;
+        public final double secondsRemoved;
+
+        TrimResult(File file, long bytesRemoved, double secondsRemoved) {
+            this.file = file;
+            this.bytesRemoved = bytesRemoved;
+            this.secondsRemoved = secondsRemoved;
+        }
+
+        static TrimResult unchanged(File file) {
+            return new TrimResult(file, 0, 0);
+        }
+
+        // output replaces input, with removedSamples fewer samples at sampleRate
+        static TrimResult trimmed(File input, File output, long removedSamples, int sampleRate) {
+            return new TrimResult(output, input.length() - output.length(), (double) removedSamples / sampleRate);
+        }
+
+        public boolean isTrimmed() {
+            return bytesRemoved > 0 || secondsRemoved > 0;
+        }
+    }
+
+    /**
+     * Returns the trimmed copy (written next to {@code input}) or {@code input}
+     * itself. The caller owns both files afterwards.
+     */
+    public static TrimResult trim(File input) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return TrimResult.unchanged(input);
+        }
+
+        MediaFormat format = AudioDecoder.readFormat(input);
+        if (format == null || !MediaFormat.MIMETYPE_AUDIO_AAC.equals(format.getString(MediaFormat.KEY_MIME))) {
+            return TrimResult.unchanged(input);
+        }
+        SpeechMonitor monitor = new SpeechMonitor();
+        AudioDecoder.decode(input, monitor);
+        VoiceActivityDetector vad = monitor.getDetector();
+
+        int sampleRate = vad.getSampleRate();
+        List<long[]> keep = planTrim(vad);
+        if (keep == null) {
+            return TrimResult.unchanged(input);
+        }
+
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        File output = new File(input.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + "_trimmed.m4a");
+        try {
+            List<long[]> keepUs = new ArrayList<>(keep.size());
+            for (long[] range : keep) {
+                keepUs.add(new long[]{range[0] * 1000000L / sampleRate, range[1] * 1000000L / sampleRate});
+            }
+            remux(input, output, keepUs);
+        } catch (IOException | RuntimeException e) {
+            output.delete();
+            throw e instanceof IOException ? (IOException) e : new IOException("Could not trim recording", e);
+        }
+
+        return TrimResult.trimmed(input, output, removedSamples(keep, vad.getProcessedSamples()), sampleRate);
+    }
+
+    /**
+     * Sample ranges to keep from what {@code vad} heard, or null when there
+     * is nothing to do: no speech was found (the server is left to judge),
+     * or less than {@link #MIN_SAVING_MS} would go.
+     */
+    static List<long[]> planTrim(VoiceActivityDetector vad) {
+        int sampleRate = vad.getSampleRate();
+        long totalSamples = vad.getProcessedSamples();
+        List<long[]> speech = vad.getSpeechRegions();
+        if (speech.isEmpty()) {
+            return null;
+        }
+        List<long[]> keep = VoiceActivityDetector.planKeepRanges(speech, totalSamples,
+            PADDING_MS * sampleRate / 1000, MAX_PAUSE_MS * sampleRate / 1000);
+        if (removedSamples(keep, totalSamples) * 1000 / sampleRate < MIN_SAVING_MS) {
+            return null;
+        }
+        return keep;
+    }
+
+    static long removedSamples(List<long[]> keep, long totalSamples) {
+        long keptSamples = 0;
+        for (long[] range : keep) {
+            keptSamples += range[1] - range[0];
+        }
+        return totalSamples - keptSamples;
+    }
+
+    /**
+     * Copies the encoded frames that start inside the kept {startUs, endUs}
+     * ranges into a new MP4, closing the gaps between ranges.
+     */
+    static void remux(File input, File output, List<long[]> keep) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaMuxer muxer = null;
+        boolean started = false;
+        try {
+            extractor.setDataSource(input.getAbsolutePath());
+            int track = AudioDecoder.findAudioTrack(extractor);
+            MediaFormat format = extractor.getTrackFormat(track);
+            extractor.selectTrack(track);
+            if (keep.get(0)[0] > 0) {
+                extractor.seekTo(keep.get(0)[0], MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+
+            muxer = new MediaMuxer(output.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int outTrack = muxer.addTrack(format);
+            muxer.start();
+            started = true;
+
+            int capacity = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 64 * 1024;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+            int range = 0;
+            long lastWrittenUs = -1;
+            while (range < keep.size()) {
+                int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) {
+                    break;
+                }
+                long timeUs = extractor.getSampleTime();
+                long startUs = keep.get(range)[0];
+                long endUs = keep.get(range)[1];
+                while (timeUs >= endUs && ++range < keep.size()) {
+                    startUs = keep.get(range)[0];
+                    endUs = keep.get(range)[1];
+                }
+                if (range >= keep.size()) {
+                    break;
+                }
+                if (timeUs >= startUs) {
+                    long removedUs = removedBefore(keep, range);
+                    long outUs = Math.max(timeUs - removedUs, lastWrittenUs + 1);
+                    // trim() returns early below API 21, where BUFFER_FLAG_KEY_FRAME arrived
+                    int flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                        ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                    info.set(0, size, outUs, flags);
+                    muxer.writeSampleData(outTrack, buffer, info);
+                    lastWrittenUs = outUs;
+                }
+                extractor.advance();
+            }
+        } finally {
+            extractor.release();
+            if (muxer != null) {
+                if (started) {
+                    muxer.stop();
+                }
+                muxer.release();
+            }
+        }
+    }
+
+    private static long removedBefore(List<long[]> keep, int range) {
+        long removed = keep.get(0)[0];
+        for (int i = 1; i <= range; i++) {
+            removed += keep.get(i)[0] - keep.get(i - 1)[1];
+        }
+        return removed;
+    }
+}
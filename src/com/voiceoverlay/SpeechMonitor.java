@@ -0,0 +1,57 @@
+package com.voiceoverlay;
+
+/**
+ * Runs {@link VoiceActivityDetector} on live capture. The detector works on
+ * mono audio, so multi-channel input is averaged into a scratch buffer that
+ * only grows while the block size settles.
+ */
+public class SpeechMonitor implements PcmConsumer {
+    private VoiceActivityDetector detector;
+    private int channels = 1;
+    private short[] mono = new short[0];
+    private volatile boolean speech = false;
+
+    @Override
+    public void onStart(int sampleRate, int channels) {
+        this.detector = new VoiceActivityDetector(sampleRate);
+        this.channels = channels;
+        speech = false;
+    }
+
+    @Override
+    public void onPcm(short[] pcm, int offset, int length) {
+        if (channels == 1) {
+            detector.process(pcm, offset, length);
+        } else {
+            int frames = length / channels;
+            if (mono.length < frames) {
+                mono = new short[frames];
+            }
+            for (int i = 0; i < frames; i++) {
+                int sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += pcm[offset + i * channels + c];
+                }
+                mono[i] = (short) (sum / channels);
+            }
+            detector.process(mono, 0, frames);
+        }
+        speech = detector.isSpeech();
+    }
+
+    @Override
+    public void onStop() {
+        detector.finish();
+        speech = false;
+    }
+
+    // Readable from any thread
+    public boolean isSpeech() {
+        return speech;
+    }
+
+    // Only valid once capture has stopped
+    public VoiceActivityDetector getDetector() {
+        return detector;
+    }
+}
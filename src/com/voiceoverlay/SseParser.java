@@ -0,0 +1,67 @@
+package com.voiceoverlay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Incremental parser for a text/event-stream response body. Events are handed
+ * to the listener as soon as their terminating blank line arrives, so callers
+ * see each chunk of a streamed completion while the rest is still in flight.
+ * Only the "data" field matters for the OpenAI API; other fields are ignored.
+ */
+public class SseParser {
+    public interface Listener {
+        // Return false to stop reading (e.g. after the "[DONE]" sentinel)
+        boolean onEvent(String data) throws Exception;
+    }
+
+    public static void parse(InputStream in, Listener listener) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 1024);
+        StringBuilder data = new StringBuilder();
+        boolean hasData = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (hasData) {
+                    if (!listener.onEvent(data.toString())) {
+                        return;
+                    }
+                    data.setLength(0);
+                    hasData = false;
+                }
+                continue;
+            }
+            if (line.startsWith(":")) {
+                continue;  // comment / keep-alive
+            }
+
+            int colon = line.indexOf(':');
+            String field = colon >= 0 ? line.substring(0, colon) : line;
+            if (!field.equals("data")) {
+                continue;
+            }
+            String value = colon >= 0 ? line.substring(colon + 1) : "";
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            if (hasData) {
+                data.append('\n');
+            }
+            data.append(value);
+            hasData = true;
+        }
+        // Stream ended without a trailing blank line
+        if (hasData) {
+            listener.onEvent(data.toString());
+        }
+    }
+
+    static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+    }
+}
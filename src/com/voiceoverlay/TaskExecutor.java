@@ -0,0 +1,231 @@
+package com.voiceoverlay;
+
+import android.os.Process;
+import android.util.Log;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One bounded, prioritized pool for all network and audio work.
+ *
+ * New work is admitted only while fewer than {@link #MAX_PENDING} tasks are
+ * queued or running; beyond that submit() returns an already-failed result so
+ * a burst of quick recordings gets back-pressure instead of a thread each.
+ * Continuations of admitted work (the later stages of a pipeline) skip the
+ * bound so a chain is never dropped half way.
+ *
+ * Workers never sleep to wait: work that has to wait (a retry backoff, a
+ * rate-limit pause) is handed to a timer thread with
+ * {@link #runAdmittedAfter} and re-enters the queue when the wait is over.
+ */
+public class TaskExecutor {
+    private static final String TAG = "VoiceOverlay";
+
+    public static final int PRIORITY_HIGH = 0;    // the user is waiting on the result
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;     // background maintenance
+
+    private static final int POOL_SIZE = 3;
+    private static final int MAX_PENDING = 12;
+
+    private static final AtomicInteger pending = new AtomicInteger();
+    private static final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "VoiceOverlay-worker-" + count.incrementAndGet());
+            }
+        });
+
+    // Only holds delayed work until it is due; runs nothing itself
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VoiceOverlay-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs {@code work} on the pool. The returned result fails immediately
+     * with "Too many requests in progress" when the pool is saturated.
+     */
+    public static <T> AsyncResult<T> submit(int priority, final Callable<T> work) {
+        final AsyncResult<T> result = new AsyncResult<>(priority);
+        if (!admit(result)) {
+            return result;
+        }
+        enqueue(priority, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.complete(work.call());
+                } catch (Exception e) {
+                    result.fail(e);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Like {@link #submit}, for work that finishes asynchronously, such as a
+     * request whose retries are scheduled: {@code work} starts it on the pool
+     * and returns its result, which counts against the bound until it is done.
+     */
+    public static <T> AsyncResult<T> submitAsync(int priority, final Callable<AsyncResult<T>> work) {
+        final AsyncResult<T> result = new AsyncResult<>(priority);
+        if (!admit(result)) {
+            return result;
+        }
+        enqueue(priority, new Runnable() {
+            @Override
+            public void run() {
+                final AsyncResult<T> started;
+                try {
+                    started = work.call();
+                } catch (Exception e) {
+                    pending.decrementAndGet();
+                    result.fail(e);
+                    return;
+                }
+                started.deliver(null, new AsyncResult.Callback<T>() {
+                    @Override
+                    public void onSuccess(T value) {
+                        pending.decrementAndGet();
+                        result.complete(value);
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        pending.decrementAndGet();
+                        result.fail(started.getError());
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    // Counts new work against the bound, or fails its result when the pool is saturated
+    private static boolean admit(AsyncResult<?> result) {
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            Log.w(TAG, "TaskExecutor: rejecting task, " + getQueueDepth() + " queued");
+            result.fail(new ApiException("Too many requests in progress, please try again in a moment"));
+            return false;
+        }
+        return true;
+    }
+
+    // Continuation of already admitted work; not subject to the pending bound
+    static void runAdmitted(int priority, Runnable work) {
+        enqueue(priority, work);
+    }
+
+    // Continuation that is due in delayMs; no worker is held while it waits
+    static void runAdmittedAfter(final int priority, long delayMs, final Runnable work) {
+        if (delayMs <= 0) {
+            runAdmitted(priority, work);
+            return;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runAdmitted(priority, work);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void enqueue(int priority, Runnable work) {
+        executor.execute(new PrioritizedTask(priority, sequence.getAndIncrement(), work));
+        int depth = executor.getQueue().size();
+        int peak;
+        while (depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth)) {
+            // retry
+        }
+    }
+
+    public static int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public static int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public static int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    public static long getCompletedCount() {
+        return completed.get();
+    }
+
+    public static long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public static String describe() {
+        return "queued=" + getQueueDepth() + " active=" + getActiveCount() + " peak=" + getPeakQueueDepth()
+            + " completed=" + getCompletedCount() + " rejected=" + getRejectedCount();
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final int priority;
+        private final long order;
+        private final Runnable work;
+
+        PrioritizedTask(int priority, long order, Runnable work) {
+            this.priority = priority;
+            this.order = order;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            // Only maintenance yields to the UI; anything else has someone waiting on it
+            Process.setThreadPriority(priority == PRIORITY_LOW
+                ? Process.THREAD_PRIORITY_BACKGROUND : Process.THREAD_PRIORITY_DEFAULT);
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "TaskExecutor: task failed", e);
+            } finally {
+                completed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+}
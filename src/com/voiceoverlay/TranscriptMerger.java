@@ -0,0 +1,82 @@
+package com.voiceoverlay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Joins transcripts of overlapping audio chunks. Consecutive chunks share a
+ * second or so of audio, so the end of one transcript and the start of the
+ * next usually repeat a few words; the longest such run is kept once.
+ * Words are compared case- and punctuation-insensitively, and the first
+ * couple of words of a chunk may be skipped because a word cut in half at
+ * the chunk start is often transcribed wrongly. Plain Java.
+ */
+public class TranscriptMerger {
+    private static final int MAX_OVERLAP_WORDS = 12;
+    private static final int MIN_OVERLAP_WORDS = 2;
+    private static final int MAX_SKIPPED_WORDS = 2;
+
+    public static String merge(List<String> parts) {
+        StringBuilder merged = new StringBuilder();
+        List<String> previous = new ArrayList<>();
+        for (String part : parts) {
+            if (part == null || part.trim().isEmpty()) {
+                continue;
+            }
+            List<String> words = split(part);
+            int drop = overlap(previous, words);
+            for (int i = drop; i < words.size(); i++) {
+                if (merged.length() > 0) {
+                    merged.append(' ');
+                }
+                merged.append(words.get(i));
+            }
+            previous = words;
+        }
+        return merged.toString();
+    }
+
+    /** Number of leading words of {@code next} already covered by the end of {@code previous}. */
+    static int overlap(List<String> previous, List<String> next) {
+        for (int skip = 0; skip <= MAX_SKIPPED_WORDS; skip++) {
+            int longest = Math.min(MAX_OVERLAP_WORDS, Math.min(previous.size(), next.size() - skip));
+            for (int length = longest; length >= MIN_OVERLAP_WORDS; length--) {
+                if (matches(previous, previous.size() - length, next, skip, length)) {
+                    return skip + length;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static boolean matches(List<String> a, int aStart, List<String> b, int bStart, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!normalize(a.get(aStart + i)).equals(normalize(b.get(bStart + i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> split(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.trim().split("\\s+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static String normalize(String word) {
+        StringBuilder sb = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,38 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import java.io.File;
+
+/**
+ * One way of turning a recording into text: the OpenAI API, the Firebase
+ * proxy, a self-hosted OpenAI-compatible server, or the on-device
+ * recognizer. {@link TranscriptionRouter} picks one per request.
+ */
+public interface TranscriptionBackend {
+    // Shared by every backend; delivered on a worker thread
+    interface Callback {
+        void onSuccess(String transcription);
+        void onError(String error);
+    }
+
+    /** Stable id, as stored in the {@code transcription_mode} preference. */
+    String getName();
+
+    /** Whether the backend is configured and can run on this device right now. */
+    boolean isAvailable(Context context);
+
+    /**
+     * URL the recording is sent to, or null when it never leaves the device
+     * (such a backend keeps working offline). Empty when not configured.
+     */
+    String getEndpoint(Context context);
+
+    /**
+     * Starts transcribing on {@link TaskExecutor} at {@code priority} and
+     * returns at once. Waits between retries hold no worker.
+     */
+    AsyncResult<String> transcribe(Context context, File audioFile, int priority);
+
+    /** Opens whatever connection {@link #transcribe} will use, ahead of time. */
+    void prewarm(Context context);
+}
@@ -0,0 +1,312 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of finished transcriptions, so running the same audio
+ * through the same backend, model and prompt again costs no upload: a
+ * history recording transcribed again, or a queued one whose upload went
+ * through before the app was stopped.
+ *
+ * Entries are content-addressed: the key is a SHA-256 over the hash of the
+ * uploaded audio plus backend, model and prompt, and each entry is one small
+ * text file. The audio hash is taken while the upload streams the file (see
+ * {@link MultipartBody#addFile(String, File, String, MessageDigest)}),
+ * so the cache never reads a recording of its own. {@link #store} remembers
+ * it against the recording's path, size and modification time, in an
+ * append-only log, and {@link #recordCopy} passes it on to the history
+ * archive; a recording the cache has not seen sent is simply uploaded.
+ * Entries are evicted least recently used first once the cache exceeds
+ * {@link #MAX_BYTES} or {@link #MAX_ENTRIES}.
+ */
+public class TranscriptionCache {
+    private static final String TAG = "VoiceOverlay";
+    private static final String DIR_NAME = "transcription_cache";
+    private static final String FINGERPRINTS = "fingerprints.tsv";
+    private static final String ENTRY_SUFFIX = ".txt";
+    static final long MAX_BYTES = 2 * 1024 * 1024;
+    static final int MAX_ENTRIES = 1000;
+    private static final int MAX_FINGERPRINTS = 500;
+
+    private static TranscriptionCache instance;
+
+    private final File dir;
+    // "path|size|mtime" -> audio hash, least recently used first
+    private final LinkedHashMap<String, String> fingerprints = new LinkedHashMap<>(16, 0.75f, true);
+    private int fingerprintLines = 0;  // in the log, superseded ones included
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    public static synchronized TranscriptionCache get(Context context) {
+        if (instance == null) {
+            instance = new TranscriptionCache(new File(context.getApplicationContext().getFilesDir(), DIR_NAME));
+        }
+        return instance;
+    }
+
+    TranscriptionCache(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+        loadFingerprints();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Cached text for {@code audioFile} with these settings, or null; never reads the recording. */
+    public synchronized String lookup(File audioFile, String backend, String model, String prompt) {
+        String audioHash = fingerprints.get(fileKey(audioFile));
+        if (audioHash == null) {
+            misses.incrementAndGet();
+            return null;  // never sent from this path, so nothing to find
+        }
+        File entry = entryFile(audioHash, backend, model, prompt);
+        try {
+            if (entry.exists()) {
+                String text = read(entry);
+                entry.setLastModified(System.currentTimeMillis());  // LRU position
+                hits.incrementAndGet();
+                return text;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "TranscriptionCache: unreadable entry " + entry.getName(), e);
+            entry.delete();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores {@code text} for {@code audioFile}, whose upload hashed to
+     * {@code uploadHash}; call it once the upload has succeeded.
+     */
+    public synchronized void store(File audioFile, byte[] uploadHash, String backend, String model, String prompt,
+                                   String text) {
+        String audioHash = hex(uploadHash);
+        remember(fileKey(audioFile), audioHash);
+        File entry = entryFile(audioHash, backend, model, prompt);
+        try {
+            writeAtomically(entry, text);
+        } catch (IOException e) {
+            Log.w(TAG, "TranscriptionCache: could not store transcription", e);
+            return;
+        }
+        evict();
+    }
+
+    /** Gives a byte-identical copy (e.g. the history archive) the original's fingerprint without a read. */
+    public synchronized void recordCopy(File source, File copy) {
+        String hash = fingerprints.get(fileKey(source));
+        if (hash != null) {
+            remember(fileKey(copy), hash);
+        }
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries().length;
+    }
+
+    public synchronized long getSizeBytes() {
+        long total = 0;
+        for (File f : entries()) {
+            total += f.length();
+        }
+        return total;
+    }
+
+    public synchronized void clear() {
+        for (File f : entries()) {
+            f.delete();
+        }
+        fingerprints.clear();
+        saveFingerprints();
+    }
+
+    private File entryFile(String audioHash, String backend, String model, String prompt) {
+        MessageDigest digest = newDigest();
+        String key = audioHash + '\n' + backend + '\n' + model + '\n' + prompt;
+        return new File(dir, hex(digest.digest(key.getBytes(java.nio.charset.Charset.forName("UTF-8")))) + ENTRY_SUFFIX);
+    }
+
+    private File[] entries() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(ENTRY_SUFFIX)) {
+                files[count++] = f;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private void evict() {
+        File[] files = entries();
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= MAX_BYTES && files.length <= MAX_ENTRIES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        int remaining = files.length;
+        for (File f : files) {
+            if (total <= MAX_BYTES && remaining <= MAX_ENTRIES) {
+                break;
+            }
+            total -= f.length();
+            remaining--;
+            f.delete();
+        }
+    }
+
+    private static String fileKey(File file) {
+        return file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+    }
+
+    private void remember(String fileKey, String hash) {
+        if (hash.equals(fingerprints.put(fileKey, hash))) {
+            return;
+        }
+        trimFingerprints();
+        if (fingerprintLines >= 2 * MAX_FINGERPRINTS) {
+            saveFingerprints();  // mostly superseded or trimmed lines by now
+            return;
+        }
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, FINGERPRINTS), true), "UTF-8");
+            try {
+                writer.write(hash + '\t' + fileKey + '\n');
+            } finally {
+                writer.close();
+            }
+            fingerprintLines++;
+        } catch (IOException e) {
+            Log.w(TAG, "TranscriptionCache: could not save fingerprint", e);
+        }
+    }
+
+    private void trimFingerprints() {
+        Iterator<Map.Entry<String, String>> it = fingerprints.entrySet().iterator();
+        while (fingerprints.size() > MAX_FINGERPRINTS && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void loadFingerprints() {
+        File file = new File(dir, FINGERPRINTS);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    fingerprintLines++;
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        fingerprints.put(line.substring(tab + 1), line.substring(0, tab));  // later lines win
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "TranscriptionCache: could not read fingerprints", e);
+        }
+        trimFingerprints();
+    }
+
+    private void saveFingerprints() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : fingerprints.entrySet()) {
+            sb.append(e.getValue()).append('\t').append(e.getKey()).append('\n');
+        }
+        try {
+            writeAtomically(new File(dir, FINGERPRINTS), sb.toString());
+            fingerprintLines = fingerprints.size();
+        } catch (IOException e) {
+            Log.w(TAG, "TranscriptionCache: could not save fingerprints", e);
+        }
+    }
+
+    private static void writeAtomically(File target, String content) throws IOException {
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(content);
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + target.getName());
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,556 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Network;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recordings whose transcription failed for want of a network, kept until
+ * it can be retried instead of being deleted.
+ *
+ * Each queued recording is moved into {@code transcription_queue/} and
+ * recorded in a journal of {@code add}, {@code done} and {@code drop}
+ * lines, synced before enqueue returns, so the queue survives the service
+ * being killed. While started, the queue drains whenever a network comes up
+ * and, after a failed attempt, on a timer that backs off from
+ * {@link #MIN_RETRY_MS} to {@link #MAX_RETRY_MS}; at most
+ * {@link #MAX_CONCURRENT} uploads run at once. A finished job goes to
+ * history with its recording, like any other transcription.
+ *
+ * The folder is held to {@link #KEY_CAP_MB}. When a new recording does not
+ * fit, {@link #KEY_SPILL} decides whether the oldest queued ones make room
+ * ({@link #SPILL_DROP_OLDEST}) or the new one is refused
+ * ({@link #SPILL_REJECT_NEW}).
+ */
+public class TranscriptionQueue {
+    private static final String TAG = "VoiceOverlay";
+    private static final String PREFS_NAME = "VoiceOverlayPrefs";
+    static final String KEY_CAP_MB = "offline_queue_cap_mb";
+    static final int DEFAULT_CAP_MB = 100;
+    static final String KEY_SPILL = "offline_queue_spill";
+    static final String SPILL_DROP_OLDEST = "drop_oldest";
+    static final String SPILL_REJECT_NEW = "reject_new";
+    static final int MAX_CONCURRENT = 2;
+    static final int MAX_ATTEMPTS = 5;
+    static final long MIN_RETRY_MS = 30 * 1000;
+    static final long MAX_RETRY_MS = 15 * 60 * 1000;
+    private static final int PROBE_TIMEOUT_MS = 3000;
+    private static final String JOURNAL = "queue.journal";
+
+    public interface Listener {
+        // Both run on a worker thread
+        void onTranscribed(String text);
+        void onFailed(String error);
+    }
+
+    static final class Job {
+        final long id;
+        final File file;
+        final long createdAt;
+        int attempts;
+
+        Job(long id, File file, long createdAt) {
+            this.id = id;
+            this.file = file;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static TranscriptionQueue instance;
+
+    private final Context context;
+    private final File dir;
+    private final File journal;
+    private final Map<Long, Job> jobs = new LinkedHashMap<>();  // oldest first
+    private final Set<Long> inFlight = new HashSet<>();
+    private long nextId = 1;
+    private Listener listener;
+    private Handler handler;
+    private NetworkState.Listener networkListener;
+    private long retryDelayMs = MIN_RETRY_MS;
+    private boolean retryScheduled = false;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong attemptsFailed = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TranscriptionQueue.this) {
+                retryScheduled = false;
+            }
+            drain();
+        }
+    };
+
+    public static synchronized TranscriptionQueue get(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new TranscriptionQueue(app, new File(app.getFilesDir(), "transcription_queue"));
+        }
+        return instance;
+    }
+
+    TranscriptionQueue(Context context, File dir) {
+        this.context = context;
+        this.dir = dir;
+        this.journal = new File(dir, JOURNAL);
+        dir.mkdirs();
+        load();
+    }
+
+    /**
+     * Whether a failure is worth retrying later: the request never got an
+     * answer, or the server said it was busy or broken (408, 429, 5xx).
+     */
+    public static boolean isTransient(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof ApiException) {
+                int code = ((ApiException) t).getStatusCode();
+                if (code > 0) {
+                    return code == 408 || code == 429 || code >= 500;
+                }
+            } else if (t instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** True when the device has no connected network at all. */
+    public static boolean isOffline(Context context) {
+        return !NetworkState.get(context).isConnected();
+    }
+
+    /**
+     * Takes {@code audio} into the queue, moving it out of the caller's hands.
+     * Returns false, leaving the file where it was, when it does not fit and
+     * the spill policy keeps the older recordings.
+     */
+    public boolean enqueue(File audio) throws IOException {
+        long size = audio.length();
+        synchronized (this) {
+            if (!makeRoom(size)) {
+                refused.incrementAndGet();
+                Log.w(TAG, "TranscriptionQueue: full, not keeping " + audio.getName());
+                return false;
+            }
+            long id = nextId++;
+            File target = new File(dir, id + "_" + audio.getName());
+            if (!audio.renameTo(target)) {
+                copy(audio, target);
+                audio.delete();
+            }
+            Job job = new Job(id, target, System.currentTimeMillis());
+            appendJournal("add\t" + id + "\t" + job.createdAt + "\t" + target.getName());
+            jobs.put(id, job);
+            enqueued.incrementAndGet();
+        }
+        Log.d(TAG, "TranscriptionQueue: queued " + audio.getName() + ", " + size() + " waiting");
+        if (!isOffline(context)) {
+            scheduleRetry();  // online but failing; try again after a pause
+        }
+        return true;
+    }
+
+    /**
+     * Starts draining on connectivity changes and runs one pass right away.
+     * {@code listener} hears about jobs that finish while started.
+     */
+    public void start(Listener listener) {
+        synchronized (this) {
+            this.listener = listener;
+            if (handler == null) {
+                handler = new Handler(Looper.getMainLooper());
+            }
+            if (networkListener == null) {
+                networkListener = new NetworkState.Listener() {
+                    @Override
+                    public void onNetworkChanged(Network network) {
+                        if (network == null) {
+                            return;
+                        }
+                        synchronized (TranscriptionQueue.this) {
+                            retryDelayMs = MIN_RETRY_MS;  // a new network deserves a fresh start
+                        }
+                        drain();
+                    }
+                };
+                NetworkState.get(context).addListener(networkListener);
+            }
+        }
+        drain();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            listener = null;
+            if (handler != null) {
+                handler.removeCallbacks(retry);
+                retryScheduled = false;
+            }
+            if (networkListener != null) {
+                NetworkState.get(context).removeListener(networkListener);
+                networkListener = null;
+            }
+        }
+    }
+
+    /** Starts uploads for the oldest waiting jobs, up to {@link #MAX_CONCURRENT} at once. */
+    public void drain() {
+        List<Job> toStart = new ArrayList<>();
+        synchronized (this) {
+            if (isOffline(context)) {
+                return;
+            }
+            for (Job job : jobs.values()) {
+                if (inFlight.size() + toStart.size() >= MAX_CONCURRENT) {
+                    break;
+                }
+                if (!inFlight.contains(job.id)) {
+                    toStart.add(job);
+                }
+            }
+            for (Job job : toStart) {
+                inFlight.add(job.id);
+            }
+        }
+        for (Job job : toStart) {
+            attempt(job);
+        }
+    }
+
+    private void attempt(final Job job) {
+        final AsyncResult<String> result = TaskExecutor.submitAsync(TaskExecutor.PRIORITY_NORMAL,
+            new Callable<AsyncResult<String>>() {
+                @Override
+                public AsyncResult<String> call() throws Exception {
+                    return transcribe(job.file);
+                }
+            });
+        result.deliver(null, new AsyncResult.Callback<String>() {
+            @Override
+            public void onSuccess(String text) {
+                finish(job, text);
+            }
+
+            @Override
+            public void onError(String error) {
+                Exception cause = result.getError();
+                int status = cause instanceof ApiException ? ((ApiException) cause).getStatusCode() : -1;
+                // Network trouble is retried until it clears, a refusal from the server is final,
+                // and anything else (a saturated pool, a missing API key) gets a few more tries
+                fail(job, error, isTransient(cause) || (status <= 0 && job.attempts + 1 < MAX_ATTEMPTS));
+            }
+        });
+    }
+
+    // Same backend choice as a live transcription; the probe blocks the worker for at most PROBE_TIMEOUT_MS
+    private AsyncResult<String> transcribe(File audio) throws IOException {
+        TranscriptionRouter router = TranscriptionRouter.get(context);
+        TranscriptionBackend backend = router.choose(audio.length());
+        String endpoint = backend.getEndpoint(context);
+        if (endpoint != null) {
+            probe(endpoint);
+        }
+        return router.transcribe(backend, audio, TaskExecutor.PRIORITY_NORMAL);
+    }
+
+    // A connected network may still not reach the server (captive portal, dead
+    // IPv6 route); a quick raced connect finds out before the recording is read
+    private void probe(String endpoint) throws IOException {
+        if (endpoint.isEmpty()) {
+            return;  // unconfigured; the API reports that itself
+        }
+        URL url = new URL(endpoint);
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = NetworkState.get(context).connect(url.getHost(), port, PROBE_TIMEOUT_MS);
+        socket.close();
+    }
+
+    private void finish(Job job, String text) {
+        saveToHistory(job, text);
+        Listener notify;
+        synchronized (this) {
+            inFlight.remove(job.id);
+            jobs.remove(job.id);
+            appendJournalQuietly("done\t" + job.id);
+            retryDelayMs = MIN_RETRY_MS;
+            notify = listener;
+        }
+        job.file.delete();
+        completed.incrementAndGet();
+        Log.d(TAG, "TranscriptionQueue: job " + job.id + " done after " + (job.attempts + 1) + " attempts");
+        if (notify != null) {
+            notify.onTranscribed(text);
+        }
+        drain();
+    }
+
+    private void fail(Job job, String error, boolean retryable) {
+        attemptsFailed.incrementAndGet();
+        Listener notify = null;
+        synchronized (this) {
+            inFlight.remove(job.id);
+            job.attempts++;
+            if (!retryable) {
+                jobs.remove(job.id);
+                appendJournalQuietly("drop\t" + job.id);
+                notify = listener;
+            }
+        }
+        if (!retryable) {
+            Log.w(TAG, "TranscriptionQueue: giving up on job " + job.id + ": " + error);
+            job.file.delete();
+            if (notify != null) {
+                notify.onFailed(error);
+            }
+            drain();
+            return;
+        }
+        Log.w(TAG, "TranscriptionQueue: job " + job.id + " attempt " + job.attempts + " failed: " + error);
+        scheduleRetry();
+    }
+
+    private void scheduleRetry() {
+        synchronized (this) {
+            if (handler == null || retryScheduled) {
+                return;
+            }
+            retryScheduled = true;
+            handler.postDelayed(retry, retryDelayMs);
+            retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_MS);
+        }
+    }
+
+    private void saveToHistory(Job job, String text) {
+        Date recordedAt = new Date(job.createdAt);
+        String timestamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.getDefault()).format(recordedAt);
+        String displayTimestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(recordedAt);
+        String name = job.file.getName();
+        String extension = name.lastIndexOf('.') >= 0 ? name.substring(name.lastIndexOf('.')) : ".m4a";
+        String audioPath = "";
+        try {
+            audioPath = AudioArchive.get(context).archive(job.file, "recording_" + timestamp + extension, false)
+                .getAbsolutePath();
+        } catch (IOException e) {
+            Log.e(TAG, "TranscriptionQueue: could not archive " + name, e);
+        }
+        try {
+            HistoryStore.get(context).append(displayTimestamp, text, audioPath);
+        } catch (IOException e) {
+            Log.e(TAG, "TranscriptionQueue: could not save history entry", e);
+        }
+    }
+
+    // Frees space for `incoming` bytes under the spill policy; false if it cannot fit
+    private boolean makeRoom(long incoming) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long cap = prefs.getInt(KEY_CAP_MB, DEFAULT_CAP_MB) * 1024L * 1024L;
+        boolean dropOldest = prefs.getString(KEY_SPILL, SPILL_DROP_OLDEST).equals(SPILL_DROP_OLDEST);
+        if (incoming > cap) {
+            return false;
+        }
+        long total = getQueuedBytes();
+        if (total + incoming <= cap) {
+            return true;
+        }
+        if (!dropOldest) {
+            return false;
+        }
+        List<Job> victims = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (total + incoming <= cap) {
+                break;
+            }
+            if (!inFlight.contains(job.id)) {
+                victims.add(job);
+                total -= job.file.length();
+            }
+        }
+        if (total + incoming > cap) {
+            return false;  // the rest are uploading right now
+        }
+        for (Job job : victims) {
+            jobs.remove(job.id);
+            appendJournalQuietly("drop\t" + job.id);
+            job.file.delete();
+            spilled.incrementAndGet();
+            Log.w(TAG, "TranscriptionQueue: dropped " + job.file.getName() + " to make room");
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    public synchronized long getQueuedBytes() {
+        long total = 0;
+        for (Job job : jobs.values()) {
+            total += job.file.length();
+        }
+        return total;
+    }
+
+    public synchronized String describe() {
+        return "queued=" + jobs.size() + " bytes=" + getQueuedBytes() + " inFlight=" + inFlight.size()
+            + " enqueued=" + enqueued.get() + " completed=" + completed.get()
+            + " failedAttempts=" + attemptsFailed.get() + " spilled=" + spilled.get() + " refused=" + refused.get();
+    }
+
+    // Replays the journal, adopts recordings that were moved in but never journaled, and compacts
+    private void load() {
+        Map<Long, Job> live = new LinkedHashMap<>();
+        Set<String> known = new HashSet<>();
+        if (journal.exists()) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+                try {
+                    String line;
+                    int lineNumber = 0;
+                    while ((line = reader.readLine()) != null) {
+                        lineNumber++;
+                        String[] fields = line.split("\t");
+                        try {
+                            long id = Long.parseLong(fields[1]);
+                            nextId = Math.max(nextId, id + 1);
+                            if (fields[0].equals("add") && fields.length == 4) {
+                                live.put(id, new Job(id, new File(dir, fields[3]), Long.parseLong(fields[2])));
+                                known.add(fields[3]);
+                            } else if (fields[0].equals("done") || fields[0].equals("drop")) {
+                                live.remove(id);
+                            }
+                        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            Log.w(TAG, "TranscriptionQueue: skipping journal line " + lineNumber);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "TranscriptionQueue: could not read journal", e);
+            }
+        }
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.equals(journal) || !f.isFile()) {
+                    continue;
+                }
+                if (!known.contains(f.getName())) {
+                    long id = nextId++;
+                    live.put(id, new Job(id, f, f.lastModified()));
+                    Log.w(TAG, "TranscriptionQueue: adopted unjournaled " + f.getName());
+                } else if (!isLive(live, f)) {
+                    f.delete();  // finished, but the process died before deleting it
+                }
+            }
+        }
+        for (Job job : new ArrayList<>(live.values())) {
+            if (!job.file.exists()) {
+                live.remove(job.id);
+            }
+        }
+        jobs.putAll(live);
+
+        try {
+            rewriteJournal();
+        } catch (IOException e) {
+            Log.e(TAG, "TranscriptionQueue: could not compact journal", e);
+        }
+        if (!jobs.isEmpty()) {
+            Log.d(TAG, "TranscriptionQueue: " + jobs.size() + " recordings waiting from an earlier session");
+        }
+    }
+
+    private static boolean isLive(Map<Long, Job> live, File f) {
+        for (Job job : live.values()) {
+            if (job.file.equals(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rewriteJournal() throws IOException {
+        File temp = new File(dir, JOURNAL + ".new");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            for (Job job : jobs.values()) {
+                writer.write("add\t" + job.id + "\t" + job.createdAt + "\t" + job.file.getName() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(journal)) {
+            temp.delete();
+            throw new IOException("Could not replace " + journal);
+        }
+    }
+
+    private void appendJournal(String line) throws IOException {
+        FileOutputStream out = new FileOutputStream(journal, true);
+        try {
+            out.write((line + "\n").getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void appendJournalQuietly(String line) {
+        try {
+            appendJournal(line);
+        } catch (IOException e) {
+            Log.e(TAG, "TranscriptionQueue: could not update journal", e);
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                long size = in.size();
+                for (long position = 0; position < size; ) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.voiceoverlay;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the {@link TranscriptionBackend} for each recording.
+ *
+ * With {@code transcription_mode} set to one backend, that backend is used,
+ * as before. In {@link #MODE_AUTO} every available backend is scored from
+ * its last {@link #WINDOW} requests: latency is fitted against payload
+ * size, so a slow-to-start but fast-uploading server can win long
+ * recordings and lose short ones, and divided by the success rate, so a
+ * flaky path pays for its retries. Backends whose circuit breaker is open
+ * are skipped, and only on-device ones are considered while offline. Every
+ * {@link #EXPLORE_EVERY}th request goes to the backend heard from least
+ * recently, so a path that got faster gets noticed.
+ */
+public class TranscriptionRouter {
+    private static final String TAG = "VoiceOverlay";
+    private static final String PREFS_NAME = "VoiceOverlayPrefs";
+    static final String KEY_TRANSCRIPTION_MODE = "transcription_mode";
+    static final String MODE_AUTO = "auto";
+    static final int WINDOW = 20;
+    static final int MIN_SAMPLES = 3;
+    static final int EXPLORE_EVERY = 10;
+    private static final long TYPICAL_BYTES = 200 * 1024;  // for prewarm, before any recording was sent
+
+    // In order of preference while nothing has been measured
+    static final List<TranscriptionBackend> BACKENDS = Arrays.asList(
+        WhisperAPI.OPENAI, WhisperAPI.SELF_HOSTED, FirebaseWhisperAPI.BACKEND, OnDeviceTranscriber.BACKEND);
+
+    static final class Sample {
+        final long bytes;
+        final long latencyMs;
+        final boolean ok;
+
+        Sample(long bytes, long latencyMs, boolean ok) {
+            this.bytes = bytes;
+            this.latencyMs = latencyMs;
+            this.ok = ok;
+        }
+    }
+
+    // Moving window of one backend's outcomes
+    static final class Stats {
+        final ArrayDeque<Sample> window = new ArrayDeque<>();
+        long lastUsedAt;  // elapsedRealtime
+
+        void add(Sample sample) {
+            window.addLast(sample);
+            if (window.size() > WINDOW) {
+                window.removeFirst();
+            }
+        }
+
+        double errorRate() {
+            if (window.isEmpty()) {
+                return 0;
+            }
+            int failed = 0;
+            for (Sample s : window) {
+                if (!s.ok) {
+                    failed++;
+                }
+            }
+            return (double) failed / window.size();
+        }
+
+        /** Least-squares latency for {@code bytes} over successful samples; -1 with none. */
+        double predictLatencyMs(long bytes) {
+            int n = 0;
+            double sumB = 0;
+            double sumL = 0;
+            for (Sample s : window) {
+                if (s.ok) {
+                    n++;
+                    sumB += s.bytes;
+                    sumL += s.latencyMs;
+                }
+            }
+            if (n == 0) {
+                return -1;
+            }
+            double meanB = sumB / n;
+            double meanL = sumL / n;
+            double cov = 0;
+            double var = 0;
+            for (Sample s : window) {
+                if (s.ok) {
+                    cov += (s.bytes - meanB) * (s.latencyMs - meanL);
+                    var += (s.bytes - meanB) * (s.bytes - meanB);
+                }
+            }
+            if (n < 2 || var < 1) {
+                return meanL;  // all the same size; nothing to fit
+            }
+            double perByte = Math.max(0, cov / var);
+            double fixed = Math.max(0, meanL - perByte * meanB);
+            return fixed + perByte * bytes;
+        }
+
+        /** Expected time to a transcript, counting failed tries; lower is better. */
+        double score(long bytes) {
+            double latency = predictLatencyMs(bytes);
+            if (latency < 0) {
+                return Double.MAX_VALUE;  // nothing but failures
+            }
+            return latency / Math.max(0.05, 1 - errorRate());
+        }
+    }
+
+    private static TranscriptionRouter instance;
+
+    private final Context context;
+    private final List<TranscriptionBackend> backends;
+    private final Map<String, Stats> stats = new HashMap<>();
+    private long requests = 0;
+    private long lastBytes = TYPICAL_BYTES;
+
+    public static synchronized TranscriptionRouter get(Context context) {
+        if (instance == null) {
+            instance = new TranscriptionRouter(context.getApplicationContext(), BACKENDS);
+        }
+        return instance;
+    }
+
+    TranscriptionRouter(Context context, List<TranscriptionBackend> backends) {
+        this.context = context;
+        this.backends = backends;
+        for (TranscriptionBackend backend : backends) {
+            stats.put(backend.getName(), new Stats());
+        }
+    }
+
+    /** Transcribes {@code audioFile} with the backend {@link #choose} picks. */
+    public AsyncResult<String> transcribeAsync(File audioFile) {
+        TranscriptionBackend backend = choose(audioFile.length());
+        return transcribe(backend, audioFile, TaskExecutor.PRIORITY_HIGH).wrapErrors();
+    }
+
+    /** Runs {@code backend} and records how it did. */
+    public AsyncResult<String> transcribe(final TranscriptionBackend backend, File audioFile, int priority) {
+        final long bytes = audioFile.length();
+        final long hitsBefore = TranscriptionCache.getHits();
+        final long start = SystemClock.elapsedRealtime();
+        return backend.transcribe(context, audioFile, priority).deliver(null, new AsyncResult.Callback<String>() {
+            @Override
+            public void onSuccess(String text) {
+                // A cache hit says nothing about the backend; another thread's hit only costs a sample
+                if (TranscriptionCache.getHits() == hitsBefore) {
+                    record(backend, new Sample(bytes, SystemClock.elapsedRealtime() - start, true));
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.w(TAG, "TranscriptionRouter: " + backend.getName() + " failed: " + error);
+                record(backend, new Sample(bytes, SystemClock.elapsedRealtime() - start, false));
+            }
+        });
+    }
+
+    /** The backend for a payload of {@code bytes}, per the mode preference. */
+    public synchronized TranscriptionBackend choose(long bytes) {
+        lastBytes = bytes;
+        requests++;
+        return pick(bytes, requests % EXPLORE_EVERY == 0);
+    }
+
+    // explore: hand this request to the least recently used candidate instead of the best
+    private TranscriptionBackend pick(long bytes, boolean explore) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String mode = prefs.getString(KEY_TRANSCRIPTION_MODE, "api");
+        if (!mode.equals(MODE_AUTO)) {
+            for (TranscriptionBackend backend : backends) {
+                if (backend.getName().equals(mode)) {
+                    return backend;
+                }
+            }
+            return backends.get(0);
+        }
+
+        boolean offline = !NetworkState.get(context).isConnected();
+        TranscriptionBackend best = null;
+        TranscriptionBackend fallback = null;
+        TranscriptionBackend stalest = null;  // never-used ones first
+        double bestScore = Double.MAX_VALUE;
+        for (TranscriptionBackend backend : backends) {
+            if (!backend.isAvailable(context) || isTripped(backend)) {
+                continue;
+            }
+            if (offline && backend.getEndpoint(context) != null) {
+                continue;
+            }
+            Stats s = stats.get(backend.getName());
+            if (fallback == null) {
+                fallback = backend;
+            }
+            if (stalest == null || s.lastUsedAt < stats.get(stalest.getName()).lastUsedAt) {
+                stalest = backend;
+            }
+            if (s.window.size() >= MIN_SAMPLES) {
+                double score = s.score(bytes);
+                if (best == null || score < bestScore) {
+                    best = backend;
+                    bestScore = score;
+                }
+            }
+        }
+        if (best == null) {
+            // Nothing measured yet: go by preference until something is
+            return fallback != null ? fallback : backends.get(0);
+        }
+        if (explore && stalest != best) {
+            Log.d(TAG, "TranscriptionRouter: trying " + stalest.getName() + " instead of " + best.getName());
+            return stalest;
+        }
+        return best;
+    }
+
+    // Open circuit breaker: the backend is failing fast anyway
+    private boolean isTripped(TranscriptionBackend backend) {
+        String endpoint = backend.getEndpoint(context);
+        return endpoint != null && !endpoint.isEmpty()
+            && RetryPolicy.forEndpoint(endpoint).getState() == RetryPolicy.State.OPEN;
+    }
+
+    private synchronized void record(TranscriptionBackend backend, Sample sample) {
+        Stats s = stats.get(backend.getName());
+        if (s == null) {
+            return;
+        }
+        s.add(sample);
+        s.lastUsedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Opens a connection to the backend the next recording is likely to use.
+     * Only peeks: the exploration count and last payload size are left alone.
+     */
+    public void prewarm() {
+        TranscriptionBackend backend;
+        synchronized (this) {
+            backend = pick(lastBytes, (requests + 1) % EXPLORE_EVERY == 0);
+        }
+        backend.prewarm(context);
+    }
+
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (TranscriptionBackend backend : backends) {
+            Stats s = stats.get(backend.getName());
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            double predicted = s.predictLatencyMs(lastBytes);
+            sb.append(backend.getName()).append(" samples=").append(s.window.size())
+                .append(" errors=").append(Math.round(s.errorRate() * 100)).append('%')
+                .append(" predictedMs=").append(predicted < 0 ? "?" : String.valueOf(Math.round(predicted)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,285 @@
+package com.voiceoverlay;
+
+import android.annotation.TargetApi;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces what is actually uploaded for transcription: 16 kHz mono at a
+ * speech bitrate, which is all Whisper uses. The recording itself is left
+ * alone, so history keeps whatever quality the user chose, and a recording
+ * that is already 16 kHz mono at a speech bitrate is sent as is.
+ *
+ * From API 29 the conversion is piped into the request: decoding,
+ * resampling, Opus encoding and Ogg paging run as one stream while the
+ * body is being written, so the upload starts with the first page instead
+ * of after a finished derivative. The rendition is kept on the side as it
+ * goes, so a retry resends it with a known length rather than converting
+ * again. Before that there is no platform Opus encoder and MP4 cannot be
+ * streamed, so API 21-28 write an AAC derivative first, as
+ * {@link AudioDecoder}, {@link PcmResampler} and {@link AacEncoder} stream
+ * it to disk; only a codec buffer's worth of PCM exists at any time.
+ */
+public class UploadTranscoder {
+    private static final String TAG = "VoiceOverlay";
+    static final int TARGET_SAMPLE_RATE = 16000;
+    static final int TARGET_BIT_RATE = 32000;
+    static final int OPUS_BIT_RATE = 24000;  // same as the Compact recording preset
+
+    /**
+     * The upload for {@code input}: streamed through the Opus encoder, an AAC
+     * derivative, or the recording itself when it is already small enough,
+     * is not AAC, or cannot be converted. Callers {@link Upload#release}
+     * it once the upload is over.
+     */
+    public static Upload prepare(File input) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || isOpus(input)) {
+            return new Upload(input, input);
+        }
+        File output = null;
+        AacEncoder encoder = null;
+        try {
+            MediaFormat format = AudioDecoder.readFormat(input);
+            if (format == null || !needsTranscode(format, input.length())) {
+                return new Upload(input, input);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                return new Upload(input, null);
+            }
+
+            output = new File(input.getParentFile(), baseName(input) + "_upload.m4a");
+            encoder = new AacEncoder(output, TARGET_BIT_RATE);
+            AudioDecoder.decode(input, downsampleTo(encoder));
+
+            if (output.length() == 0 || output.length() >= input.length()) {
+                output.delete();
+                return new Upload(input, input);
+            }
+            Log.d(TAG, "UploadTranscoder: derivative " + output.length() + " bytes (original " + input.length() + ")");
+            return new Upload(input, output);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "UploadTranscoder: transcoding failed, uploading original", e);
+            if (encoder != null) {
+                encoder.release();
+            }
+            if (output != null) {
+                output.delete();
+            }
+            return new Upload(input, input);
+        }
+    }
+
+    /**
+     * One recording's file part. While {@code file} is null it is converted
+     * as it is written; after that it is whatever file should go out.
+     */
+    public static final class Upload implements MultipartBody.Source {
+        private final File original;
+        private final File rendition;
+        private volatile File file;
+
+        Upload(File original, File file) {
+            this.original = original;
+            this.file = file;
+            this.rendition = new File(original.getParentFile(), baseName(original) + "_upload.ogg");
+        }
+
+        @Override
+        public String getFileName() {
+            File sending = file;
+            return (sending != null ? sending : rendition).getName();
+        }
+
+        @Override
+        public String getContentType() {
+            File sending = file;
+            return AudioRecorder.contentTypeFor(sending != null ? sending : rendition);
+        }
+
+        @Override
+        public long getLength() {
+            File sending = file;
+            return sending != null ? sending.length() : -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            File sending = file;
+            if (sending != null) {
+                MultipartBody.copyFile(sending, out);
+            } else {
+                stream(out);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.Q)
+        private void stream(OutputStream out) throws IOException {
+            RequestStream request = new RequestStream(out);
+            FileOutputStream copy = new FileOutputStream(rendition);
+            OpusStreamEncoder encoder = new OpusStreamEncoder(new Tee(request, copy), OPUS_BIT_RATE);
+            boolean complete = false;
+            try {
+                AudioDecoder.decode(original, downsampleTo(encoder));
+                complete = true;
+            } catch (IOException | RuntimeException e) {
+                encoder.release();
+                if (request.failed) {
+                    throw e;  // the connection broke; a retry converts again
+                }
+                // The bytes already sent are no use; the next try sends the recording as it is
+                Log.w(TAG, "UploadTranscoder: streaming transcode failed, uploading original", e);
+                file = original;
+                throw new IOException("Could not convert the recording for upload", e);
+            } finally {
+                copy.close();
+                if (complete) {
+                    file = rendition;
+                    Log.d(TAG, "UploadTranscoder: streamed " + rendition.length() + " bytes (original "
+                        + original.length() + ")");
+                } else {
+                    rendition.delete();
+                }
+            }
+        }
+
+        /** Deletes any converted copy; the recording itself stays. */
+        public void release() {
+            rendition.delete();
+            File sending = file;
+            if (sending != null && !sending.equals(original)) {
+                sending.delete();
+            }
+        }
+    }
+
+    // Notes whether a write to the request itself failed, as opposed to the conversion
+    private static class RequestStream extends FilterOutputStream {
+        volatile boolean failed = false;
+
+        RequestStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+    // The request and the rendition kept for retries get the same bytes
+    private static class Tee extends OutputStream {
+        private final OutputStream first;
+        private final OutputStream second;
+
+        Tee(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    // Compact recordings are speech-rate Opus already; no need to open them to find out
+    private static boolean isOpus(File file) {
+        String name = file.getName();
+        return name.endsWith(".ogg") || name.endsWith(".opus");
+    }
+
+    static boolean needsTranscode(MediaFormat format, long fileBytes) {
+        return needsTranscode(format, fileBytes, TARGET_BIT_RATE);
+    }
+
+    /**
+     * Whether AAC {@code format} is worth converting to 16 kHz mono at about
+     * {@code targetBitRate}: it is above 16 kHz or not mono, or it is 16 kHz
+     * mono but at more than twice the target, which is no longer speech rate.
+     */
+    static boolean needsTranscode(MediaFormat format, long fileBytes, int targetBitRate) {
+        if (!MediaFormat.MIMETYPE_AUDIO_AAC.equals(format.getString(MediaFormat.KEY_MIME))) {
+            return false;  // Opus and anything else is left as recorded
+        }
+        if (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) > TARGET_SAMPLE_RATE
+            || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) > 1) {
+            return true;
+        }
+        // Already 16 kHz mono; left alone at a speech bitrate
+        long bitRate;
+        if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            bitRate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+        } else if (format.containsKey(MediaFormat.KEY_DURATION) && format.getLong(MediaFormat.KEY_DURATION) > 0) {
+            bitRate = fileBytes * 8 * 1000000L / format.getLong(MediaFormat.KEY_DURATION);
+        } else {
+            return false;
+        }
+        return bitRate > targetBitRate * 2;
+    }
+
+    /** Consumer that feeds decoded audio into {@code encoder} as 16 kHz mono. */
+    static PcmConsumer downsampleTo(PcmConsumer encoder) {
+        return new Downsampler(encoder);
+    }
+
+    // Resamples decoded audio to 16 kHz mono on its way into the encoder
+    private static class Downsampler implements PcmConsumer {
+        private final PcmConsumer encoder;
+        private PcmResampler resampler;
+        private short[] out = new short[0];
+
+        Downsampler(PcmConsumer encoder) {
+            this.encoder = encoder;
+        }
+
+        @Override
+        public void onStart(int sampleRate, int channels) throws IOException {
+            resampler = new PcmResampler(sampleRate, channels, TARGET_SAMPLE_RATE);
+            encoder.onStart(TARGET_SAMPLE_RATE, 1);
+        }
+
+        @Override
+        public void onPcm(short[] pcm, int offset, int length) throws IOException {
+            int needed = resampler.maxOutput(length);
+            if (out.length < needed) {
+                out = new short[needed];
+            }
+            int count = resampler.process(pcm, offset, length, out);
+            encoder.onPcm(out, 0, count);
+        }
+
+        @Override
+        public void onStop() throws IOException {
+            encoder.onStop();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.voiceoverlay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Energy / zero-crossing voice activity detector for 16-bit mono PCM.
+ *
+ * Audio is fed in arbitrary chunks through {@link #process}; it is split into
+ * fixed 20 ms frames, each classified against an adaptive noise floor. Loud
+ * frames count as speech, as do quieter frames with a high zero-crossing rate
+ * (fricatives such as "s" and "f" carry little energy). A short hangover
+ * keeps word endings. Plain Java so it can run on JVM PCM fixtures.
+ */
+public class VoiceActivityDetector {
+    private static final int FRAME_MS = 20;
+    private static final double MIN_SPEECH_DB = -55.0;      // absolute floor, dBFS
+    private static final double LOUD_DB = -30.0;            // always speech, whatever the floor
+    private static final double INITIAL_FLOOR_DB = -50.0;
+    private static final double SPEECH_MARGIN_DB = 10.0;    // above noise floor
+    private static final double FRICATIVE_MARGIN_DB = 5.0;
+    private static final double FRICATIVE_ZCR = 0.25;       // crossings per sample
+    private static final double FLOOR_RISE_DB = 0.05;       // per frame
+    private static final int START_FRAMES = 2;              // consecutive frames to open speech
+    private static final int HANGOVER_FRAMES = 8;           // frames kept after speech drops
+
+    private final int sampleRate;
+    private final int frameSize;
+    private final short[] frame;
+    private int frameFill = 0;
+    private long framesProcessed = 0;
+
+    private double noiseFloorDb = Double.NaN;
+    private int speechRun = 0;
+    private int hangover = 0;
+    private boolean inSpeech = false;
+    private long speechStartFrame = 0;
+    private final List<long[]> speechFrames = new ArrayList<>();  // {startFrame, endFrameExclusive}
+
+    public VoiceActivityDetector(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.frameSize = Math.max(1, sampleRate * FRAME_MS / 1000);
+        this.frame = new short[frameSize];
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void process(short[] pcm, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            int n = Math.min(frameSize - frameFill, end - offset);
+            System.arraycopy(pcm, offset, frame, frameFill, n);
+            frameFill += n;
+            offset += n;
+            if (frameFill == frameSize) {
+                classify(frame, frameSize);
+                frameFill = 0;
+            }
+        }
+    }
+
+    /** Flushes the partial last frame and closes any open speech region. */
+    public void finish() {
+        if (frameFill > 0) {
+            classify(frame, frameFill);
+            frameFill = 0;
+        }
+        if (inSpeech) {
+            speechFrames.add(new long[]{speechStartFrame, framesProcessed});
+            inSpeech = false;
+        }
+    }
+
+    public long getProcessedSamples() {
+        return framesProcessed * frameSize + frameFill;
+    }
+
+    // True while the most recent frames are classified as speech
+    public boolean isSpeech() {
+        return inSpeech;
+    }
+
+    /** Speech regions as {startSample, endSample} pairs, in order. */
+    public List<long[]> getSpeechRegions() {
+        List<long[]> regions = new ArrayList<>(speechFrames.size());
+        for (long[] r : speechFrames) {
+            regions.add(new long[]{r[0] * frameSize, r[1] * frameSize});
+        }
+        return regions;
+    }
+
+    private void classify(short[] samples, int count) {
+        double sumSquares = 0;
+        int crossings = 0;
+        for (int i = 0; i < count; i++) {
+            double s = samples[i];
+            sumSquares += s * s;
+            if (i > 0 && (samples[i] >= 0) != (samples[i - 1] >= 0)) {
+                crossings++;
+            }
+        }
+        double rms = Math.sqrt(sumSquares / count);
+        double db = rms > 0 ? 20 * Math.log10(rms / 32768.0) : -120.0;
+        double zcr = count > 1 ? (double) crossings / (count - 1) : 0;
+
+        // Start from a quiet-room guess so a recording that opens mid-word is not
+        // taken as the noise floor; erring high only keeps more audio
+        if (Double.isNaN(noiseFloorDb)) {
+            noiseFloorDb = Math.min(db, INITIAL_FLOOR_DB);
+        }
+        boolean loud = db > LOUD_DB || (db > MIN_SPEECH_DB && db > noiseFloorDb + SPEECH_MARGIN_DB);
+        boolean fricative = db > MIN_SPEECH_DB && db > noiseFloorDb + FRICATIVE_MARGIN_DB && zcr > FRICATIVE_ZCR;
+        boolean voiced = loud || fricative;
+
+        // Floor drops immediately and creeps up slowly, so speech cannot drag it along
+        if (!voiced) {
+            noiseFloorDb = Math.min(db, noiseFloorDb + FLOOR_RISE_DB);
+        } else {
+            noiseFloorDb = Math.min(noiseFloorDb + FLOOR_RISE_DB / 4, db);
+        }
+
+        long index = framesProcessed++;
+        if (voiced) {
+            speechRun++;
+            hangover = HANGOVER_FRAMES;
+            if (!inSpeech && speechRun >= START_FRAMES) {
+                inSpeech = true;
+                speechStartFrame = index - (START_FRAMES - 1);
+            }
+        } else {
+            speechRun = 0;
+            if (inSpeech && --hangover <= 0) {
+                inSpeech = false;
+                speechFrames.add(new long[]{speechStartFrame, index + 1});
+            }
+        }
+    }
+
+    /**
+     * Turns speech regions into the sample ranges worth keeping: leading and
+     * trailing silence are cut down to {@code paddingSamples}, and pauses
+     * longer than {@code maxPauseSamples} are shortened to that length by
+     * keeping half of the allowance on each side. Returns an empty list when
+     * no speech was found.
+     */
+    public static List<long[]> planKeepRanges(List<long[]> speech, long totalSamples, long paddingSamples, long maxPauseSamples) {
+        List<long[]> keep = new ArrayList<>();
+        for (int i = 0; i < speech.size(); i++) {
+            long start = speech.get(i)[0];
+            long end = speech.get(i)[1];
+            long lead = i == 0 ? paddingSamples : maxPauseSamples / 2;
+            long tail = i == speech.size() - 1 ? paddingSamples : maxPauseSamples / 2;
+            long from = Math.max(0, start - lead);
+            long to = Math.min(totalSamples, end + tail);
+            if (!keep.isEmpty() && from <= keep.get(keep.size() - 1)[1]) {
+                keep.get(keep.size() - 1)[1] = Math.max(keep.get(keep.size() - 1)[1], to);
+            } else {
+                keep.add(new long[]{from, to});
+            }
+        }
+        return keep;
+    }
+}
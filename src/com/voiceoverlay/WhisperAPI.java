@@ -3,213 +3,232 @@ package com.voiceoverlay;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkCapabilities;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import javax.net.ssl.HttpsURLConnection;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
 
 public class WhisperAPI {
     private static final String TAG = "VoiceOverlay";
     private static final String PREFS_NAME = "VoiceOverlayPrefs";
     private static final String KEY_API_URL = "whisper_api_url";
     private static final String KEY_API_KEY = "whisper_api_key";
+    static final String KEY_SELF_HOSTED_URL = "self_hosted_url";
+    static final String KEY_SELF_HOSTED_KEY = "self_hosted_api_key";
     private static final String KEY_TRANSCRIPTION_PROMPT = "transcription_prompt";
     private static final String KEY_WHISPER_MODEL = "whisper_model";
 
-    public interface TranscriptionCallback {
-        void onSuccess(String transcription);
-        void onError(String error);
+    /** The OpenAI transcription API, at the configured URL with the user's key. */
+    public static final TranscriptionBackend OPENAI = new Backend("api", "openai", KEY_API_URL, KEY_API_KEY, true);
+
+    /**
+     * Any server speaking the same multipart protocol, such as a local
+     * whisper.cpp or faster-whisper server; the key is optional.
+     */
+    public static final TranscriptionBackend SELF_HOSTED =
+        new Backend("self_hosted", "self_hosted", KEY_SELF_HOSTED_URL, KEY_SELF_HOSTED_KEY, false);
+
+    private static final class Backend implements TranscriptionBackend {
+        private final String name;
+        private final String cacheLabel;
+        private final String urlKey;
+        private final String keyKey;
+        private final boolean keyRequired;
+
+        Backend(String name, String cacheLabel, String urlKey, String keyKey, boolean keyRequired) {
+            this.name = name;
+            this.cacheLabel = cacheLabel;
+            this.urlKey = urlKey;
+            this.keyKey = keyKey;
+            this.keyRequired = keyRequired;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isAvailable(Context context) {
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            return !prefs.getString(urlKey, "").isEmpty() && (!keyRequired || !prefs.getString(keyKey, "").isEmpty());
+        }
+
+        @Override
+        public String getEndpoint(Context context) {
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            return prefs.getString(urlKey, "");
+        }
+
+        @Override
+        public AsyncResult<String> transcribe(Context context, File audioFile, int priority) {
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            String apiUrl = prefs.getString(urlKey, "");
+            String apiKey = prefs.getString(keyKey, "");
+            if (apiUrl.isEmpty() || (keyRequired && apiKey.isEmpty())) {
+                Log.e(TAG, "WhisperAPI: " + name + " not configured");
+                return AsyncResult.failure(
+                    new ApiException("API not configured. Please open VoiceOverlay app and configure settings."));
+            }
+            return WhisperAPI.transcribe(context, audioFile, apiUrl, apiKey, cacheLabel, priority);
+        }
+
+        @Override
+        public void prewarm(Context context) {
+            String apiUrl = getEndpoint(context);
+            if (!apiUrl.isEmpty()) {
+                HttpTransport.prewarm(context, apiUrl);
+            }
+        }
     }
 
-    public static void transcribeAudio(final Context context, final File audioFile, final TranscriptionCallback callback) {
-        new Thread(new Runnable() {
+    public static void transcribeAudio(final Context context, final File audioFile, final TranscriptionBackend.Callback callback) {
+        transcribeAudioAsync(context, audioFile).deliver(null, new AsyncResult.Callback<String>() {
             @Override
-            public void run() {
-                try {
-                    Log.d(TAG, "WhisperAPI: Starting transcription");
-
-                    // Force IPv4
-                    System.setProperty("java.net.preferIPv4Stack", "true");
-                    System.setProperty("java.net.preferIPv6Addresses", "false");
-
-                    SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-                    String apiUrl = prefs.getString(KEY_API_URL, "");
-                    String apiKey = prefs.getString(KEY_API_KEY, "");
-                    String transcriptionPrompt = prefs.getString(KEY_TRANSCRIPTION_PROMPT, "");
-                    String whisperModel = prefs.getString(KEY_WHISPER_MODEL, "whisper-1");
-
-                    Log.d(TAG, "WhisperAPI: Full URL=" + apiUrl);
-                    Log.d(TAG, "WhisperAPI: Key length=" + apiKey.length());
-                    Log.d(TAG, "WhisperAPI: Model=" + whisperModel);
-
-                    if (apiUrl.isEmpty() || apiKey.isEmpty()) {
-                        Log.e(TAG, "WhisperAPI: API not configured");
-                        callback.onError("API not configured. Please open VoiceOverlay app and configure settings.");
-                        return;
-                    }
+            public void onSuccess(String transcription) {
+                callback.onSuccess(transcription);
+            }
 
-                    // Get active network and bind to it
-                    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-                    Network activeNetwork = null;
-
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                        activeNetwork = cm.getActiveNetwork();
-                        if (activeNetwork != null) {
-                            Log.d(TAG, "WhisperAPI: Using active network: " + activeNetwork);
-                        } else {
-                            Log.e(TAG, "WhisperAPI: No active network found");
-                        }
-                    }
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        });
+    }
 
-                    // Try to resolve DNS manually with network binding
-                    try {
-                        java.net.InetAddress[] addresses;
-                        if (activeNetwork != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                            addresses = activeNetwork.getAllByName("api.openai.com");
-                        } else {
-                            addresses = java.net.InetAddress.getAllByName("api.openai.com");
-                        }
-                        Log.d(TAG, "WhisperAPI: DNS resolved to " + addresses.length + " addresses");
-                        for (java.net.InetAddress addr : addresses) {
-                            Log.d(TAG, "WhisperAPI: Address: " + addr.getHostAddress());
-                        }
-                    } catch (Exception dnsEx) {
-                        Log.e(TAG, "WhisperAPI: DNS resolution failed: " + dnsEx.getMessage());
-                    }
+    /** Opens a connection to the configured endpoint ahead of an upload. */
+    public static void prewarm(Context context) {
+        OPENAI.prewarm(context);
+    }
 
-                    String boundary = "----WebKitFormBoundary" + System.currentTimeMillis();
-                    String CRLF = "\r\n";
+    public static AsyncResult<String> transcribeAudioAsync(Context context, File audioFile) {
+        return OPENAI.transcribe(context, audioFile, TaskExecutor.PRIORITY_HIGH).wrapErrors();
+    }
 
-                    URL url = new URL(apiUrl);
-                    HttpURLConnection conn;
+    private static AsyncResult<String> transcribe(final Context context, final File audioFile, final String apiUrl,
+                                                  final String apiKey, final String cacheLabel, final int priority) {
+        return TaskExecutor.submitAsync(priority, new Callable<AsyncResult<String>>() {
+            @Override
+            public AsyncResult<String> call() throws Exception {
+                Log.d(TAG, "WhisperAPI: Starting transcription");
+
+                SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+                final String transcriptionPrompt = prefs.getString(KEY_TRANSCRIPTION_PROMPT, "");
+                final String whisperModel = prefs.getString(KEY_WHISPER_MODEL, "whisper-1");
+
+                Log.d(TAG, "WhisperAPI: Full URL=" + apiUrl);
+                Log.d(TAG, "WhisperAPI: Key length=" + apiKey.length());
+                Log.d(TAG, "WhisperAPI: Model=" + whisperModel);
+
+                // Same audio, model and prompt as an earlier run: no upload needed
+                final TranscriptionCache cache = TranscriptionCache.get(context);
+                final String backend = cacheLabel + " " + apiUrl;
+                String cached = cache.lookup(audioFile, backend, whisperModel, transcriptionPrompt);
+                if (cached != null) {
+                    Log.d(TAG, "WhisperAPI: Cache hit");
+                    return AsyncResult.success(cached);
+                }
 
-                    // Bind connection to active network
-                    if (activeNetwork != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                        conn = (HttpURLConnection) activeNetwork.openConnection(url);
-                        Log.d(TAG, "WhisperAPI: Opened connection using active network");
-                    } else {
-                        conn = (HttpURLConnection) url.openConnection();
-                        Log.d(TAG, "WhisperAPI: Opened connection using default");
+                // Upload a 16 kHz mono rendition; the recording itself is kept as is
+                final UploadTranscoder.Upload upload = UploadTranscoder.prepare(audioFile);
+                final MessageDigest digest = TranscriptionCache.newDigest();
+                AsyncResult<String> sent;
+                try {
+                    sent = upload(context, upload, apiUrl, apiKey, whisperModel, transcriptionPrompt, digest, priority);
+                } catch (Exception e) {
+                    upload.release();
+                    throw e;
+                }
+                return sent.then(new AsyncResult.Transform<String, String>() {
+                    @Override
+                    public String apply(String text) throws Exception {
+                        cache.store(audioFile, digest.digest(), backend, whisperModel, transcriptionPrompt, text);
+                        return text;
                     }
-                    conn.setDoOutput(true);
-                    conn.setDoInput(true);
-                    conn.setRequestMethod("POST");
-                    conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-                    conn.setRequestProperty("Authorization", "Bearer " + apiKey);
-                    conn.setUseCaches(false);
-
-                    DataOutputStream request = new DataOutputStream(conn.getOutputStream());
-
-                    // Add model parameter
-                    request.writeBytes("--" + boundary + CRLF);
-                    request.writeBytes("Content-Disposition: form-data; name=\"model\"" + CRLF);
-                    request.writeBytes(CRLF);
-                    request.writeBytes(whisperModel + CRLF);
-
-                    // Add response_format parameter
-                    request.writeBytes("--" + boundary + CRLF);
-                    request.writeBytes("Content-Disposition: form-data; name=\"response_format\"" + CRLF);
-                    request.writeBytes(CRLF);
-                    request.writeBytes("json" + CRLF);
-
-                    // Add prompt parameter if provided
-                    if (!transcriptionPrompt.isEmpty()) {
-                        request.writeBytes("--" + boundary + CRLF);
-                        request.writeBytes("Content-Disposition: form-data; name=\"prompt\"" + CRLF);
-                        request.writeBytes(CRLF);
-                        request.writeBytes(transcriptionPrompt + CRLF);
+                }).deliver(null, new AsyncResult.Callback<String>() {
+                    @Override
+                    public void onSuccess(String text) {
+                        upload.release();
                     }
 
-                    // Add file
-                    request.writeBytes("--" + boundary + CRLF);
-                    request.writeBytes("Content-Disposition: form-data; name=\"file\"; filename=\"" + audioFile.getName() + "\"" + CRLF);
-                    String contentType = audioFile.getName().endsWith(".m4a") ? "audio/mp4" : "audio/mpeg";
-                    request.writeBytes("Content-Type: " + contentType + CRLF);
-                    request.writeBytes(CRLF);
-
-                    FileInputStream fileInputStream = new FileInputStream(audioFile);
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                        request.write(buffer, 0, bytesRead);
+                    @Override
+                    public void onError(String error) {
+                        upload.release();
                     }
-                    fileInputStream.close();
-
-                    request.writeBytes(CRLF);
-                    request.writeBytes("--" + boundary + "--" + CRLF);
-
-                    request.flush();
-                    request.close();
-
-                    int responseCode = conn.getResponseCode();
-                    Log.d(TAG, "WhisperAPI: Response code=" + responseCode);
-                    if (responseCode == HttpURLConnection.HTTP_OK) {
-                        BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                        StringBuilder response = new StringBuilder();
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            response.append(line);
-                        }
-                        in.close();
-
-                        // Parse JSON response - simple extraction
-                        String jsonResponse = response.toString();
-                        String text = extractTextFromJSON(jsonResponse);
-
-                        Log.d(TAG, "WhisperAPI: Extracted text=" + (text != null ? text : "NULL"));
-
-                        if (text != null && !text.isEmpty()) {
-                            callback.onSuccess(text);
-                        } else {
-                            Log.e(TAG, "WhisperAPI: No transcription found in response");
-                            callback.onError("No transcription found");
-                        }
-                    } else {
-                        // Read error response
-                        BufferedReader errorReader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-                        StringBuilder errorResponse = new StringBuilder();
-                        String errorLine;
-                        while ((errorLine = errorReader.readLine()) != null) {
-                            errorResponse.append(errorLine);
-                        }
-                        errorReader.close();
-
-                        String errorMsg = errorResponse.toString();
-                        Log.e(TAG, "WhisperAPI: HTTP Error " + responseCode + ": " + errorMsg);
-                        callback.onError("HTTP Error " + responseCode + ": " + errorMsg);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "WhisperAPI: Exception - " + e.getClass().getName() + ": " + e.getMessage(), e);
-                    e.printStackTrace();
-                    callback.onError("Error: " + e.getClass().getSimpleName() + " - " + e.getMessage());
-                }
+                });
+            }
+        });
+    }
+
+    // Sends one recording, retrying through RetryPolicy; the file part is hashed into digest as it is written
+    private static AsyncResult<String> upload(final Context context, UploadTranscoder.Upload recording, String apiUrl, final String apiKey,
+                                              String whisperModel, String transcriptionPrompt, MessageDigest digest,
+                                              int priority) throws Exception {
+        final URL url = new URL(apiUrl);
+        final MultipartBody body = new MultipartBody()
+            .addField("model", whisperModel)
+            .addField("response_format", "json");
+
+        // Add prompt parameter if provided
+        if (!transcriptionPrompt.isEmpty()) {
+            body.addField("prompt", transcriptionPrompt);
+        }
+
+        body.addSource("file", recording, digest);
+
+        // Each try writes the file part again, converting it on the way if it has not been yet
+        // Paced by the endpoint's rate limit rather than uploading into a 429
+        final RateLimiter limiter = RateLimiter.forEndpoint(apiUrl);
+        return RetryPolicy.forEndpoint(apiUrl).execute(context, priority, limiter, 0, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return send(context, url, apiKey, body, limiter);
             }
-        }).start();
+        });
     }
 
-    private static String extractTextFromJSON(String json) {
-        // Simple JSON parsing to extract "text" field
+    // One try; releases the rate limit reservation RetryPolicy made for it
+    private static String send(Context context, URL url, String apiKey, MultipartBody body,
+                               RateLimiter limiter) throws IOException {
+        HttpURLConnection conn = null;
+        int responseCode = -1;
         try {
-            int textIndex = json.indexOf("\"text\"");
-            if (textIndex == -1) return null;
+            conn = HttpTransport.open(context, url);
+            conn.setDoOutput(true);
+            conn.setDoInput(true);
+            conn.setRequestMethod("POST");
+            if (!apiKey.isEmpty()) {
+                conn.setRequestProperty("Authorization", "Bearer " + apiKey);  // self-hosted servers may not want one
+            }
+            conn.setUseCaches(false);
 
-            int colonIndex = json.indexOf(":", textIndex);
-            int startQuote = json.indexOf("\"", colonIndex);
-            int endQuote = json.indexOf("\"", startQuote + 1);
+            long length = body.getContentLength();
+            Log.d(TAG, "WhisperAPI: Uploading " + (length >= 0 ? length + " bytes" : "as it converts"));
+            body.writeTo(conn);
 
-            if (startQuote != -1 && endQuote != -1) {
-                return json.substring(startQuote + 1, endQuote);
+            responseCode = conn.getResponseCode();
+        } finally {
+            limiter.release(responseCode != -1 ? conn : null, 0);
+        }
+        Log.d(TAG, "WhisperAPI: Response code=" + responseCode);
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+            String text = HttpTransport.readJson(conn).getText();
+            Log.d(TAG, "WhisperAPI: " + HttpTransport.getStats(url.getHost()));
+            Log.d(TAG, "WhisperAPI: Extracted text=" + (text != null ? text : "NULL"));
+
+            if (text != null && !text.isEmpty()) {
+                return text;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            Log.e(TAG, "WhisperAPI: No transcription found in response");
+            throw new ApiException("No transcription found");
+        } else {
+            String errorMsg = HttpTransport.readBody(conn);
+            Log.d(TAG, "WhisperAPI: " + HttpTransport.getStats(url.getHost()));
+            Log.e(TAG, "WhisperAPI: HTTP Error " + responseCode + ": " + errorMsg);
+            throw new ApiException("HTTP Error " + responseCode + ": " + errorMsg, responseCode,
+                RetryPolicy.retryAfterMs(conn));
         }
-        return null;
     }
 }
@@ -0,0 +1,50 @@
+#!/data/data/com.termux/files/usr/bin/bash
+
+set -e
+
+dir=$(pwd)
+echo "Testing VoiceOverlay..."
+
+# The tests run on a plain JVM against Robolectric's android-all jar, which
+# holds the real framework classes. The few that end in a native call (Log,
+# SystemClock, Process, ...) are replaced by the stand-ins in test/shadows.
+#   toolz/android-all.jar  org.robolectric:android-all:13-robolectric-9030017
+#   toolz/junit.jar        junit:junit:4.13.2
+#   toolz/hamcrest-core.jar  org.hamcrest:hamcrest-core:1.3
+for jar in android-all.jar junit.jar hamcrest-core.jar; do
+  if [ ! -f "$dir/toolz/$jar" ]; then
+    echo "Missing toolz/$jar (see test.sh)"
+    exit 1
+  fi
+done
+
+rm -rf build/test
+mkdir -p build/test/shadows build/test/classes
+
+# Step 1: Compile the framework stand-ins
+echo "[1/3] Compiling shadows..."
+$JAVA_HOME/bin/javac --release=8 \
+  -d build/test/shadows \
+  --class-path $dir/toolz/android-all.jar \
+  $(find test/shadows -name "*.java")
+
+# Step 2: Compile the tests and the sources they use
+echo "[2/3] Compiling tests..."
+cp="build/test/shadows:$dir/toolz/android-all.jar:$dir/toolz/junit.jar:$dir/toolz/hamcrest-core.jar"
+$JAVA_HOME/bin/javac --release=8 \
+  -d build/test/classes \
+  --class-path $cp \
+  -sourcepath src \
+  $(find test/com -name "*.java")
+
+# Step 3: Run them, or with "bench" the allocation benchmarks instead
+if [ "$1" = "bench" ]; then
+  echo "[3/3] Running benchmarks..."
+  for bench in $(cd test && find com -name "*Benchmark.java" | sed 's/\.java$//; s/\//./g'); do
+    $JAVA_HOME/bin/java -cp "build/test/classes:$cp" $bench
+  done
+  exit 0
+fi
+echo "[3/3] Running tests..."
+tests=$(cd test && find com -name "*Test.java" | sed 's/\.java$//; s/\//./g')
+$JAVA_HOME/bin/java -cp "build/test/classes:$cp" org.junit.runner.JUnitCore $tests
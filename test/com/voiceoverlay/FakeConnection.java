@@ -0,0 +1,71 @@
+package com.voiceoverlay;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/** An answered connection with a canned status, headers and body. */
+class FakeConnection extends HttpURLConnection {
+    private final Map<String, String> headers = new HashMap<>();
+    private byte[] body = new byte[0];
+
+    FakeConnection(int status) {
+        super(url());
+        responseCode = status;
+    }
+
+    FakeConnection header(String name, String value) {
+        headers.put(name.toLowerCase(), value);
+        return this;
+    }
+
+    FakeConnection body(byte[] body) {
+        this.body = body;
+        return this;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return responseCode >= 400 ? new ByteArrayInputStream(body) : null;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    private static URL url() {
+        try {
+            return new URL("https://api.example.com/v1/test");
+        } catch (MalformedURLException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.voiceoverlay;
+
+import java.lang.management.ManagementFactory;
+import org.json.JSONObject;
+
+/**
+ * Bytes allocated to parse one verbose transcription reply, the old way
+ * (whole body as a String, then a JSONObject) against
+ * {@link HttpTransport#readJson}. Run with {@code ./test.sh bench}; needs a
+ * HotSpot JVM for per-thread allocation counts.
+ */
+public class JsonResponseBenchmark {
+    private static final int SEGMENTS = 200;
+    private static final int WARMUP = 2000;
+    private static final int RUNS = 2000;
+    static volatile int sink;  // keeps the results alive
+
+    public static void main(String[] args) throws Exception {
+        final byte[] body = verboseReply().getBytes("UTF-8");
+        System.out.println("Reply: " + body.length + " bytes, " + SEGMENTS + " segments");
+
+        Parse old = new Parse() {
+            @Override
+            public Object run() throws Exception {
+                JSONObject json = new JSONObject(HttpTransport.readBody(new FakeConnection(200).body(body)));
+                return json.getString("text");
+            }
+        };
+        Parse streaming = new Parse() {
+            @Override
+            public Object run() throws Exception {
+                return HttpTransport.readJson(new FakeConnection(200).body(body)).getText();
+            }
+        };
+        report("readBody + JSONObject", old);
+        report("JsonResponse        ", streaming);
+    }
+
+    private interface Parse {
+        Object run() throws Exception;
+    }
+
+    private static void report(String name, Parse parse) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++) {
+            sink += parse.run().hashCode();
+        }
+        long before = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            sink += parse.run().hashCode();
+        }
+        long micros = (System.nanoTime() - start) / 1000 / RUNS;
+        long allocated = (threads.getThreadAllocatedBytes(id) - before) / RUNS;
+        System.out.println(name + ": " + (allocated / 1024) + " KB allocated, " + micros + " us per reply");
+    }
+
+    // Shaped like a verbose_json reply from the transcription endpoint
+    private static String verboseReply() {
+        StringBuilder text = new StringBuilder();
+        StringBuilder segments = new StringBuilder();
+        for (int i = 0; i < SEGMENTS; i++) {
+            String sentence = " Segment " + i + " says \\\"something\\\" worth keeping,\\nthen a little more.";
+            text.append(sentence);
+            if (i > 0) {
+                segments.append(',');
+            }
+            segments.append("{\"id\":").append(i).append(",\"seek\":0,\"start\":").append(i * 2.5)
+                .append(",\"end\":").append(i * 2.5 + 2.5).append(",\"text\":\"").append(sentence)
+                .append("\",\"tokens\":[50364,1012,307,257,1500,2445],\"temperature\":0.0,")
+                .append("\"avg_logprob\":-0.21,\"compression_ratio\":1.4,\"no_speech_prob\":0.01}");
+        }
+        return "{\"task\":\"transcribe\",\"language\":\"english\",\"duration\":" + (SEGMENTS * 2.5)
+            + ",\"text\":\"" + text + "\",\"segments\":[" + segments + "]}";
+    }
+}
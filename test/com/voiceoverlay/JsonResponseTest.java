@@ -0,0 +1,101 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.List;
+import org.junit.Test;
+
+public class JsonResponseTest {
+
+    @Test
+    public void unescapesQuotesInTranscripts() throws Exception {
+        JsonResponse response = parse("{\"text\":\"She said \\\"hi\\\" and left.\"}");
+        assertEquals("She said \"hi\" and left.", response.getText());
+    }
+
+    @Test
+    public void unescapesNewlinesAndUnicode() throws Exception {
+        JsonResponse response = parse("{\"text\":\"line one\\nline two\\t\\u00e9\\\\\"}");
+        assertEquals("line one\nline two\t\u00e9\\", response.getText());
+    }
+
+    @Test
+    public void readsTheFirstChatChoice() throws Exception {
+        JsonResponse response = parse("{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion\","
+            + "\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"Fixed \\\"text\\\"\\nhere\"},"
+            + "\"finish_reason\":\"stop\"},{\"index\":1,\"message\":{\"content\":\"second\"}}],"
+            + "\"usage\":{\"prompt_tokens\":9,\"completion_tokens\":12}}");
+        assertEquals("Fixed \"text\"\nhere", response.getContent());
+        assertNull(response.getText());
+        assertNull(response.getError());
+    }
+
+    @Test
+    public void readsStreamedDeltas() throws Exception {
+        assertEquals("Hel", parse("{\"choices\":[{\"delta\":{\"content\":\"Hel\"}}]}").getContent());
+        assertNull(parse("{\"choices\":[{\"delta\":{\"role\":\"assistant\"}}]}").getContent());
+        assertNull(parse("{\"choices\":[]}").getContent());
+    }
+
+    @Test
+    public void readsTimedSegments() throws Exception {
+        JsonResponse response = parse("{\"task\":\"transcribe\",\"text\":\"a b\",\"segments\":["
+            + "{\"id\":0,\"start\":0.0,\"end\":1.5,\"text\":\" a\",\"tokens\":[1,2,3]},"
+            + "{\"id\":1,\"start\":1.5,\"end\":3.25,\"text\":\" b\"},"
+            + "{\"id\":2,\"start\":3.25,\"end\":4}]}");
+        List<JsonResponse.Segment> segments = response.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals(1.5, segments.get(1).start, 0);
+        assertEquals(3.25, segments.get(1).end, 0);
+        assertEquals(" b", segments.get(1).text);
+        assertEquals("a b", response.getText());
+    }
+
+    @Test
+    public void readsErrorsAsStringOrObject() throws Exception {
+        assertEquals("Invalid file format.",
+            parse("{\"error\":{\"message\":\"Invalid file format.\",\"type\":\"invalid_request_error\"}}").getError());
+        assertEquals("quota", parse("{\"error\":\"quota\"}").getError());
+    }
+
+    @Test
+    public void wrongTypesAreSkippedNotFatal() throws Exception {
+        JsonResponse response = parse("{\"text\":null,\"segments\":{},\"choices\":[42],\"extra\":[{\"text\":\"no\"}]}");
+        assertNull(response.getText());
+        assertNull(response.getContent());
+        assertTrue(response.getSegments().isEmpty());
+    }
+
+    @Test
+    public void rejectsNonObjects() throws Exception {
+        try {
+            parse("[\"text\"]");
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void leavesTheStreamAfterTheValue() throws Exception {
+        InputStream in = new ByteArrayInputStream("{\"text\":\"\u00fcber\"}".getBytes("UTF-8"));
+        assertEquals("\u00fcber", JsonResponse.read(in).getText());
+    }
+
+    @Test
+    public void readJsonParsesAnAnsweredConnection() throws Exception {
+        FakeConnection conn = new FakeConnection(200).body("{\"text\":\"ok\"}".getBytes("UTF-8"));
+        assertEquals("ok", HttpTransport.readJson(conn).getText());
+    }
+
+    private static JsonResponse parse(String json) throws IOException {
+        return JsonResponse.read(new StringReader(json));
+    }
+}
@@ -0,0 +1,206 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.net.Network;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NetworkStateTest {
+    // Reserved for documentation (RFC 5737 / RFC 3849): nothing answers there
+    private static final String BLACK_HOLE_V4 = "192.0.2.1";
+    private static final String BLACK_HOLE_V6 = "2001:db8::1";
+
+    /** Answers with whatever addresses the test set, and counts lookups. */
+    private static class FakeResolver implements NetworkState.Resolver {
+        InetAddress[] addresses;
+        int lookups;
+
+        @Override
+        public InetAddress[] resolve(Network network, String host) throws UnknownHostException {
+            lookups++;
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        }
+    }
+
+    private final FakeResolver resolver = new FakeResolver();
+    private final NetworkState state = new NetworkState(null, resolver);
+    private ServerSocket server;
+    private final List<Socket> accepted = new ArrayList<>();
+
+    @Before
+    public void listen() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = server.accept();
+                        synchronized (accepted) {
+                            accepted.add(socket);
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void close() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void lookupsAreCachedUntilInvalidated() throws Exception {
+        resolver.addresses = addresses("127.0.0.1");
+        assertArrayEquals(resolver.addresses, state.resolve("api.example.com"));
+        state.resolve("api.example.com");
+        assertEquals(1, resolver.lookups);
+
+        state.invalidate("api.example.com");
+        state.resolve("api.example.com");
+        assertEquals(2, resolver.lookups);
+    }
+
+    @Test
+    public void networkChangeDropsTheCache() throws Exception {
+        resolver.addresses = addresses("127.0.0.1");
+        state.resolve("api.example.com");
+        state.onNetworkChanged(new Network(100), true);  // framework-internal constructor
+        state.resolve("api.example.com");
+        assertEquals(2, resolver.lookups);
+    }
+
+    @Test
+    public void lookupFailuresAreNotCached() throws Exception {
+        try {
+            state.resolve("nowhere.example");
+            fail("expected UnknownHostException");
+        } catch (UnknownHostException e) {
+            // expected
+        }
+        resolver.addresses = addresses("127.0.0.1");
+        assertEquals(1, state.resolve("nowhere.example").length);
+    }
+
+    @Test
+    public void interleavesAddressFamilies() throws Exception {
+        InetAddress[] mixed = addresses("2001:db8::1", "2001:db8::2", "2001:db8::3", "192.0.2.1", "192.0.2.2");
+        assertEquals(Arrays.asList(mixed[0], mixed[3], mixed[1], mixed[4], mixed[2]), NetworkState.interleave(mixed));
+    }
+
+    @Test
+    public void raceSkipsAnAddressThatDoesNotAnswer() throws Exception {
+        // The unreachable address comes first, as a broken IPv6 route would
+        resolver.addresses = addresses(BLACK_HOLE_V6, "127.0.0.1");
+        long start = System.currentTimeMillis();
+        Socket socket = state.connect("api.example.com", server.getLocalPort(), 5000);
+        long elapsed = System.currentTimeMillis() - start;
+        socket.close();
+        assertEquals(InetAddress.getByName("127.0.0.1"), socket.getInetAddress());
+        assertTrue("took " + elapsed + " ms", elapsed < 2000);
+    }
+
+    @Test
+    public void everyAddressFailingInvalidatesTheLookup() throws Exception {
+        int closedPort;
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        closedPort = closed.getLocalPort();
+        closed.close();
+        resolver.addresses = addresses("127.0.0.1");
+        try {
+            state.connect("api.example.com", closedPort, 2000).close();
+            fail("expected a connection failure");
+        } catch (ConnectException e) {
+            // expected
+        }
+        state.resolve("api.example.com");
+        assertEquals("looked up again", 2, resolver.lookups);
+    }
+
+    @Test
+    public void raceTimesOut() throws Exception {
+        resolver.addresses = addresses(BLACK_HOLE_V4, BLACK_HOLE_V6);
+        long start = System.currentTimeMillis();
+        try {
+            state.connect("api.example.com", 443, 600).close();
+            fail("expected a failure");
+        } catch (IOException e) {
+            // a timeout, or unreachable where the sandbox has no route at all
+        }
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+    @Test
+    public void pickAddressSticksToTheWinner() throws Exception {
+        resolver.addresses = addresses(BLACK_HOLE_V4, "127.0.0.1");
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        assertEquals(loopback, state.pickAddress("api.example.com", server.getLocalPort(), 5000));
+        assertEquals("one race", 1, acceptedCount());
+
+        assertEquals(loopback, state.pickAddress("api.example.com", server.getLocalPort(), 5000));
+        assertEquals("no second race", 1, acceptedCount());
+
+        // After a failure the next pick races again
+        state.invalidate("api.example.com");
+        assertEquals(loopback, state.pickAddress("api.example.com", server.getLocalPort(), 5000));
+        assertEquals(2, acceptedCount());
+        assertEquals(2, resolver.lookups);
+    }
+
+    @Test
+    public void singleAddressIsPickedWithoutConnecting() throws Exception {
+        resolver.addresses = addresses(BLACK_HOLE_V4);
+        assertEquals(InetAddress.getByName(BLACK_HOLE_V4), state.pickAddress("api.example.com", 443, 5000));
+    }
+
+    @Test
+    public void requestsAreAddressedToThePickedAddress() throws Exception {
+        URL url = new URL("https://api.example.com/v1/audio/transcriptions?x=1");
+        assertEquals("https://192.0.2.1/v1/audio/transcriptions?x=1",
+            HttpTransport.addressed(url, InetAddress.getByName(BLACK_HOLE_V4)).toString());
+        assertEquals("https://[2001:db8:0:0:0:0:0:1]:8443/v1",
+            HttpTransport.addressed(new URL("https://api.example.com:8443/v1"),
+                InetAddress.getByName(BLACK_HOLE_V6)).toString());
+        assertTrue(HttpTransport.isAddressLiteral("192.0.2.1"));
+        assertTrue(HttpTransport.isAddressLiteral("[2001:db8::1]"));
+        assertTrue(!HttpTransport.isAddressLiteral("api.openai.com"));
+    }
+
+    private int acceptedCount() throws InterruptedException {
+        Thread.sleep(50);
+        synchronized (accepted) {
+            return accepted.size();
+        }
+    }
+
+    private static InetAddress[] addresses(String... literals) throws UnknownHostException {
+        InetAddress[] addresses = new InetAddress[literals.length];
+        for (int i = 0; i < literals.length; i++) {
+            addresses[i] = InetAddress.getByName(literals[i]);
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,128 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class OggOpusWriterTest {
+    // 20 ms SILK wideband frame, one per packet
+    private static final byte[] PACKET_20MS = {(byte) (9 << 3), 1, 2, 3};
+
+    /** One parsed page, its CRC already checked. */
+    private static class Page {
+        int flags;
+        long granule;
+        int sequence;
+        int segments;
+        byte[] data;
+    }
+
+    @Test
+    public void computesTheOggChecksum() throws IOException {
+        byte[] check = "123456789".getBytes("US-ASCII");
+        assertEquals(0x89A1897F, OggOpusWriter.crc(check, 0, check.length));
+    }
+
+    @Test
+    public void readsPacketDurationFromTheTocByte() {
+        assertEquals(960, OggOpusWriter.packetSamples(PACKET_20MS, 0, PACKET_20MS.length));
+        // CELT 10 ms, two frames
+        assertEquals(960, OggOpusWriter.packetSamples(new byte[] {(byte) (30 << 3 | 1), 0}, 0, 2));
+        // CELT 20 ms, code 3 with five frames
+        assertEquals(4800, OggOpusWriter.packetSamples(new byte[] {(byte) (31 << 3 | 3), 5}, 0, 2));
+        assertEquals(0, OggOpusWriter.packetSamples(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void writesHeadersThenSecondLongPages() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OggOpusWriter writer = new OggOpusWriter(out, 16000, 1);
+        writer.setPreSkip(120);
+        for (int i = 0; i < 90; i++) {
+            writer.writePacket(PACKET_20MS, 0, PACKET_20MS.length);
+        }
+        writer.finish(28000);  // 1.75 s of input; the encoder padded out the rest
+
+        List<Page> pages = parse(out.toByteArray());
+        assertEquals(4, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals(i, pages.get(i).sequence);
+        }
+
+        Page head = pages.get(0);
+        assertEquals(0x02, head.flags);
+        assertEquals("OpusHead", new String(head.data, 0, 8, "US-ASCII"));
+        assertEquals(1, head.data[9]);
+        assertEquals(120, (head.data[10] & 0xFF) | (head.data[11] & 0xFF) << 8);
+        assertEquals("OpusTags", new String(pages.get(1).data, 0, 8, "US-ASCII"));
+
+        // 50 packets fill the first audio page's second; the rest wait for finish
+        assertEquals(50, pages.get(2).segments);
+        assertEquals(48000, pages.get(2).granule);
+        Page last = pages.get(3);
+        assertEquals(0x04, last.flags);
+        assertEquals(40, last.segments);
+        assertEquals(120 + 28000 * 3, last.granule);
+    }
+
+    @Test
+    public void startsANewPageBeforeRunningOutOfLacing() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OggOpusWriter writer = new OggOpusWriter(out, 16000, 1);
+        // 600 bytes laces as 255, 255, 90; 2.5 ms each keeps the page under a second
+        byte[] big = new byte[600];
+        big[0] = (byte) (16 << 3);
+        for (int i = 0; i < 100; i++) {
+            writer.writePacket(big, 0, big.length);
+        }
+        writer.finish(16000);  // more input than packets: the packets set the end
+
+        List<Page> pages = parse(out.toByteArray());
+        assertEquals(4, pages.size());
+        assertEquals(255, pages.get(2).segments);  // 85 packets
+        assertEquals(85 * 120, pages.get(2).granule);
+        assertEquals(45, pages.get(3).segments);
+        assertEquals(100 * 120, pages.get(3).granule);
+    }
+
+    private static List<Page> parse(byte[] stream) throws IOException {
+        List<Page> pages = new ArrayList<>();
+        int at = 0;
+        while (at < stream.length) {
+            assertEquals("OggS", new String(stream, at, 4, "US-ASCII"));
+            Page page = new Page();
+            page.flags = stream[at + 5];
+            page.granule = le(stream, at + 6, 8);
+            page.sequence = (int) le(stream, at + 18, 4);
+            page.segments = stream[at + 26] & 0xFF;
+            int length = 0;
+            for (int i = 0; i < page.segments; i++) {
+                length += stream[at + 27 + i] & 0xFF;
+            }
+            int size = 27 + page.segments + length;
+            byte[] copy = new byte[size];
+            System.arraycopy(stream, at, copy, 0, size);
+            int crc = (int) le(copy, 22, 4);
+            copy[22] = copy[23] = copy[24] = copy[25] = 0;
+            assertEquals(crc, OggOpusWriter.crc(copy, 0, size));
+            page.data = new byte[length];
+            System.arraycopy(stream, at + 27 + page.segments, page.data, 0, length);
+            pages.add(page);
+            at += size;
+        }
+        assertEquals(stream.length, at);
+        return pages;
+    }
+
+    private static long le(byte[] buffer, int offset, int bytes) {
+        long value = 0;
+        for (int i = bytes - 1; i >= 0; i--) {
+            value = value << 8 | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
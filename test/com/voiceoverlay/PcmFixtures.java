@@ -0,0 +1,55 @@
+package com.voiceoverlay;
+
+import java.util.Random;
+
+/** Synthetic 16 kHz mono PCM: stretches of room noise and voiced sound, back to back. */
+final class PcmFixtures {
+    static final int RATE = 16000;
+
+    private final short[] samples;
+    private int length = 0;
+    private final Random random = new Random(17);
+
+    PcmFixtures(double maxSeconds) {
+        samples = new short[(int) (maxSeconds * RATE)];
+    }
+
+    /** Quiet room, about -70 dBFS. */
+    PcmFixtures silence(double seconds) {
+        for (int i = 0, n = count(seconds); i < n; i++) {
+            samples[length++] = (short) (random.nextInt(41) - 20);
+        }
+        return this;
+    }
+
+    /** A vowel-like tone, 150 Hz with two harmonics, about -15 dBFS. */
+    PcmFixtures voice(double seconds) {
+        for (int i = 0, n = count(seconds); i < n; i++) {
+            double t = (double) i / RATE;
+            double v = Math.sin(2 * Math.PI * 150 * t) + 0.5 * Math.sin(2 * Math.PI * 300 * t)
+                + 0.25 * Math.sin(2 * Math.PI * 450 * t);
+            samples[length++] = (short) (v * 6000);
+        }
+        return this;
+    }
+
+    short[] samples() {
+        short[] out = new short[length];
+        System.arraycopy(samples, 0, out, 0, length);
+        return out;
+    }
+
+    static int count(double seconds) {
+        return (int) Math.round(seconds * RATE);
+    }
+
+    /** Runs {@code pcm} through a detector in chunks of {@code chunk} samples. */
+    static VoiceActivityDetector detect(short[] pcm, int chunk) {
+        VoiceActivityDetector vad = new VoiceActivityDetector(RATE);
+        for (int offset = 0; offset < pcm.length; offset += chunk) {
+            vad.process(pcm, offset, Math.min(chunk, pcm.length - offset));
+        }
+        vad.finish();
+        return vad;
+    }
+}
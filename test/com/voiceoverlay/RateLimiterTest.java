@@ -0,0 +1,113 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    @Test
+    public void unknownBudgetIsNotPaced() throws Exception {
+        RateLimiter limiter = new RateLimiter("test/unknown");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.reserve(1000));
+        }
+    }
+
+    @Test
+    public void bucketLearnsRefillRateFromHeaders() {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket();
+        // 60 requests a minute, 30 used, the window resets in 30 s: one request per second
+        bucket.learn("60", "30", "30s", 0, 1000);
+        assertTrue(bucket.known());
+        assertEquals(60, bucket.limit);
+        assertEquals(30.0, bucket.available, 0.001);
+        assertEquals(0.001, bucket.perMs, 1e-9);
+        assertEquals(0, bucket.waitFor(30));
+        assertEquals(1000, bucket.waitFor(31));
+
+        bucket.refill(6000);
+        assertEquals(35.0, bucket.available, 0.001);
+        bucket.refill(600000);
+        assertEquals("never above the limit", 60.0, bucket.available, 0.001);
+    }
+
+    @Test
+    public void inFlightCallsAreTakenOffWhatTheServerReports() {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket();
+        bucket.learn("10", "4", "6s", 3, 0);
+        assertEquals(1.0, bucket.available, 0.001);
+    }
+
+    @Test
+    public void unreadableHeadersKeepTheLastBudget() {
+        RateLimiter.Bucket bucket = new RateLimiter.Bucket();
+        bucket.learn("10", "5", "5s", 0, 0);
+        bucket.learn("ten", "5", "5s", 0, 0);
+        bucket.learn(null, "0", "5s", 0, 0);
+        assertEquals(10, bucket.limit);
+        assertEquals(5.0, bucket.available, 0.001);
+    }
+
+    @Test
+    public void exhaustedBudgetQueuesCallersInOrder() throws Exception {
+        RateLimiter limiter = new RateLimiter("test/paced");
+        assertEquals(0, limiter.reserve(0));
+        // 60 a minute with none left for the next second: one every 16.7 ms
+        limiter.release(budget(200, "60", "0", "1s"), 0);
+
+        long first = limiter.reserve(0);
+        long second = limiter.reserve(0);
+        long third = limiter.reserve(0);
+        assertTrue("first " + first, first > 0 && first <= 17);
+        assertTrue("second " + second, second > first && second <= 34);
+        assertTrue("third " + third, third > second && third <= 51);
+    }
+
+    @Test
+    public void releaseReturnsInFlightReservations() throws Exception {
+        RateLimiter limiter = new RateLimiter("test/release");
+        limiter.reserve(0);
+        limiter.reserve(0);
+        limiter.reserve(0);
+        limiter.release(null, 0);
+        // Two answered calls leave one still out, which the server's count does not include yet
+        limiter.release(budget(200, "60", "5", "1s"), 0);
+        assertTrue(limiter.describe(), limiter.describe().contains("requests=4/60"));
+        assertTrue(limiter.describe(), limiter.describe().contains("inFlight=1"));
+    }
+
+    @Test
+    public void waitPastTheLimitIsRefusedAsA429() throws Exception {
+        RateLimiter limiter = new RateLimiter("test/refused");
+        limiter.reserve(0);
+        // One request a minute, none left
+        limiter.release(budget(200, "1", "0", "60s"), 0);
+        try {
+            limiter.reserve(0);
+            fail("expected a refusal");
+        } catch (ApiException e) {
+            assertEquals(429, e.getStatusCode());
+            assertTrue("retry after " + e.getRetryAfterMs(), e.getRetryAfterMs() > RateLimiter.MAX_WAIT_MS);
+        }
+    }
+
+    @Test
+    public void serverRetryAfterHoldsEveryoneBack() throws Exception {
+        RateLimiter limiter = new RateLimiter("test/429");
+        limiter.reserve(0);
+        limiter.release(budget(429, "600", "100", "10s").header("Retry-After", "2"), 0);
+        // The 429 puts the bucket two seconds of refill into debt, so the next call waits that long
+        long wait = limiter.reserve(0);
+        assertTrue("wait " + wait, wait >= 2000 && wait <= 2040);
+    }
+
+    private static FakeConnection budget(int status, String limit, String remaining, String reset) {
+        return new FakeConnection(status)
+            .header("x-ratelimit-limit-requests", limit)
+            .header("x-ratelimit-remaining-requests", remaining)
+            .header("x-ratelimit-reset-requests", reset);
+    }
+}
@@ -0,0 +1,35 @@
+package com.voiceoverlay;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Waits out an {@link AsyncResult} in a test; production code never blocks on one. */
+final class Results {
+    private Results() {}
+
+    static <T> T await(AsyncResult<T> result) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] value = new Object[1];
+        result.deliver(null, new AsyncResult.Callback<T>() {
+            @Override
+            public void onSuccess(T v) {
+                value[0] = v;
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+                done.countDown();
+            }
+        });
+        if (!done.await(30, TimeUnit.SECONDS)) {
+            throw new AssertionError("result not ready after 30 s");
+        }
+        if (result.getError() != null) {
+            throw result.getError();
+        }
+        @SuppressWarnings("unchecked")
+        T t = (T) value[0];
+        return t;
+    }
+}
@@ -0,0 +1,181 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void parsesOpenAiResetDurations() {
+        assertEquals(20, RetryPolicy.parseDuration("20ms"));
+        assertEquals(1500, RetryPolicy.parseDuration("1.5s"));
+        assertEquals(360000, RetryPolicy.parseDuration("6m0s"));
+        assertEquals(3600000 + 1000, RetryPolicy.parseDuration("1h1s"));
+        assertEquals(2, RetryPolicy.parseDuration("1.2ms"));  // rounded up
+    }
+
+    @Test
+    public void rejectsUnreadableDurations() {
+        assertEquals(-1, RetryPolicy.parseDuration(null));
+        assertEquals(-1, RetryPolicy.parseDuration(""));
+        assertEquals(-1, RetryPolicy.parseDuration("soon"));
+        assertEquals(-1, RetryPolicy.parseDuration("5"));
+        assertEquals(-1, RetryPolicy.parseDuration("5s later"));
+        assertEquals(-1, RetryPolicy.parseDuration("x5s"));
+    }
+
+    @Test
+    public void retryAfterMsWinsOverRetryAfter() {
+        FakeConnection conn = new FakeConnection(429)
+            .header("retry-after-ms", "1500.5")
+            .header("Retry-After", "30");
+        assertEquals(1500, RetryPolicy.retryAfterMs(conn));
+    }
+
+    @Test
+    public void retryAfterInSeconds() {
+        assertEquals(3000, RetryPolicy.retryAfterMs(new FakeConnection(503).header("Retry-After", " 3 ")));
+    }
+
+    @Test
+    public void retryAfterAsHttpDate() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String date = format.format(new Date(System.currentTimeMillis() + 10000));
+        long wait = RetryPolicy.retryAfterMs(new FakeConnection(503).header("Retry-After", date));
+        assertTrue("wait " + wait, wait > 8000 && wait <= 10000);
+    }
+
+    @Test
+    public void exhaustedBudgetWaitsForTheLaterReset() {
+        FakeConnection conn = new FakeConnection(429)
+            .header("x-ratelimit-remaining-requests", "0")
+            .header("x-ratelimit-reset-requests", "2s")
+            .header("x-ratelimit-remaining-tokens", "0")
+            .header("x-ratelimit-reset-tokens", "6m0s");
+        assertEquals(360000, RetryPolicy.retryAfterMs(conn));
+    }
+
+    @Test
+    public void budgetLeftMeansNoWait() {
+        FakeConnection conn = new FakeConnection(429)
+            .header("x-ratelimit-remaining-requests", "3")
+            .header("x-ratelimit-reset-requests", "2s");
+        assertEquals(-1, RetryPolicy.retryAfterMs(conn));
+        assertEquals(-1, RetryPolicy.retryAfterMs(new FakeConnection(500)));
+    }
+
+    @Test
+    public void retriesOnlyWhatMightSucceed() {
+        assertTrue(RetryPolicy.isRetryable(new ApiException("busy", 429)));
+        assertTrue(RetryPolicy.isRetryable(new ApiException("timeout", 408)));
+        assertTrue(RetryPolicy.isRetryable(new ApiException("down", 503)));
+        assertFalse(RetryPolicy.isRetryable(new ApiException("bad key", 401)));
+        assertFalse(RetryPolicy.isRetryable(new ApiException("no key")));
+        assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isRetryable(new IOException("reset")));
+        assertFalse(RetryPolicy.isRetryable(new InterruptedIOException()));
+        assertFalse(RetryPolicy.isRetryable(new FileNotFoundException()));
+    }
+
+    @Test
+    public void backoffDoublesWithJitterUpToTheCap() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(250, 500, RetryPolicy.delayBefore(2, new IOException()));
+            assertBetween(500, 1000, RetryPolicy.delayBefore(3, new IOException()));
+            assertBetween(2000, 4000, RetryPolicy.delayBefore(5, new IOException()));
+            assertBetween(4000, 8000, RetryPolicy.delayBefore(30, new IOException()));
+        }
+    }
+
+    @Test
+    public void serverWaitIsHonouredWithALittleSpread() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(3062, 3125, RetryPolicy.delayBefore(2, new ApiException("busy", 429, 3000)));
+        }
+    }
+
+    @Test
+    public void retriesTransientFailuresUntilSuccess() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = new RetryPolicy("test/retry");
+        String value = Results.await(policy.execute(null, TaskExecutor.PRIORITY_HIGH, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (calls.incrementAndGet() == 1) {
+                    throw new ApiException("down", 503);
+                }
+                return "ok";
+            }
+        }));
+        assertEquals("ok", value);
+        assertEquals(2, calls.get());
+        assertEquals(RetryPolicy.State.CLOSED, policy.getState());
+    }
+
+    @Test
+    public void refusalsAreNotRetriedAndDoNotOpenTheBreaker() throws Exception {
+        RetryPolicy policy = new RetryPolicy("test/refused");
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < RetryPolicy.FAILURE_THRESHOLD + 1; i++) {
+            expectFailure(policy, failing(calls, new ApiException("bad request", 400)), 400);
+        }
+        assertEquals(RetryPolicy.FAILURE_THRESHOLD + 1, calls.get());
+        assertEquals(RetryPolicy.State.CLOSED, policy.getState());
+    }
+
+    @Test
+    public void breakerOpensAfterConsecutiveFailuresAndFailsFast() throws Exception {
+        RetryPolicy policy = new RetryPolicy("test/breaker");
+        AtomicInteger calls = new AtomicInteger();
+        // The first call uses up all of its tries, the second opens the breaker part way through
+        expectFailure(policy, failing(calls, new IOException("reset")), -1);
+        assertEquals(RetryPolicy.MAX_ATTEMPTS, calls.get());
+        assertEquals(RetryPolicy.State.CLOSED, policy.getState());
+        expectFailure(policy, failing(calls, new IOException("reset")), -1);
+        assertEquals(RetryPolicy.FAILURE_THRESHOLD, calls.get());
+        assertEquals(RetryPolicy.State.OPEN, policy.getState());
+
+        expectFailure(policy, failing(calls, new IOException("reset")), 503);
+        assertEquals("no try while open", RetryPolicy.FAILURE_THRESHOLD, calls.get());
+    }
+
+    private static Callable<String> failing(final AtomicInteger calls, final Exception error) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                throw error;
+            }
+        };
+    }
+
+    private static void expectFailure(RetryPolicy policy, Callable<String> attempt, int status) throws Exception {
+        try {
+            Results.await(policy.execute(null, TaskExecutor.PRIORITY_HIGH, attempt));
+            fail("expected a failure");
+        } catch (ApiException e) {
+            assertEquals(status, e.getStatusCode());
+        } catch (IOException e) {
+            assertEquals(-1, status);
+        }
+    }
+
+    private static void assertBetween(long low, long high, long actual) {
+        assertTrue(actual + " not in [" + low + ", " + high + "]", actual >= low && actual <= high);
+    }
+}
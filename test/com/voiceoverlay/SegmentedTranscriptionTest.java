@@ -0,0 +1,219 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A segmented recording sent through the real upload path (router, Whisper
+ * client, retries, offline queue) to a stand-in server on localhost that
+ * can be told to drop every connection.
+ */
+public class SegmentedTranscriptionTest {
+    private static final long TIMEOUT_S = 30;
+
+    /** Answers {"text":"segment N"} for a body holding "SEGN", or hangs up without a word. */
+    private static class StandInServer implements Runnable {
+        private static final Pattern MARKER = Pattern.compile("SEG(\\d+)");
+        final ServerSocket socket;
+        final List<String> answered = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean dropping = false;
+        volatile int dropped = 0;
+
+        StandInServer() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "stand-in-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/v1/audio/transcriptions";
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try (Socket client = socket.accept()) {
+                    if (dropping) {
+                        dropped++;
+                        continue;  // closed unanswered
+                    }
+                    answer(client);
+                } catch (IOException e) {
+                    // closed by the test, or the client gave up
+                }
+            }
+        }
+
+        private void answer(Socket client) throws IOException {
+            InputStream in = client.getInputStream();
+            String head = readHead(in);
+            if (head.isEmpty()) {
+                return;  // the queue's reachability probe: connect and hang up
+            }
+            Matcher length = Pattern.compile("(?i)content-length: *(\\d+)").matcher(head);
+            String body = "";
+            if (length.find()) {
+                byte[] bytes = new byte[Integer.parseInt(length.group(1))];
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    if (n < 0) {
+                        throw new IOException("body cut short");
+                    }
+                    read += n;
+                }
+                body = new String(bytes, "ISO-8859-1");
+            }
+            Matcher marker = MARKER.matcher(body);
+            String text = marker.find() ? "segment " + marker.group(1) : "";
+            answered.add(text);
+            byte[] reply = ("{\"text\":\"" + text + "\"}").getBytes("UTF-8");
+            OutputStream out = client.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + reply.length
+                + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            out.write(reply);
+            out.flush();
+        }
+
+        private static String readHead(InputStream in) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int last = 0;  // the last four bytes read
+            int b;
+            while (last != 0x0d0a0d0a && (b = in.read()) != -1) {
+                head.write(b);
+                last = (last << 8) | b;
+            }
+            return head.toString("ISO-8859-1");
+        }
+    }
+
+    /** Collects what the session reports. */
+    private static class Outcome implements SegmentedTranscription.Listener {
+        final CountDownLatch progressed = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile String text;
+        volatile int failed = -1;
+        volatile String error;
+
+        @Override
+        public void onProgress(int completedSegments, int knownSegments) {
+            progressed.countDown();
+        }
+
+        @Override
+        public void onComplete(String transcription, int failedSegments) {
+            text = transcription;
+            failed = failedSegments;
+            finished.countDown();
+        }
+
+        @Override
+        public void onError(String error) {
+            this.error = error;
+            finished.countDown();
+        }
+    }
+
+    private File root;
+    private FakeContext context;
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("segmented").toFile();
+        context = new FakeContext(root);
+        server = new StandInServer();
+        context.getSharedPreferences("VoiceOverlayPrefs", 0).edit()
+            .putString(TranscriptionRouter.KEY_TRANSCRIPTION_MODE, "self_hosted")
+            .putString(WhisperAPI.KEY_SELF_HOSTED_URL, server.url())
+            .apply();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.socket.close();
+    }
+
+    @Test
+    public void segmentsCutOffByDroppedConnectionsAreQueuedThenTranscribed() throws Exception {
+        Outcome outcome = new Outcome();
+        SegmentedTranscription session = new SegmentedTranscription(context, outcome);
+
+        session.submit(segment(0), 0);
+        assertTrue("segment 0 came back", outcome.progressed.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        // The connection goes bad while the last segment is uploading
+        server.dropping = true;
+        File last = segment(1);
+        session.finish(last, 1);
+        assertTrue("session finished", outcome.finished.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        assertEquals("segment 0", outcome.text);
+        assertEquals(1, outcome.failed);
+        assertEquals(RetryPolicy.MAX_ATTEMPTS, server.dropped);
+        assertEquals(1, session.getQueuedSegments());
+        TranscriptionQueue queue = TranscriptionQueue.get(context);
+        assertEquals(1, queue.size());
+        assertFalse("the failed segment was moved, not deleted", last.exists());
+        assertEquals("segments are cleaned out of the recording folder", 0, segmentsLeft());
+
+        // Back online: the queue sends it and files the result in history
+        server.dropping = false;
+        queue.drain();
+        long deadline = System.currentTimeMillis() + TIMEOUT_S * 1000;
+        while (queue.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, queue.size());
+        assertEquals(2, server.answered.size());
+        assertEquals("segment 1", server.answered.get(1));
+        HistoryStore.Entry entry = HistoryStore.get(context).read(0);
+        assertEquals("segment 1", entry.text);
+        assertTrue("history kept the segment's audio", new File(entry.audioPath).exists());
+    }
+
+    // A stand-in recording; the server only looks for the marker
+    private File segment(int index) throws IOException {
+        File file = new File(context.getCacheDir(), String.format(Locale.US, "voice_1_seg%d.m4a", index));
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(("SEG" + index).getBytes("ISO-8859-1"));
+            out.write(new byte[4096]);
+        }
+        return file;
+    }
+
+    private int segmentsLeft() {
+        String[] names = context.getCacheDir().list();
+        int count = 0;
+        for (String name : names) {
+            if (name.contains("_seg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
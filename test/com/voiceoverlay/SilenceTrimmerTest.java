@@ -0,0 +1,88 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SilenceTrimmerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void plansCutsForLeadingAndTrailingSilence() {
+        short[] pcm = new PcmFixtures(4).silence(1.0).voice(1.0).silence(1.5).samples();
+        List<long[]> keep = SilenceTrimmer.planTrim(PcmFixtures.detect(pcm, 2048));
+        assertEquals(1, keep.size());
+        assertArrayEquals(new long[]{12800, 37760}, keep.get(0));
+        assertEquals(56000 - 24960, SilenceTrimmer.removedSamples(keep, pcm.length));
+    }
+
+    @Test
+    public void plansCutsForALongPause() {
+        short[] pcm = new PcmFixtures(6).silence(0.5).voice(1.0).silence(3.0).voice(1.0).silence(0.5).samples();
+        List<long[]> keep = SilenceTrimmer.planTrim(PcmFixtures.detect(pcm, 2048));
+        assertEquals(2, keep.size());
+        // 300 ms lead, all but 700 ms of the pause (less the hangover), 340 ms of tail
+        assertEquals(41280, SilenceTrimmer.removedSamples(keep, pcm.length));
+    }
+
+    @Test
+    public void leavesRecordingsWithoutSpeechAlone() {
+        assertNull(SilenceTrimmer.planTrim(PcmFixtures.detect(new PcmFixtures(3).silence(3).samples(), 2048)));
+    }
+
+    @Test
+    public void skipsSmallSavings() {
+        short[] pcm = new PcmFixtures(3).silence(0.2).voice(2.0).silence(0.3).samples();
+        assertNull(SilenceTrimmer.planTrim(PcmFixtures.detect(pcm, 2048)));
+
+        // Just over the threshold once the padding is taken off
+        pcm = new PcmFixtures(3).silence(0.2 + SilenceTrimmer.PADDING_MS / 1000.0 + 0.55).voice(2.0).samples();
+        List<long[]> keep = SilenceTrimmer.planTrim(PcmFixtures.detect(pcm, 2048));
+        assertTrue(SilenceTrimmer.removedSamples(keep, pcm.length) * 1000 / PcmFixtures.RATE
+            >= SilenceTrimmer.MIN_SAVING_MS);
+    }
+
+    @Test
+    public void reportsBytesAndSecondsRemoved() throws IOException {
+        File input = file("in.m4a", 10000);
+        File output = file("in_trimmed.m4a", 4000);
+        SilenceTrimmer.TrimResult result = SilenceTrimmer.TrimResult.trimmed(input, output, 31040, PcmFixtures.RATE);
+        assertSame(output, result.file);
+        assertEquals(6000, result.bytesRemoved);
+        assertEquals(1.94, result.secondsRemoved, 1e-9);
+        assertTrue(result.isTrimmed());
+    }
+
+    @Test
+    public void unchangedReportsNothing() throws IOException {
+        File input = file("in.m4a", 10000);
+        SilenceTrimmer.TrimResult result = SilenceTrimmer.TrimResult.unchanged(input);
+        assertSame(input, result.file);
+        assertEquals(0, result.bytesRemoved);
+        assertEquals(0, result.secondsRemoved, 0);
+        assertFalse(result.isTrimmed());
+    }
+
+    private File file(String name, int size) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,107 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.media.MediaFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadTranscoderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void leavesSpeechRateRecordingsAlone() {
+        // Low preset at a speech bitrate, whether the container says so or the size does
+        MediaFormat low = aac(16000, 1);
+        low.setInteger(MediaFormat.KEY_BIT_RATE, 48000);
+        assertFalse(UploadTranscoder.needsTranscode(low, 0));
+        MediaFormat sized = aac(16000, 1);
+        sized.setLong(MediaFormat.KEY_DURATION, 10000000L);
+        assertFalse(UploadTranscoder.needsTranscode(sized, 60000));  // 48 kbit/s
+
+        MediaFormat opus = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, 48000, 2);
+        assertFalse(UploadTranscoder.needsTranscode(opus, 0));
+    }
+
+    @Test
+    public void convertsAnythingAboveSpeechRate() {
+        assertTrue(UploadTranscoder.needsTranscode(aac(22050, 1), 0));
+        assertTrue(UploadTranscoder.needsTranscode(aac(16000, 2), 0));
+        MediaFormat low = aac(16000, 1);
+        low.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
+        assertTrue(UploadTranscoder.needsTranscode(low, 0));
+    }
+
+    @Test
+    public void sendsOpusRecordingsWithoutOpeningThem() throws IOException {
+        File recording = recording("voice_1.ogg");
+        UploadTranscoder.Upload upload = UploadTranscoder.prepare(recording);
+        assertEquals("voice_1.ogg", upload.getFileName());
+        assertEquals(recording.length(), upload.getLength());
+        upload.release();
+        assertTrue(recording.exists());
+    }
+
+    @Test
+    public void fallsBackToTheRecordingWhenTheStreamedConversionFails() throws IOException {
+        // No media framework here, so the conversion fails before a byte is sent
+        File recording = recording("voice_2.m4a");
+        UploadTranscoder.Upload upload = new UploadTranscoder.Upload(recording, null);
+        assertEquals(-1, upload.getLength());
+        assertEquals("voice_2_upload.ogg", upload.getFileName());
+        try {
+            upload.writeTo(new ByteArrayOutputStream());
+            fail("the first try should fail and be retried");
+        } catch (IOException expected) {
+            // RetryPolicy retries it
+        }
+        assertFalse(new File(folder.getRoot(), "voice_2_upload.ogg").exists());
+
+        assertEquals("voice_2.m4a", upload.getFileName());
+        assertEquals(recording.length(), upload.getLength());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        upload.writeTo(out);
+        assertArrayEquals(Files.readAllBytes(recording.toPath()), out.toByteArray());
+
+        upload.release();
+        assertTrue("the recording is never deleted", recording.exists());
+    }
+
+    @Test
+    public void chunksABodyWhoseLengthIsNotKnownYet() throws IOException {
+        File recording = recording("voice_3.m4a");
+        UploadTranscoder.Upload streamed = new UploadTranscoder.Upload(recording, null);
+        MultipartBody body = new MultipartBody().addField("model", "whisper-1").addSource("file", streamed, null);
+        assertEquals(-1, body.getContentLength());
+
+        UploadTranscoder.Upload ready = new UploadTranscoder.Upload(recording, recording);
+        body = new MultipartBody().addField("model", "whisper-1").addSource("file", ready, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertEquals(out.size(), body.getContentLength());
+        assertTrue(out.toString("ISO-8859-1").contains("filename=\"voice_3.m4a\""));
+    }
+
+    private static MediaFormat aac(int sampleRate, int channels) {
+        return MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+    }
+
+    private File recording(String name) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[5000]);
+        }
+        return file;
+    }
+}
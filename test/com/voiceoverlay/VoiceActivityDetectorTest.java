@@ -0,0 +1,101 @@
+package com.voiceoverlay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+
+public class VoiceActivityDetectorTest {
+    private static final int FRAME = PcmFixtures.RATE / 50;   // 20 ms
+    private static final int HANGOVER = 8 * FRAME;
+
+    @Test
+    public void findsSpeechBetweenLeadingAndTrailingSilence() {
+        short[] pcm = new PcmFixtures(4).silence(1.0).voice(1.0).silence(1.5).samples();
+        VoiceActivityDetector vad = PcmFixtures.detect(pcm, 1024);
+
+        List<long[]> speech = vad.getSpeechRegions();
+        assertEquals(1, speech.size());
+        // Opens on the first voiced frame, closes after the hangover
+        assertArrayEquals(new long[]{16000, 32000 + HANGOVER}, speech.get(0));
+        assertEquals(pcm.length, vad.getProcessedSamples());
+    }
+
+    @Test
+    public void silenceOnlyHasNoSpeech() {
+        VoiceActivityDetector vad = PcmFixtures.detect(new PcmFixtures(3).silence(3).samples(), 1024);
+        assertTrue(vad.getSpeechRegions().isEmpty());
+        assertFalse(vad.isSpeech());
+    }
+
+    @Test
+    public void chunkSizeDoesNotMatter() {
+        short[] pcm = new PcmFixtures(4).silence(0.7).voice(0.9).silence(0.8).voice(0.4).silence(1).samples();
+        List<long[]> expected = PcmFixtures.detect(pcm, FRAME).getSpeechRegions();
+        for (int chunk : new int[]{1, 77, 1000, 4096, pcm.length}) {
+            List<long[]> actual = PcmFixtures.detect(pcm, chunk).getSpeechRegions();
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void tracksSpeechAsItHappens() {
+        VoiceActivityDetector vad = new VoiceActivityDetector(PcmFixtures.RATE);
+        short[] voice = new PcmFixtures(1).voice(0.5).samples();
+        short[] silence = new PcmFixtures(1).silence(0.5).samples();
+        vad.process(voice, 0, voice.length);
+        assertTrue(vad.isSpeech());
+        vad.process(silence, 0, silence.length);
+        assertFalse(vad.isSpeech());
+    }
+
+    @Test
+    public void trimsLeadingAndTrailingSilenceToThePadding() {
+        List<long[]> speech = regions(new long[]{16000, 34560});
+        List<long[]> keep = VoiceActivityDetector.planKeepRanges(speech, 56000, 3200, 11200);
+        assertEquals(1, keep.size());
+        assertArrayEquals(new long[]{12800, 37760}, keep.get(0));
+    }
+
+    @Test
+    public void paddingStopsAtTheEdges() {
+        List<long[]> keep = VoiceActivityDetector.planKeepRanges(regions(new long[]{1000, 55000}), 56000, 3200, 11200);
+        assertArrayEquals(new long[]{0, 56000}, keep.get(0));
+    }
+
+    @Test
+    public void compressesLongPausesToTheAllowance() {
+        short[] pcm = new PcmFixtures(6).silence(0.5).voice(1.0).silence(3.0).voice(1.0).silence(0.5).samples();
+        VoiceActivityDetector vad = PcmFixtures.detect(pcm, 1024);
+        List<long[]> speech = vad.getSpeechRegions();
+        assertEquals(2, speech.size());
+        assertArrayEquals(new long[]{8000, 24000 + HANGOVER}, speech.get(0));
+        assertArrayEquals(new long[]{72000, 88000 + HANGOVER}, speech.get(1));
+
+        List<long[]> keep = VoiceActivityDetector.planKeepRanges(speech, pcm.length, 3200, 11200);
+        assertEquals(2, keep.size());
+        // Half of the 700 ms allowance stays on each side of the pause
+        assertArrayEquals(new long[]{4800, 24000 + HANGOVER + 5600}, keep.get(0));
+        assertArrayEquals(new long[]{72000 - 5600, 88000 + HANGOVER + 3200}, keep.get(1));
+    }
+
+    @Test
+    public void keepsShortPausesWhole() {
+        short[] pcm = new PcmFixtures(4).silence(0.5).voice(1.0).silence(0.5).voice(1.0).silence(0.5).samples();
+        VoiceActivityDetector vad = PcmFixtures.detect(pcm, 1024);
+        assertEquals(2, vad.getSpeechRegions().size());
+        List<long[]> keep = VoiceActivityDetector.planKeepRanges(vad.getSpeechRegions(), pcm.length, 3200, 11200);
+        assertEquals(1, keep.size());
+        assertArrayEquals(new long[]{4800, 48000 + HANGOVER + 3200}, keep.get(0));
+    }
+
+    private static List<long[]> regions(long[]... regions) {
+        return java.util.Arrays.asList(regions);
+    }
+}
@@ -0,0 +1,51 @@
+package android.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * JVM stand-in with no media framework behind it: every file is unreadable,
+ * so callers take their "could not open" path.
+ */
+public final class MediaExtractor {
+    public static final int SEEK_TO_PREVIOUS_SYNC = 0;
+    public static final int SAMPLE_FLAG_SYNC = 1;
+
+    public void setDataSource(String path) throws IOException {
+        throw new IOException("No media framework on the JVM: " + path);
+    }
+
+    public int getTrackCount() {
+        return 0;
+    }
+
+    public MediaFormat getTrackFormat(int index) {
+        throw new IllegalArgumentException("No track " + index);
+    }
+
+    public void selectTrack(int index) {
+        throw new IllegalArgumentException("No track " + index);
+    }
+
+    public void seekTo(long timeUs, int mode) {
+    }
+
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return -1;
+    }
+
+    public long getSampleTime() {
+        return -1;
+    }
+
+    public int getSampleFlags() {
+        return 0;
+    }
+
+    public boolean advance() {
+        return false;
+    }
+
+    public void release() {
+    }
+}
@@ -0,0 +1,21 @@
+package android.os;
+
+/** JVM stand-in: the framework reads these from system properties through native code. */
+public class Build {
+    public static final String MODEL = "jvm";
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.R;
+    }
+
+    public static class VERSION_CODES {
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+        public static final int Q = 29;
+        public static final int R = 30;
+        public static final int TIRAMISU = 33;
+    }
+}
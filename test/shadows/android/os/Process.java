@@ -0,0 +1,15 @@
+package android.os;
+
+/** JVM stand-in: thread priorities are a no-op off the device. */
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+    public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+    public static void setThreadPriority(int priority) {
+    }
+
+    public static void setThreadPriority(int tid, int priority) {
+    }
+}
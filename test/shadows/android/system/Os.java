@@ -0,0 +1,18 @@
+package android.system;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/** JVM stand-in: the framework's syscall wrappers are native. */
+public final class Os {
+    private Os() {}
+
+    public static void link(String oldPath, String newPath) throws ErrnoException {
+        try {
+            Files.createLink(Paths.get(newPath), Paths.get(oldPath));
+        } catch (IOException e) {
+            throw new ErrnoException("link", 5);  // EIO; OsConstants is filled in natively
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package android.util;
+
+/** JVM stand-in for the framework logger, which goes to a native call. */
+public final class Log {
+    private Log() {}
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print("W", msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", msg, tr);
+    }
+
+    private static int print(String level, String msg, Throwable tr) {
+        System.err.println(level + " " + msg + (tr != null ? " " + tr : ""));
+        return 0;
+    }
+}